@@ -0,0 +1,498 @@
+package es.unican.meteo.esgf.download;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Verifies checksums of files in file system. Verifications are executed in
+ * their own pool of threads, so they don't use download threads, and digests
+ * calculated are saved in a persistent cache by path, size and last
+ * modification date of file. Then, a file that hasn't changed is never read
+ * again.
+ *
+ * @author Karem Terry
+ *
+ */
+public class ChecksumVerifier {
+
+    /** Logger. */
+    static private org.slf4j.Logger logger = org.slf4j.LoggerFactory
+            .getLogger(ChecksumVerifier.class);
+
+    /** Default number of simultaneous verifications. */
+    public static final int DEFAULT_MAX_VERIFICATIONS = 2;
+
+    /** Size of read buffer. */
+    private static final int BUFFER_SIZE = 1048576; // 1M
+
+    /** Number of new digests that forces cache to be saved. */
+    private static final int SAVE_EVERY = 1000;
+
+    /** File name of digest cache. */
+    private static final String DIGEST_CACHE_FILE_NAME = "checksum_cache.data";
+
+    /** Singleton instance. */
+    private static ChecksumVerifier INSTANCE = null;
+
+    /** Pool of threads of verifications. */
+    private ThreadPoolExecutor verificationExecutor;
+
+    /** Verifications queued or running. */
+    private AtomicInteger pendingVerifications;
+
+    /** Digests of files by absolute path of file. */
+    private Map<String, FileDigest> digestCache;
+
+    /** Digests that haven't been saved in file. */
+    private int unsavedDigests;
+
+    /** Path of digest cache file. */
+    private String digestCachePath;
+
+    /**
+     * Create a thread-safe singleton.
+     */
+    private static void createInstance() {
+        logger.trace("[IN]  createInstance");
+
+        logger.debug("Checking if exist an instance of ChecksumVerifier");
+        // creating a thread-safe singleton
+        if (INSTANCE == null) {
+
+            // Only the synchronized block is accessed when the instance hasn't
+            // been created.
+            synchronized (ChecksumVerifier.class) {
+                // Inside the block it must check again that the instance has
+                // not been created.
+                if (INSTANCE == null) {
+                    logger.debug("Creating new instance of ChecksumVerifier");
+                    INSTANCE = new ChecksumVerifier();
+                }
+            }
+        }
+        logger.trace("[OUT] createInstance");
+    }
+
+    /**
+     * Get singleton instance of {@link ChecksumVerifier}. This instance is the
+     * only that exists.
+     *
+     * @return the unique instance of {@link ChecksumVerifier}.
+     */
+    public static ChecksumVerifier getInstance() {
+        logger.trace("[IN]  getInstance");
+        createInstance();
+        logger.trace("[OUT] getInstance");
+        return INSTANCE;
+    }
+
+    /**
+     * Constructor. Load digest cache of previous sessions.
+     */
+    private ChecksumVerifier() {
+        logger.trace("[IN]  ChecksumVerifier");
+
+        this.digestCachePath = System.getProperty("user.home")
+                + File.separator + ".esgData" + File.separator
+                + DIGEST_CACHE_FILE_NAME;
+        this.digestCache = loadDigestCache();
+        this.unsavedDigests = 0;
+        this.pendingVerifications = new AtomicInteger(0);
+
+        // verifications use disk, so its threads have minimum priority to
+        // not delay download threads
+        this.verificationExecutor = new ThreadPoolExecutor(
+                DEFAULT_MAX_VERIFICATIONS, DEFAULT_MAX_VERIFICATIONS, 60,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger(0);
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable,
+                                "checksum-verifier-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+        this.verificationExecutor.allowCoreThreadTimeOut(true);
+
+        logger.trace("[OUT] ChecksumVerifier");
+    }
+
+    /**
+     * Get maximum number of simultaneous verifications
+     *
+     * @return the maximum number of simultaneous verifications
+     */
+    public int getMaxVerifications() {
+        logger.trace("[IN]  getMaxVerifications");
+        logger.trace("[OUT] getMaxVerifications");
+        return verificationExecutor.getMaximumPoolSize();
+    }
+
+    /**
+     * Set maximum number of simultaneous verifications. Synchronized.
+     *
+     * @param maxVerifications
+     *            the maximum number of simultaneous verifications
+     *
+     * @throws IllegalArgumentException
+     *             if maxVerifications is less than 1
+     */
+    public synchronized void setMaxVerifications(int maxVerifications) {
+        logger.trace("[IN]  setMaxVerifications");
+
+        if (maxVerifications < 1) {
+            throw new IllegalArgumentException(
+                    "Invalid number of verifications: " + maxVerifications);
+        }
+
+        if (maxVerifications > verificationExecutor.getMaximumPoolSize()) {
+            verificationExecutor.setMaximumPoolSize(maxVerifications);
+            verificationExecutor.setCorePoolSize(maxVerifications);
+        } else {
+            verificationExecutor.setCorePoolSize(maxVerifications);
+            verificationExecutor.setMaximumPoolSize(maxVerifications);
+        }
+
+        logger.trace("[OUT] setMaxVerifications");
+    }
+
+    /**
+     * Execute a verification task in pool of verifications
+     *
+     * @param task
+     *            task that verifies files with
+     *            {@link #verify(File, String, ChecksumType)}
+     */
+    public void execute(final Runnable task) {
+        logger.trace("[IN]  execute");
+
+        pendingVerifications.incrementAndGet();
+        verificationExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    // save cache when there aren't more verifications
+                    if (pendingVerifications.decrementAndGet() == 0) {
+                        saveDigestCache(false);
+                    }
+                }
+            }
+        });
+
+        logger.trace("[OUT] execute");
+    }
+
+    /**
+     * Verify if checksum of a file is valid. If file hasn't changed since its
+     * digest was calculated then the digest of cache is used, otherwise the
+     * file is read and its digest is saved in cache. It is executed in caller
+     * thread.
+     *
+     * @param file
+     *            file in file system
+     * @param checksum
+     *            expected checksum in hexadecimal
+     * @param checksumType
+     *            algorithm of checksum
+     * @return true if checksum of file is the expected checksum and false
+     *         otherwise
+     * @throws IOException
+     *             if file can't be read
+     * @throws NoSuchAlgorithmException
+     *             if algorithm of checksum isn't supported
+     */
+    public boolean verify(File file, String checksum,
+            ChecksumType checksumType) throws IOException,
+            NoSuchAlgorithmException {
+        logger.trace("[IN]  verify");
+
+        String path = file.getAbsolutePath();
+        long size = file.length();
+        long lastModified = file.lastModified();
+
+        FileDigest fileDigest;
+        synchronized (this) {
+            fileDigest = digestCache.get(path);
+        }
+
+        if (fileDigest != null
+                && fileDigest.matches(size, lastModified, checksumType)) {
+            logger.debug("Digest of file {} obtained from cache", path);
+        } else {
+            String digest = calculateDigest(file, checksumType);
+
+            // if file has changed while was read don't save its digest
+            if (file.length() == size && file.lastModified() == lastModified) {
+                fileDigest = new FileDigest(size, lastModified,
+                        checksumType, digest);
+                putFileDigest(path, fileDigest);
+            } else {
+                logger.trace("[OUT] verify");
+                return digest.equals(checksum);
+            }
+        }
+
+        logger.trace("[OUT] verify");
+        return fileDigest.digest.equals(checksum);
+    }
+
+    /**
+     * Save in cache a digest of file calculated by others, like the digest
+     * calculated while file is downloaded.
+     *
+     * @param file
+     *            file in file system
+     * @param checksumType
+     *            algorithm of digest
+     * @param digest
+     *            digest in hexadecimal
+     */
+    public void putVerified(File file, ChecksumType checksumType, String digest) {
+        logger.trace("[IN]  putVerified");
+
+        putFileDigest(file.getAbsolutePath(), new FileDigest(file.length(),
+                file.lastModified(), checksumType, digest));
+
+        logger.trace("[OUT] putVerified");
+    }
+
+    /**
+     * Put a digest of file in cache and save cache if there are too many
+     * digests unsaved. Synchronized.
+     *
+     * @param path
+     *            absolute path of file
+     * @param fileDigest
+     *            digest of file
+     */
+    private synchronized void putFileDigest(String path, FileDigest fileDigest) {
+        logger.trace("[IN]  putFileDigest");
+
+        digestCache.put(path, fileDigest);
+        unsavedDigests++;
+
+        if (unsavedDigests >= SAVE_EVERY) {
+            saveDigestCache(true);
+        }
+
+        logger.trace("[OUT] putFileDigest");
+    }
+
+    /**
+     * Read a file and calculate its digest
+     *
+     * @param file
+     *            file in file system
+     * @param checksumType
+     *            algorithm of digest
+     * @return digest in hexadecimal in lower case
+     * @throws IOException
+     *             if file can't be read
+     * @throws NoSuchAlgorithmException
+     *             if algorithm of checksum isn't supported
+     */
+    private String calculateDigest(File file, ChecksumType checksumType)
+            throws IOException, NoSuchAlgorithmException {
+        logger.trace("[IN]  calculateDigest");
+
+        long time_start = System.currentTimeMillis();
+        logger.debug("Calculating digest of file {}...", file);
+
+        MessageDigest messageDigest = MessageDigest.getInstance(checksumType
+                .toString());
+
+        InputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            byte[] dataBytes = new byte[BUFFER_SIZE];
+            int nread = is.read(dataBytes);
+            while (nread >= 0) {
+                messageDigest.update(dataBytes, 0, nread);
+                nread = is.read(dataBytes);
+            }
+        } finally {
+            try {
+                is.close();
+            } catch (final Exception e) {
+            }
+        }
+
+        String hash = toHexString(messageDigest.digest());
+
+        logger.info("the checksum of {} has taken {} milliseconds", file,
+                (System.currentTimeMillis() - time_start));
+        logger.trace("[OUT] calculateDigest");
+        return hash;
+    }
+
+    /**
+     * Cast byte[] to hexadecimal string
+     *
+     * @param bytes
+     *            bytes
+     * @return hexadecimal string in lower case
+     */
+    static String toHexString(byte[] bytes) {
+        StringBuilder hash = new StringBuilder();
+        for (byte aux : bytes) {
+            int b = aux & 0xff;
+            if (Integer.toHexString(b).length() == 1) {
+                hash.append("0");
+            }
+            hash.append(Integer.toHexString(b));
+        }
+        return hash.toString();
+    }
+
+    /**
+     * Load digest cache from file system.
+     *
+     * @return map of digests by absolute path. Empty if cache doesn't exist or
+     *         can't be read
+     */
+    @SuppressWarnings("unchecked")
+    private Map<String, FileDigest> loadDigestCache() {
+        logger.trace("[IN]  loadDigestCache");
+
+        Map<String, FileDigest> cache = new HashMap<String, FileDigest>();
+        File file = new File(digestCachePath);
+
+        if (file.exists()) {
+            ObjectInputStream ois = null;
+            try {
+                ois = new ObjectInputStream(new FileInputStream(file));
+                cache = (Map<String, FileDigest>) ois.readObject();
+                logger.debug("{} digests loaded from cache", cache.size());
+            } catch (Exception e) {
+                logger.warn("Digest cache can't be loaded: {}", e.getMessage());
+            } finally {
+                try {
+                    ois.close();
+                } catch (final Exception e) {
+                }
+            }
+        }
+
+        logger.trace("[OUT] loadDigestCache");
+        return cache;
+    }
+
+    /**
+     * Save digest cache in file system if it has changed. Digests of files
+     * that no longer exist (deleted or reset files) are removed before.
+     * Synchronized.
+     *
+     * @param force
+     *            if true, save cache although there aren't changes
+     */
+    private synchronized void saveDigestCache(boolean force) {
+        logger.trace("[IN]  saveDigestCache");
+
+        if (unsavedDigests == 0 && !force) {
+            logger.trace("[OUT] saveDigestCache");
+            return;
+        }
+
+        Iterator<String> paths = digestCache.keySet().iterator();
+        while (paths.hasNext()) {
+            if (!new File(paths.next()).exists()) {
+                paths.remove();
+            }
+        }
+
+        ObjectOutputStream out = null;
+        try {
+            out = new ObjectOutputStream(new FileOutputStream(digestCachePath));
+            out.writeObject(digestCache);
+            unsavedDigests = 0;
+        } catch (IOException e) {
+            logger.warn("Digest cache can't be saved: {}", e.getMessage());
+        } finally {
+            try {
+                out.close();
+            } catch (final Exception e) {
+            }
+        }
+
+        logger.trace("[OUT] saveDigestCache");
+    }
+
+    /**
+     * Digest of a file with size and last modification date of file when
+     * digest was calculated.
+     */
+    private static class FileDigest implements Serializable {
+
+        /** Size of file. */
+        private final long size;
+
+        /** Last modification date of file. */
+        private final long lastModified;
+
+        /** Algorithm of digest. */
+        private final ChecksumType checksumType;
+
+        /** Digest in hexadecimal. */
+        private final String digest;
+
+        /**
+         * Constructor
+         *
+         * @param size
+         *            size of file
+         * @param lastModified
+         *            last modification date of file
+         * @param checksumType
+         *            algorithm of digest
+         * @param digest
+         *            digest in hexadecimal
+         */
+        public FileDigest(long size, long lastModified,
+                ChecksumType checksumType, String digest) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.checksumType = checksumType;
+            this.digest = digest;
+        }
+
+        /**
+         * Check if digest is of a file with this size and last modification
+         * date calculated with this algorithm
+         *
+         * @param size
+         *            size of file
+         * @param lastModified
+         *            last modification date of file
+         * @param checksumType
+         *            algorithm of digest
+         * @return true if digest is valid for file and false otherwise
+         */
+        public boolean matches(long size, long lastModified,
+                ChecksumType checksumType) {
+            return this.size == size && this.lastModified == lastModified
+                    && this.checksumType == checksumType;
+        }
+    }
+}
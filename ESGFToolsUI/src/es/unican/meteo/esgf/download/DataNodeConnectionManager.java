@@ -0,0 +1,324 @@
+package es.unican.meteo.esgf.download;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.net.ssl.HttpsURLConnection;
+
+import es.unican.meteo.esgf.petition.CredentialsManager;
+
+/**
+ * Opens http connections to files of data nodes shared by all file downloads.
+ * Connections are persistent (keep-alive), so the TCP and TLS connections of
+ * a data node are reused by next requests to the same data node if the
+ * response is completely read and its input stream is closed instead of
+ * disconnected. If a data node needs authentication, it is detected with the
+ * first file of data node and the authentication cookie is reused in next
+ * files until it expires.
+ *
+ * @author Karem Terry
+ *
+ */
+public class DataNodeConnectionManager {
+
+    /** Logger. */
+    static private org.slf4j.Logger logger = org.slf4j.LoggerFactory
+            .getLogger(DataNodeConnectionManager.class);
+
+    /** Maximum idle persistent connections by data node. */
+    private static final String MAX_CONNECTIONS_BY_DATA_NODE = "16";
+
+    /** Milliseconds to wait a connection. */
+    private static final int CONNECT_TIMEOUT = 30000; // 30 s
+
+    /**
+     * Milliseconds to wait data of a connection. A download without data in
+     * this time is stalled.
+     */
+    private static final int READ_TIMEOUT = 120000; // 2 min
+
+    /** Singleton instance. */
+    private static DataNodeConnectionManager INSTANCE = null;
+
+    /** True if data node needs authentication, by data node. */
+    private Map<String, Boolean> needPermissions;
+
+    /** Authentication cookie, by data node. */
+    private Map<String, String> authenticationCookies;
+
+    /**
+     * Create a thread-safe singleton.
+     */
+    private static void createInstance() {
+        logger.trace("[IN]  createInstance");
+
+        logger.debug("Checking if exist an instance of DataNodeConnectionManager");
+        // creating a thread-safe singleton
+        if (INSTANCE == null) {
+
+            // Only the synchronized block is accessed when the instance hasn't
+            // been created.
+            synchronized (DataNodeConnectionManager.class) {
+                // Inside the block it must check again that the instance has
+                // not been created.
+                if (INSTANCE == null) {
+                    logger.debug("Creating new instance of DataNodeConnectionManager");
+                    INSTANCE = new DataNodeConnectionManager();
+                }
+            }
+        }
+        logger.trace("[OUT] createInstance");
+    }
+
+    /**
+     * Get singleton instance of {@link DataNodeConnectionManager}. This
+     * instance is the only that exists.
+     *
+     * @return the unique instance of {@link DataNodeConnectionManager}.
+     */
+    public static DataNodeConnectionManager getInstance() {
+        logger.trace("[IN]  getInstance");
+        createInstance();
+        logger.trace("[OUT] getInstance");
+        return INSTANCE;
+    }
+
+    /**
+     * Constructor
+     */
+    private DataNodeConnectionManager() {
+        logger.trace("[IN]  DataNodeConnectionManager");
+
+        this.needPermissions = new HashMap<String, Boolean>();
+        this.authenticationCookies = new HashMap<String, String>();
+
+        logger.trace("[OUT] DataNodeConnectionManager");
+    }
+
+    /**
+     * Configure persistent connections of JVM. Persistent connections are
+     * enabled by default in JVM but only 5 idle connections are kept by host,
+     * and downloads of a data node can use more (segmented downloads).
+     *
+     * <p>
+     * JVM reads http.maxConnections only once, when its keep-alive cache is
+     * initialized by the first http connection, so this must be called at
+     * startup before any connection is opened. Otherwise it has no effect and
+     * the value must be passed as a JVM flag: -Dhttp.maxConnections=16. A
+     * value passed as JVM flag isn't overwritten.
+     * </p>
+     */
+    public static void configureConnections() {
+        logger.trace("[IN]  configureConnections");
+
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections",
+                    MAX_CONNECTIONS_BY_DATA_NODE);
+        }
+
+        logger.trace("[OUT] configureConnections");
+    }
+
+    /**
+     * Open a connection to a file of data node and get its response. If data
+     * node needs authentication the connection is authenticated with user
+     * credentials. The returned connection has already received the response
+     * headers.
+     *
+     * <p>
+     * To reuse the connection, the input stream must be read to the end and
+     * closed without calling {@link HttpURLConnection#disconnect()}.
+     * </p>
+     *
+     * @param url
+     *            url of file in data node
+     * @param range
+     *            value of http header Range, or null to request all file
+     * @return connection with response
+     * @throws IOException
+     *             if connection can't be opened
+     * @throws UnauthorizedException
+     *             if user haven't permissions to access to file
+     */
+    public HttpURLConnection openConnection(URL url, String range)
+            throws IOException, UnauthorizedException {
+        logger.trace("[IN]  openConnection");
+
+        String dataNode = getDataNode(url);
+        Boolean nodeNeedPermissions;
+        String cookie;
+        synchronized (this) {
+            nodeNeedPermissions = needPermissions.get(dataNode);
+            cookie = authenticationCookies.get(dataNode);
+        }
+
+        // First file of data node or data node without authentication
+        if (nodeNeedPermissions == null || !nodeNeedPermissions) {
+            HttpURLConnection con = createConnection(url, range, null);
+            int responseCode = con.getResponseCode();
+            if (responseCode == 200 || responseCode == 206) {
+                synchronized (this) {
+                    needPermissions.put(dataNode, false);
+                }
+                logger.trace("[OUT] openConnection");
+                return con;
+            }
+
+            logger.debug("Data node {} needs permissions. Response code: {}",
+                    dataNode, responseCode);
+            con.disconnect();
+            synchronized (this) {
+                needPermissions.put(dataNode, true);
+            }
+        } else if (cookie != null) {
+            // Authentication cookie of previous files of data node
+            HttpURLConnection con = createConnection(url, range, cookie);
+            int responseCode = con.getResponseCode();
+            if (responseCode == 200 || responseCode == 206) {
+                logger.trace("[OUT] openConnection");
+                return con;
+            }
+
+            logger.debug("Authentication cookie of data node {} has expired."
+                    + " Response code: {}", dataNode, responseCode);
+            con.disconnect();
+            synchronized (this) {
+                authenticationCookies.remove(dataNode);
+            }
+        }
+
+        HttpURLConnection con = authenticate(url, range, dataNode);
+
+        logger.trace("[OUT] openConnection");
+        return con;
+    }
+
+    /**
+     * Get authenticated connection of a file with user credentials, and save
+     * authentication cookie for next files of data node.
+     *
+     * @param url
+     *            url of file in data node
+     * @param range
+     *            value of http header Range, or null to request all file
+     * @param dataNode
+     *            data node of file
+     * @return authenticated connection with response
+     * @throws IOException
+     *             if connection can't be opened
+     * @throws UnauthorizedException
+     *             if user haven't permissions to access to file
+     */
+    private HttpURLConnection authenticate(URL url, String range,
+            String dataNode) throws IOException, UnauthorizedException {
+        logger.trace("[IN]  authenticate");
+
+        logger.debug("Getting permissions for data node {}...", dataNode);
+        CredentialsManager credentialsManager = CredentialsManager
+                .getInstance();
+        if (!credentialsManager.hasInitiated()) {
+            throw new UnauthorizedException(0);
+        }
+
+        HttpURLConnection con = credentialsManager
+                .getAuthenticatedConnection(url);
+        if (con == null) {
+            throw new IOException("Authenticated connection of " + url
+                    + " can't be obtained");
+        }
+
+        // Request properties can be read until connection is connected
+        String cookie = con.getRequestProperty("Cookie");
+        configureConnection(con, range);
+
+        int responseCode = con.getResponseCode();
+        if (responseCode == 401 || responseCode == 302 || responseCode == 500) {
+            logger.info("User haven't permissions to access to file {}", url);
+            con.disconnect();
+            throw new UnauthorizedException(responseCode);
+        }
+
+        if (cookie != null) {
+            synchronized (this) {
+                authenticationCookies.put(dataNode, cookie);
+            }
+        }
+
+        logger.trace("[OUT] authenticate");
+        return con;
+    }
+
+    /**
+     * Create and configure a connection to a file of data node
+     *
+     * @param url
+     *            url of file in data node
+     * @param range
+     *            value of http header Range, or null to request all file
+     * @param cookie
+     *            authentication cookie, or null
+     * @return configured connection
+     * @throws IOException
+     *             if connection can't be opened
+     */
+    private HttpURLConnection createConnection(URL url, String range,
+            String cookie) throws IOException {
+        logger.trace("[IN]  createConnection");
+
+        HttpURLConnection con = (HttpURLConnection) url.openConnection();
+
+        // https connections use always the same socket factory, so they
+        // can be reused
+        if (con instanceof HttpsURLConnection
+                && CredentialsManager.getInstance().hasInitiated()) {
+            ((HttpsURLConnection) con).setSSLSocketFactory(CredentialsManager
+                    .getInstance().getSSLSocketFactory());
+        }
+
+        if (cookie != null) {
+            con.setRequestProperty("Cookie", cookie);
+        }
+        configureConnection(con, range);
+
+        logger.trace("[OUT] createConnection");
+        return con;
+    }
+
+    /**
+     * Configure a connection to a file of data node
+     *
+     * @param con
+     *            connection that hasn't been connected
+     * @param range
+     *            value of http header Range, or null to request all file
+     */
+    private void configureConnection(HttpURLConnection con, String range) {
+        logger.trace("[IN]  configureConnection");
+
+        con.setInstanceFollowRedirects(true);
+        con.setUseCaches(false);
+        con.setConnectTimeout(CONNECT_TIMEOUT);
+        con.setReadTimeout(READ_TIMEOUT);
+        if (range != null) {
+            con.setRequestProperty("Range", range);
+        }
+
+        logger.trace("[OUT] configureConnection");
+    }
+
+    /**
+     * Get data node of an url
+     *
+     * @param url
+     *            url of file in data node
+     * @return host and port of url
+     */
+    private String getDataNode(URL url) {
+        logger.trace("[IN]  getDataNode");
+        logger.trace("[OUT] getDataNode");
+        return url.getProtocol() + "://" + url.getAuthority();
+    }
+}
@@ -12,7 +12,6 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
 
 import es.unican.meteo.esgf.search.Dataset;
 import es.unican.meteo.esgf.search.DatasetFile;
@@ -31,14 +30,20 @@ public class DatasetDownloadStatus implements Download, Serializable {
     static private org.slf4j.Logger logger = org.slf4j.LoggerFactory
             .getLogger(DatasetDownloadStatus.class);
 
+    /**
+     * Serial version of dataset downloads saved by previous versions, to read
+     * them yet.
+     */
+    private static final long serialVersionUID = 1307415388290007405L;
+
     /** Predetermined directory of downloads. */
     private static final String DATA_DIRECTORY_NAME = "ESGF_DATA";
 
     /** Current size of the file being downloaded. */
     private long currentSize;
 
-    /** Executor that schedules and executes file downloads. Thread pool. */
-    private transient ExecutorService downloadExecutor;
+    /** Scheduler that queues and executes file downloads by data node. */
+    private transient DownloadScheduler downloadExecutor;
 
     /** Download finish date. */
     private Date downloadFinish;
@@ -95,10 +100,11 @@ public class DatasetDownloadStatus implements Download, Serializable {
      *            path of downloads. If path parameter is null then path =
      *            user.home/ESGF_DATA
      * @param downloadExecutor
+     *            scheduler that queues and executes file downloads
      */
     public DatasetDownloadStatus(String datasetInstanceID,
             Map<String, Long> files, Map<String, String> fileNames,
-            String path, ExecutorService downloadExecutor) {
+            String path, DownloadScheduler downloadExecutor) {
         logger.trace("[IN]  DatasetDownloadStatus");
 
         this.status = RecordStatus.CREATED;
@@ -316,8 +322,8 @@ public class DatasetDownloadStatus implements Download, Serializable {
                 // Select download node
                 String dataNode = fileReplica.getDataNode();
 
-                // Add file download to download executor
-                downloadExecutor.execute(fileDownloadStatus);
+                // Add file download to queue of its data node
+                executeFile(fileDownloadStatus, dataNode);
 
                 count++;
             }
@@ -380,8 +386,8 @@ public class DatasetDownloadStatus implements Download, Serializable {
             // Select download node
             String dataNode = fileReplica.getDataNode();
 
-            // Add file download to download executor
-            downloadExecutor.execute(fileDownloadStatus);
+            // Add file download to queue of its data node
+            executeFile(fileDownloadStatus, dataNode);
             logger.info("File {} has been put to download",
                     fileDownloadStatus.getInstanceID());
         }
@@ -389,6 +395,47 @@ public class DatasetDownloadStatus implements Download, Serializable {
         logger.trace("[OUT] downloadFile");
     }
 
+    /**
+     * Put again a file in state WAITING in the download queue of data node of
+     * its current replica. Used when a download continues from another replica.
+     *
+     * @param fileDownloadStatus
+     *            file download status in state WAITING
+     */
+    public void requeueFile(FileDownloadStatus fileDownloadStatus) {
+        logger.trace("[IN]  requeueFile");
+
+        downloadExecutor.execute(fileDownloadStatus, fileDownloadStatus
+                .getCurrentFileReplica().getDataNode());
+
+        logger.trace("[OUT] requeueFile");
+    }
+
+    /**
+     * Put file to download in its data node queue. Files that already exist in
+     * file system are verified first in background by {@link ChecksumVerifier}
+     * and they are only downloaded if they aren't valid.
+     *
+     * @param fileDownloadStatus
+     *            file download status in state WAITING
+     * @param dataNode
+     *            data node of file
+     */
+    private void executeFile(FileDownloadStatus fileDownloadStatus,
+            String dataNode) {
+        logger.trace("[IN]  executeFile");
+
+        if (fileDownloadStatus.isExistingFile()) {
+            logger.debug("File {} exists. Verifying it before download",
+                    fileDownloadStatus.getInstanceID());
+            fileDownloadStatus.verifyExistingFile(downloadExecutor, dataNode);
+        } else {
+            downloadExecutor.execute(fileDownloadStatus, dataNode);
+        }
+
+        logger.trace("[OUT] executeFile");
+    }
+
     /**
      * Get current approximate time to finish the download in milliseconds.
      */
@@ -638,14 +685,13 @@ public class DatasetDownloadStatus implements Download, Serializable {
     }
 
     /**
-     * Call method FileDownloadProgress() in all observers
+     * Post progress to {@link ProgressDispatcher} that calls method
+     * onDownloadChange() in all observers in its own thread
      */
     private void notifyDownloadProgressObservers() {
         logger.trace("[IN]  notifyDownloadProgressObservers");
 
-        for (DownloadObserver o : observers) {
-            o.onDownloadChange(this);
-        }
+        ProgressDispatcher.getInstance().post(this, observers);
 
         logger.trace("[OUT] notifyDownloadProgressObservers");
     }
@@ -735,7 +781,10 @@ public class DatasetDownloadStatus implements Download, Serializable {
      * @param observer
      */
     public void registerObserver(DownloadObserver observer) {
-        observers.add(observer);
+        // observers are also read by ProgressDispatcher thread
+        synchronized (observers) {
+            observers.add(observer);
+        }
     }
 
     /** Reset dataset download. Therefore all files */
@@ -880,12 +929,12 @@ public class DatasetDownloadStatus implements Download, Serializable {
     }
 
     /**
-     * Set executor that schedules and executes file downloads. Thread pool
+     * Set scheduler that queues and executes file downloads by data node.
      *
      * @param downloadExecutor
      *            the downloadExecutor to set
      */
-    public void setDownloadExecutor(ExecutorService downloadExecutor) {
+    public void setDownloadExecutor(DownloadScheduler downloadExecutor) {
         logger.trace("[IN]  setDownloadExecutor");
         this.downloadExecutor = downloadExecutor;
         logger.trace("[OUT] setDownloadExecutor");
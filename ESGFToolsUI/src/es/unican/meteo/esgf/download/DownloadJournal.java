@@ -0,0 +1,491 @@
+package es.unican.meteo.esgf.download;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Append-only journal of download progress. Changes of download status are
+ * only marked in memory and a background thread appends to the journal, once
+ * in each flush interval, a compact record of each changed dataset and of
+ * each of its files whose size or status has changed. Records have absolute
+ * values so replay them more than once gives the same result.
+ *
+ * <p>
+ * Periodically, or when journal is too big, a checkpoint writes a full
+ * snapshot of downloads and the journal is truncated. At exit, a checkpoint
+ * must be done instead of writing a snapshot without truncating the journal,
+ * and changes not written yet are flushed by a shutdown hook. When the program
+ * restarts, the journal is replayed over the last snapshot.
+ * </p>
+ *
+ * @author Karem Terry
+ *
+ */
+public class DownloadJournal {
+
+    /** Logger. */
+    static private org.slf4j.Logger logger = org.slf4j.LoggerFactory
+            .getLogger(DownloadJournal.class);
+
+    /** Record type of a dataset status. */
+    private static final byte DATASET_RECORD = 1;
+
+    /** Record type of a file status. */
+    private static final byte FILE_RECORD = 2;
+
+    /** Milliseconds between two writes of changes in journal. */
+    private static final long FLUSH_INTERVAL = 1000; // 1 s
+
+    /** Milliseconds between two checkpoints. */
+    private static final long CHECKPOINT_INTERVAL = 300000; // 5 min
+
+    /** Size in bytes of journal that forces a checkpoint. */
+    private static final long MAX_JOURNAL_SIZE = 4194304; // 4M
+
+    /** Journal file. */
+    private File journalFile;
+
+    /** Task that writes a full snapshot of downloads. */
+    private Runnable checkpointTask;
+
+    /** Datasets that have changed since last flush. */
+    private Map<DatasetDownloadStatus, Boolean> changedDatasets;
+
+    /**
+     * Last size and status written in journal of each file, to only write
+     * files that have changed.
+     */
+    private Map<FileDownloadStatus, long[]> writtenFiles;
+
+    /** Output stream of journal. Opened with the first record. */
+    private DataOutputStream output;
+
+    /** File output stream of journal, to force data to disk. */
+    private FileOutputStream fileOutput;
+
+    /** Bytes written in journal since last truncate. */
+    private long journalSize;
+
+    /** Size of journal file when output was opened. */
+    private long outputStartSize;
+
+    /** Time of last checkpoint. */
+    private long lastCheckpoint;
+
+    /** Flag to start background thread only once. */
+    private AtomicBoolean started;
+
+    /** Background thread that writes changes in journal. */
+    private ScheduledExecutorService flusher;
+
+    /**
+     * Constructor. Journal file isn't opened until first record is written.
+     *
+     * @param path
+     *            path of journal file
+     * @param checkpointTask
+     *            task that writes a full snapshot of downloads
+     */
+    public DownloadJournal(String path, Runnable checkpointTask) {
+        logger.trace("[IN]  DownloadJournal");
+
+        this.journalFile = new File(path);
+        this.checkpointTask = checkpointTask;
+        this.changedDatasets = new ConcurrentHashMap<DatasetDownloadStatus, Boolean>();
+        this.writtenFiles = new WeakHashMap<FileDownloadStatus, long[]>();
+        this.journalSize = journalFile.length();
+        this.lastCheckpoint = System.currentTimeMillis();
+        this.started = new AtomicBoolean(false);
+
+        logger.trace("[OUT] DownloadJournal");
+    }
+
+    /**
+     * Mark a dataset download as changed. This method doesn't write in disk,
+     * so it can be called in each download progress.
+     *
+     * @param datasetDownloadStatus
+     *            dataset whose download status has changed
+     */
+    public void log(DatasetDownloadStatus datasetDownloadStatus) {
+        logger.trace("[IN]  log");
+
+        changedDatasets.put(datasetDownloadStatus, Boolean.TRUE);
+
+        // start background thread with the first change
+        if (started.compareAndSet(false, true)) {
+            logger.debug("Starting download journal {}", journalFile);
+            flusher = Executors
+                    .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable,
+                                    "download-journal");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            flusher.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        flush();
+                    } catch (Exception e) {
+                        logger.error("Error writing download journal: {}",
+                                e.getMessage());
+                    }
+                }
+            }, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+
+            // changes marked after last flush aren't lost at exit
+            Runtime.getRuntime().addShutdownHook(
+                    new Thread("download-journal-shutdown") {
+                        @Override
+                        public void run() {
+                            try {
+                                flush();
+                            } catch (Exception e) {
+                                logger.error(
+                                        "Error writing download journal: {}",
+                                        e.getMessage());
+                            }
+                        }
+                    });
+        }
+
+        logger.trace("[OUT] log");
+    }
+
+    /**
+     * Write in journal changes of datasets marked as changed and force them
+     * to disk. If journal is too big or checkpoint interval has elapsed then
+     * do a checkpoint. Synchronized.
+     *
+     * @throws IOException
+     *             if journal can't be written
+     */
+    public synchronized void flush() throws IOException {
+        logger.trace("[IN]  flush");
+
+        if (!changedDatasets.isEmpty()) {
+            openOutput();
+
+            for (DatasetDownloadStatus datasetDownloadStatus : changedDatasets
+                    .keySet()) {
+                // remove before write, so changes during write aren't lost
+                changedDatasets.remove(datasetDownloadStatus);
+                writeDataset(datasetDownloadStatus);
+            }
+
+            output.flush();
+            fileOutput.getFD().sync();
+        }
+
+        if (journalSize > MAX_JOURNAL_SIZE
+                || (journalSize > 0 && System.currentTimeMillis()
+                        - lastCheckpoint > CHECKPOINT_INTERVAL)) {
+            logger.debug("Checkpoint of downloads. Journal size: {}",
+                    journalSize);
+            checkpoint();
+        }
+
+        logger.trace("[OUT] flush");
+    }
+
+    /**
+     * Write a full snapshot of downloads and remove all records of journal.
+     * Synchronized, so no record can be written between snapshot and
+     * truncation of journal.
+     */
+    public synchronized void checkpoint() {
+        logger.trace("[IN]  checkpoint");
+
+        checkpointTask.run();
+
+        closeOutput();
+        if (journalFile.exists() && !journalFile.delete()) {
+            logger.warn("Journal {} can't be removed", journalFile);
+        }
+        journalSize = 0;
+        lastCheckpoint = System.currentTimeMillis();
+
+        logger.trace("[OUT] checkpoint");
+    }
+
+    /**
+     * Replay records of journal over the download status restored from last
+     * snapshot. Downloads that were in progress are restored in state PAUSED,
+     * and files that don't exist in file system are ignored. The current size
+     * of changed datasets is recalculated from their files.
+     *
+     * @param datasets
+     *            map of instance_id of datasets and its download status
+     * @return true if some record has been replayed and false otherwise
+     */
+    public synchronized boolean replay(
+            Map<String, DatasetDownloadStatus> datasets) {
+        logger.trace("[IN]  replay");
+
+        if (!journalFile.exists()) {
+            logger.trace("[OUT] replay");
+            return false;
+        }
+
+        logger.debug("Replaying download journal {}...", journalFile);
+        Set<DatasetDownloadStatus> changed = new HashSet<DatasetDownloadStatus>();
+        DataInputStream input = null;
+        int records = 0;
+
+        try {
+            input = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(journalFile)));
+
+            while (true) {
+                byte type = input.readByte();
+                if (type == DATASET_RECORD) {
+                    String datasetID = input.readUTF();
+                    RecordStatus status = RecordStatus.values()[input
+                            .readByte()];
+
+                    DatasetDownloadStatus dDStatus = datasets.get(datasetID);
+                    if (dDStatus != null) {
+                        dDStatus.setRecordStatus(status);
+                        changed.add(dDStatus);
+                    }
+                } else if (type == FILE_RECORD) {
+                    String datasetID = input.readUTF();
+                    String fileID = input.readUTF();
+                    long currentSize = input.readLong();
+                    RecordStatus status = RecordStatus.values()[input
+                            .readByte()];
+                    int numberOfSegments = input.readInt();
+                    long[] segmentSizes = new long[numberOfSegments];
+                    for (int i = 0; i < numberOfSegments; i++) {
+                        segmentSizes[i] = input.readLong();
+                    }
+
+                    DatasetDownloadStatus dDStatus = datasets.get(datasetID);
+                    if (dDStatus != null) {
+                        FileDownloadStatus fDStatus = dDStatus
+                                .getMapInstanceIDFileDownload().get(fileID);
+                        if (fDStatus != null) {
+                            replayFile(fDStatus, currentSize, status,
+                                    segmentSizes);
+                            changed.add(dDStatus);
+                        }
+                    }
+                } else {
+                    throw new IOException("Unknown record type " + type);
+                }
+                records++;
+            }
+        } catch (EOFException e) {
+            // end of journal or last record incomplete (abruptly closed)
+        } catch (Exception e) {
+            logger.warn("Download journal can't be replayed after {} records: {}",
+                    records, e.getMessage());
+        } finally {
+            try {
+                input.close();
+            } catch (final Exception e) {
+            }
+        }
+
+        for (DatasetDownloadStatus dDStatus : changed) {
+            restoreDatasetSize(dDStatus);
+        }
+
+        logger.debug("{} records of download journal replayed", records);
+        logger.trace("[OUT] replay");
+        return records > 0;
+    }
+
+    /**
+     * Apply a file record of journal to its file download status.
+     *
+     * @param fDStatus
+     *            file download status
+     * @param currentSize
+     *            current size of file in journal
+     * @param status
+     *            status of file in journal
+     * @param segmentSizes
+     *            current size of segments of file in journal
+     */
+    private void replayFile(FileDownloadStatus fDStatus, long currentSize,
+            RecordStatus status, long[] segmentSizes) {
+        logger.trace("[IN]  replayFile");
+
+        // files removed of file system has been reset
+        if (status != RecordStatus.CREATED && status != RecordStatus.SKIPPED
+                && (fDStatus.getFile() == null || !fDStatus.getFile().exists())) {
+            logger.debug("File {} isn't in file system. Record ignored",
+                    fDStatus.getInstanceID());
+            logger.trace("[OUT] replayFile");
+            return;
+        }
+
+        // downloads in progress are restored paused
+        if (status == RecordStatus.DOWNLOADING
+                || status == RecordStatus.WAITING) {
+            status = RecordStatus.PAUSED;
+        }
+
+        fDStatus.setCurrentSize(currentSize);
+        fDStatus.setRecordStatus(status);
+
+        List<FileSegment> segments = fDStatus.getSegments();
+        if (segments != null && segments.size() == segmentSizes.length) {
+            for (int i = 0; i < segmentSizes.length; i++) {
+                segments.get(i).setCurrentSize(segmentSizes[i]);
+            }
+        }
+
+        writtenFiles.put(fDStatus,
+                new long[] { currentSize, status.ordinal() });
+
+        logger.trace("[OUT] replayFile");
+    }
+
+    /**
+     * Recalculate current size of dataset from its files and put status of
+     * dataset according to it.
+     *
+     * @param dDStatus
+     *            dataset download status
+     */
+    private void restoreDatasetSize(DatasetDownloadStatus dDStatus) {
+        logger.trace("[IN]  restoreDatasetSize");
+
+        long currentSize = 0;
+        for (FileDownloadStatus fDStatus : dDStatus.getFilesDownloadStatus()) {
+            if (fDStatus.getRecordStatus() != RecordStatus.SKIPPED) {
+                currentSize = currentSize + fDStatus.getCurrentSize();
+            }
+        }
+        dDStatus.setCurrentSize(currentSize);
+
+        RecordStatus status = dDStatus.getRecordStatus();
+        if (status == RecordStatus.DOWNLOADING
+                || status == RecordStatus.WAITING) {
+            // If all data are download
+            if (currentSize == dDStatus.getTotalSize()) {
+                dDStatus.setRecordStatus(RecordStatus.FINISHED);
+            } else {
+                dDStatus.setRecordStatus(RecordStatus.PAUSED);
+            }
+        }
+
+        logger.trace("[OUT] restoreDatasetSize");
+    }
+
+    /**
+     * Write a record of dataset and a record of each file of dataset whose
+     * size or status has changed since last write.
+     *
+     * @param dDStatus
+     *            dataset download status
+     * @throws IOException
+     *             if journal can't be written
+     */
+    private void writeDataset(DatasetDownloadStatus dDStatus)
+            throws IOException {
+        logger.trace("[IN]  writeDataset");
+
+        output.writeByte(DATASET_RECORD);
+        output.writeUTF(dDStatus.getInstanceID());
+        output.writeByte(dDStatus.getRecordStatus().ordinal());
+
+        for (Map.Entry<String, FileDownloadStatus> entry : dDStatus
+                .getMapInstanceIDFileDownload().entrySet()) {
+            FileDownloadStatus fDStatus = entry.getValue();
+            long currentSize = fDStatus.getCurrentSize();
+            RecordStatus status = fDStatus.getRecordStatus();
+
+            long[] written = writtenFiles.get(fDStatus);
+            if (written != null && written[0] == currentSize
+                    && written[1] == status.ordinal()) {
+                continue; // not changed
+            }
+
+            output.writeByte(FILE_RECORD);
+            output.writeUTF(dDStatus.getInstanceID());
+            output.writeUTF(entry.getKey());
+            output.writeLong(currentSize);
+            output.writeByte(status.ordinal());
+
+            List<FileSegment> segments = fDStatus.getSegments();
+            if (segments == null) {
+                output.writeInt(0);
+            } else {
+                output.writeInt(segments.size());
+                for (FileSegment segment : segments) {
+                    output.writeLong(segment.getCurrentSize());
+                }
+            }
+
+            writtenFiles.put(fDStatus,
+                    new long[] { currentSize, status.ordinal() });
+        }
+
+        journalSize = outputStartSize + output.size();
+        logger.trace("[OUT] writeDataset");
+    }
+
+    /**
+     * Open journal file in append mode if isn't opened.
+     *
+     * @throws FileNotFoundException
+     *             if journal can't be opened
+     */
+    private void openOutput() throws FileNotFoundException {
+        logger.trace("[IN]  openOutput");
+
+        if (output == null) {
+            // output.size() counts bytes written since output is opened
+            outputStartSize = journalFile.length();
+            fileOutput = new FileOutputStream(journalFile, true); // append
+            output = new DataOutputStream(new BufferedOutputStream(fileOutput));
+        }
+
+        logger.trace("[OUT] openOutput");
+    }
+
+    /**
+     * Close journal file if is opened.
+     */
+    private void closeOutput() {
+        logger.trace("[IN]  closeOutput");
+
+        if (output != null) {
+            try {
+                output.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            output = null;
+            fileOutput = null;
+        }
+
+        logger.trace("[OUT] closeOutput");
+    }
+}
@@ -8,14 +8,13 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Observable;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import es.unican.meteo.esgf.petition.DatasetAccessClass;
 import es.unican.meteo.esgf.search.Dataset;
@@ -43,8 +42,13 @@ public class DownloadManager extends Observable implements DownloadObserver {
      * Number of files downloads simultaneous
      */
     private static final int SIMULTANEOUS_DOWNLOADS = 5;
+    /**
+     * Number of files downloads simultaneous from the same data node
+     */
+    private static final int SIMULTANEOUS_DOWNLOADS_PER_DATA_NODE = 3;
     private static final String DATASET_DOWNLOADS_FILE_NAME = "dataset_downloads.data";
     private static final String FILEINSTANCEIDS_FILE_NAME = "fileInstanceIDs.data";
+    private static final String DOWNLOADS_JOURNAL_FILE_NAME = "dataset_downloads.journal";
 
     /**
      * Map of instance id of {@link Dataset} and its
@@ -63,8 +67,10 @@ public class DownloadManager extends Observable implements DownloadObserver {
      */
     private Set<String> fileInstanceIDs;
 
-    /** Executor that schedules and executes file downloads. Thread pool */
-    private ExecutorService downloadExecutor;
+    /**
+     * Scheduler that queues file downloads by data node and executes them.
+     */
+    private DownloadScheduler downloadExecutor;
 
     /** Dataset access class. */
     private DatasetAccessClass dataAccessClass;
@@ -73,6 +79,12 @@ public class DownloadManager extends Observable implements DownloadObserver {
 
     private String fileInstanceIDsPath;
 
+    /**
+     * Journal of download progress. Changes are written in journal and a full
+     * snapshot of downloads is only written in checkpoints.
+     */
+    private DownloadJournal downloadJournal;
+
     /** Singleton instance. */
     private static DownloadManager INSTANCE = null;
 
@@ -120,8 +132,9 @@ public class DownloadManager extends Observable implements DownloadObserver {
         logger.trace("[IN]  DownloadManager");
 
         // Initialize download executor
-        // Thread pool with a fixed number of threads
-        downloadExecutor = Executors.newFixedThreadPool(SIMULTANEOUS_DOWNLOADS);
+        // Scheduler with a limit of downloads globally and by data node
+        downloadExecutor = new DownloadScheduler(SIMULTANEOUS_DOWNLOADS,
+                SIMULTANEOUS_DOWNLOADS_PER_DATA_NODE);
         instanceIDDataStatusMap = new HashMap<String, DatasetDownloadStatus>();
         fileInstanceIDs = new HashSet<String>();
 
@@ -135,6 +148,15 @@ public class DownloadManager extends Observable implements DownloadObserver {
                 + File.separator + ".esgData" + File.separator
                 + FILEINSTANCEIDS_FILE_NAME;
 
+        this.downloadJournal = new DownloadJournal(System.getProperty("user.home")
+                + File.separator + ".esgData" + File.separator
+                + DOWNLOADS_JOURNAL_FILE_NAME, new Runnable() {
+            @Override
+            public void run() {
+                writeDatasetDownloads();
+            }
+        });
+
         logger.trace("[OUT] DownloadManager");
     }
 
@@ -419,11 +441,11 @@ public class DownloadManager extends Observable implements DownloadObserver {
     }
 
     /**
-     * Get executor that schedules and executes file downloads.
+     * Get scheduler that queues file downloads by data node and executes them.
      *
-     * @return executor that schedules and executes file downloads
+     * @return scheduler that queues and executes file downloads
      */
-    public ExecutorService getDownloadExecutor() {
+    public DownloadScheduler getDownloadExecutor() {
         logger.trace("[IN]  getDownloadExecutor");
         logger.trace("[OUT] getDownloadExecutor");
         return downloadExecutor;
@@ -445,10 +467,12 @@ public class DownloadManager extends Observable implements DownloadObserver {
         logger.trace("[IN]  getFile");
 
         try {
-            Dataset dataset = getDataset(datasetInstanceID);
+            // only the file is read if dataset isn't in cache
+            DatasetFile file = dataAccessClass.getFile(datasetInstanceID,
+                    fileInstanceID);
 
             logger.trace("[OUT] getFile");
-            return dataset.getFileWithInstanceId(fileInstanceID);
+            return file;
         } catch (Exception e) {
             logger.error(
                     "Error happens when metadata of file {} has been obtained from file system",
@@ -647,16 +671,58 @@ public class DownloadManager extends Observable implements DownloadObserver {
 
     @Override
     public void onDownloadCompleted(Download download) {
-        serializeDatasetDownloads();
+        logDownload(download);
     }
 
     @Override
     public void onDownloadChange(Download download) {
-        serializeDatasetDownloads();
+        logDownload(download);
+    }
 
+    /**
+     * Mark download as changed in journal of downloads. Changes are written in
+     * background, so this method can be called in each download progress.
+     *
+     * @param download
+     *            dataset or file download status that has changed
+     */
+    private void logDownload(Download download) {
+        logger.trace("[IN]  logDownload");
+
+        if (download instanceof DatasetDownloadStatus) {
+            downloadJournal.log((DatasetDownloadStatus) download);
+        } else if (download instanceof FileDownloadStatus) {
+            downloadJournal.log(((FileDownloadStatus) download)
+                    .getDatasetDownloadStatus());
+        }
+
+        logger.trace("[OUT] logDownload");
     }
 
+    /**
+     * Do a checkpoint of downloads: write a full snapshot of dataset downloads
+     * in file and truncate journal of downloads.
+     */
     private void serializeDatasetDownloads() {
+        downloadJournal.checkpoint();
+    }
+
+    /**
+     * Save dataset downloads, i.e at exit. A checkpoint is done, so the journal
+     * of downloads, that is older than the snapshot, isn't replayed in next
+     * session.
+     */
+    public void saveDatasetDownloads() {
+        logger.trace("[IN]  saveDatasetDownloads");
+        serializeDatasetDownloads();
+        logger.trace("[OUT] saveDatasetDownloads");
+    }
+
+    /**
+     * Write a full snapshot of dataset downloads in file. Must be only called
+     * in a checkpoint of {@link DownloadJournal}.
+     */
+    private void writeDatasetDownloads() {
         // Serialize dataset downloads objects in file
         ObjectOutputStream out = null;
         try {
@@ -834,9 +900,8 @@ public class DownloadManager extends Observable implements DownloadObserver {
 
         pauseActiveDownloads();
 
-        // Initialize download executor
-        // Thread pool with a fixed number of threads
-        downloadExecutor = Executors.newFixedThreadPool(SIMULTANEOUS_DOWNLOADS);
+        // Remove files waiting in download queues
+        downloadExecutor.clear();
 
         instanceIDDataStatusMap = new HashMap<String, DatasetDownloadStatus>();
         fileInstanceIDs = new HashSet<String>();
@@ -906,6 +971,11 @@ public class DownloadManager extends Observable implements DownloadObserver {
             dDStatus.registerObserver(this);
         }
 
+        // replay changes written after last snapshot and do a checkpoint
+        if (downloadJournal.replay(instanceIDDataStatusMap)) {
+            serializeDatasetDownloads();
+        }
+
         logger.trace("[OUT] restoreDatasetDownloads");
     }
 
@@ -1026,6 +1096,47 @@ public class DownloadManager extends Observable implements DownloadObserver {
             throw new IllegalStateException();
         } else {
             dataDownloadStatus.setPriority(priority);
+
+            // reorder files of dataset that are waiting to be downloaded
+            downloadExecutor.reprioritize(dataDownloadStatus
+                    .getFilesDownloadStatus());
+        }
+
+        logger.trace("[OUT] setPriority");
+    }
+
+    /**
+     * Set priority of a {@link FileDownloadStatus} to download. Between files
+     * of datasets with the same priority, files with more priority are
+     * downloaded first.
+     *
+     * @param fileStatus
+     *            file whose priority will be changed
+     * @param priority
+     *            new priority of file
+     *
+     * @throws IllegalStateException
+     *             if dataset of file isn't in download list
+     */
+    public void setPriority(FileDownloadStatus fileStatus,
+            DownloadPriority priority) {
+
+        logger.trace("[IN]  setPriority");
+
+        logger.debug("Setting priority of file {}:", fileStatus.getInstanceID());
+
+        DatasetDownloadStatus dDStatus = fileStatus.getDatasetDownloadStatus();
+        if (dDStatus == null
+                || !instanceIDDataStatusMap.containsKey(dDStatus
+                        .getInstanceID())) {
+            logger.error("Dataset of file {} isn't be in download list",
+                    fileStatus.getInstanceID());
+            throw new IllegalStateException();
+        } else {
+            fileStatus.setPriority(priority);
+
+            // reorder file if it is waiting to be downloaded
+            downloadExecutor.reprioritize(Collections.singleton(fileStatus));
         }
 
         logger.trace("[OUT] setPriority");
@@ -0,0 +1,549 @@
+package es.unican.meteo.esgf.download;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Schedules and executes file downloads. Keeps a queue of files for each data
+ * node and limits the number of simultaneous downloads globally and in each
+ * data node, so a slow data node can't hold all download slots. Queues are
+ * ordered by {@link DownloadPriority} of dataset, {@link DownloadPriority} of
+ * file and time in which file was queued. When a download finish, the free
+ * slot is assigned to the most priority file of data nodes that haven't
+ * reached its limit. Extra connections of a download (e.g. segments of a file)
+ * are counted in the limit of their data node too.
+ *
+ * @author Karem Terry
+ *
+ */
+public class DownloadScheduler {
+
+    /** Logger. */
+    static private org.slf4j.Logger logger = org.slf4j.LoggerFactory
+            .getLogger(DownloadScheduler.class);
+
+    /** Data node name used when a file replica hasn't data node. */
+    private static final String UNKNOWN_DATA_NODE = "unknown";
+
+    /** Maximum number of simultaneous downloads. */
+    private int maxDownloads;
+
+    /**
+     * Maximum number of simultaneous connections (downloads and their extra
+     * connections) in each data node.
+     */
+    private int maxDownloadsPerDataNode;
+
+    /** Number of downloads that are being executed. */
+    private int activeDownloads;
+
+    /**
+     * Map of data node and number of its connections (downloads being
+     * executed and their extra connections).
+     */
+    private Map<String, Integer> activeDownloadsPerDataNode;
+
+    /** Map of data node and its queue of files waiting to be downloaded. */
+    private Map<String, PriorityQueue<QueuedDownload>> dataNodeQueues;
+
+    /**
+     * Map of files that are in some queue and its queue entry. Avoids put
+     * twice the same file.
+     */
+    private Map<FileDownloadStatus, QueuedDownload> queuedFiles;
+
+    /** Counter of queued files, to keep order of equal priority files. */
+    private long sequence;
+
+    /** Thread pool that executes file downloads. */
+    private ExecutorService workers;
+
+    /**
+     * Constructor
+     *
+     * @param maxDownloads
+     *            maximum number of simultaneous downloads
+     * @param maxDownloadsPerDataNode
+     *            maximum number of simultaneous downloads in each data node
+     * @throws IllegalArgumentException
+     *             if some limit is less than 1
+     */
+    public DownloadScheduler(int maxDownloads, int maxDownloadsPerDataNode) {
+        logger.trace("[IN]  DownloadScheduler");
+
+        if (maxDownloads < 1 || maxDownloadsPerDataNode < 1) {
+            throw new IllegalArgumentException(
+                    "Number of simultaneous downloads must be greater than 0");
+        }
+
+        this.maxDownloads = maxDownloads;
+        this.maxDownloadsPerDataNode = maxDownloadsPerDataNode;
+        this.activeDownloads = 0;
+        this.activeDownloadsPerDataNode = new HashMap<String, Integer>();
+        this.dataNodeQueues = new HashMap<String, PriorityQueue<QueuedDownload>>();
+        this.queuedFiles = new HashMap<FileDownloadStatus, QueuedDownload>();
+        this.sequence = 0;
+
+        // Scheduler limits the number of running downloads, so pool only
+        // creates the threads that are needed
+        this.workers = Executors.newCachedThreadPool();
+
+        logger.trace("[OUT] DownloadScheduler");
+    }
+
+    /**
+     * Put a file in the download queue of its data node. The file will be
+     * downloaded when a download slot of this data node is free and there
+     * aren't files with more priority waiting. If file is already waiting in
+     * queue nothing happens.
+     *
+     * @param fileDownloadStatus
+     *            file to download
+     * @param dataNode
+     *            data node of replica from where the file will be downloaded
+     */
+    public synchronized void execute(FileDownloadStatus fileDownloadStatus,
+            String dataNode) {
+        logger.trace("[IN]  execute");
+
+        if (dataNode == null) {
+            dataNode = UNKNOWN_DATA_NODE;
+        }
+
+        if (queuedFiles.containsKey(fileDownloadStatus)) {
+            logger.debug("File {} is already waiting to be downloaded",
+                    fileDownloadStatus.getInstanceID());
+            logger.trace("[OUT] execute");
+            return;
+        }
+
+        PriorityQueue<QueuedDownload> queue = dataNodeQueues.get(dataNode);
+        if (queue == null) {
+            logger.debug("New data node {} in download scheduler", dataNode);
+            queue = new PriorityQueue<QueuedDownload>();
+            dataNodeQueues.put(dataNode, queue);
+        }
+
+        QueuedDownload queuedDownload = new QueuedDownload(fileDownloadStatus,
+                dataNode, sequence++);
+        queue.add(queuedDownload);
+        queuedFiles.put(fileDownloadStatus, queuedDownload);
+        logger.debug("File {} queued to download from {}",
+                fileDownloadStatus.getInstanceID(), dataNode);
+
+        dispatch();
+
+        logger.trace("[OUT] execute");
+    }
+
+    /**
+     * Remove all files that are waiting to be downloaded. Downloads that are
+     * being executed aren't affected.
+     */
+    public synchronized void clear() {
+        logger.trace("[IN]  clear");
+
+        for (PriorityQueue<QueuedDownload> queue : dataNodeQueues.values()) {
+            queue.clear();
+        }
+        queuedFiles.clear();
+
+        logger.trace("[OUT] clear");
+    }
+
+    /**
+     * Reorder files that are waiting to be downloaded after a change of
+     * priority of them or of their datasets. Files keep the time in which they
+     * were queued. Files that aren't waiting in queue are ignored.
+     *
+     * @param files
+     *            files whose priority has changed
+     */
+    public synchronized void reprioritize(Collection<FileDownloadStatus> files) {
+        logger.trace("[IN]  reprioritize");
+
+        Set<String> changedDataNodes = new HashSet<String>();
+        for (FileDownloadStatus fileDownloadStatus : files) {
+            QueuedDownload queuedDownload = queuedFiles.get(fileDownloadStatus);
+            if (queuedDownload != null) {
+                queuedDownload.updatePriority();
+                changedDataNodes.add(queuedDownload.getDataNode());
+            }
+        }
+
+        // Priority queues must be rebuilt because the order of its elements
+        // has changed
+        for (String dataNode : changedDataNodes) {
+            logger.debug("Reordering download queue of {}", dataNode);
+            PriorityQueue<QueuedDownload> queue = new PriorityQueue<QueuedDownload>();
+            queue.addAll(new ArrayList<QueuedDownload>(dataNodeQueues
+                    .get(dataNode)));
+            dataNodeQueues.put(dataNode, queue);
+        }
+
+        logger.trace("[OUT] reprioritize");
+    }
+
+    /**
+     * Get number of downloads that are being executed.
+     *
+     * @return the number of active downloads
+     */
+    public synchronized int getActiveDownloads() {
+        logger.trace("[IN]  getActiveDownloads");
+        logger.trace("[OUT] getActiveDownloads");
+        return activeDownloads;
+    }
+
+    /**
+     * Get number of connections that are being used in a data node: downloads
+     * being executed and their extra connections.
+     *
+     * @param dataNode
+     *            data node
+     * @return the number of active connections in data node
+     */
+    public synchronized int getActiveDownloads(String dataNode) {
+        logger.trace("[IN]  getActiveDownloads");
+
+        Integer active = activeDownloadsPerDataNode.get(dataNode);
+        if (active == null) {
+            active = 0;
+        }
+
+        logger.trace("[OUT] getActiveDownloads");
+        return active;
+    }
+
+    /**
+     * Reserve extra connections in a data node for a download that is being
+     * executed, e.g. to download segments of a file at the same time. Only
+     * free connections of the limit of data node are reserved, so a data node
+     * never has more connections than its limit. Reserved connections must be
+     * released with {@link #releaseConnections(String, int)}.
+     *
+     * @param dataNode
+     *            data node
+     * @param connections
+     *            number of wanted connections
+     * @return number of reserved connections, from 0 to connections
+     */
+    public synchronized int acquireConnections(String dataNode,
+            int connections) {
+        logger.trace("[IN]  acquireConnections");
+
+        if (dataNode == null) {
+            dataNode = UNKNOWN_DATA_NODE;
+        }
+
+        int active = getActiveDownloads(dataNode);
+        int reserved = Math.max(0,
+                Math.min(connections, maxDownloadsPerDataNode - active));
+        if (reserved > 0) {
+            activeDownloadsPerDataNode.put(dataNode, active + reserved);
+        }
+        logger.debug("{} of {} connections reserved in {}", new Object[] {
+                reserved, connections, dataNode });
+
+        logger.trace("[OUT] acquireConnections");
+        return reserved;
+    }
+
+    /**
+     * Release extra connections reserved in a data node and assign free slots
+     * to waiting files.
+     *
+     * @param dataNode
+     *            data node
+     * @param connections
+     *            number of connections reserved with
+     *            {@link #acquireConnections(String, int)}
+     */
+    public synchronized void releaseConnections(String dataNode,
+            int connections) {
+        logger.trace("[IN]  releaseConnections");
+
+        if (dataNode == null) {
+            dataNode = UNKNOWN_DATA_NODE;
+        }
+
+        if (connections > 0) {
+            activeDownloadsPerDataNode.put(dataNode,
+                    getActiveDownloads(dataNode) - connections);
+            dispatch();
+        }
+
+        logger.trace("[OUT] releaseConnections");
+    }
+
+    /**
+     * Get number of files that are waiting to be downloaded.
+     *
+     * @return the number of files in download queues
+     */
+    public synchronized int getQueuedDownloads() {
+        logger.trace("[IN]  getQueuedDownloads");
+        logger.trace("[OUT] getQueuedDownloads");
+        return queuedFiles.size();
+    }
+
+    /**
+     * Get maximum number of simultaneous downloads.
+     *
+     * @return the maxDownloads
+     */
+    public synchronized int getMaxDownloads() {
+        logger.trace("[IN]  getMaxDownloads");
+        logger.trace("[OUT] getMaxDownloads");
+        return maxDownloads;
+    }
+
+    /**
+     * Set maximum number of simultaneous downloads. If limit increases,
+     * waiting files are put to download.
+     *
+     * @param maxDownloads
+     *            the maxDownloads to set
+     * @throws IllegalArgumentException
+     *             if limit is less than 1
+     */
+    public synchronized void setMaxDownloads(int maxDownloads) {
+        logger.trace("[IN]  setMaxDownloads");
+
+        if (maxDownloads < 1) {
+            throw new IllegalArgumentException(
+                    "Number of simultaneous downloads must be greater than 0");
+        }
+        this.maxDownloads = maxDownloads;
+        dispatch();
+
+        logger.trace("[OUT] setMaxDownloads");
+    }
+
+    /**
+     * Get maximum number of simultaneous connections in each data node.
+     *
+     * @return the maxDownloadsPerDataNode
+     */
+    public synchronized int getMaxDownloadsPerDataNode() {
+        logger.trace("[IN]  getMaxDownloadsPerDataNode");
+        logger.trace("[OUT] getMaxDownloadsPerDataNode");
+        return maxDownloadsPerDataNode;
+    }
+
+    /**
+     * Set maximum number of simultaneous connections in each data node. If
+     * limit increases, waiting files are put to download.
+     *
+     * @param maxDownloadsPerDataNode
+     *            the maxDownloadsPerDataNode to set
+     * @throws IllegalArgumentException
+     *             if limit is less than 1
+     */
+    public synchronized void setMaxDownloadsPerDataNode(
+            int maxDownloadsPerDataNode) {
+        logger.trace("[IN]  setMaxDownloadsPerDataNode");
+
+        if (maxDownloadsPerDataNode < 1) {
+            throw new IllegalArgumentException(
+                    "Number of simultaneous downloads must be greater than 0");
+        }
+        this.maxDownloadsPerDataNode = maxDownloadsPerDataNode;
+        dispatch();
+
+        logger.trace("[OUT] setMaxDownloadsPerDataNode");
+    }
+
+    /**
+     * Assign free download slots to waiting files. In each slot is started
+     * the most priority file of data nodes that have waiting files and
+     * haven't reached their limit of simultaneous downloads.
+     */
+    private synchronized void dispatch() {
+        logger.trace("[IN]  dispatch");
+
+        while (activeDownloads < maxDownloads) {
+
+            // Search most priority file of available data nodes
+            PriorityQueue<QueuedDownload> selectedQueue = null;
+            for (Map.Entry<String, PriorityQueue<QueuedDownload>> entry : dataNodeQueues
+                    .entrySet()) {
+                PriorityQueue<QueuedDownload> queue = entry.getValue();
+                if (!queue.isEmpty()
+                        && getActiveDownloads(entry.getKey()) < maxDownloadsPerDataNode) {
+                    if (selectedQueue == null
+                            || queue.peek().compareTo(selectedQueue.peek()) < 0) {
+                        selectedQueue = queue;
+                    }
+                }
+            }
+
+            // if there isn't any file that can be downloaded
+            if (selectedQueue == null) {
+                break;
+            }
+
+            QueuedDownload queuedDownload = selectedQueue.poll();
+            queuedFiles.remove(queuedDownload.getFileDownloadStatus());
+            start(queuedDownload.getFileDownloadStatus(),
+                    queuedDownload.getDataNode());
+        }
+
+        logger.trace("[OUT] dispatch");
+    }
+
+    /**
+     * Execute download of file in a thread of pool
+     *
+     * @param fileDownloadStatus
+     *            file to download
+     * @param dataNode
+     *            data node from where the file will be downloaded
+     */
+    private void start(final FileDownloadStatus fileDownloadStatus,
+            final String dataNode) {
+        logger.trace("[IN]  start");
+
+        activeDownloads++;
+        activeDownloadsPerDataNode.put(dataNode,
+                getActiveDownloads(dataNode) + 1);
+
+        logger.debug("Starting download of file {} from {}",
+                fileDownloadStatus.getInstanceID(), dataNode);
+        workers.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    fileDownloadStatus.run();
+                } catch (Exception e) {
+                    logger.error("Error downloading file {}: {}",
+                            fileDownloadStatus.getInstanceID(), e.getMessage());
+                } finally {
+                    finish(dataNode);
+                }
+            }
+        });
+
+        logger.trace("[OUT] start");
+    }
+
+    /**
+     * Free a download slot of data node and assign free slots to waiting
+     * files.
+     *
+     * @param dataNode
+     *            data node whose download has finished
+     */
+    private synchronized void finish(String dataNode) {
+        logger.trace("[IN]  finish");
+
+        activeDownloads--;
+        activeDownloadsPerDataNode.put(dataNode,
+                getActiveDownloads(dataNode) - 1);
+        dispatch();
+
+        logger.trace("[OUT] finish");
+    }
+
+    /**
+     * File waiting in the queue of a data node. Ordered by priority of
+     * dataset, priority of file and order in which file was queued.
+     */
+    private static class QueuedDownload implements Comparable<QueuedDownload> {
+
+        /** File to download. */
+        private FileDownloadStatus fileDownloadStatus;
+
+        /** Data node from where the file will be downloaded. */
+        private String dataNode;
+
+        /** Order in which file was queued. */
+        private long sequence;
+
+        /** Priority of dataset of file when it was (re)queued. */
+        private DownloadPriority datasetPriority;
+
+        /** Priority of file when it was (re)queued. */
+        private DownloadPriority filePriority;
+
+        /**
+         * Constructor
+         *
+         * @param fileDownloadStatus
+         *            file to download
+         * @param dataNode
+         *            data node from where the file will be downloaded
+         * @param sequence
+         *            order in which file was queued
+         */
+        public QueuedDownload(FileDownloadStatus fileDownloadStatus,
+                String dataNode, long sequence) {
+            this.fileDownloadStatus = fileDownloadStatus;
+            this.dataNode = dataNode;
+            this.sequence = sequence;
+            updatePriority();
+        }
+
+        /**
+         * Read current priorities of file and its dataset. The priority queue
+         * that contains the entry must be rebuilt after this call.
+         */
+        public void updatePriority() {
+            DatasetDownloadStatus datasetDownloadStatus = fileDownloadStatus
+                    .getDatasetDownloadStatus();
+            datasetPriority = null;
+            if (datasetDownloadStatus != null) {
+                datasetPriority = datasetDownloadStatus.getPriority();
+            }
+            filePriority = fileDownloadStatus.getPriority();
+
+            // downloads without priority are MEDIUM priority
+            if (datasetPriority == null) {
+                datasetPriority = DownloadPriority.MEDIUM;
+            }
+            if (filePriority == null) {
+                filePriority = DownloadPriority.MEDIUM;
+            }
+        }
+
+        /**
+         * @return the fileDownloadStatus
+         */
+        public FileDownloadStatus getFileDownloadStatus() {
+            return fileDownloadStatus;
+        }
+
+        /**
+         * @return the dataNode
+         */
+        public String getDataNode() {
+            return dataNode;
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see java.lang.Comparable#compareTo(java.lang.Object)
+         */
+        @Override
+        public int compareTo(QueuedDownload other) {
+            // HIGH < MEDIUM < LOW in enum order
+            int compare = datasetPriority.compareTo(other.datasetPriority);
+            if (compare == 0) {
+                compare = filePriority.compareTo(other.filePriority);
+            }
+            if (compare == 0) {
+                compare = sequence < other.sequence ? -1
+                        : (sequence == other.sequence ? 0 : 1);
+            }
+            return compare;
+        }
+    }
+}
@@ -8,16 +8,27 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
 import java.io.Serializable;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.zip.GZIPInputStream;
 
-import es.unican.meteo.esgf.petition.CredentialsManager;
 import es.unican.meteo.esgf.search.DatasetFile;
 import es.unican.meteo.esgf.search.Metadata;
 import es.unican.meteo.esgf.search.RecordReplica;
@@ -36,10 +47,43 @@ public class FileDownloadStatus implements Runnable, Download, Serializable {
     static private org.slf4j.Logger logger = org.slf4j.LoggerFactory
             .getLogger(FileDownloadStatus.class);
 
+    /**
+     * Serial version of file downloads saved by previous versions, to read
+     * them yet.
+     */
+    private static final long serialVersionUID = 350997592950766129L;
+
     /** Bytes that are requested in each petition of download. */
     private static final int BYTES_FOR_EACH_PETITION = 32768; // 32K
     // private static final int BYTES_FOR_EACH_PETITION = 131072; // 128K
 
+    /** Minimum size of a file to be downloaded in several segments. */
+    private static final long SEGMENTED_DOWNLOAD_MIN_SIZE = 67108864; // 64M
+
+    /** Default number of segments downloaded at the same time of a file. */
+    private static final int DEFAULT_SEGMENTS_PER_FILE = 4;
+
+    /**
+     * Number of segments (simultaneous connections) of a segmented download.
+     * If is 1 files are always downloaded with one connection.
+     */
+    private static int segmentsPerFile = DEFAULT_SEGMENTS_PER_FILE;
+
+    /** Segment size of a download from several replicas. */
+    private static final long MULTI_SOURCE_SEGMENT_SIZE = 16777216; // 16M
+
+    /** Maximum number of segments of a file. */
+    private static final int MAX_SEGMENTS_PER_FILE = 256;
+
+    /**
+     * If true, segments of a file are downloaded from several replicas at the
+     * same time.
+     */
+    private static boolean multiSourceDownload = false;
+
+    /** Milliseconds between two throughput samples of a download. */
+    private static final long THROUGHPUT_SAMPLE_INTERVAL = 5000; // 5 s
+
     /**
      * Current file replica configured to download file.
      */
@@ -86,6 +130,25 @@ public class FileDownloadStatus implements Runnable, Download, Serializable {
     /** File name. */
     private String fileName;
 
+    /**
+     * Byte ranges of file in a segmented download, null if file is downloaded
+     * with only one connection.
+     */
+    private List<FileSegment> segments;
+
+    /**
+     * Digest of bytes written in file by a download with only one connection.
+     * It isn't serializable, so in a new session it's calculated again from
+     * bytes already downloaded.
+     */
+    private transient MessageDigest downloadDigest;
+
+    /** Bytes of file that have been updated in {@link #downloadDigest}. */
+    private transient long digestedSize;
+
+    /** Data nodes whose replica of file has failed in this session. */
+    private transient Set<String> failedDataNodes;
+
     /**
      * Constructor
      */
@@ -194,6 +257,9 @@ public class FileDownloadStatus implements Runnable, Download, Serializable {
 
         // If is a new download
         if (!resumed) {
+            // previous segments are not valid in a new download
+            segments = null;
+
             logger.debug("Checking if file already download."
                     + " And in that case validate file with checksum");
             // If file exits, check if its valid (removed an re-added in
@@ -239,7 +305,9 @@ public class FileDownloadStatus implements Runnable, Download, Serializable {
             // If file exits, check if its valid (removed an re-added in
             // download list)
             if (file.exists()) {
-                if (file.length() != getCurrentSize()) {
+                // in segmented downloads file is preallocated and current size
+                // is calculated from segments
+                if (segments == null && file.length() != getCurrentSize()) {
                     setCurrentSize(file.length());
                     logger.debug("New current size in {}", instanceID);
                 }
@@ -248,6 +316,7 @@ public class FileDownloadStatus implements Runnable, Download, Serializable {
                 logger.debug("Creating new system file...");
                 // if file is not valid or in't exist
                 setCurrentSize(0); // reset current size
+                segments = null; // reset segments
                 // create new empty file system, if the named file already
                 // exists do
                 // nothing
@@ -268,231 +337,218 @@ public class FileDownloadStatus implements Runnable, Download, Serializable {
 
         // to make a get request to the node server
         HttpURLConnection con = null;
+        boolean completed = false; // true if all response has been read
+        boolean failover = false; // true if file is requeued with other replica
 
         try {
             // get replica file url
-            String urlMetadata = currentFileReplica.getServices().get(
-                    Service.HTTPSERVER);
-            if (urlMetadata == null) {
-                logger.error("File {} haven't a HTTP service", instanceID);
-                throw new IllegalStateException(
-                        "This file haven't a HTTP service");
-            }
-
-            logger.debug("File {} will be download of {}", instanceID,
-                    urlMetadata);
-
-            // dataset file url are formated: url|mime type|service name
-            String urlStr = urlMetadata.substring(0, urlMetadata.indexOf("|"));
-            logger.debug("Url of download: ", urlStr);
-            URL url = new URL(urlStr);
-
-            logger.debug(
-                    "Checking if are necessary have permissions for access "
-                            + "the file {}", instanceID);
-            // open connection from url and set HttpURLConnection values
-            con = (HttpURLConnection) url.openConnection();
-            con.setInstanceFollowRedirects(true);
-            con.setUseCaches(false);
-            // set headers of http connection request
-            con.setRequestProperty("Connection", "close");
-
-            boolean needPermissions = false;
-
-            int responseCode = con.getResponseCode();
-            if (responseCode != 200) {
-                needPermissions = true;
-            }
-
-            if (needPermissions) {
-                logger.debug("Getting permissions for file {}...", instanceID);
-                con.disconnect();
-                CredentialsManager credentialsManager = CredentialsManager
-                        .getInstance();
-                if (!credentialsManager.hasInitiated()) {
-                    throw new UnauthorizedException(0);
+            URL url = getHttpURL(currentFileReplica);
+
+            // if file is big enough and data node accepts byte ranges then
+            // download it in several segments at the same time
+            if (isSegmentedDownload(url, resumed)) {
+                downloadSegments(getSegmentSources(url));
+
+                // if download has been paused, reset or skipped when file was
+                // in state DOWNLOADING
+                if (getRecordStatus() != RecordStatus.DOWNLOADING) {
+                    logger.debug("Download of file {} was stopped in state {}",
+                            instanceID, getRecordStatus());
+                    // end of thread
+                    logger.trace("[OUT] download");
+                    return;
                 }
-                con = credentialsManager.getAuthenticatedConnection(url);
-
-                con.setInstanceFollowRedirects(true);
-                // con.setConnectTimeout(15000);
-                // con.setReadTimeout(30000);
-                con.setUseCaches(false);
-                // Set headers of http connection request
-                con.setRequestProperty("Connection", "close");
             } else {
-                // open connection from url and set HttpURLConnection values
-                con = (HttpURLConnection) url.openConnection();
-                con.setInstanceFollowRedirects(true);
-                con.setUseCaches(false);
-                // Set headers of http connection request
-                con.setRequestProperty("Connection", "close");
-                con.disconnect();
-            }
-
-            // if file download status has resumed to download
-            if (resumed) {
-                logger.debug("Configuring for a resume download");
-                // new http header for download from where it was
-                // con.setRequestProperty("Range", "bytes=" + file.length() +
-                // "-");
-                con.setRequestProperty("Range", "bytes=" + getCurrentSize()
-                        + "-");
-
-                // initialize file output stream
-                fos = new FileOutputStream(file, true); // append
-                output = new BufferedOutputStream(fos);
-            } else {
-                logger.debug("Configuring for a new download");
-                // initialize file output stream
-                fos = new FileOutputStream(file, false); // this reset file to 0
-                output = new BufferedOutputStream(fos);
-            }
+                // if file download status has resumed to download
+                String range = null;
+                if (resumed) {
+                    logger.debug("Configuring for a resume download");
+                    // new http header for download from where it was
+                    range = "bytes=" + getCurrentSize() + "-";
+                }
 
-            // initialize file input stream for two possible cases. Gzip
-            // content and others
-            if (con.getHeaderField("Content-Encoding") != null
-                    && con.getHeaderField("Content-Encoding").equalsIgnoreCase(
-                            "gzip")) {
-                gzi = new GZIPInputStream(con.getInputStream());
-                input = new BufferedInputStream(gzi);
-            } else {
-                input = new BufferedInputStream(con.getInputStream());
-            }
+                // open connection from url. A persistent connection of data
+                // node is reused and, if data node needs permissions, the
+                // connection is authenticated with user credentials
+                String dataNode = currentFileReplica.getDataNode();
+                long requestStart = System.currentTimeMillis();
+                con = DataNodeConnectionManager.getInstance().openConnection(
+                        url, range);
+                ReplicaSelector.getInstance().recordLatency(dataNode,
+                        System.currentTimeMillis() - requestStart);
+
+                if (resumed) {
+
+                    // initialize file output stream
+                    fos = new FileOutputStream(file, true); // append
+                    output = new BufferedOutputStream(fos);
+                } else {
+                    logger.debug("Configuring for a new download");
+                    // initialize file output stream
+                    fos = new FileOutputStream(file, false); // this reset file to 0
+                    output = new BufferedOutputStream(fos);
+                }
 
-            logger.debug("Checking if file {} have correct size metadata...",
-                    instanceID);
-            // If size metadata isn't in ESGF response document
-            if (totalSize <= 0) {
-                totalSize = con.getContentLength();
-                logger.debug(" {} file size calculate is: {}", instanceID,
-                        totalSize);
-
-                // If is a new download
-                if (!resumed) {
-                    datasetDownloadStatus.incrementTotalSize(totalSize);
+                // initialize file input stream for two possible cases. Gzip
+                // content and others
+                if (con.getHeaderField("Content-Encoding") != null
+                        && con.getHeaderField("Content-Encoding").equalsIgnoreCase(
+                                "gzip")) {
+                    gzi = new GZIPInputStream(con.getInputStream());
+                    input = new BufferedInputStream(gzi);
+                } else {
+                    input = new BufferedInputStream(con.getInputStream());
                 }
-            }
 
-            // Read 32K
-            final byte[] b = new byte[BYTES_FOR_EACH_PETITION];
-            int len = input.read(b);
-
-            if (needPermissions) {
-                logger.debug("Checking if obtained permissions are valid...");
-                int httpResponseCode = con.getResponseCode();
-                if (httpResponseCode == 401 || httpResponseCode == 302
-                        || httpResponseCode == 500) {
-                    logger.info(
-                            "User haven't permissions to access to file {}",
-                            instanceID);
-                    throw new UnauthorizedException(httpResponseCode);
+                logger.debug("Checking if file {} have correct size metadata...",
+                        instanceID);
+                // If size metadata isn't in ESGF response document
+                if (totalSize <= 0) {
+                    totalSize = con.getContentLength();
+                    logger.debug(" {} file size calculate is: {}", instanceID,
+                            totalSize);
+
+                    // If is a new download
+                    if (!resumed) {
+                        datasetDownloadStatus.incrementTotalSize(totalSize);
+                    }
                 }
-            }
 
-            logger.debug("Code of response from file {} is: {}", instanceID,
-                    con.getResponseCode());
+                // Read 32K
+                final byte[] b = new byte[BYTES_FOR_EACH_PETITION];
+                int len = input.read(b);
 
-            logger.debug("Start download process of file {}...", instanceID);
-            // While there are bytes to read and file is in state DOWNLOADING
-            while (len != -1 && getRecordStatus() == RecordStatus.DOWNLOADING) {
+                logger.debug("Code of response from file {} is: {}", instanceID,
+                        con.getResponseCode());
 
-                // Write readed bytes to output and increment current size
-                output.write(b, 0, len);
-                incrementCurrentSize(len);
+                // calculate checksum while file is written
+                prepareDownloadDigest(resumed);
 
-                // Read 32K more
-                len = input.read(b);
-            }
+                // throughput of data node is sampled while file is downloaded
+                long sampleStart = System.currentTimeMillis();
+                long sampleBytes = 0;
 
-            // if download has been paused when file was in state
-            // DOWNLOADING
-            if (getRecordStatus() == RecordStatus.PAUSED) {
-                logger.debug("Download of file {} was paused", instanceID);
-                // finish thread and IO buffers. Disconnect HTTP connection
-                try {
-                    input.close();
-                } catch (final Exception e) {
-                }
-                try {
-                    gzi.close();
-                } catch (final Exception e) {
-                }
-                try {
-                    output.flush();
-                    output.close();
-                    fos.flush();
-                } catch (final Exception e) {
-                    e.getStackTrace();
-                }
-                try {
-                    con.disconnect();
-                } catch (final Throwable e) {
-                    e.getStackTrace();
-                }
-                // end of thread
-                logger.trace("[OUT] download");
-                return;
-            }
+                logger.debug("Start download process of file {}...", instanceID);
+                // While there are bytes to read and file is in state DOWNLOADING
+                while (len != -1 && getRecordStatus() == RecordStatus.DOWNLOADING) {
 
-            // if download has been reset when file was in state
-            // DOWNLOADING
-            if (getRecordStatus() == RecordStatus.CREATED) {
-                logger.debug("Download of file {} was reset", instanceID);
-                // finish thread and IO buffers. Disconnect HTTP connection
-                try {
-                    input.close();
-                } catch (final Exception e) {
-                }
-                try {
-                    gzi.close();
-                } catch (final Exception e) {
-                }
-                try {
-                    output.flush();
-                    output.close();
-                    fos.flush();
-                } catch (final Exception e) {
-                    e.getStackTrace();
-                }
-                try {
-                    con.disconnect();
-                } catch (final Throwable e) {
-                    e.getStackTrace();
+                    // Write readed bytes to output and increment current size
+                    output.write(b, 0, len);
+                    if (downloadDigest != null) {
+                        downloadDigest.update(b, 0, len);
+                        digestedSize = digestedSize + len;
+                    }
+                    incrementCurrentSize(len);
+
+                    sampleBytes = sampleBytes + len;
+                    long now = System.currentTimeMillis();
+                    if (now - sampleStart >= THROUGHPUT_SAMPLE_INTERVAL) {
+                        ReplicaSelector.getInstance().recordTransfer(dataNode,
+                                sampleBytes, now - sampleStart);
+                        sampleStart = now;
+                        sampleBytes = 0;
+                    }
+
+                    // Read 32K more
+                    len = input.read(b);
                 }
-                // end of thread
-                logger.trace("[OUT] download");
-                return;
-            }
+                ReplicaSelector.getInstance().recordTransfer(dataNode,
+                        sampleBytes, System.currentTimeMillis() - sampleStart);
 
-            // if download has been skipped when file was in state
-            // DOWNLOADING
-            if (getRecordStatus() == RecordStatus.SKIPPED) {
-                logger.debug("Download of file {} was skipped", instanceID);
-                // finish thread and IO buffers. Disconnect HTTP connection
-                try {
-                    input.close();
-                } catch (final Exception e) {
+                // all response has been read, so connection can be reused
+                if (len == -1) {
+                    completed = true;
                 }
-                try {
-                    gzi.close();
-                } catch (final Exception e) {
+
+                // if download has been paused when file was in state
+                // DOWNLOADING
+                if (getRecordStatus() == RecordStatus.PAUSED) {
+                    logger.debug("Download of file {} was paused", instanceID);
+                    // finish thread and IO buffers. Disconnect HTTP connection
+                    try {
+                        input.close();
+                    } catch (final Exception e) {
+                    }
+                    try {
+                        gzi.close();
+                    } catch (final Exception e) {
+                    }
+                    try {
+                        output.flush();
+                        output.close();
+                        fos.flush();
+                    } catch (final Exception e) {
+                        e.getStackTrace();
+                    }
+                    try {
+                        con.disconnect();
+                    } catch (final Throwable e) {
+                        e.getStackTrace();
+                    }
+                    // end of thread
+                    logger.trace("[OUT] download");
+                    return;
                 }
-                try {
-                    output.flush();
-                    output.close();
-                    fos.flush();
-                } catch (final Exception e) {
-                    e.getStackTrace();
+
+                // if download has been reset when file was in state
+                // DOWNLOADING
+                if (getRecordStatus() == RecordStatus.CREATED) {
+                    logger.debug("Download of file {} was reset", instanceID);
+                    // finish thread and IO buffers. Disconnect HTTP connection
+                    try {
+                        input.close();
+                    } catch (final Exception e) {
+                    }
+                    try {
+                        gzi.close();
+                    } catch (final Exception e) {
+                    }
+                    try {
+                        output.flush();
+                        output.close();
+                        fos.flush();
+                    } catch (final Exception e) {
+                        e.getStackTrace();
+                    }
+                    try {
+                        con.disconnect();
+                    } catch (final Throwable e) {
+                        e.getStackTrace();
+                    }
+                    // end of thread
+                    logger.trace("[OUT] download");
+                    return;
                 }
-                try {
-                    con.disconnect();
-                } catch (final Throwable e) {
-                    e.getStackTrace();
+
+                // if download has been skipped when file was in state
+                // DOWNLOADING
+                if (getRecordStatus() == RecordStatus.SKIPPED) {
+                    logger.debug("Download of file {} was skipped", instanceID);
+                    // finish thread and IO buffers. Disconnect HTTP connection
+                    try {
+                        input.close();
+                    } catch (final Exception e) {
+                    }
+                    try {
+                        gzi.close();
+                    } catch (final Exception e) {
+                    }
+                    try {
+                        output.flush();
+                        output.close();
+                        fos.flush();
+                    } catch (final Exception e) {
+                        e.getStackTrace();
+                    }
+                    try {
+                        con.disconnect();
+                    } catch (final Throwable e) {
+                        e.getStackTrace();
+                    }
+                    // end thread
+                    logger.trace("[OUT] download");
+                    return;
                 }
-                // end thread
-                logger.trace("[OUT] download");
-                return;
             }
 
         } catch (UnauthorizedException e1) {
@@ -516,6 +572,21 @@ public class FileDownloadStatus implements Runnable, Download, Serializable {
 
             e.printStackTrace();
 
+            // if download has failed (not stopped by user), continue with
+            // the next best replica from where it was
+            if (getRecordStatus() == RecordStatus.DOWNLOADING
+                    && selectNextReplica()) {
+                logger.info("Download of file {} continues from data node {}",
+                        instanceID, currentFileReplica.getDataNode());
+                setRecordStatus(RecordStatus.WAITING);
+                failover = true;
+
+                // end thread. File is put in download queue after close IO
+                // buffers
+                logger.trace("[OUT] download");
+                return;
+            }
+
             setRecordStatus(RecordStatus.FAILED);
             notifyDownloadErrorObservers();
 
@@ -541,11 +612,19 @@ public class FileDownloadStatus implements Runnable, Download, Serializable {
             } catch (final Exception e) {
                 e.getStackTrace();
             }
-            try {
-                con.disconnect();
+            // a connection whose response has been read is kept open to be
+            // reused by next downloads of data node
+            if (!completed) {
+                try {
+                    con.disconnect();
 
-            } catch (final Throwable e) {
-                e.getStackTrace();
+                } catch (final Throwable e) {
+                    e.getStackTrace();
+                }
+            }
+
+            if (failover) {
+                datasetDownloadStatus.requeueFile(this);
             }
         }
 
@@ -554,8 +633,24 @@ public class FileDownloadStatus implements Runnable, Download, Serializable {
             if (currentSize == totalSize && totalSize != 0) {
 
                 logger.debug("Checking if file downloaded isn't corrupted.");
-                // Check if download file isn't corrupted
-                boolean valid = validateChecksum(checksum, checksumType);
+                // Check if download file isn't corrupted. If digest has been
+                // calculated while file was written it isn't necessary read
+                // file again
+                boolean valid;
+                if (segments == null && downloadDigest != null
+                        && digestedSize == currentSize) {
+                    String hash = ChecksumVerifier.toHexString(downloadDigest
+                            .digest());
+                    valid = hash.equals(checksum);
+                    logger.debug("Checksum of file {} calculated in download",
+                            instanceID);
+                    // file won't be read again if it is verified later
+                    ChecksumVerifier.getInstance().putVerified(file,
+                            checksumType, hash);
+                } else {
+                    valid = validateChecksum(checksum, checksumType);
+                }
+                downloadDigest = null;
 
                 // if checksum isn't corrupted
                 if (valid) {
@@ -622,6 +717,527 @@ public class FileDownloadStatus implements Runnable, Download, Serializable {
 
     }
 
+    /**
+     * Get url of HTTP service of a replica of file
+     *
+     * @param replica
+     *            replica of file
+     * @return url of file in data node of replica
+     * @throws IOException
+     *             if url isn't valid
+     * @throws IllegalStateException
+     *             if replica haven't a HTTP service
+     */
+    private URL getHttpURL(RecordReplica replica) throws IOException {
+        logger.trace("[IN]  getHttpURL");
+
+        String urlMetadata = replica.getServices().get(Service.HTTPSERVER);
+        if (urlMetadata == null) {
+            logger.error("File {} haven't a HTTP service", instanceID);
+            throw new IllegalStateException("This file haven't a HTTP service");
+        }
+
+        logger.debug("File {} will be download of {}", instanceID, urlMetadata);
+
+        // dataset file url are formated: url|mime type|service name
+        String urlStr = urlMetadata.substring(0, urlMetadata.indexOf("|"));
+        logger.debug("Url of download: ", urlStr);
+
+        logger.trace("[OUT] getHttpURL");
+        return new URL(urlStr);
+    }
+
+    /**
+     * Check if file must be downloaded in several segments. A new download is
+     * segmented if file size is known and is bigger than
+     * {@link #SEGMENTED_DOWNLOAD_MIN_SIZE} and the data node accepts byte
+     * ranges. A resumed download is segmented if it was started segmented.
+     *
+     * @param url
+     *            url of file in data node
+     * @param resumed
+     *            true if download has been resumed
+     * @return true if file must be downloaded in segments and false otherwise
+     * @throws UnauthorizedException
+     *             if user haven't permissions to access to file
+     */
+    private boolean isSegmentedDownload(URL url, boolean resumed)
+            throws UnauthorizedException {
+        logger.trace("[IN]  isSegmentedDownload");
+
+        if (resumed) {
+            logger.trace("[OUT] isSegmentedDownload");
+            return segments != null;
+        }
+
+        if (segmentsPerFile < 2 || totalSize < SEGMENTED_DOWNLOAD_MIN_SIZE) {
+            logger.trace("[OUT] isSegmentedDownload");
+            return false;
+        }
+
+        logger.debug("Checking if data node accepts byte ranges of file {}",
+                instanceID);
+        boolean acceptRanges = getRangeTotalSize(url) >= 0;
+
+        logger.trace("[OUT] isSegmentedDownload");
+        return acceptRanges;
+    }
+
+    /**
+     * Request first byte of file to check if data node accepts byte ranges.
+     *
+     * @param url
+     *            url of file in data node
+     * @return total size of file reported by data node, 0 if data node
+     *         doesn't report it or -1 if data node doesn't accept byte ranges
+     * @throws UnauthorizedException
+     *             if user haven't permissions to access to file
+     */
+    private long getRangeTotalSize(URL url) throws UnauthorizedException {
+        logger.trace("[IN]  getRangeTotalSize");
+
+        long rangeTotalSize = -1;
+        HttpURLConnection con = null;
+        try {
+            con = DataNodeConnectionManager.getInstance().openConnection(url,
+                    "bytes=0-0");
+
+            // gzip content can't be written in offsets of file
+            String encoding = con.getHeaderField("Content-Encoding");
+            if (con.getResponseCode() == 206
+                    && (encoding == null || !encoding.equalsIgnoreCase("gzip"))) {
+                rangeTotalSize = 0;
+
+                // Content-Range: bytes 0-0/<total size>
+                String contentRange = con.getHeaderField("Content-Range");
+                if (contentRange != null && contentRange.indexOf('/') >= 0) {
+                    try {
+                        rangeTotalSize = Long.parseLong(contentRange.substring(
+                                contentRange.indexOf('/') + 1).trim());
+                    } catch (NumberFormatException e) {
+                        // total size is unknown (*)
+                    }
+                }
+
+                // read the byte of response, so connection can be reused
+                InputStream input = con.getInputStream();
+                try {
+                    while (input.read() != -1) {
+                    }
+                } finally {
+                    input.close();
+                }
+            } else {
+                con.disconnect();
+            }
+        } catch (IOException e) {
+            logger.warn("Byte ranges of file {} can't be checked: {}",
+                    instanceID, e.getMessage());
+            try {
+                con.disconnect();
+            } catch (final Throwable e1) {
+                e1.getStackTrace();
+            }
+        }
+
+        logger.trace("[OUT] getRangeTotalSize");
+        return rangeTotalSize;
+    }
+
+    /**
+     * Get sources of a segmented download. The first source is always the
+     * current replica. In multi-source mode, replicas of other data nodes
+     * that accept byte ranges and have the same file size are added, up to
+     * the number of segments per file.
+     *
+     * @param url
+     *            url of file in current replica
+     * @return sources of segmented download
+     */
+    private List<SegmentSource> getSegmentSources(URL url) {
+        logger.trace("[IN]  getSegmentSources");
+
+        List<SegmentSource> sources = new ArrayList<SegmentSource>();
+        sources.add(new SegmentSource(url, currentFileReplica.getDataNode()));
+
+        if (!multiSourceDownload) {
+            logger.trace("[OUT] getSegmentSources");
+            return sources;
+        }
+
+        List<RecordReplica> replicas;
+        try {
+            replicas = DownloadManager.getInstance()
+                    .getFile(datasetDownloadStatus.getInstanceID(), instanceID)
+                    .getReplicas();
+        } catch (Exception e) {
+            logger.warn("Replicas of file {} can't be obtained", instanceID);
+            logger.trace("[OUT] getSegmentSources");
+            return sources;
+        }
+
+        Set<String> dataNodes = new HashSet<String>();
+        dataNodes.add(currentFileReplica.getDataNode());
+        for (RecordReplica replica : replicas) {
+            if (sources.size() >= segmentsPerFile) {
+                break;
+            }
+
+            String dataNode = replica.getDataNode();
+            if (dataNodes.contains(dataNode)
+                    || (failedDataNodes != null && failedDataNodes
+                            .contains(dataNode))) {
+                continue;
+            }
+
+            // replica must have the same file
+            try {
+                URL replicaURL = getHttpURL(replica);
+                if (getRangeTotalSize(replicaURL) == totalSize) {
+                    sources.add(new SegmentSource(replicaURL, dataNode));
+                    dataNodes.add(dataNode);
+                } else {
+                    logger.debug("Replica of data node {} can't be used to "
+                            + "download segments of {}", dataNode, instanceID);
+                }
+            } catch (Exception e) {
+                logger.debug("Replica of data node {} can't be used to "
+                        + "download segments of {}: {}", new Object[] {
+                        dataNode, instanceID, e.getMessage() });
+            }
+        }
+
+        logger.debug("File {} will be downloaded from {} data nodes",
+                instanceID, sources.size());
+        logger.trace("[OUT] getSegmentSources");
+        return sources;
+    }
+
+    /**
+     * Download file in several segments at the same time. Each segment is
+     * requested with a http byte range and is written in its offset of a
+     * preallocated file. Only segments that aren't finished are downloaded, so
+     * a resumed download continues from where each segment was.
+     *
+     * <p>
+     * Pending segments are in a queue and each connection takes the next
+     * segment when finishes one, so faster sources download more segments.
+     * With several sources, file is split in smaller segments and a segment
+     * of a failed source is downloaded by the other sources. Connections are
+     * counted in the limit of each data node of {@link DownloadScheduler}, so
+     * a file gets fewer connections when its data nodes are busy.
+     * </p>
+     *
+     * @param sources
+     *            sources of segments
+     * @throws IOException
+     *             if some segment can't be downloaded
+     * @throws UnauthorizedException
+     *             if user haven't permissions to access to file
+     */
+    private void downloadSegments(List<SegmentSource> sources)
+            throws IOException, UnauthorizedException {
+        logger.trace("[IN]  downloadSegments");
+
+        // If segments of a resumed download don't match with system file
+        // then download all file again
+        if (segments != null && file.length() != totalSize) {
+            logger.debug("File {} hasn't the expected size. Reseting segments",
+                    instanceID);
+            datasetDownloadStatus.decrementCurrentSize(getCurrentSize());
+            setCurrentSize(0);
+            segments = null;
+        }
+
+        if (segments == null) {
+            // with several sources file is split in smaller segments to
+            // balance segments between sources
+            int numberOfSegments = segmentsPerFile;
+            if (sources.size() > 1) {
+                numberOfSegments = (int) Math.max(segmentsPerFile, Math.min(
+                        MAX_SEGMENTS_PER_FILE, totalSize
+                                / MULTI_SOURCE_SEGMENT_SIZE));
+            }
+
+            logger.debug("Splitting file {} in {} segments", instanceID,
+                    numberOfSegments);
+            List<FileSegment> newSegments = new ArrayList<FileSegment>();
+            long segmentLength = totalSize / numberOfSegments;
+            for (int i = 0; i < numberOfSegments; i++) {
+                long start = i * segmentLength;
+                long end = start + segmentLength - 1;
+                // last segment to the end of file
+                if (i == numberOfSegments - 1) {
+                    end = totalSize - 1;
+                }
+                newSegments.add(new FileSegment(start, end));
+            }
+
+            logger.debug("Preallocating file {}", instanceID);
+            RandomAccessFile output = new RandomAccessFile(file, "rw");
+            try {
+                output.setLength(totalSize);
+            } finally {
+                output.close();
+            }
+
+            segments = newSegments;
+        } else {
+            // current size is the sum of bytes written in each segment
+            long size = 0;
+            for (FileSegment segment : segments) {
+                size = size + segment.getCurrentSize();
+            }
+            setCurrentSize(size);
+        }
+
+        final Queue<FileSegment> pendingSegments = new ConcurrentLinkedQueue<FileSegment>();
+        for (FileSegment segment : segments) {
+            if (!segment.isFinished()) {
+                pendingSegments.add(segment);
+            }
+        }
+
+        if (pendingSegments.isEmpty()) {
+            logger.trace("[OUT] downloadSegments");
+            return;
+        }
+
+        int numberOfConnections = Math.min(
+                Math.max(segmentsPerFile, sources.size()),
+                pendingSegments.size());
+
+        // Connections are counted in the limit of connections of each data
+        // node of download scheduler. The slot of this download is the first
+        // connection of current data node, the others are reserved
+        DownloadScheduler scheduler = DownloadManager.getInstance()
+                .getDownloadExecutor();
+        int[] reservedConnections = new int[sources.size()];
+        List<SegmentSource> connections = new ArrayList<SegmentSource>();
+        int usedSources = 0;
+        for (int i = 0; i < sources.size(); i++) {
+            int wanted = numberOfConnections / sources.size();
+            if (i < numberOfConnections % sources.size()) {
+                wanted++;
+            }
+
+            int granted = 0;
+            if (i == 0) {
+                granted = 1;
+            }
+            if (wanted > granted) {
+                reservedConnections[i] = scheduler.acquireConnections(
+                        sources.get(i).dataNode, wanted - granted);
+                granted = granted + reservedConnections[i];
+            }
+
+            for (int j = 0; j < granted; j++) {
+                connections.add(sources.get(i));
+            }
+            if (granted > 0) {
+                usedSources++;
+            }
+        }
+
+        logger.debug("Downloading {} segments of file {} with {} connections...",
+                new Object[] { pendingSegments.size(), instanceID,
+                        connections.size() });
+
+        // with only one source if a segment fails the others stop too
+        final boolean stopOnError = usedSources == 1;
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        ExecutorService segmentExecutor = Executors
+                .newFixedThreadPool(connections.size());
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
+
+        try {
+            for (final SegmentSource source : connections) {
+                results.add(segmentExecutor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        FileSegment segment = pendingSegments.poll();
+                        while (segment != null && !stop.get()
+                                && getRecordStatus() == RecordStatus.DOWNLOADING) {
+                            try {
+                                downloadSegment(source, segment, stop);
+                            } catch (UnauthorizedException e) {
+                                pendingSegments.add(segment);
+                                stop.set(true);
+                                throw e;
+                            } catch (IOException e) {
+                                // segment will be downloaded by other source
+                                pendingSegments.add(segment);
+                                if (stopOnError) {
+                                    stop.set(true);
+                                } else {
+                                    logger.warn("Data node {} has failed "
+                                            + "downloading segments of {}",
+                                            source.dataNode, instanceID);
+                                    ReplicaSelector.getInstance().recordError(
+                                            source.dataNode);
+                                }
+                                throw e;
+                            }
+                            segment = pendingSegments.poll();
+                        }
+                        return null;
+                    }
+                }));
+            }
+
+            // Wait for all connections and keep the first error
+            Throwable error = null;
+            for (Future<Void> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    if (error == null
+                            || e.getCause() instanceof UnauthorizedException) {
+                        error = e.getCause();
+                    }
+                }
+            }
+
+            // errors of a source don't matter if others have downloaded its
+            // segments
+            boolean finished = true;
+            for (FileSegment segment : segments) {
+                if (!segment.isFinished()) {
+                    finished = false;
+                }
+            }
+
+            if (!finished && getRecordStatus() == RecordStatus.DOWNLOADING) {
+                if (error instanceof UnauthorizedException) {
+                    throw (UnauthorizedException) error;
+                } else if (error instanceof IOException) {
+                    throw (IOException) error;
+                } else {
+                    throw new IOException("Error downloading segment of file "
+                            + instanceID, error);
+                }
+            }
+        } catch (InterruptedException e) {
+            stop.set(true);
+            Thread.currentThread().interrupt();
+            throw new IOException("Segmented download of file " + instanceID
+                    + " has been interrupted", e);
+        } finally {
+            segmentExecutor.shutdownNow();
+            for (int i = 0; i < sources.size(); i++) {
+                scheduler.releaseConnections(sources.get(i).dataNode,
+                        reservedConnections[i]);
+            }
+        }
+
+        logger.trace("[OUT] downloadSegments");
+    }
+
+    /**
+     * Download a segment of file and write it in its offset of system file.
+     * Download finish when segment is complete, when file isn't in state
+     * DOWNLOADING or when segmented download has been stopped.
+     *
+     * @param source
+     *            source of segment
+     * @param segment
+     *            segment to download
+     * @param stop
+     *            flag that indicates that segmented download has been stopped
+     * @throws IOException
+     *             if segment can't be downloaded
+     * @throws UnauthorizedException
+     *             if user haven't permissions to access to file
+     */
+    private void downloadSegment(SegmentSource source, FileSegment segment,
+            AtomicBoolean stop) throws IOException, UnauthorizedException {
+        logger.trace("[IN]  downloadSegment");
+
+        HttpURLConnection con = null;
+        BufferedInputStream input = null;
+        RandomAccessFile output = null;
+
+        String dataNode = source.dataNode;
+        try {
+            long requestStart = System.currentTimeMillis();
+            con = DataNodeConnectionManager.getInstance().openConnection(
+                    source.url,
+                    "bytes=" + segment.getNextOffset() + "-" + segment.getEnd());
+            ReplicaSelector.getInstance().recordLatency(dataNode,
+                    System.currentTimeMillis() - requestStart);
+
+            int httpResponseCode = con.getResponseCode();
+
+            // data node must return only the range of segment
+            if (httpResponseCode != 206) {
+                throw new IOException("Data node hasn't returned the range "
+                        + segment.getNextOffset() + "-" + segment.getEnd()
+                        + " of file " + instanceID + ". Http response code: "
+                        + httpResponseCode);
+            }
+
+            input = new BufferedInputStream(con.getInputStream());
+            output = new RandomAccessFile(file, "rw");
+            output.seek(segment.getNextOffset());
+
+            // throughput of data node is sampled while segment is downloaded
+            long sampleStart = System.currentTimeMillis();
+            long sampleBytes = 0;
+
+            final byte[] b = new byte[BYTES_FOR_EACH_PETITION];
+            while (!segment.isFinished()
+                    && getRecordStatus() == RecordStatus.DOWNLOADING
+                    && !stop.get()) {
+
+                // Read 32K or the remaining bytes of segment
+                long remaining = segment.getEnd() - segment.getNextOffset()
+                        + 1;
+                int len = input.read(b, 0, (int) Math.min(b.length, remaining));
+                if (len == -1) {
+                    throw new IOException("Connection closed before end of "
+                            + segment + " of file " + instanceID);
+                }
+
+                // Write readed bytes in offset of segment and increment
+                // current sizes
+                output.write(b, 0, len);
+                segment.increment(len);
+                incrementCurrentSize(len);
+
+                sampleBytes = sampleBytes + len;
+                long now = System.currentTimeMillis();
+                if (now - sampleStart >= THROUGHPUT_SAMPLE_INTERVAL) {
+                    ReplicaSelector.getInstance().recordTransfer(dataNode,
+                            sampleBytes, now - sampleStart);
+                    sampleStart = now;
+                    sampleBytes = 0;
+                }
+            }
+            ReplicaSelector.getInstance().recordTransfer(dataNode,
+                    sampleBytes, System.currentTimeMillis() - sampleStart);
+        } finally {
+            try {
+                input.close();
+            } catch (final Exception e) {
+            }
+            try {
+                output.close();
+            } catch (final Exception e) {
+            }
+            // a connection whose range has been read is kept open to be
+            // reused by next downloads of data node
+            if (!segment.isFinished()) {
+                try {
+                    con.disconnect();
+                } catch (final Throwable e) {
+                    e.getStackTrace();
+                }
+            }
+        }
+
+        logger.trace("[OUT] downloadSegment");
+    }
+
     /**
      * Get approximate time to finish the download in milliseconds.
      *
@@ -726,49 +1342,84 @@ public class FileDownloadStatus implements Runnable, Download, Serializable {
     }
 
     /**
-     * Set a replica source to download (random)
+     * Set a replica source to download (best)
      *
-     * Finds out the replicas of a file and choose one of random of them
+     * Finds out the replicas of a file and choose the replica that is
+     * expected to be downloaded faster (see {@link ReplicaSelector})
      *
-     * @return random file replica
+     * @return best file replica
      * @throws IOException
      *             when replicas can't be find out
      */
-    private RecordReplica getRandomReplicaSource() throws IOException {
-        logger.trace("[IN]  getRandomReplicaSource");
+    private RecordReplica getBestReplicaSource() throws IOException {
+        logger.trace("[IN]  getBestReplicaSource");
 
         logger.debug("Getting file from file system...");
         DatasetFile file = DownloadManager.getInstance().getFile(
                 datasetDownloadStatus.getInstanceID(), instanceID);
 
-        logger.debug("Choosing a random replica of file {}", instanceID);
-        List<RecordReplica> fileReplicas = file.getReplicas();
-        int numberOfReplicas = fileReplicas.size();
-
-        // random index
-        int index = (int) (Math.random() * numberOfReplicas);
-
-        logger.trace("[OUT] getRandomReplicaSource");
-        return fileReplicas.get(index);
+        logger.trace("[OUT] getBestReplicaSource");
+        return getBestReplicaSource(file.getReplicas());
     }
 
     /**
-     * Set a replica source to download (random)
+     * Set a replica source to download (best)
      *
      * @param replicas
      *            List<RecordReplica> of replicas of a {@link DatasetFile}
-     * @return random file replica
+     * @return best file replica
+     */
+    private RecordReplica getBestReplicaSource(List<RecordReplica> fileReplicas) {
+        logger.trace("[IN]  getBestReplicaSource");
+
+        logger.debug("Choosing best replica of file {}", instanceID);
+        RecordReplica replica = ReplicaSelector.getInstance().selectReplica(
+                fileReplicas, totalSize, failedDataNodes);
+
+        logger.trace("[OUT] getBestReplicaSource");
+        return replica;
+    }
+
+    /**
+     * Mark data node of current replica as failed and choose the best replica
+     * of other data nodes that haven't failed.
+     *
+     * @return true if a new replica has been selected and false if there
+     *         aren't more replicas
      */
-    private RecordReplica getRandomReplicaSource(
-            List<RecordReplica> fileReplicas) {
-        logger.trace("[IN]  getRandomReplicaSource");
-        int numberOfReplicas = fileReplicas.size();
+    private boolean selectNextReplica() {
+        logger.trace("[IN]  selectNextReplica");
+
+        String dataNode = currentFileReplica.getDataNode();
+        ReplicaSelector.getInstance().recordError(dataNode);
+
+        if (failedDataNodes == null) {
+            failedDataNodes = new HashSet<String>();
+        }
+        failedDataNodes.add(dataNode);
+
+        List<RecordReplica> replicas;
+        try {
+            replicas = DownloadManager.getInstance()
+                    .getFile(datasetDownloadStatus.getInstanceID(), instanceID)
+                    .getReplicas();
+        } catch (Exception e) {
+            logger.warn("Replicas of file {} can't be obtained", instanceID);
+            logger.trace("[OUT] selectNextReplica");
+            return false;
+        }
 
-        logger.debug("Choosing a random replica of file {}", instanceID);
-        int index = (int) (Math.random() * numberOfReplicas);
+        for (RecordReplica replica : replicas) {
+            if (!failedDataNodes.contains(replica.getDataNode())) {
+                currentFileReplica = getBestReplicaSource(replicas);
+                logger.trace("[OUT] selectNextReplica");
+                return true;
+            }
+        }
 
-        logger.trace("[OUT] getRandomReplicaSource");
-        return fileReplicas.get(index);
+        logger.debug("All replicas of file {} have failed", instanceID);
+        logger.trace("[OUT] selectNextReplica");
+        return false;
     }
 
     /**
@@ -793,6 +1444,78 @@ public class FileDownloadStatus implements Runnable, Download, Serializable {
         return totalSize;
     }
 
+    /**
+     * Get byte ranges of file in a segmented download
+     *
+     * @return the segments or null if file is downloaded with one connection
+     */
+    public List<FileSegment> getSegments() {
+        logger.trace("[IN]  getSegments");
+        logger.trace("[OUT] getSegments");
+        return segments;
+    }
+
+    /**
+     * Get number of segments (simultaneous connections) of a segmented
+     * download
+     *
+     * @return the number of segments of each file
+     */
+    public static int getSegmentsPerFile() {
+        logger.trace("[IN]  getSegmentsPerFile");
+        logger.trace("[OUT] getSegmentsPerFile");
+        return segmentsPerFile;
+    }
+
+    /**
+     * Set number of segments (simultaneous connections) of a segmented
+     * download. Only applies to new downloads.
+     *
+     * @param segmentsPerFile
+     *            number of segments of each file. If is 1, files are
+     *            downloaded with only one connection
+     * @throws IllegalArgumentException
+     *             if segmentsPerFile is less than 1 or greater than
+     *             {@link #MAX_SEGMENTS_PER_FILE}
+     */
+    public static void setSegmentsPerFile(int segmentsPerFile) {
+        logger.trace("[IN]  setSegmentsPerFile");
+
+        if (segmentsPerFile < 1 || segmentsPerFile > MAX_SEGMENTS_PER_FILE) {
+            throw new IllegalArgumentException(
+                    "Number of segments per file must be between 1 and "
+                            + MAX_SEGMENTS_PER_FILE);
+        }
+        FileDownloadStatus.segmentsPerFile = segmentsPerFile;
+        logger.trace("[OUT] setSegmentsPerFile");
+    }
+
+    /**
+     * Check if segments of a file are downloaded from several replicas at the
+     * same time
+     *
+     * @return true if multi-source download is enabled and false otherwise
+     */
+    public static boolean isMultiSourceDownload() {
+        logger.trace("[IN]  isMultiSourceDownload");
+        logger.trace("[OUT] isMultiSourceDownload");
+        return multiSourceDownload;
+    }
+
+    /**
+     * Enable or disable download of segments of a file from several replicas
+     * at the same time. Only replicas that accept byte ranges and have the
+     * same file size are used. Only applies to new downloads.
+     *
+     * @param multiSourceDownload
+     *            true to enable multi-source download
+     */
+    public static void setMultiSourceDownload(boolean multiSourceDownload) {
+        logger.trace("[IN]  setMultiSourceDownload");
+        FileDownloadStatus.multiSourceDownload = multiSourceDownload;
+        logger.trace("[OUT] setMultiSourceDownload");
+    }
+
     /**
      * Increment current size in len bytes
      *
@@ -807,8 +1530,11 @@ public class FileDownloadStatus implements Runnable, Download, Serializable {
         // more than one thread
         datasetDownloadStatus.increment(len);
 
-        // increment file current size
-        currentSize = currentSize + len;
+        // increment file current size. In segmented downloads this method is
+        // called from several threads
+        synchronized (this) {
+            currentSize = currentSize + len;
+        }
 
         // notify observers
         notifyDownloadProgressObservers();
@@ -842,14 +1568,13 @@ public class FileDownloadStatus implements Runnable, Download, Serializable {
     }
 
     /**
-     * Call method FileDownloadProgress() in all observers
+     * Post progress to {@link ProgressDispatcher} that calls method
+     * onDownloadChange() in all observers in its own thread
      */
     private void notifyDownloadProgressObservers() {
         logger.trace("[IN]  notifyDownloadProgressObservers");
 
-        for (DownloadObserver o : observers) {
-            o.onDownloadChange(this);
-        }
+        ProgressDispatcher.getInstance().post(this, observers);
 
         logger.trace("[OUT] notifyDownloadProgressObservers");
     }
@@ -883,7 +1608,10 @@ public class FileDownloadStatus implements Runnable, Download, Serializable {
      */
     public void registerObserver(DownloadObserver observer) {
         logger.trace("[IN]  registerObserver");
-        observers.add(observer);
+        // observers are also read by ProgressDispatcher thread
+        synchronized (observers) {
+            observers.add(observer);
+        }
         logger.trace("[OUT] registerObserver");
     }
 
@@ -899,6 +1627,9 @@ public class FileDownloadStatus implements Runnable, Download, Serializable {
         // reset status and current size
         setRecordStatus(RecordStatus.CREATED);
         setCurrentSize(0);
+        segments = null;
+        downloadDigest = null;
+        failedDataNodes = null;
 
         // remove file or directory
         if (file != null) {
@@ -1045,7 +1776,7 @@ public class FileDownloadStatus implements Runnable, Download, Serializable {
             // if not setted. Get random
             if (currentFileReplica == null) {
                 logger.debug("Configuring new download replica...");
-                this.currentFileReplica = getRandomReplicaSource(datasetFile
+                this.currentFileReplica = getBestReplicaSource(datasetFile
                         .getReplicas());
             }
             // Set download start date
@@ -1058,9 +1789,11 @@ public class FileDownloadStatus implements Runnable, Download, Serializable {
             try {
                 if (!file.exists()) {
                     setCurrentSize(0); // if not exists, reset current size
+                    segments = null;
                 }
             } catch (Exception e) {
                 setCurrentSize(0); // reset current size
+                segments = null;
             }
 
         } else {
@@ -1121,7 +1854,7 @@ public class FileDownloadStatus implements Runnable, Download, Serializable {
             // if not setted. Get random
             if (currentFileReplica == null) {
                 logger.debug("Configuring new download replica...");
-                this.currentFileReplica = getRandomReplicaSource(datasetFile
+                this.currentFileReplica = getBestReplicaSource(datasetFile
                         .getReplicas());
             }
             // Set download start date
@@ -1134,9 +1867,11 @@ public class FileDownloadStatus implements Runnable, Download, Serializable {
             try {
                 if (!file.exists()) {
                     setCurrentSize(0); // if not exists, reset current size
+                    segments = null;
                 }
             } catch (Exception e) {
                 setCurrentSize(0); // reset current size
+                segments = null;
             }
 
         } else {
@@ -1177,63 +1912,155 @@ public class FileDownloadStatus implements Runnable, Download, Serializable {
     private boolean validateChecksum(String checksum, ChecksumType checksumType) {
         logger.trace("[IN]  validateChecksum");
 
-        long time_start, time_end;
-        time_start = System.currentTimeMillis();
         logger.debug("Checking vality of file: {}...", getInstanceID());
 
-        // Check if download file isn't corrupted
+        // Check if download file isn't corrupted. Digest of file is
+        // obtained from cache if file hasn't changed since last verification
         boolean valid = false;
-        String hash = "";
-
         try {
+            valid = ChecksumVerifier.getInstance().verify(file, checksum,
+                    checksumType);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
 
-            logger.debug("Configuring correctly message digest to"
-                    + " {} algorithm... ", checksumType.toString());
-
-            // new instance of message digest with the appropriated
-            // algorithm
-            MessageDigest messageDigest = MessageDigest
-                    .getInstance(checksumType.toString());
-
-            // Creates a digest input stream from file
-            InputStream is = new FileInputStream(file);
-            byte[] dataBytes = new byte[1024];
-            int nread = is.read(dataBytes);
-            while (nread > 0) {
-                messageDigest.update(dataBytes, 0, nread);
-                nread = is.read(dataBytes);
-            }
+        logger.trace("[OUT] validateChecksum");
+        return valid;
+    }
 
-            is.close();
+    /**
+     * Check if file is a new download whose file already exists in file system
+     * and has checksum, so it must be verified before being downloaded.
+     *
+     * @return true if existing file must be verified and false otherwise
+     */
+    public boolean isExistingFile() {
+        logger.trace("[IN]  isExistingFile");
+        logger.trace("[OUT] isExistingFile");
+        return getRecordStatus() == RecordStatus.WAITING
+                && getCurrentSize() == 0 && segments == null && file != null
+                && file.exists() && checksum != null && checksumType != null;
+    }
+
+    /**
+     * Verify file that already exists in file system in the pool of
+     * {@link ChecksumVerifier}. If file is valid then download is finished
+     * without using a download thread, otherwise the file is put in the
+     * download queue.
+     *
+     * @param downloadExecutor
+     *            scheduler where file is put if it isn't valid
+     * @param dataNode
+     *            data node of file
+     */
+    public void verifyExistingFile(final DownloadScheduler downloadExecutor,
+            final String dataNode) {
+        logger.trace("[IN]  verifyExistingFile");
+
+        ChecksumVerifier.getInstance().execute(new Runnable() {
+            @Override
+            public void run() {
+                // if download has been paused, reset or skipped meanwhile
+                if (getRecordStatus() != RecordStatus.WAITING) {
+                    return;
+                }
+
+                boolean valid = validateChecksum(checksum, checksumType);
+
+                synchronized (FileDownloadStatus.this) {
+                    // only one verification can finish the file
+                    if (getRecordStatus() != RecordStatus.WAITING) {
+                        return;
+                    }
+
+                    if (valid) {
+                        currentSize = totalSize;
+                        setRecordStatus(RecordStatus.FINISHED);
+                        setDownloadFinish(new Date());
+                    }
+                }
 
-            // Completes the hash computation
-            byte[] digest = messageDigest.digest();
+                if (valid) {
+                    // notify download completed
+                    notifyDownloadCompletedObservers();
 
-            // Cast byte[] to hexadecimal string to compare with the
-            // checksum given from dataset metadata
-            for (byte aux : digest) {
-                int b = aux & 0xff;
-                if (Integer.toHexString(b).length() == 1) {
-                    hash += "0";
+                    // increment dataset size
+                    datasetDownloadStatus.increment(file.length());
+                    logger.info("File {} already downloaded", instanceID);
+                } else {
+                    // download file, download() will create it again
+                    downloadExecutor.execute(FileDownloadStatus.this,
+                            dataNode);
                 }
-                hash += Integer.toHexString(b);
             }
+        });
 
-            if (hash.equals(checksum)) {
-                valid = true;
-            }
+        logger.trace("[OUT] verifyExistingFile");
+    }
 
-        } catch (Exception e) {
-            e.printStackTrace();
+    /**
+     * Prepare {@link #downloadDigest} to be updated with bytes downloaded. In
+     * a new download the digest is created. In a resumed download the digest
+     * of previous download is used if it has all bytes of file, otherwise it
+     * is calculated again from bytes already downloaded. If file hasn't
+     * checksum the digest is null.
+     *
+     * @param resumed
+     *            true if download has been resumed
+     */
+    private void prepareDownloadDigest(boolean resumed) {
+        logger.trace("[IN]  prepareDownloadDigest");
+
+        if (checksum == null || checksumType == null) {
+            downloadDigest = null;
+            logger.trace("[OUT] prepareDownloadDigest");
+            return;
         }
 
-        // Prints the time it takes to perform checksum
-        time_end = System.currentTimeMillis();
-        logger.info("the checksum of {} has taken {} milliseconds",
-                getInstanceID(), (time_end - time_start));
+        if (resumed && downloadDigest != null
+                && digestedSize == getCurrentSize()) {
+            logger.debug("Digest of file {} continues from {} bytes",
+                    instanceID, digestedSize);
+            logger.trace("[OUT] prepareDownloadDigest");
+            return;
+        }
 
-        logger.trace("[OUT] validateChecksum");
-        return valid;
+        InputStream is = null;
+        try {
+            downloadDigest = MessageDigest.getInstance(checksumType.toString());
+            digestedSize = 0;
+
+            if (resumed) {
+                logger.debug("Calculating digest of {} bytes of file {}...",
+                        getCurrentSize(), instanceID);
+                // digest bytes already downloaded
+                is = new FileInputStream(file);
+                byte[] dataBytes = new byte[BYTES_FOR_EACH_PETITION];
+                long remaining = getCurrentSize();
+                while (remaining > 0) {
+                    int nread = is.read(dataBytes, 0,
+                            (int) Math.min(dataBytes.length, remaining));
+                    if (nread < 0) {
+                        break;
+                    }
+                    downloadDigest.update(dataBytes, 0, nread);
+                    digestedSize = digestedSize + nread;
+                    remaining = remaining - nread;
+                }
+            }
+        } catch (Exception e) {
+            // checksum will be validated reading file when download ends
+            logger.warn("Digest of file {} can't be calculated in download: {}",
+                    instanceID, e.getMessage());
+            downloadDigest = null;
+        } finally {
+            try {
+                is.close();
+            } catch (final Exception e) {
+            }
+        }
+
+        logger.trace("[OUT] prepareDownloadDigest");
     }
 
     /**
@@ -1413,4 +2240,28 @@ public class FileDownloadStatus implements Runnable, Download, Serializable {
         this.observers = new LinkedList<DownloadObserver>();
     }
 
+    /**
+     * Url of a replica of file from where segments are downloaded.
+     */
+    private static class SegmentSource {
+
+        /** Url of file in data node. */
+        private final URL url;
+
+        /** Data node of replica. */
+        private final String dataNode;
+
+        /**
+         * Constructor
+         *
+         * @param url
+         *            url of file in data node
+         * @param dataNode
+         *            data node of replica
+         */
+        public SegmentSource(URL url, String dataNode) {
+            this.url = url;
+            this.dataNode = dataNode;
+        }
+    }
 }
@@ -0,0 +1,154 @@
+package es.unican.meteo.esgf.download;
+
+import java.io.Serializable;
+
+/**
+ * Byte range of a file that is downloaded independently of the rest of the
+ * file in a segmented download. Saves the bytes already written in the range
+ * so a resumed download only requests the remaining bytes of each segment.
+ *
+ * @author Karem Terry
+ *
+ */
+public class FileSegment implements Serializable {
+
+    /** Logger. */
+    static private org.slf4j.Logger logger = org.slf4j.LoggerFactory
+            .getLogger(FileSegment.class);
+
+    /** Serial version of saved segments. */
+    private static final long serialVersionUID = -2814061804559127074L;
+
+    /** First byte of the segment (inclusive). */
+    private long start;
+
+    /** Last byte of the segment (inclusive). */
+    private long end;
+
+    /** Bytes of the segment that have been written in file. */
+    private long currentSize;
+
+    /**
+     * Constructor
+     *
+     * @param start
+     *            first byte of the segment (inclusive)
+     * @param end
+     *            last byte of the segment (inclusive)
+     */
+    public FileSegment(long start, long end) {
+        logger.trace("[IN]  FileSegment");
+
+        if (start < 0 || end < start) {
+            throw new IllegalArgumentException("Invalid segment range: "
+                    + start + "-" + end);
+        }
+
+        this.start = start;
+        this.end = end;
+        this.currentSize = 0;
+
+        logger.trace("[OUT] FileSegment");
+    }
+
+    /**
+     * Get first byte of the segment
+     *
+     * @return the start
+     */
+    public long getStart() {
+        logger.trace("[IN]  getStart");
+        logger.trace("[OUT] getStart");
+        return start;
+    }
+
+    /**
+     * Get last byte of the segment
+     *
+     * @return the end
+     */
+    public long getEnd() {
+        logger.trace("[IN]  getEnd");
+        logger.trace("[OUT] getEnd");
+        return end;
+    }
+
+    /**
+     * Get length in bytes of the segment
+     *
+     * @return the length of segment
+     */
+    public long getLength() {
+        logger.trace("[IN]  getLength");
+        logger.trace("[OUT] getLength");
+        return end - start + 1;
+    }
+
+    /**
+     * Get bytes of the segment that have been written in file. Synchronized.
+     *
+     * @return the currentSize
+     */
+    public synchronized long getCurrentSize() {
+        logger.trace("[IN]  getCurrentSize");
+        logger.trace("[OUT] getCurrentSize");
+        return currentSize;
+    }
+
+    /**
+     * Set bytes of the segment that have been written in file. Synchronized.
+     *
+     * @param currentSize
+     *            the currentSize to set
+     */
+    public synchronized void setCurrentSize(long currentSize) {
+        logger.trace("[IN]  setCurrentSize");
+        this.currentSize = currentSize;
+        logger.trace("[OUT] setCurrentSize");
+    }
+
+    /**
+     * Get position in file of next byte that must be downloaded. Synchronized.
+     *
+     * @return offset of next byte
+     */
+    public synchronized long getNextOffset() {
+        logger.trace("[IN]  getNextOffset");
+        logger.trace("[OUT] getNextOffset");
+        return start + currentSize;
+    }
+
+    /**
+     * Increment bytes written of segment in len bytes. Synchronized.
+     *
+     * @param len
+     *            the bytes to increment
+     */
+    public synchronized void increment(long len) {
+        logger.trace("[IN]  increment");
+        this.currentSize = currentSize + len;
+        logger.trace("[OUT] increment");
+    }
+
+    /**
+     * Check if all bytes of segment have been written. Synchronized.
+     *
+     * @return true if segment is complete and false otherwise
+     */
+    public synchronized boolean isFinished() {
+        logger.trace("[IN]  isFinished");
+        logger.trace("[OUT] isFinished");
+        return currentSize >= getLength();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "FileSegment [start=" + start + ", end=" + end
+                + ", currentSize=" + currentSize + "]";
+    }
+}
@@ -0,0 +1,344 @@
+package es.unican.meteo.esgf.download;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the health of ESGF nodes learned from requests: a rolling average of
+ * latency, throughput and errors of each node. Health is persisted in a file
+ * of user.home/.esgData between sessions, periodically while nodes are used
+ * and with {@link #save()} at exit. Shared by selectors of data nodes and of
+ * index nodes. Thread-safe.
+ *
+ * @author Karem Terry
+ *
+ */
+public class NodeHealthStore {
+
+    /** Logger. */
+    static private org.slf4j.Logger logger = org.slf4j.LoggerFactory
+            .getLogger(NodeHealthStore.class);
+
+    /** Weight of a new sample in rolling averages. */
+    private static final double SAMPLE_WEIGHT = 0.2;
+
+    /** Increment of expected time by each unit of error rate. */
+    private static final double ERROR_PENALTY = 4;
+
+    /** Milliseconds between two saves of health. */
+    private static final long SAVE_INTERVAL = 60000; // 1 min
+
+    /** Health by node. */
+    private Map<String, NodeHealth> health;
+
+    /** Path of health file. */
+    private String healthPath;
+
+    /** Latency of new nodes, in ms. */
+    private double defaultLatency;
+
+    /** Throughput of new nodes, in bytes/ms. */
+    private double defaultThroughput;
+
+    /** Time of last save of health. */
+    private long lastSave;
+
+    /**
+     * Constructor. Load health of previous sessions.
+     *
+     * @param fileName
+     *            name of health file in user.home/.esgData
+     * @param defaultLatency
+     *            latency of nodes without health, in ms
+     * @param defaultThroughput
+     *            throughput of nodes without health, in bytes/ms
+     */
+    public NodeHealthStore(String fileName, double defaultLatency,
+            double defaultThroughput) {
+        logger.trace("[IN]  NodeHealthStore");
+
+        this.healthPath = System.getProperty("user.home") + File.separator
+                + ".esgData" + File.separator + fileName;
+        this.defaultLatency = defaultLatency;
+        this.defaultThroughput = defaultThroughput;
+        this.health = loadHealth();
+        this.lastSave = System.currentTimeMillis();
+
+        logger.trace("[OUT] NodeHealthStore");
+    }
+
+    /**
+     * Get health of a node. Synchronized.
+     *
+     * @param node
+     *            node
+     * @return copy of health of node or null if node hasn't health
+     */
+    public synchronized NodeHealth getHealth(String node) {
+        NodeHealth nodeHealth = health.get(node);
+        if (nodeHealth == null) {
+            return null;
+        }
+        return new NodeHealth(nodeHealth);
+    }
+
+    /**
+     * Get health of all nodes. Synchronized.
+     *
+     * @return copies of health of nodes
+     */
+    public synchronized List<NodeHealth> getAllHealth() {
+        List<NodeHealth> all = new ArrayList<NodeHealth>(health.size());
+        for (NodeHealth nodeHealth : health.values()) {
+            all.add(new NodeHealth(nodeHealth));
+        }
+        return all;
+    }
+
+    /**
+     * Record latency of a successful request to a node. Synchronized.
+     *
+     * @param node
+     *            node
+     * @param millis
+     *            latency in milliseconds
+     */
+    public synchronized void recordLatency(String node, long millis) {
+        logger.trace("[IN]  recordLatency");
+
+        NodeHealth nodeHealth = getOrCreateHealth(node);
+        nodeHealth.latency = average(nodeHealth.latency, millis);
+        nodeHealth.errorRate = average(nodeHealth.errorRate, 0);
+
+        saveIfNeeded();
+        logger.trace("[OUT] recordLatency");
+    }
+
+    /**
+     * Record bytes transferred from a node in a time. Synchronized.
+     *
+     * @param node
+     *            node
+     * @param bytes
+     *            bytes transferred
+     * @param millis
+     *            time in milliseconds
+     */
+    public synchronized void recordTransfer(String node, long bytes,
+            long millis) {
+        logger.trace("[IN]  recordTransfer");
+
+        if (bytes > 0 && millis > 0) {
+            NodeHealth nodeHealth = getOrCreateHealth(node);
+            nodeHealth.throughput = average(nodeHealth.throughput,
+                    (double) bytes / millis);
+        }
+
+        saveIfNeeded();
+        logger.trace("[OUT] recordTransfer");
+    }
+
+    /**
+     * Record an error (failed or stalled request) of a node. Synchronized.
+     *
+     * @param node
+     *            node
+     */
+    public synchronized void recordError(String node) {
+        logger.trace("[IN]  recordError");
+
+        NodeHealth nodeHealth = getOrCreateHealth(node);
+        nodeHealth.errorRate = average(nodeHealth.errorRate, 1);
+        logger.debug("Error rate of node {}: {}", node, nodeHealth.errorRate);
+
+        saveIfNeeded();
+        logger.trace("[OUT] recordError");
+    }
+
+    /**
+     * Get health of a node or create it with default values
+     *
+     * @param node
+     *            node
+     * @return health of node
+     */
+    private NodeHealth getOrCreateHealth(String node) {
+        NodeHealth nodeHealth = health.get(node);
+        if (nodeHealth == null) {
+            nodeHealth = new NodeHealth(defaultLatency, defaultThroughput);
+            health.put(node, nodeHealth);
+        }
+        return nodeHealth;
+    }
+
+    /**
+     * Calculate a rolling average with a new sample
+     *
+     * @param average
+     *            previous average
+     * @param sample
+     *            new sample
+     * @return new average
+     */
+    private static double average(double average, double sample) {
+        return (1 - SAMPLE_WEIGHT) * average + SAMPLE_WEIGHT * sample;
+    }
+
+    /**
+     * Load health from file system.
+     *
+     * @return map of health by node. Empty if health doesn't exist or can't be
+     *         read
+     */
+    @SuppressWarnings("unchecked")
+    private Map<String, NodeHealth> loadHealth() {
+        logger.trace("[IN]  loadHealth");
+
+        Map<String, NodeHealth> loaded = new HashMap<String, NodeHealth>();
+        File file = new File(healthPath);
+
+        if (file.exists()) {
+            ObjectInputStream ois = null;
+            try {
+                ois = new ObjectInputStream(new FileInputStream(file));
+                loaded = (Map<String, NodeHealth>) ois.readObject();
+                logger.debug("Health of {} nodes loaded from {}",
+                        loaded.size(), healthPath);
+            } catch (Exception e) {
+                logger.warn("Node health {} can't be loaded: {}", healthPath,
+                        e.getMessage());
+            } finally {
+                try {
+                    ois.close();
+                } catch (final Exception e) {
+                }
+            }
+        }
+
+        logger.trace("[OUT] loadHealth");
+        return loaded;
+    }
+
+    /**
+     * Save health in file system if save interval has elapsed.
+     */
+    private void saveIfNeeded() {
+        if (System.currentTimeMillis() - lastSave >= SAVE_INTERVAL) {
+            save();
+        }
+    }
+
+    /**
+     * Save health in file system. Synchronized.
+     */
+    public synchronized void save() {
+        logger.trace("[IN]  save");
+
+        lastSave = System.currentTimeMillis();
+
+        ObjectOutputStream out = null;
+        try {
+            out = new ObjectOutputStream(new FileOutputStream(healthPath));
+            out.writeObject(health);
+        } catch (IOException e) {
+            logger.warn("Node health {} can't be saved: {}", healthPath,
+                    e.getMessage());
+        } finally {
+            try {
+                out.close();
+            } catch (final Exception e) {
+            }
+        }
+
+        logger.trace("[OUT] save");
+    }
+
+    /**
+     * Rolling averages of latency, throughput and errors of a node.
+     */
+    public static class NodeHealth implements Serializable {
+
+        /** Serial version of saved health. */
+        private static final long serialVersionUID = 1L;
+
+        /** Latency in ms. */
+        private double latency;
+
+        /** Throughput in bytes/ms. */
+        private double throughput;
+
+        /** Rate of failed requests, between 0 and 1. */
+        private double errorRate = 0;
+
+        /**
+         * Constructor
+         *
+         * @param latency
+         *            initial latency in ms
+         * @param throughput
+         *            initial throughput in bytes/ms
+         */
+        private NodeHealth(double latency, double throughput) {
+            this.latency = latency;
+            this.throughput = throughput;
+        }
+
+        /**
+         * Copy constructor
+         *
+         * @param other
+         *            health to copy
+         */
+        private NodeHealth(NodeHealth other) {
+            this.latency = other.latency;
+            this.throughput = other.throughput;
+            this.errorRate = other.errorRate;
+        }
+
+        /**
+         * Get latency
+         *
+         * @return latency in ms
+         */
+        public double getLatency() {
+            return latency;
+        }
+
+        /**
+         * Get throughput
+         *
+         * @return throughput in bytes/ms
+         */
+        public double getThroughput() {
+            return throughput;
+        }
+
+        /**
+         * Get error rate
+         *
+         * @return rate of failed requests, between 0 and 1
+         */
+        public double getErrorRate() {
+            return errorRate;
+        }
+
+        /**
+         * Get factor that multiplies expected time of requests to node by its
+         * errors
+         *
+         * @return 1 if node hasn't errors and greater otherwise
+         */
+        public double getErrorPenalty() {
+            return 1 + ERROR_PENALTY * errorRate;
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package es.unican.meteo.esgf.download;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Dispatcher of download progress events. Progress of downloads is marked in
+ * a lock-free flag of each download and only one thread samples them at a
+ * fixed rate and notifies the observers of each download that has changed
+ * since last sample, that read current progress of download. Then, threads
+ * that download files never wait for observers, and observers receive at most
+ * one progress event of each download in each period.
+ *
+ * @author Karem Terry
+ *
+ */
+public class ProgressDispatcher {
+
+    /** Logger. */
+    static private org.slf4j.Logger logger = org.slf4j.LoggerFactory
+            .getLogger(ProgressDispatcher.class);
+
+    /** Default number of progress notifications by second. */
+    public static final int DEFAULT_UPDATE_RATE = 4; // 4 Hz
+
+    /** Singleton instance. */
+    private static ProgressDispatcher INSTANCE = null;
+
+    /** Progress pending to notify of each download. */
+    private ConcurrentHashMap<Download, PendingProgress> pendingProgress;
+
+    /** Number of progress notifications by second. */
+    private int updateRate;
+
+    /** Thread that notifies observers. */
+    private ScheduledExecutorService dispatcher;
+
+    /** Periodic task of dispatcher. */
+    private ScheduledFuture<?> dispatchTask;
+
+    /**
+     * Create a thread-safe singleton.
+     */
+    private static void createInstance() {
+        logger.trace("[IN]  createInstance");
+
+        logger.debug("Checking if exist an instance of ProgressDispatcher");
+        // creating a thread-safe singleton
+        if (INSTANCE == null) {
+
+            // Only the synchronized block is accessed when the instance hasn't
+            // been created.
+            synchronized (ProgressDispatcher.class) {
+                // Inside the block it must check again that the instance has
+                // not been created.
+                if (INSTANCE == null) {
+                    logger.debug("Creating new instance of ProgressDispatcher");
+                    INSTANCE = new ProgressDispatcher();
+                }
+            }
+        }
+        logger.trace("[OUT] createInstance");
+    }
+
+    /**
+     * Get singleton instance of {@link ProgressDispatcher}. This instance is
+     * the only that exists.
+     *
+     * @return the unique instance of {@link ProgressDispatcher}.
+     */
+    public static ProgressDispatcher getInstance() {
+        logger.trace("[IN]  getInstance");
+        createInstance();
+        logger.trace("[OUT] getInstance");
+        return INSTANCE;
+    }
+
+    /**
+     * Constructor
+     */
+    private ProgressDispatcher() {
+        logger.trace("[IN]  ProgressDispatcher");
+
+        this.pendingProgress = new ConcurrentHashMap<Download, PendingProgress>();
+        this.dispatcher = Executors
+                .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable,
+                                "download-progress");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        setUpdateRate(DEFAULT_UPDATE_RATE);
+
+        logger.trace("[OUT] ProgressDispatcher");
+    }
+
+    /**
+     * Get number of progress notifications by second
+     *
+     * @return the updateRate
+     */
+    public synchronized int getUpdateRate() {
+        logger.trace("[IN]  getUpdateRate");
+        logger.trace("[OUT] getUpdateRate");
+        return updateRate;
+    }
+
+    /**
+     * Set number of progress notifications by second. Synchronized.
+     *
+     * @param updateRate
+     *            number of notifications by second of each download
+     *
+     * @throws IllegalArgumentException
+     *             if updateRate is less than 1
+     */
+    public synchronized void setUpdateRate(int updateRate) {
+        logger.trace("[IN]  setUpdateRate");
+
+        if (updateRate < 1) {
+            throw new IllegalArgumentException("Invalid update rate: "
+                    + updateRate);
+        }
+
+        this.updateRate = updateRate;
+        if (dispatchTask != null) {
+            dispatchTask.cancel(false);
+        }
+
+        long period = 1000 / updateRate;
+        dispatchTask = dispatcher.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                dispatch();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+
+        logger.trace("[OUT] setUpdateRate");
+    }
+
+    /**
+     * Post progress of a download. Doesn't block and doesn't call observers,
+     * observers will be notified in next sample of dispatcher.
+     *
+     * @param download
+     *            download that has progressed
+     * @param observers
+     *            observers of download
+     */
+    public void post(Download download, List<DownloadObserver> observers) {
+        logger.trace("[IN]  post");
+
+        PendingProgress pending = getPendingProgress(download, observers);
+        pending.changed.set(true);
+
+        // if dispatcher removed it before being marked, mark a new one. If
+        // dispatcher has already notified it then the new one is notified
+        // again in next sample
+        if (pending.removed) {
+            getPendingProgress(download, observers).changed.set(true);
+        }
+
+        logger.trace("[OUT] post");
+    }
+
+    /**
+     * Get progress pending to notify of a download or create it if doesn't
+     * exist
+     *
+     * @param download
+     *            download
+     * @param observers
+     *            observers of download
+     * @return pending progress of download
+     */
+    private PendingProgress getPendingProgress(Download download,
+            List<DownloadObserver> observers) {
+        logger.trace("[IN]  getPendingProgress");
+
+        PendingProgress pending = pendingProgress.get(download);
+        if (pending == null) {
+            pending = new PendingProgress(observers);
+            PendingProgress old = pendingProgress.putIfAbsent(download,
+                    pending);
+            if (old != null) {
+                pending = old;
+            }
+        }
+
+        logger.trace("[OUT] getPendingProgress");
+        return pending;
+    }
+
+    /**
+     * Notify observers of downloads that have changed since last sample and
+     * forget downloads that haven't changed.
+     */
+    private void dispatch() {
+        logger.trace("[IN]  dispatch");
+
+        for (Map.Entry<Download, PendingProgress> entry : pendingProgress
+                .entrySet()) {
+            Download download = entry.getKey();
+            PendingProgress pending = entry.getValue();
+
+            if (!pending.changed.getAndSet(false)) {
+                // without changes in last period
+                pending.removed = true;
+                pendingProgress.remove(download, pending);
+
+                // check again, it could be marked before being removed
+                if (!pending.changed.getAndSet(false)) {
+                    continue;
+                }
+            }
+
+            logger.trace("Notifying progress of {}", download);
+
+            // copy observers, because they can be registered meanwhile
+            List<DownloadObserver> observers;
+            synchronized (pending.observers) {
+                observers = new ArrayList<DownloadObserver>(pending.observers);
+            }
+
+            for (DownloadObserver o : observers) {
+                try {
+                    o.onDownloadChange(download);
+                } catch (Exception e) {
+                    // an observer mustn't stop notifications of the others
+                    logger.error("Error notifying download progress: {}",
+                            e.getMessage());
+                }
+            }
+        }
+
+        logger.trace("[OUT] dispatch");
+    }
+
+    /**
+     * Progress of a download that hasn't been notified yet.
+     */
+    private static class PendingProgress {
+
+        /** True if download has changed since last notification. */
+        private final AtomicBoolean changed;
+
+        /** Observers of download. */
+        private final List<DownloadObserver> observers;
+
+        /** True if dispatcher has removed it of pending map. */
+        private volatile boolean removed;
+
+        /**
+         * Constructor
+         *
+         * @param observers
+         *            observers of download
+         */
+        public PendingProgress(List<DownloadObserver> observers) {
+            this.changed = new AtomicBoolean(false);
+            this.observers = observers;
+            this.removed = false;
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package es.unican.meteo.esgf.download;
+
+import java.util.Collection;
+import java.util.List;
+
+import es.unican.meteo.esgf.download.NodeHealthStore.NodeHealth;
+import es.unican.meteo.esgf.search.RecordReplica;
+
+/**
+ * Selects the replica of a file that is expected to be downloaded faster.
+ * Keeps a rolling average of throughput, latency and errors of each data node
+ * learned from downloads, and chooses the replica with less expected time to
+ * download the file. Statistics are kept in a {@link NodeHealthStore} and
+ * persisted between sessions.
+ *
+ * <p>
+ * Data nodes without statistics are estimated with the average of the known
+ * data nodes, and sometimes a random replica is chosen, so statistics of all
+ * data nodes are updated.
+ * </p>
+ *
+ * @author Karem Terry
+ *
+ */
+public class ReplicaSelector {
+
+    /** Logger. */
+    static private org.slf4j.Logger logger = org.slf4j.LoggerFactory
+            .getLogger(ReplicaSelector.class);
+
+    /** Probability of choosing a random replica to explore data nodes. */
+    private static final double EXPLORATION_PROBABILITY = 0.05;
+
+    /** Throughput of data nodes without statistics, in bytes/ms. */
+    private static final double DEFAULT_THROUGHPUT = 1024; // 1M/s
+
+    /** Latency of data nodes without statistics, in ms. */
+    private static final double DEFAULT_LATENCY = 500;
+
+    /** File size used if size isn't known. */
+    private static final long DEFAULT_FILE_SIZE = 1048576; // 1M
+
+    /** File name of data node statistics. */
+    private static final String STATISTICS_FILE_NAME = "data_node_statistics.data";
+
+    /** Singleton instance. */
+    private static ReplicaSelector INSTANCE = null;
+
+    /** Statistics by data node. */
+    private NodeHealthStore statistics;
+
+    /**
+     * Create a thread-safe singleton.
+     */
+    private static void createInstance() {
+        logger.trace("[IN]  createInstance");
+
+        logger.debug("Checking if exist an instance of ReplicaSelector");
+        // creating a thread-safe singleton
+        if (INSTANCE == null) {
+
+            // Only the synchronized block is accessed when the instance hasn't
+            // been created.
+            synchronized (ReplicaSelector.class) {
+                // Inside the block it must check again that the instance has
+                // not been created.
+                if (INSTANCE == null) {
+                    logger.debug("Creating new instance of ReplicaSelector");
+                    INSTANCE = new ReplicaSelector();
+                }
+            }
+        }
+        logger.trace("[OUT] createInstance");
+    }
+
+    /**
+     * Get singleton instance of {@link ReplicaSelector}. This instance is the
+     * only that exists.
+     *
+     * @return the unique instance of {@link ReplicaSelector}.
+     */
+    public static ReplicaSelector getInstance() {
+        logger.trace("[IN]  getInstance");
+        createInstance();
+        logger.trace("[OUT] getInstance");
+        return INSTANCE;
+    }
+
+    /**
+     * Constructor. Load statistics of previous sessions.
+     */
+    private ReplicaSelector() {
+        logger.trace("[IN]  ReplicaSelector");
+
+        this.statistics = new NodeHealthStore(STATISTICS_FILE_NAME,
+                DEFAULT_LATENCY, DEFAULT_THROUGHPUT);
+
+        logger.trace("[OUT] ReplicaSelector");
+    }
+
+    /**
+     * Select the replica with less expected time to download a file.
+     * Synchronized.
+     *
+     * @param replicas
+     *            replicas of file
+     * @param size
+     *            size of file in bytes, 0 if isn't known
+     * @param excludedDataNodes
+     *            data nodes that mustn't be selected (failed with this file),
+     *            or null. If all replicas are excluded, they are ignored
+     * @return selected replica or null if replicas are empty
+     */
+    public synchronized RecordReplica selectReplica(
+            List<RecordReplica> replicas, long size,
+            Collection<String> excludedDataNodes) {
+        logger.trace("[IN]  selectReplica");
+
+        if (replicas == null || replicas.isEmpty()) {
+            logger.trace("[OUT] selectReplica");
+            return null;
+        }
+
+        if (size <= 0) {
+            size = DEFAULT_FILE_SIZE;
+        }
+
+        // estimation of data nodes without statistics
+        double defaultThroughput = DEFAULT_THROUGHPUT;
+        double defaultLatency = DEFAULT_LATENCY;
+        List<NodeHealth> allStatistics = statistics.getAllHealth();
+        if (!allStatistics.isEmpty()) {
+            double throughput = 0;
+            double latency = 0;
+            for (NodeHealth nodeStatistics : allStatistics) {
+                throughput = throughput + nodeStatistics.getThroughput();
+                latency = latency + nodeStatistics.getLatency();
+            }
+            defaultThroughput = throughput / allStatistics.size();
+            defaultLatency = latency / allStatistics.size();
+        }
+
+        RecordReplica best = null;
+        double bestTime = Double.MAX_VALUE;
+        for (RecordReplica replica : replicas) {
+            if (excludedDataNodes != null
+                    && excludedDataNodes.contains(replica.getDataNode())) {
+                continue;
+            }
+
+            double throughput = defaultThroughput;
+            double latency = defaultLatency;
+            double errorPenalty = 1;
+            NodeHealth nodeStatistics = statistics.getHealth(replica
+                    .getDataNode());
+            if (nodeStatistics != null) {
+                throughput = nodeStatistics.getThroughput();
+                latency = nodeStatistics.getLatency();
+                errorPenalty = nodeStatistics.getErrorPenalty();
+            }
+
+            // expected time to download file
+            double time = (latency + size / Math.max(throughput, 1))
+                    * errorPenalty;
+            if (time < bestTime) {
+                bestTime = time;
+                best = replica;
+            }
+        }
+
+        // all replicas are excluded
+        if (best == null) {
+            logger.debug("All replicas are excluded");
+            best = replicas.get((int) (Math.random() * replicas.size()));
+        } else if (replicas.size() > 1
+                && Math.random() < EXPLORATION_PROBABILITY) {
+            // explore other data nodes to update its statistics
+            RecordReplica random = replicas.get((int) (Math.random() * replicas
+                    .size()));
+            if (excludedDataNodes == null
+                    || !excludedDataNodes.contains(random.getDataNode())) {
+                best = random;
+            }
+        }
+
+        logger.debug("Replica of data node {} selected", best.getDataNode());
+        logger.trace("[OUT] selectReplica");
+        return best;
+    }
+
+    /**
+     * Record latency of a request to a data node (time to receive response
+     * headers).
+     *
+     * @param dataNode
+     *            data node
+     * @param millis
+     *            latency in milliseconds
+     */
+    public void recordLatency(String dataNode, long millis) {
+        logger.trace("[IN]  recordLatency");
+        statistics.recordLatency(dataNode, millis);
+        logger.trace("[OUT] recordLatency");
+    }
+
+    /**
+     * Record bytes downloaded of a data node in a time.
+     *
+     * @param dataNode
+     *            data node
+     * @param bytes
+     *            bytes downloaded
+     * @param millis
+     *            time in milliseconds
+     */
+    public void recordTransfer(String dataNode, long bytes, long millis) {
+        logger.trace("[IN]  recordTransfer");
+        statistics.recordTransfer(dataNode, bytes, millis);
+        logger.trace("[OUT] recordTransfer");
+    }
+
+    /**
+     * Record an error (failed request or stalled download) of a data node.
+     *
+     * @param dataNode
+     *            data node
+     */
+    public void recordError(String dataNode) {
+        logger.trace("[IN]  recordError");
+        statistics.recordError(dataNode);
+        logger.trace("[OUT] recordError");
+    }
+
+    /**
+     * Save statistics of data nodes in file system.
+     */
+    public void save() {
+        logger.trace("[IN]  save");
+        statistics.save();
+        logger.trace("[OUT] save");
+    }
+}
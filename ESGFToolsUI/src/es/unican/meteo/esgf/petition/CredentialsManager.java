@@ -556,6 +556,31 @@ public class CredentialsManager {
         return authenticatedConnection;
     }
 
+    /**
+     * Get the SSL socket factory that uses the user's ESG credentials. The
+     * same instance is returned while credentials are valid, so https
+     * connections that use it can be reused (keep-alive).
+     *
+     * @return socket factory that uses the user's ESG credentials
+     *
+     * @throws IllegalStateException
+     *             if CredentialManager hasn't been initiated
+     * @throws IOException
+     *             if some error happens creating socket factory
+     */
+    public SSLSocketFactory getSSLSocketFactory() throws IOException {
+        LOG.trace("[IN]  getSSLSocketFactory");
+
+        if (!hasInitiated()) {
+            LOG.error("IllegalStateException. Credential Manager hasn't been initiated");
+            throw new IllegalStateException(
+                    "Credential Manager hasn't been iniciated");
+        }
+
+        LOG.trace("[OUT] getSSLSocketFactory");
+        return getSocketFactory();
+    }
+
     /**
      * Get the SSL socket factory that uses the user's ESG credentials.
      *
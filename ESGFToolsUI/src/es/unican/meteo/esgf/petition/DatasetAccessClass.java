@@ -3,26 +3,51 @@ package es.unican.meteo.esgf.petition;
 import java.io.File;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.sf.ehcache.Cache;
 import net.sf.ehcache.CacheManager;
 import net.sf.ehcache.Element;
+import net.sf.ehcache.config.MemoryUnit;
 
-import org.springframework.util.SerializationUtils;
-
+import com.sleepycat.je.Cursor;
 import com.sleepycat.je.Database;
 import com.sleepycat.je.DatabaseConfig;
 import com.sleepycat.je.DatabaseEntry;
 import com.sleepycat.je.DatabaseException;
 import com.sleepycat.je.Environment;
 import com.sleepycat.je.EnvironmentConfig;
+import com.sleepycat.je.EnvironmentMutableConfig;
+import com.sleepycat.je.LockMode;
 import com.sleepycat.je.OperationStatus;
 import com.sleepycat.je.Transaction;
 
 import es.unican.meteo.esgf.search.Dataset;
+import es.unican.meteo.esgf.search.DatasetFile;
 
 /**
- * Class to access datasets in cache and database. Singleton class.
+ * Class to access datasets in cache and database. Datasets are stored in
+ * database with {@link DatasetCodec}: a record with the dataset without files,
+ * whose key is the instance id of dataset, and a record for each file, whose
+ * key is the instance id of dataset, {@link #FILE_KEY_SEPARATOR} and the
+ * instance id of file. Files of a dataset are contiguous in database and are
+ * read with a range cursor, and a file can be read or written without the rest
+ * of files of its dataset. Cache is accessed without locks: a read
+ * is a single cache lookup and, if dataset isn't in cache, concurrent reads
+ * of the same dataset wait for only one database read. Cache is sized in
+ * bytes in heap and in disk, and sizes of cache and of database cache can be
+ * set with system properties or changed while application runs. Singleton
+ * class.
  * 
  * @author terryk
  * 
@@ -35,6 +60,27 @@ public class DatasetAccessClass {
     private static final String DB_NAME = "dataset_db";
     private static final String CACHE_CONFIGURATION_XML = "ehcache_Dataset.xml";
     private static final String CACHE_NAME = "cache";
+    /**
+     * System property with maximum size of heap used by cache, e.g. "512m". If
+     * it isn't set, size of {@link #CACHE_CONFIGURATION_XML} is used.
+     */
+    public static final String CACHE_HEAP_SIZE_PROPERTY = "esgf.cache.maxBytesLocalHeap";
+    /**
+     * System property with maximum size of disk used by cache, e.g. "20g". If
+     * it isn't set, size of {@link #CACHE_CONFIGURATION_XML} is used.
+     */
+    public static final String CACHE_DISK_SIZE_PROPERTY = "esgf.cache.maxBytesLocalDisk";
+    /**
+     * System property with size of cache of DB, e.g. "256m". If it isn't set,
+     * default size of Berkeley DB is used.
+     */
+    public static final String DB_CACHE_SIZE_PROPERTY = "esgf.db.cacheSize";
+    /** System property of Ehcache with file of fields ignored in sizes. */
+    private static final String SIZEOF_FILTER_PROPERTY = "net.sf.ehcache.sizeof.filter";
+    /** File of fields of datasets that aren't measured in cache sizes. */
+    private static final String SIZEOF_FILTER_FILE = "ehcache_sizeof.filter";
+    /** Separator of instance id of dataset and of file in keys of files. */
+    private static final char FILE_KEY_SEPARATOR = '\u0000';
 
     /** Cache manager. */
     private CacheManager cacheManager;
@@ -46,6 +92,16 @@ public class DatasetAccessClass {
     private Environment myDbEnvironment;
     /** Path of database configuration. */
     private String dBPath;
+    /** Loads of datasets from database in progress, by instance id. */
+    private ConcurrentMap<String, FutureTask<Dataset>> loadingDatasets;
+    /** Number of reads of datasets found in cache. */
+    private AtomicLong hits;
+    /** Number of reads of datasets not found in cache. */
+    private AtomicLong misses;
+    /** Number of loads of datasets from database. */
+    private AtomicLong loads;
+    /** Total time of loads of datasets from database, in ns. */
+    private AtomicLong loadTime;
 
     /** Singleton instance. */
     private static DatasetAccessClass INSTANCE = null;
@@ -119,14 +175,46 @@ public class DatasetAccessClass {
             dbConfig.setTransactional(true);
             this.myDatabase = myDbEnvironment.openDatabase(null, DB_NAME,
                     dbConfig);
+
+            String dbCacheSize = System.getProperty(DB_CACHE_SIZE_PROPERTY);
+            if (dbCacheSize != null) {
+                setDatabaseCacheSize(dbCacheSize);
+            }
         } catch (DatabaseException dbe) {
             dbe.printStackTrace();
+        } catch (IllegalArgumentException e) {
+            logger.error("Invalid size of DB cache in {}: {}",
+                    DB_CACHE_SIZE_PROPERTY, e.getMessage());
         }
 
         logger.debug("Configuring cache...");
+        this.loadingDatasets = new ConcurrentHashMap<String, FutureTask<Dataset>>();
+        this.hits = new AtomicLong(0);
+        this.misses = new AtomicLong(0);
+        this.loads = new AtomicLong(0);
+        this.loadTime = new AtomicLong(0);
+
+        // Cache is sized in bytes. Observers of datasets aren't part of them
+        if (System.getProperty(SIZEOF_FILTER_PROPERTY) == null
+                && new File(SIZEOF_FILTER_FILE).exists()) {
+            System.setProperty(SIZEOF_FILTER_PROPERTY, SIZEOF_FILTER_FILE);
+        }
         this.cacheManager = CacheManager.create(CACHE_CONFIGURATION_XML);
         this.cache = cacheManager.getCache(CACHE_NAME);
 
+        try {
+            String heapSize = System.getProperty(CACHE_HEAP_SIZE_PROPERTY);
+            if (heapSize != null) {
+                setCacheMaxBytesLocalHeap(heapSize);
+            }
+            String diskSize = System.getProperty(CACHE_DISK_SIZE_PROPERTY);
+            if (diskSize != null) {
+                setCacheMaxBytesLocalDisk(diskSize);
+            }
+        } catch (IllegalArgumentException e) {
+            logger.error("Invalid size of cache: {}", e.getMessage());
+        }
+
         logger.debug("Cache {} configuration is: \n {}",
                 cacheManager.getName(),
                 cacheManager.getActiveConfigurationText());
@@ -148,18 +236,9 @@ public class DatasetAccessClass {
         logger.trace("[IN]  getDataset");
 
         logger.debug("Get dataset {} from cache", instanceID);
+        Element element;
         try {
-            synchronized (cache) {
-                if (cache.isKeyInCache(instanceID)) {
-                    if (cache.get(instanceID) != null) {
-                        Dataset dataset = (Dataset) cache.get(instanceID)
-                                .getObjectValue();
-                        logger.debug("Dataset {} found in cache", instanceID);
-                        logger.trace("[OUT] getDataset");
-                        return dataset;
-                    }
-                }
-            }
+            element = cache.get(instanceID);
         } catch (Exception e) {
             logger.error(
                     "Error happens when dataset {} has been obtained from cache {}",
@@ -169,50 +248,461 @@ public class DatasetAccessClass {
                             + e.getMessage());
         }
 
+        if (element != null) {
+            hits.incrementAndGet();
+            logger.debug("Dataset {} found in cache", instanceID);
+            logger.trace("[OUT] getDataset");
+            return (Dataset) element.getObjectValue();
+        }
+        misses.incrementAndGet();
+
         // If dataset isn't in cache get dataset from DB
         logger.debug("Get dataset {} from DB", instanceID);
-        Dataset dataset = readDataFromDataStore(instanceID);
+        Dataset dataset = loadDataset(instanceID);
+
+        logger.trace("[OUT] getDataset");
+        return dataset;
+    }
+
+    /**
+     * Load {@link Dataset} from DB and insert it in cache. If the same dataset
+     * is being loaded by another thread, wait for that load instead of read
+     * DB again
+     * 
+     * @param instanceID
+     * @return the dataset or null if dataset isn't in DB
+     * @throws IOException
+     *             if some error happens in DB read
+     */
+    private Dataset loadDataset(final String instanceID) throws IOException {
+        logger.trace("[IN]  loadDataset");
+
+        FutureTask<Dataset> load = new FutureTask<Dataset>(
+                new Callable<Dataset>() {
+                    @Override
+                    public Dataset call() throws Exception {
+                        long start = System.nanoTime();
+                        Dataset dataset = readDataFromDataStore(instanceID);
+                        long time = System.nanoTime() - start;
+                        loads.incrementAndGet();
+                        loadTime.addAndGet(time);
+                        logger.debug(
+                                "Dataset {} loaded from DB in {} ms. Cache hit rate: {}",
+                                new Object[] { instanceID, time / 1000000,
+                                        getHitRate() });
+
+                        if (dataset != null) {
+                            logger.debug("Insert dataset {} in cache",
+                                    instanceID);
+                            // A dataset put while it was loaded isn't replaced
+                            Element element = cache.putIfAbsent(new Element(
+                                    instanceID, dataset));
+                            if (element != null) {
+                                dataset = (Dataset) element.getObjectValue();
+                            }
+                        }
+                        return dataset;
+                    }
+                });
+
+        FutureTask<Dataset> loading = loadingDatasets.putIfAbsent(instanceID,
+                load);
+        if (loading == null) {
+            loading = load;
+            load.run();
+            loadingDatasets.remove(instanceID, load);
+        } else {
+            logger.debug("Waiting load of dataset {} in another thread",
+                    instanceID);
+        }
+
+        try {
+            Dataset dataset = loading.get();
+            logger.trace("[OUT] loadDataset");
+            return dataset;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Load of dataset " + instanceID
+                    + " has been interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Error loading dataset " + instanceID,
+                    e.getCause());
+        }
+    }
+
+    /**
+     * Get number of reads of datasets found in cache
+     * 
+     * @return number of hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Get number of reads of datasets not found in cache
+     * 
+     * @return number of misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Get rate of reads of datasets found in cache
+     * 
+     * @return hit rate between 0 and 1, or 0 if no dataset has been read
+     */
+    public double getHitRate() {
+        long hits = this.hits.get();
+        long total = hits + misses.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * Get average time of loads of datasets from DB
+     * 
+     * @return average load time in ms, or 0 if no dataset has been loaded
+     */
+    public double getAverageLoadTime() {
+        long loads = this.loads.get();
+        return loads == 0 ? 0 : loadTime.get() / 1000000.0 / loads;
+    }
 
-        if (dataset != null) {
-            logger.debug("Insert dataset {} in cache", instanceID);
+    /**
+     * Set maximum size of heap used by cache. Datasets that don't fit are
+     * moved to disk of cache. It can be changed while cache is used.
+     * 
+     * @param size
+     *            size in bytes or with unit: k|K, m|M or g|G (e.g. "512m")
+     * @throws IllegalArgumentException
+     *             if size isn't valid
+     */
+    public void setCacheMaxBytesLocalHeap(String size) {
+        logger.trace("[IN]  setCacheMaxBytesLocalHeap");
+
+        logger.debug("Setting maximum heap size of cache to {}", size);
+        MemoryUnit.parseSizeInBytes(size); // validate size
+        cache.getCacheConfiguration().setMaxBytesLocalHeap(size);
+
+        logger.trace("[OUT] setCacheMaxBytesLocalHeap");
+    }
+
+    /**
+     * Set maximum size of disk used by cache. Datasets are stored serialized in
+     * disk and are lost when cache is closed (they are in DB). It can be
+     * changed while cache is used.
+     * 
+     * @param size
+     *            size in bytes or with unit: k|K, m|M or g|G (e.g. "20g")
+     * @throws IllegalArgumentException
+     *             if size isn't valid
+     */
+    public void setCacheMaxBytesLocalDisk(String size) {
+        logger.trace("[IN]  setCacheMaxBytesLocalDisk");
+
+        logger.debug("Setting maximum disk size of cache to {}", size);
+        MemoryUnit.parseSizeInBytes(size); // validate size
+        cache.getCacheConfiguration().setMaxBytesLocalDisk(size);
+
+        logger.trace("[OUT] setCacheMaxBytesLocalDisk");
+    }
+
+    /**
+     * Set size of cache of DB. It can be changed while DB is used.
+     * 
+     * @param size
+     *            size in bytes or with unit: k|K, m|M or g|G (e.g. "256m")
+     * @throws IllegalArgumentException
+     *             if size isn't valid
+     */
+    public void setDatabaseCacheSize(String size) {
+        logger.trace("[IN]  setDatabaseCacheSize");
+
+        logger.debug("Setting size of DB cache to {}", size);
+        EnvironmentMutableConfig config = myDbEnvironment.getMutableConfig();
+        config.setCacheSize(MemoryUnit.parseSizeInBytes(size));
+        myDbEnvironment.setMutableConfig(config);
+
+        logger.trace("[OUT] setDatabaseCacheSize");
+    }
+
+    /**
+     * Get maximum size of heap used by cache
+     * 
+     * @return size in bytes
+     */
+    public long getCacheMaxBytesLocalHeap() {
+        return cache.getCacheConfiguration().getMaxBytesLocalHeap();
+    }
+
+    /**
+     * Get maximum size of disk used by cache
+     * 
+     * @return size in bytes
+     */
+    public long getCacheMaxBytesLocalDisk() {
+        return cache.getCacheConfiguration().getMaxBytesLocalDisk();
+    }
+
+    /**
+     * Get {@link DatasetFile} of a dataset. If dataset isn't in cache, only
+     * the file is read from DB.
+     * 
+     * @param datasetInstanceID
+     *            instance id of dataset
+     * @param fileInstanceID
+     *            instance id of file
+     * @return the file or null if file isn't in DB
+     * @throws IOException
+     *             if some error happens in cache read or DB read
+     */
+    public DatasetFile getFile(String datasetInstanceID, String fileInstanceID)
+            throws IOException {
+        logger.trace("[IN]  getFile");
+
+        Element element = cache.get(datasetInstanceID);
+        if (element != null) {
+            logger.debug("Dataset {} of file found in cache", datasetInstanceID);
+            Dataset dataset = (Dataset) element.getObjectValue();
+            logger.trace("[OUT] getFile");
+            return dataset.getFileWithInstanceId(fileInstanceID);
+        }
+
+        logger.debug("Get file {} from DB", fileInstanceID);
+        DatabaseEntry keyEntry = new DatabaseEntry(getFileKey(
+                datasetInstanceID, fileInstanceID));
+        DatabaseEntry valueEntry = new DatabaseEntry();
+        OperationStatus opStatus = myDatabase.get(null, keyEntry, valueEntry,
+                null);
+
+        DatasetFile file = null;
+        if (opStatus == OperationStatus.SUCCESS) {
+            file = DatasetCodec.decodeFile(valueEntry.getData(),
+                    datasetInstanceID);
+        } else {
+            // files of datasets stored before files were stored one by one
+            Dataset dataset = getDataset(datasetInstanceID);
             if (dataset != null) {
-                synchronized (cache) {
-                    cache.put(new Element(instanceID, dataset));
-                }
+                file = dataset.getFileWithInstanceId(fileInstanceID);
             }
         }
 
-        logger.trace("[OUT] getDataset");
-        return dataset;
+        logger.trace("[OUT] getFile");
+        return file;
+    }
+
+    /**
+     * Put {@link DatasetFile} in DB and in its dataset if dataset is in cache.
+     * The rest of files of dataset aren't read or written. Dataset of file
+     * must be in DB.
+     * 
+     * @param file
+     *            file of a dataset
+     * @throws IOException
+     *             if some error happens writing in DB
+     */
+    public void putFile(DatasetFile file) throws IOException {
+        logger.trace("[IN]  putFile");
+
+        String datasetInstanceID = file.getDatasetInstanceID();
+        Transaction txn = myDbEnvironment.beginTransaction(null, null);
+        boolean committed = false;
+        try {
+            writeFileToDataStore(txn, datasetInstanceID, file);
+            txn.commit();
+            committed = true;
+            logger.debug("File {} has stored in DB", file.getInstanceID());
+        } catch (IOException e) {
+            logger.error("Error {} wrinting file {}. Write aborted", e,
+                    file.getInstanceID());
+            throw e;
+        } catch (DatabaseException e) {
+            logger.error("Error {} wrinting file {}. Write aborted", e,
+                    file.getInstanceID());
+            throw new IOException("Error writing file "
+                    + file.getInstanceID() + " in DB: " + e.getMessage(), e);
+        } finally {
+            // release locks of transaction if it hasn't been committed
+            if (!committed) {
+                txn.abort();
+            }
+        }
+
+        Element element = cache.get(datasetInstanceID);
+        if (element != null) {
+            Dataset dataset = (Dataset) element.getObjectValue();
+            synchronized (dataset) {
+                dataset.getFiles().remove(file);
+                dataset.getFiles().add(file);
+            }
+        }
+
+        logger.trace("[OUT] putFile");
+    }
+
+    /**
+     * Put {@link Dataset} in DB and cache writing only some of its files, in
+     * the same transaction as the dataset. The rest of files of dataset
+     * aren't written. Used when only some files of a stored dataset have
+     * changed. If files of dataset aren't stored one by one yet, all files
+     * are written.
+     * 
+     * @param dataset
+     *            stored dataset
+     * @param files
+     *            files of dataset that have changed
+     * @throws IOException
+     *             if some error happens writing in DB
+     */
+    public void putFiles(Dataset dataset, Collection<DatasetFile> files)
+            throws IOException {
+        logger.trace("[IN]  putFiles");
+
+        String instanceID = dataset.getInstanceID();
+        Transaction txn = myDbEnvironment.beginTransaction(null, null);
+        boolean committed = false;
+        try {
+            DatabaseEntry keyEntry = new DatabaseEntry(
+                    instanceID.getBytes("UTF-8"));
+
+            // A dataset stored before files were stored one by one has its
+            // files in its record, so all files are written
+            DatabaseEntry storedEntry = new DatabaseEntry();
+            OperationStatus opStatus = myDatabase.get(txn, keyEntry,
+                    storedEntry, LockMode.RMW);
+            if (opStatus != OperationStatus.SUCCESS
+                    || DatasetCodec.decode(storedEntry.getData()).getFiles() != null) {
+                logger.debug("Files of dataset {} aren't stored one by one",
+                        instanceID);
+                files = dataset.getFiles();
+            }
+
+            myDatabase.put(txn, keyEntry,
+                    new DatabaseEntry(DatasetCodec.encode(dataset)));
+            for (DatasetFile file : files) {
+                writeFileToDataStore(txn, instanceID, file);
+            }
+
+            txn.commit();
+            committed = true;
+            logger.debug("Dataset {} and {} files have stored in DB",
+                    instanceID, files.size());
+        } catch (IOException e) {
+            logger.error("Error {} wrinting dataset {}. Write aborted", e,
+                    instanceID);
+            throw e;
+        } catch (DatabaseException e) {
+            logger.error("Error {} wrinting dataset {}. Write aborted", e,
+                    instanceID);
+            throw new IOException("Error writing dataset " + instanceID
+                    + " in DB: " + e.getMessage(), e);
+        } finally {
+            // release locks of transaction if it hasn't been committed
+            if (!committed) {
+                txn.abort();
+            }
+        }
+
+        logger.debug("Store dataset {} in cache", instanceID);
+        cache.put(new Element(instanceID, dataset));
+
+        logger.trace("[OUT] putFiles");
     }
 
     /**
-     * Get {@link Dataset} from database
+     * Get {@link Dataset} from database with its files. Header and files are
+     * read in the same transaction, so a dataset that is being written isn't
+     * read with the files of other version
      * 
      * @param instanceID
      * @return the dataset or null if dataset isn't in DB
-     * @throws UnsupportedEncodingException
+     * @throws IOException
+     *             if stored dataset can't be decoded or some error happens in
+     *             DB read
      */
     private Dataset readDataFromDataStore(String instanceID)
-            throws UnsupportedEncodingException {
+            throws IOException {
         logger.trace("[IN]  readDataFromDataStore");
 
-        DatabaseEntry key = new DatabaseEntry(instanceID.getBytes("UTF-8"));
-        DatabaseEntry valueEntry = new DatabaseEntry();
-        OperationStatus opStatus = myDatabase.get(null, key, valueEntry, null);
+        Transaction txn = myDbEnvironment.beginTransaction(null, null);
+        boolean committed = false;
+        Dataset dataset = null;
+        try {
+            DatabaseEntry key = new DatabaseEntry(instanceID.getBytes("UTF-8"));
+            DatabaseEntry valueEntry = new DatabaseEntry();
+            OperationStatus opStatus = myDatabase.get(txn, key, valueEntry,
+                    LockMode.DEFAULT);
+
+            if (opStatus == OperationStatus.SUCCESS) {
+                dataset = DatasetCodec.decode(valueEntry.getData());
+                if (dataset.getFiles() == null) {
+                    dataset.setFiles(new HashSet<DatasetFile>());
+                }
+                readFilesFromDataStore(txn, instanceID, dataset.getFiles());
+                logger.debug("Dataset {} found in DB", instanceID);
+            }
 
-        if (opStatus == OperationStatus.NOTFOUND) {
-            return null;
+            txn.commit();
+            committed = true;
+        } catch (DatabaseException e) {
+            logger.error("Error {} reading dataset {}", e, instanceID);
+            throw new IOException("Error reading dataset " + instanceID
+                    + " from DB: " + e.getMessage(), e);
+        } finally {
+            // release locks of transaction if it hasn't been committed
+            if (!committed) {
+                txn.abort();
+            }
         }
 
-        Dataset dataset = (Dataset) SerializationUtils.deserialize(valueEntry
-                .getData());
-        logger.debug("Dataset {} found in DB", instanceID);
-
         logger.trace("[OUT] readDataFromDataStore");
         return dataset;
     }
 
+    /**
+     * Read files of a dataset from database with a range cursor. A file
+     * replaces the file with the same instance id that dataset already has
+     * 
+     * @param txn
+     *            transaction
+     * @param instanceID
+     *            instance id of dataset
+     * @param files
+     *            set where files are added
+     * @throws IOException
+     *             if stored files can't be decoded
+     */
+    private void readFilesFromDataStore(Transaction txn, String instanceID,
+            Set<DatasetFile> files) throws IOException {
+        logger.trace("[IN]  readFilesFromDataStore");
+
+        byte[] prefix = getFileKeyPrefix(instanceID);
+        Cursor cursor = myDatabase.openCursor(txn, null);
+        try {
+            DatabaseEntry keyEntry = new DatabaseEntry(prefix);
+            DatabaseEntry valueEntry = new DatabaseEntry();
+            OperationStatus opStatus = cursor.getSearchKeyRange(keyEntry,
+                    valueEntry, LockMode.DEFAULT);
+            while (opStatus == OperationStatus.SUCCESS
+                    && startsWith(keyEntry.getData(), prefix)) {
+                DatasetFile file = DatasetCodec.decodeFile(
+                        valueEntry.getData(), instanceID);
+                files.remove(file);
+                files.add(file);
+                opStatus = cursor.getNext(keyEntry, valueEntry,
+                        LockMode.DEFAULT);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        logger.trace("[OUT] readFilesFromDataStore");
+    }
+
     /**
      * Put {@link Dataset} in DB and cache
      * 
@@ -227,9 +717,7 @@ public class DatasetAccessClass {
         writeDataToDataStore(dataset);
 
         logger.debug("Store dataset {} in cache", dataset.getInstanceID());
-        synchronized (cache) {
-            cache.put(new Element(dataset.getInstanceID(), dataset));
-        }
+        cache.put(new Element(dataset.getInstanceID(), dataset));
 
         logger.trace("[OUT] putDataset");
     }
@@ -246,26 +734,159 @@ public class DatasetAccessClass {
 
         String instanceID = dataset.getInstanceID();
         Transaction txn = myDbEnvironment.beginTransaction(null, null);
-
+        boolean committed = false;
         try {
             DatabaseEntry keyEntry = new DatabaseEntry(
                     instanceID.getBytes("UTF-8"));
             DatabaseEntry valueEntry = new DatabaseEntry(
-                    SerializationUtils.serialize(dataset));
+                    DatasetCodec.encode(dataset));
 
             myDatabase.put(txn, keyEntry, valueEntry);
+
+            Set<String> fileKeys = new HashSet<String>();
+            if (dataset.getFiles() != null) {
+                for (DatasetFile file : dataset.getFiles()) {
+                    fileKeys.add(writeFileToDataStore(txn, instanceID, file));
+                }
+            }
+            // files that dataset hasn't now
+            deleteFilesFromDataStore(txn, instanceID, fileKeys);
+
             txn.commit();
+            committed = true;
             logger.debug("Dataset {} has stored in DB", instanceID);
         } catch (IOException e) {
-            txn.abort();
             logger.error("Error {} wrinting dataset {}. Write aborted", e,
                     instanceID);
             throw e;
+        } catch (DatabaseException e) {
+            logger.error("Error {} wrinting dataset {}. Write aborted", e,
+                    instanceID);
+            throw new IOException("Error writing dataset " + instanceID
+                    + " in DB: " + e.getMessage(), e);
+        } finally {
+            // release locks of transaction if it hasn't been committed
+            if (!committed) {
+                txn.abort();
+            }
         }
 
         logger.trace("[OUT] writeDataToDataStore");
     }
 
+    /**
+     * Write a {@link DatasetFile} of a dataset on database
+     * 
+     * @param txn
+     *            transaction
+     * @param datasetInstanceID
+     *            instance id of dataset
+     * @param file
+     *            file
+     * @return key of file
+     * @throws IOException
+     *             if some error happens writing in BD
+     */
+    private String writeFileToDataStore(Transaction txn,
+            String datasetInstanceID, DatasetFile file) throws IOException {
+        byte[] key = getFileKey(datasetInstanceID, file.getInstanceID());
+        myDatabase.put(txn, new DatabaseEntry(key), new DatabaseEntry(
+                DatasetCodec.encode(file, datasetInstanceID)));
+        return new String(key, "UTF-8");
+    }
+
+    /**
+     * Delete files of a dataset from database with a range cursor, except
+     * some of them
+     * 
+     * @param txn
+     *            transaction
+     * @param instanceID
+     *            instance id of dataset
+     * @param fileKeys
+     *            keys of files that aren't deleted
+     * @throws IOException
+     *             if some error happens in BD
+     */
+    private void deleteFilesFromDataStore(Transaction txn, String instanceID,
+            Set<String> fileKeys) throws IOException {
+        logger.trace("[IN]  deleteFilesFromDataStore");
+
+        byte[] prefix = getFileKeyPrefix(instanceID);
+        Cursor cursor = myDatabase.openCursor(txn, null);
+        try {
+            DatabaseEntry keyEntry = new DatabaseEntry(prefix);
+            // only keys are read
+            DatabaseEntry valueEntry = new DatabaseEntry();
+            valueEntry.setPartial(0, 0, true);
+            OperationStatus opStatus = cursor.getSearchKeyRange(keyEntry,
+                    valueEntry, LockMode.RMW);
+            while (opStatus == OperationStatus.SUCCESS
+                    && startsWith(keyEntry.getData(), prefix)) {
+                if (!fileKeys.contains(new String(keyEntry.getData(), "UTF-8"))) {
+                    cursor.delete();
+                }
+                opStatus = cursor.getNext(keyEntry, valueEntry, LockMode.RMW);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        logger.trace("[OUT] deleteFilesFromDataStore");
+    }
+
+    /**
+     * Get key of a file in database. Instance id of file is standardized as in
+     * {@link Dataset#getFileWithInstanceId(String)}
+     * 
+     * @param datasetInstanceID
+     *            instance id of dataset
+     * @param fileInstanceID
+     *            instance id of file
+     * @return key of file
+     * @throws UnsupportedEncodingException
+     */
+    private static byte[] getFileKey(String datasetInstanceID,
+            String fileInstanceID) throws UnsupportedEncodingException {
+        return (datasetInstanceID + FILE_KEY_SEPARATOR + Dataset
+                .standardizeESGFFileInstanceID(fileInstanceID).toLowerCase(
+                        Locale.ENGLISH)).getBytes("UTF-8");
+    }
+
+    /**
+     * Get first bytes of keys of files of a dataset in database
+     * 
+     * @param datasetInstanceID
+     *            instance id of dataset
+     * @return prefix of keys of files
+     * @throws UnsupportedEncodingException
+     */
+    private static byte[] getFileKeyPrefix(String datasetInstanceID)
+            throws UnsupportedEncodingException {
+        return (datasetInstanceID + FILE_KEY_SEPARATOR).getBytes("UTF-8");
+    }
+
+    /**
+     * Check if a key starts with a prefix
+     * 
+     * @param key
+     *            key
+     * @param prefix
+     *            prefix
+     * @return true if key starts with prefix
+     */
+    private static boolean startsWith(byte[] key, byte[] prefix) {
+        if (key == null || key.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (key[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Remove {@link Dataset} from DB and cache
      * 
@@ -288,30 +909,49 @@ public class DatasetAccessClass {
             return null;
         }
 
-        // Blocks cache
-        synchronized (cache) {
-            logger.debug("Removing dataset...");
-            if (cache.isKeyInCache(instanceID)) {
-                cache.remove(instanceID);
+        logger.debug("Removing dataset...");
+        Transaction txn = myDbEnvironment.beginTransaction(null, null);
+        boolean committed = false;
+        try {
+            DatabaseEntry keyEntry = new DatabaseEntry(
+                    instanceID.getBytes("UTF-8"));
+
+            myDatabase.delete(txn, keyEntry);
+            deleteFilesFromDataStore(txn, instanceID,
+                    Collections.<String> emptySet());
+            txn.commit();
+            committed = true;
+            logger.debug("Dataset {} has stored in DB", instanceID);
+        } catch (IOException e) {
+            logger.error("Error {} wrinting dataset {}. Write aborted", e,
+                    instanceID);
+            throw e;
+        } catch (DatabaseException e) {
+            logger.error("Error {} removing dataset {}. Remove aborted", e,
+                    instanceID);
+            throw new IOException("Error removing dataset " + instanceID
+                    + " of DB: " + e.getMessage(), e);
+        } finally {
+            // release locks of transaction if it hasn't been committed
+            if (!committed) {
+                txn.abort();
             }
-            logger.debug("Dataset {} removed from cache");
+        }
+        logger.debug("Dataset {} removed from DB");
 
-            Transaction txn = myDbEnvironment.beginTransaction(null, null);
+        // A load in progress could insert the removed dataset in cache
+        FutureTask<Dataset> loading = loadingDatasets.get(instanceID);
+        if (loading != null) {
             try {
-                DatabaseEntry keyEntry = new DatabaseEntry(
-                        instanceID.getBytes("UTF-8"));
-
-                myDatabase.delete(txn, keyEntry);
-                txn.commit();
-                logger.debug("Dataset {} has stored in DB", instanceID);
-            } catch (IOException e) {
-                txn.abort();
-                logger.error("Error {} wrinting dataset {}. Write aborted", e,
-                        instanceID);
-                throw e;
+                loading.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                // dataset isn't inserted in cache
             }
-            logger.debug("Dataset {} removed from DB");
         }
+        cache.remove(instanceID);
+        logger.debug("Dataset {} removed from cache");
 
         logger.trace("[OUT] removeDataset");
         return dataset;
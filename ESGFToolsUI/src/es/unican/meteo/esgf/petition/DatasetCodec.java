@@ -0,0 +1,905 @@
+package es.unican.meteo.esgf.petition;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+
+import org.springframework.util.SerializationUtils;
+
+import es.unican.meteo.esgf.search.Dataset;
+import es.unican.meteo.esgf.search.DatasetFile;
+import es.unican.meteo.esgf.search.DatasetHarvestStatus;
+import es.unican.meteo.esgf.search.Metadata;
+import es.unican.meteo.esgf.search.Record;
+import es.unican.meteo.esgf.search.RecordReplica;
+import es.unican.meteo.esgf.search.Service;
+
+/**
+ * Compact binary codec of {@link Dataset} and {@link DatasetFile} to store them
+ * in database, instead of Java serialization. A dataset is encoded without its
+ * files, that are encoded one by one, so a file can be read or written without
+ * the rest of files of its dataset.
+ *
+ * <p>
+ * Format: {@link #MAGIC}, {@link #VERSION} and the dataset or the file with
+ * its replicas. Integers are written as variable length integers.
+ * {@link Metadata}, {@link Service} and {@link DatasetHarvestStatus} are
+ * written by their codes in {@link #METADATA_BY_CODE},
+ * {@link #SERVICES_BY_CODE} and {@link #HARVEST_STATUS_BY_CODE}, not by
+ * ordinal, so constants of enums can be reordered. Strings are written in a
+ * dictionary: a repeated string (data node, index node, facet values...) is
+ * written as a reference to its first occurrence, and a string with "/" or
+ * "." is written as a reference to its prefix (url of a directory or instance
+ * id of a dataset) and its last part, so urls and instance ids of files of the
+ * same dataset share their prefix.
+ * </p>
+ *
+ * <p>
+ * Each metadata value is written with a tag of its type. Values of unknown
+ * metadata or services are skipped, and tags greater than
+ * {@link #TAG_SERIALIZED} are followed by their length, so datasets written
+ * with new metadata, services or value types can be read by previous
+ * versions. Datasets stored with Java serialization are still read.
+ * </p>
+ *
+ * @author Karem Terry
+ *
+ */
+public class DatasetCodec {
+
+    /** Logger. */
+    static private org.slf4j.Logger logger = org.slf4j.LoggerFactory
+            .getLogger(DatasetCodec.class);
+
+    /** First bytes of encoded datasets. */
+    private static final short MAGIC = (short) 0xE5DA;
+
+    /** First bytes of Java serialization streams. */
+    private static final short JAVA_SERIALIZATION_MAGIC = (short) 0xACED;
+
+    /** Version of format. */
+    private static final int VERSION = 1;
+
+    /** Null value. */
+    private static final int TAG_NULL = 0;
+    /** {@link String} value. */
+    private static final int TAG_STRING = 1;
+    /** {@link List} of {@link String} value. */
+    private static final int TAG_STRING_LIST = 2;
+    /** {@link List} of {@link Service} value. */
+    private static final int TAG_SERVICE_LIST = 3;
+    /** {@link Calendar} value. */
+    private static final int TAG_CALENDAR = 4;
+    /** {@link Double} value. */
+    private static final int TAG_DOUBLE = 5;
+    /** {@link Integer} value. */
+    private static final int TAG_INTEGER = 6;
+    /** {@link Long} value. */
+    private static final int TAG_LONG = 7;
+    /** {@link Boolean} value. */
+    private static final int TAG_BOOLEAN = 8;
+    /**
+     * Other values, with Java serialization. This and greater tags are
+     * followed by their length.
+     */
+    private static final int TAG_SERIALIZED = 9;
+
+    /**
+     * Metadata by code. Codes are stored in database: metadata must never be
+     * removed or reordered here and new metadata must be added at the end.
+     */
+    private static final Metadata[] METADATA_BY_CODE = {
+            Metadata.ACCESS, Metadata.CF_STANDARD_NAME, Metadata.CHECKSUM,
+            Metadata.CHECKSUM_TYPE, Metadata.CMOR_TABLE, Metadata.DATA_NODE,
+            Metadata.DATASET_ID, Metadata.DATASET_ID_TEMPLATE_,
+            Metadata.DATETIME_START, Metadata.DATETIME_STOP,
+            Metadata.DESCRIPTION, Metadata.DOMAIN, Metadata.DRIVING_MODEL,
+            Metadata.DRS_ID, Metadata.EAST_DEGREES, Metadata.ENSEMBLE,
+            Metadata.EXPERIMENT, Metadata.EXPERIMENT_FAMILY, Metadata.FORCING,
+            Metadata.FORMAT, Metadata.ID, Metadata.INDEX_NODE,
+            Metadata.INSTANCE_ID, Metadata.INSTITUTE, Metadata.LATEST,
+            Metadata.MASTER_ID, Metadata.METADATA_FORMAT, Metadata.MODEL,
+            Metadata.NORTH_DEGREES, Metadata.NUMBER_OF_AGGREGATIONS,
+            Metadata.NUMBER_OF_FILES, Metadata.PRODUCT, Metadata.PROJECT,
+            Metadata.RCM_VERSION, Metadata.REALM, Metadata.REPLICA,
+            Metadata.SIZE, Metadata.SOUTH_DEGREES, Metadata.SOURCE_ID,
+            Metadata.TIME_FREQUENCY, Metadata.TIMESTAMP, Metadata.TITLE,
+            Metadata.TYPE, Metadata.URL, Metadata.VARIABLE,
+            Metadata.VARIABLE_LONG_NAME, Metadata.VERSION,
+            Metadata.WEST_DEGREES, Metadata.XLINK };
+
+    /**
+     * Services by code. Codes are stored in database: services must never be
+     * removed or reordered here and new services must be added at the end.
+     */
+    private static final Service[] SERVICES_BY_CODE = { Service.HTTPSERVER,
+            Service.OPENDAP, Service.GRIDFTP, Service.LAS, Service.CATALOG,
+            Service.SRM };
+
+    /**
+     * Harvest status by code. Codes are stored in database: status must never
+     * be removed or reordered here and new status must be added at the end.
+     */
+    private static final DatasetHarvestStatus[] HARVEST_STATUS_BY_CODE = {
+            DatasetHarvestStatus.EMPTY, DatasetHarvestStatus.PARTIAL_HARVESTED,
+            DatasetHarvestStatus.HARVESTED };
+
+    /** Codes of metadata. */
+    private static final Map<Metadata, Integer> METADATA_CODES = getCodes(
+            METADATA_BY_CODE, Metadata.class);
+
+    /** Codes of services. */
+    private static final Map<Service, Integer> SERVICE_CODES = getCodes(
+            SERVICES_BY_CODE, Service.class);
+
+    /** Codes of harvest status. */
+    private static final Map<DatasetHarvestStatus, Integer> HARVEST_STATUS_CODES = getCodes(
+            HARVEST_STATUS_BY_CODE, DatasetHarvestStatus.class);
+
+    /** Output stream of encoder. */
+    private DataOutputStream out;
+
+    /** Input stream of decoder. */
+    private DataInputStream in;
+
+    /** Index of strings written by encoder. */
+    private Map<String, Integer> writtenStrings;
+
+    /** Strings read by decoder, by index. */
+    private List<String> readStrings;
+
+    /**
+     * Constructor of encoder
+     *
+     * @param out
+     *            output stream
+     */
+    private DatasetCodec(DataOutputStream out) {
+        this.out = out;
+        this.writtenStrings = new HashMap<String, Integer>();
+    }
+
+    /**
+     * Constructor of decoder
+     *
+     * @param in
+     *            input stream
+     */
+    private DatasetCodec(DataInputStream in) {
+        this.in = in;
+        this.readStrings = new ArrayList<String>();
+    }
+
+    /**
+     * Constructor of encoder of files. Instance id of dataset of file and its
+     * prefix of instance ids of files are the first strings of dictionary, so
+     * they aren't written.
+     *
+     * @param out
+     *            output stream
+     * @param datasetInstanceID
+     *            instance id of dataset of file
+     */
+    private DatasetCodec(DataOutputStream out, String datasetInstanceID) {
+        this(out);
+        this.writtenStrings.put(datasetInstanceID, 0);
+        this.writtenStrings.put(datasetInstanceID + ".", 1);
+    }
+
+    /**
+     * Constructor of decoder of files. Instance id of dataset of file and its
+     * prefix of instance ids of files are the first strings of dictionary.
+     *
+     * @param in
+     *            input stream
+     * @param datasetInstanceID
+     *            instance id of dataset of file
+     */
+    private DatasetCodec(DataInputStream in, String datasetInstanceID) {
+        this(in);
+        this.readStrings.add(datasetInstanceID);
+        this.readStrings.add(datasetInstanceID + ".");
+    }
+
+    /**
+     * Encode a dataset without its files
+     *
+     * @param dataset
+     *            dataset
+     * @return encoded dataset
+     * @throws IOException
+     *             if dataset can't be encoded
+     */
+    public static byte[] encode(Dataset dataset) throws IOException {
+        logger.trace("[IN]  encode");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeShort(MAGIC);
+        out.writeByte(VERSION);
+        new DatasetCodec(out).writeDataset(dataset);
+        out.flush();
+
+        logger.trace("[OUT] encode");
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decode a dataset encoded with {@link #encode(Dataset)} or with Java
+     * serialization. Datasets stored before files were stored one by one are
+     * decoded with their files.
+     *
+     * @param data
+     *            encoded dataset
+     * @return dataset
+     * @throws IOException
+     *             if data isn't a valid dataset or it has been encoded with a
+     *             newer version of format
+     */
+    public static Dataset decode(byte[] data) throws IOException {
+        logger.trace("[IN]  decode");
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                data));
+        short magic = in.readShort();
+        Dataset dataset;
+
+        if (magic == JAVA_SERIALIZATION_MAGIC) {
+            logger.debug("Decoding dataset stored with Java serialization");
+            try {
+                dataset = (Dataset) SerializationUtils.deserialize(data);
+            } catch (Exception e) {
+                throw new IOException("Invalid serialized dataset", e);
+            }
+        } else {
+            readHeader(in, magic);
+            try {
+                dataset = new DatasetCodec(in).readDataset();
+            } catch (RuntimeException e) {
+                throw new IOException("Invalid encoded dataset", e);
+            }
+        }
+
+        logger.trace("[OUT] decode");
+        return dataset;
+    }
+
+    /**
+     * Encode a file of a dataset
+     *
+     * @param file
+     *            file
+     * @param datasetInstanceID
+     *            instance id of dataset whose file is stored with
+     * @return encoded file
+     * @throws IOException
+     *             if file can't be encoded
+     */
+    public static byte[] encode(DatasetFile file, String datasetInstanceID)
+            throws IOException {
+        logger.trace("[IN]  encode");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeShort(MAGIC);
+        out.writeByte(VERSION);
+        DatasetCodec codec = new DatasetCodec(out, datasetInstanceID);
+        codec.writeRecord(file);
+        codec.writeString(file.getDatasetInstanceID());
+        out.flush();
+
+        logger.trace("[OUT] encode");
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decode a file encoded with {@link #encode(DatasetFile, String)}
+     *
+     * @param data
+     *            encoded file
+     * @param datasetInstanceID
+     *            instance id of dataset whose file is stored with
+     * @return file
+     * @throws IOException
+     *             if data isn't a valid file or it has been encoded with a
+     *             newer version of format
+     */
+    public static DatasetFile decodeFile(byte[] data, String datasetInstanceID)
+            throws IOException {
+        logger.trace("[IN]  decodeFile");
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                data));
+        readHeader(in, in.readShort());
+
+        DatasetFile file = new DatasetFile();
+        try {
+            DatasetCodec codec = new DatasetCodec(in, datasetInstanceID);
+            codec.readRecord(file);
+            file.setDatasetInstanceID(codec.readString());
+        } catch (RuntimeException e) {
+            throw new IOException("Invalid encoded file", e);
+        }
+
+        logger.trace("[OUT] decodeFile");
+        return file;
+    }
+
+    /**
+     * Get codes of constants of an enum from its table of constants by code
+     *
+     * @param byCode
+     *            constants by code
+     * @param type
+     *            enum
+     * @return code of each constant
+     * @throws IllegalStateException
+     *             if a constant of enum hasn't code, so it couldn't be stored
+     */
+    private static <E extends Enum<E>> Map<E, Integer> getCodes(E[] byCode,
+            Class<E> type) {
+        Map<E, Integer> codes = new EnumMap<E, Integer>(type);
+        for (int i = 0; i < byCode.length; i++) {
+            codes.put(byCode[i], i);
+        }
+        for (E constant : type.getEnumConstants()) {
+            if (!codes.containsKey(constant)) {
+                throw new IllegalStateException(type.getSimpleName() + "."
+                        + constant + " hasn't code in DatasetCodec");
+            }
+        }
+        return codes;
+    }
+
+    /**
+     * Get constant of an enum by code
+     *
+     * @param byCode
+     *            constants by code
+     * @param code
+     *            code
+     * @return constant or null if code is of a newer version
+     */
+    private static <E> E getByCode(E[] byCode, int code) {
+        if (code < 0 || code >= byCode.length) {
+            return null;
+        }
+        return byCode[code];
+    }
+
+    /**
+     * Check magic and version of encoded data
+     *
+     * @param in
+     *            input stream after magic
+     * @param magic
+     *            first bytes of data
+     * @throws IOException
+     *             if data hasn't been encoded with this codec or it has been
+     *             encoded with a newer version of format
+     */
+    private static void readHeader(DataInputStream in, short magic)
+            throws IOException {
+        if (magic != MAGIC) {
+            throw new IOException("Unknown format of dataset");
+        }
+        int version = in.readUnsignedByte();
+        if (version > VERSION) {
+            throw new IOException("Unsupported version of dataset format: "
+                    + version);
+        }
+    }
+
+    /**
+     * Write a dataset without its files
+     *
+     * @param dataset
+     *            dataset
+     * @throws IOException
+     */
+    private void writeDataset(Dataset dataset) throws IOException {
+        writeRecord(dataset);
+
+        DatasetHarvestStatus status = dataset.getHarvestStatus();
+        writeVarInt(status == null ? 0 : HARVEST_STATUS_CODES.get(status) + 1);
+
+        // files are encoded one by one
+        writeSize(0);
+    }
+
+    /**
+     * Read a dataset and its files if they were written with it
+     *
+     * @return dataset
+     * @throws IOException
+     */
+    private Dataset readDataset() throws IOException {
+        Dataset dataset = new Dataset();
+        readRecord(dataset);
+
+        // status of a newer version is skipped
+        DatasetHarvestStatus status = getByCode(HARVEST_STATUS_BY_CODE,
+                readVarInt() - 1);
+        if (status != null) {
+            dataset.setHarvestStatus(status);
+        }
+
+        int numberOfFiles = readSize();
+        if (numberOfFiles < 0) {
+            dataset.setFiles(null);
+        } else {
+            Set<DatasetFile> files = new HashSet<DatasetFile>();
+            for (int i = 0; i < numberOfFiles; i++) {
+                DatasetFile file = new DatasetFile();
+                readRecord(file);
+                file.setDatasetInstanceID(readString());
+                files.add(file);
+            }
+            dataset.setFiles(files);
+        }
+
+        return dataset;
+    }
+
+    /**
+     * Write instance id, metadata, replicas and services of a record
+     *
+     * @param record
+     *            record
+     * @throws IOException
+     */
+    private void writeRecord(Record record) throws IOException {
+        writeString(record.getInstanceID());
+
+        Map<Metadata, Object> metadata = record.getRecordMetadata();
+        writeSize(metadata == null ? -1 : metadata.size());
+        if (metadata != null) {
+            for (Map.Entry<Metadata, Object> entry : metadata.entrySet()) {
+                writeVarInt(METADATA_CODES.get(entry.getKey()));
+                writeValue(entry.getValue());
+            }
+        }
+
+        List<RecordReplica> replicas = record.getReplicas();
+        writeSize(replicas == null ? -1 : replicas.size());
+        if (replicas != null) {
+            for (RecordReplica replica : replicas) {
+                writeReplica(replica);
+            }
+        }
+
+        // replicas of services are references to replicas of record
+        Map<Service, List<RecordReplica>> servicesInReplicas = record
+                .getServicesInReplicas();
+        writeSize(servicesInReplicas == null ? -1 : servicesInReplicas.size());
+        if (servicesInReplicas != null) {
+            for (Map.Entry<Service, List<RecordReplica>> entry : servicesInReplicas
+                    .entrySet()) {
+                writeVarInt(SERVICE_CODES.get(entry.getKey()));
+                writeVarInt(entry.getValue().size());
+                for (RecordReplica replica : entry.getValue()) {
+                    int index = replicas == null ? -1 : replicas
+                            .indexOf(replica);
+                    writeVarInt(index + 1);
+                    if (index < 0) {
+                        writeReplica(replica);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Read instance id, metadata, replicas and services of a record
+     *
+     * @param record
+     *            empty record
+     * @throws IOException
+     */
+    private void readRecord(Record record) throws IOException {
+        record.setInstanceID(readString());
+
+        int numberOfMetadata = readSize();
+        if (numberOfMetadata < 0) {
+            record.setRecordMetadata(null);
+        } else {
+            Map<Metadata, Object> metadata = new HashMap<Metadata, Object>();
+            for (int i = 0; i < numberOfMetadata; i++) {
+                Metadata key = getByCode(METADATA_BY_CODE, readVarInt());
+                Object value = readValue();
+                // metadata of a newer version is skipped
+                if (key != null) {
+                    metadata.put(key, value);
+                }
+            }
+            record.setRecordMetadata(metadata);
+        }
+
+        List<RecordReplica> replicas = null;
+        int numberOfReplicas = readSize();
+        if (numberOfReplicas >= 0) {
+            replicas = new LinkedList<RecordReplica>();
+            for (int i = 0; i < numberOfReplicas; i++) {
+                replicas.add(readReplica());
+            }
+        }
+        record.setReplicas(replicas);
+
+        int numberOfServices = readSize();
+        if (numberOfServices < 0) {
+            record.setServicesInReplicas(null);
+        } else {
+            List<RecordReplica> indexedReplicas = replicas == null ? null
+                    : new ArrayList<RecordReplica>(replicas);
+            Map<Service, List<RecordReplica>> servicesInReplicas = new HashMap<Service, List<RecordReplica>>();
+            for (int i = 0; i < numberOfServices; i++) {
+                Service service = getByCode(SERVICES_BY_CODE, readVarInt());
+                int numberOfServiceReplicas = readVarInt();
+                List<RecordReplica> serviceReplicas = new LinkedList<RecordReplica>();
+                for (int j = 0; j < numberOfServiceReplicas; j++) {
+                    int index = readVarInt();
+                    if (index > 0) {
+                        serviceReplicas.add(indexedReplicas.get(index - 1));
+                    } else {
+                        serviceReplicas.add(readReplica());
+                    }
+                }
+                // service of a newer version is skipped
+                if (service != null) {
+                    servicesInReplicas.put(service, serviceReplicas);
+                }
+            }
+            record.setServicesInReplicas(servicesInReplicas);
+        }
+    }
+
+    /**
+     * Write a replica
+     *
+     * @param replica
+     *            replica
+     * @throws IOException
+     */
+    private void writeReplica(RecordReplica replica) throws IOException {
+        writeString(replica.getId());
+        writeString(replica.getDataNode());
+        writeString(replica.getIndexNode());
+        out.writeBoolean(replica.isMaster());
+
+        Map<Service, String> services = replica.getServices();
+        writeSize(services == null ? -1 : services.size());
+        if (services != null) {
+            for (Map.Entry<Service, String> entry : services.entrySet()) {
+                writeVarInt(SERVICE_CODES.get(entry.getKey()));
+                writeString(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Read a replica
+     *
+     * @return replica
+     * @throws IOException
+     */
+    private RecordReplica readReplica() throws IOException {
+        String id = readString();
+        String dataNode = readString();
+        String indexNode = readString();
+        boolean master = in.readBoolean();
+
+        Map<Service, String> services = null;
+        int numberOfServices = readSize();
+        if (numberOfServices >= 0) {
+            services = new HashMap<Service, String>();
+            for (int i = 0; i < numberOfServices; i++) {
+                Service service = getByCode(SERVICES_BY_CODE, readVarInt());
+                String url = readString();
+                // service of a newer version is skipped
+                if (service != null) {
+                    services.put(service, url);
+                }
+            }
+        }
+
+        return new RecordReplica(id, dataNode, indexNode, master, services);
+    }
+
+    /**
+     * Write a metadata value with the tag of its type
+     *
+     * @param value
+     *            value
+     * @throws IOException
+     */
+    private void writeValue(Object value) throws IOException {
+        if (value == null) {
+            writeVarInt(TAG_NULL);
+        } else if (value instanceof String) {
+            writeVarInt(TAG_STRING);
+            writeString((String) value);
+        } else if (value instanceof Calendar) {
+            Calendar calendar = (Calendar) value;
+            writeVarInt(TAG_CALENDAR);
+            writeVarLong(zigZag(calendar.getTimeInMillis()));
+            writeString(calendar.getTimeZone().getID());
+        } else if (value instanceof Double) {
+            writeVarInt(TAG_DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof Integer) {
+            writeVarInt(TAG_INTEGER);
+            writeVarLong(zigZag((Integer) value));
+        } else if (value instanceof Long) {
+            writeVarInt(TAG_LONG);
+            writeVarLong(zigZag((Long) value));
+        } else if (value instanceof Boolean) {
+            writeVarInt(TAG_BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof List && isListOf((List<?>) value,
+                String.class)) {
+            List<?> list = (List<?>) value;
+            writeVarInt(TAG_STRING_LIST);
+            writeVarInt(list.size());
+            for (Object element : list) {
+                writeString((String) element);
+            }
+        } else if (value instanceof List && isListOf((List<?>) value,
+                Service.class)) {
+            List<?> list = (List<?>) value;
+            writeVarInt(TAG_SERVICE_LIST);
+            writeVarInt(list.size());
+            for (Object element : list) {
+                writeVarInt(SERVICE_CODES.get(element));
+            }
+        } else {
+            byte[] serialized = SerializationUtils.serialize(value);
+            writeVarInt(TAG_SERIALIZED);
+            writeVarInt(serialized.length);
+            out.write(serialized);
+        }
+    }
+
+    /**
+     * Read a metadata value with the tag of its type
+     *
+     * @return value or null if value is null or its type is unknown
+     * @throws IOException
+     */
+    private Object readValue() throws IOException {
+        int tag = readVarInt();
+        switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_STRING:
+                return readString();
+            case TAG_CALENDAR:
+                long millis = unZigZag(readVarLong());
+                Calendar calendar = Calendar.getInstance(TimeZone
+                        .getTimeZone(readString()));
+                calendar.setTimeInMillis(millis);
+                return calendar;
+            case TAG_DOUBLE:
+                return in.readDouble();
+            case TAG_INTEGER:
+                return (int) unZigZag(readVarLong());
+            case TAG_LONG:
+                return unZigZag(readVarLong());
+            case TAG_BOOLEAN:
+                return in.readBoolean();
+            case TAG_STRING_LIST:
+                int numberOfStrings = readVarInt();
+                List<String> strings = new LinkedList<String>();
+                for (int i = 0; i < numberOfStrings; i++) {
+                    strings.add(readString());
+                }
+                return strings;
+            case TAG_SERVICE_LIST:
+                int numberOfServices = readVarInt();
+                List<Service> services = new LinkedList<Service>();
+                for (int i = 0; i < numberOfServices; i++) {
+                    Service service = getByCode(SERVICES_BY_CODE, readVarInt());
+                    if (service != null) {
+                        services.add(service);
+                    }
+                }
+                return services;
+            default:
+                byte[] data = new byte[readVarInt()];
+                in.readFully(data);
+                if (tag == TAG_SERIALIZED) {
+                    return SerializationUtils.deserialize(data);
+                }
+                // value type of a newer version
+                return null;
+        }
+    }
+
+    /**
+     * Check if all elements of a list are instances of a class
+     *
+     * @param list
+     *            list
+     * @param type
+     *            class
+     * @return true if all elements are instances of class
+     */
+    private static boolean isListOf(List<?> list, Class<?> type) {
+        for (Object element : list) {
+            if (!type.isInstance(element)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write a string in dictionary. Code 0 is null, 1 is a new string (its
+     * prefix and its last part) and greater codes are references to strings
+     * already written.
+     *
+     * @param string
+     *            string or null
+     * @throws IOException
+     */
+    private void writeString(String string) throws IOException {
+        if (string == null) {
+            writeVarInt(0);
+            return;
+        }
+
+        Integer index = writtenStrings.get(string);
+        if (index != null) {
+            writeVarInt(index + 2);
+            return;
+        }
+
+        writeVarInt(1);
+        int split = Math.max(string.lastIndexOf('/', string.length() - 2),
+                string.lastIndexOf('.', string.length() - 2)) + 1;
+        writeString(split > 0 ? string.substring(0, split) : null);
+        byte[] suffix = string.substring(split).getBytes("UTF-8");
+        writeVarInt(suffix.length);
+        out.write(suffix);
+
+        writtenStrings.put(string, writtenStrings.size());
+    }
+
+    /**
+     * Read a string written with {@link #writeString(String)}
+     *
+     * @return string or null
+     * @throws IOException
+     */
+    private String readString() throws IOException {
+        int code = readVarInt();
+        if (code == 0) {
+            return null;
+        } else if (code > 1) {
+            return readStrings.get(code - 2);
+        }
+
+        String prefix = readString();
+        byte[] suffix = new byte[readVarInt()];
+        in.readFully(suffix);
+        String string = new String(suffix, "UTF-8");
+        if (prefix != null) {
+            string = prefix + string;
+        }
+
+        readStrings.add(string);
+        return string;
+    }
+
+    /**
+     * Write size of a collection that can be null
+     *
+     * @param size
+     *            size or -1 if collection is null
+     * @throws IOException
+     */
+    private void writeSize(int size) throws IOException {
+        writeVarInt(size + 1);
+    }
+
+    /**
+     * Read size of a collection that can be null
+     *
+     * @return size or -1 if collection is null
+     * @throws IOException
+     */
+    private int readSize() throws IOException {
+        return readVarInt() - 1;
+    }
+
+    /**
+     * Write a non negative integer in 7 bits groups
+     *
+     * @param value
+     *            non negative integer
+     * @throws IOException
+     */
+    private void writeVarInt(int value) throws IOException {
+        writeVarLong(value);
+    }
+
+    /**
+     * Read a non negative integer written in 7 bits groups
+     *
+     * @return integer
+     * @throws IOException
+     */
+    private int readVarInt() throws IOException {
+        return (int) readVarLong();
+    }
+
+    /**
+     * Write a long in 7 bits groups
+     *
+     * @param value
+     *            long, without sign
+     * @throws IOException
+     */
+    private void writeVarLong(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value = value >>> 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * Read a long written in 7 bits groups
+     *
+     * @return long
+     * @throws IOException
+     */
+    private long readVarLong() throws IOException {
+        long value = 0;
+        int shift = 0;
+        int b;
+        do {
+            if (shift > 63) {
+                throw new IOException("Malformed variable length integer");
+            }
+            b = in.readUnsignedByte();
+            value = value | ((long) (b & 0x7F) << shift);
+            shift = shift + 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * Map a signed long to an unsigned long so that small negative numbers
+     * are short too
+     *
+     * @param value
+     *            signed long
+     * @return unsigned long
+     */
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    /**
+     * Inverse of {@link #zigZag(long)}
+     *
+     * @param value
+     *            unsigned long
+     * @return signed long
+     */
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,200 @@
+package es.unican.meteo.esgf.petition;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import es.unican.meteo.esgf.download.NodeHealthStore;
+import es.unican.meteo.esgf.download.NodeHealthStore.NodeHealth;
+
+/**
+ * Keeps the health of ESGF index nodes learned from search requests: a rolling
+ * average of latency (time to get the first response) and of errors of each
+ * index node. Index nodes are sorted by health to choose the preferred one,
+ * and the latency of an index node gives the time to wait its response before
+ * requesting to another index node. Health is kept in a
+ * {@link NodeHealthStore} and persisted between sessions.
+ *
+ * @author Karem Terry
+ *
+ */
+public class IndexNodeSelector {
+
+    /** Logger. */
+    static private org.slf4j.Logger logger = org.slf4j.LoggerFactory
+            .getLogger(IndexNodeSelector.class);
+
+    /** Latency of index nodes without health, in ms. */
+    private static final double DEFAULT_LATENCY = 2000;
+
+    /** Times the latency of an index node that its response is waited. */
+    private static final double LATENCY_BUDGET_FACTOR = 3;
+
+    /** Minimum time to wait the response of an index node, in ms. */
+    private static final long MIN_LATENCY_BUDGET = 2000; // 2 s
+
+    /** Maximum time to wait the response of an index node, in ms. */
+    private static final long MAX_LATENCY_BUDGET = 30000; // 30 s
+
+    /** File name of index node health. */
+    private static final String HEALTH_FILE_NAME = "index_node_health.data";
+
+    /** Singleton instance. */
+    private static IndexNodeSelector INSTANCE = null;
+
+    /** Health by index node. */
+    private NodeHealthStore health;
+
+    /**
+     * Create a thread-safe singleton.
+     */
+    private static void createInstance() {
+        logger.trace("[IN]  createInstance");
+
+        logger.debug("Checking if exist an instance of IndexNodeSelector");
+        // creating a thread-safe singleton
+        if (INSTANCE == null) {
+
+            // Only the synchronized block is accessed when the instance hasn't
+            // been created.
+            synchronized (IndexNodeSelector.class) {
+                // Inside the block it must check again that the instance has
+                // not been created.
+                if (INSTANCE == null) {
+                    logger.debug("Creating new instance of IndexNodeSelector");
+                    INSTANCE = new IndexNodeSelector();
+                }
+            }
+        }
+        logger.trace("[OUT] createInstance");
+    }
+
+    /**
+     * Get singleton instance of {@link IndexNodeSelector}. This instance is
+     * the only that exists.
+     *
+     * @return the unique instance of {@link IndexNodeSelector}.
+     */
+    public static IndexNodeSelector getInstance() {
+        logger.trace("[IN]  getInstance");
+        createInstance();
+        logger.trace("[OUT] getInstance");
+        return INSTANCE;
+    }
+
+    /**
+     * Constructor. Load health of previous sessions.
+     */
+    private IndexNodeSelector() {
+        logger.trace("[IN]  IndexNodeSelector");
+        this.health = new NodeHealthStore(HEALTH_FILE_NAME, DEFAULT_LATENCY,
+                0);
+        logger.trace("[OUT] IndexNodeSelector");
+    }
+
+    /**
+     * Sort index nodes from the healthiest to the least healthy. Index nodes
+     * with the same health keep their order.
+     *
+     * @param indexNodes
+     *            index nodes
+     * @return new list with index nodes sorted
+     */
+    public List<String> sortIndexNodes(List<String> indexNodes) {
+        logger.trace("[IN]  sortIndexNodes");
+
+        final Map<String, Double> expectedLatencies = new HashMap<String, Double>();
+        for (String indexNode : indexNodes) {
+            expectedLatencies.put(indexNode, getExpectedLatency(indexNode));
+        }
+
+        List<String> sorted = new ArrayList<String>(indexNodes);
+        Collections.sort(sorted, new Comparator<String>() {
+            @Override
+            public int compare(String node1, String node2) {
+                return expectedLatencies.get(node1).compareTo(
+                        expectedLatencies.get(node2));
+            }
+        });
+
+        logger.debug("Index nodes sorted by health: {}", sorted);
+        logger.trace("[OUT] sortIndexNodes");
+        return sorted;
+    }
+
+    /**
+     * Get time to wait the response of an index node before requesting to
+     * another index node.
+     *
+     * @param indexNode
+     *            index node
+     * @return latency budget in milliseconds
+     */
+    public long getLatencyBudget(String indexNode) {
+        logger.trace("[IN]  getLatencyBudget");
+
+        double latency = DEFAULT_LATENCY;
+        NodeHealth nodeHealth = health.getHealth(indexNode);
+        if (nodeHealth != null) {
+            latency = nodeHealth.getLatency();
+        }
+        long budget = Math.max(MIN_LATENCY_BUDGET, Math.min(
+                MAX_LATENCY_BUDGET, (long) (LATENCY_BUDGET_FACTOR * latency)));
+
+        logger.trace("[OUT] getLatencyBudget");
+        return budget;
+    }
+
+    /**
+     * Record latency of a successful request to an index node.
+     *
+     * @param indexNode
+     *            index node
+     * @param millis
+     *            latency in milliseconds
+     */
+    public void recordLatency(String indexNode, long millis) {
+        logger.trace("[IN]  recordLatency");
+        health.recordLatency(indexNode, millis);
+        logger.trace("[OUT] recordLatency");
+    }
+
+    /**
+     * Record an error (failed or stalled request) of an index node.
+     *
+     * @param indexNode
+     *            index node
+     */
+    public void recordError(String indexNode) {
+        logger.trace("[IN]  recordError");
+        health.recordError(indexNode);
+        logger.trace("[OUT] recordError");
+    }
+
+    /**
+     * Save health of index nodes in file system.
+     */
+    public void save() {
+        logger.trace("[IN]  save");
+        health.save();
+        logger.trace("[OUT] save");
+    }
+
+    /**
+     * Get expected latency of an index node, penalized by its errors
+     *
+     * @param indexNode
+     *            index node
+     * @return expected latency in milliseconds
+     */
+    private double getExpectedLatency(String indexNode) {
+        NodeHealth nodeHealth = health.getHealth(indexNode);
+        if (nodeHealth == null) {
+            return DEFAULT_LATENCY;
+        }
+        return nodeHealth.getLatency() * nodeHealth.getErrorPenalty();
+    }
+}
@@ -0,0 +1,292 @@
+package es.unican.meteo.esgf.petition;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import es.unican.meteo.esgf.search.Metadata;
+import es.unican.meteo.esgf.search.Record;
+
+/**
+ * Pull parser of responses of ESGF search service with JSON format. Reads the
+ * documents of response ("response" - "docs") one by one from a stream and
+ * converts each document in a {@link Record} while it is read, so the
+ * response isn't kept in memory as a {@link String} or as a
+ * {@link JSONObject}. Only values of known metadata are converted, the other
+ * values (facet counts, scores, etc) are skipped.
+ *
+ * @author Karem Terry
+ *
+ */
+public class JSONRecordReader {
+
+    /** Logger. */
+    static private org.slf4j.Logger logger = org.slf4j.LoggerFactory
+            .getLogger(JSONRecordReader.class);
+
+    /** Metadata by name of JSON document fields. */
+    private static final Map<String, Metadata> METADATA_BY_NAME;
+
+    static {
+        METADATA_BY_NAME = new HashMap<String, Metadata>();
+        for (Metadata metadata : Metadata.values()) {
+            METADATA_BY_NAME.put(metadata.name().toLowerCase(), metadata);
+        }
+    }
+
+    /** Reader of JSON response. */
+    private Reader reader;
+
+    /** Tokenizer of JSON response. */
+    private JSONTokener tokener;
+
+    /** True if tokenizer is in array of documents. */
+    private boolean inDocs;
+
+    /** True if all documents have been read. */
+    private boolean finished;
+
+    /**
+     * Constructor
+     *
+     * @param reader
+     *            reader of a response of ESGF search service with JSON format
+     */
+    public JSONRecordReader(Reader reader) {
+        logger.trace("[IN]  JSONRecordReader");
+
+        this.reader = reader;
+        this.tokener = new JSONTokener(reader);
+        this.inDocs = false;
+        this.finished = false;
+
+        logger.trace("[OUT] JSONRecordReader");
+    }
+
+    /**
+     * Read next document of response
+     *
+     * @return next document of response converted in a {@link Record} or null
+     *         if there aren't more documents
+     * @throws IOException
+     *             if response isn't a valid response of ESGF search service
+     */
+    public Record next() throws IOException {
+        logger.trace("[IN]  next");
+
+        Record record = null;
+        try {
+            if (!finished && !inDocs) {
+                inDocs = findDocs();
+                finished = !inDocs;
+            }
+
+            if (!finished) {
+                char c = tokener.nextClean();
+                if (c == ',') {
+                    c = tokener.nextClean();
+                }
+
+                if (c == ']') {
+                    // end of documents, rest of response isn't read
+                    finished = true;
+                } else if (c == '{') {
+                    record = readRecord();
+                } else {
+                    throw tokener.syntaxError("A JSONObject text must begin"
+                            + " with '{'");
+                }
+            }
+        } catch (JSONException e) {
+            logger.error("Invalid JSON response: {}", e.getMessage());
+            throw new IOException("Invalid JSON response: " + e.getMessage());
+        }
+
+        logger.trace("[OUT] next");
+        return record;
+    }
+
+    /**
+     * Close reader of response
+     */
+    public void close() {
+        logger.trace("[IN]  close");
+        try {
+            reader.close();
+        } catch (final Exception e) {
+        }
+        logger.trace("[OUT] close");
+    }
+
+    /**
+     * Move tokenizer to first document of response. Skips the other fields of
+     * response.
+     *
+     * @return true if tokenizer is in array of documents or false if response
+     *         hasn't documents
+     * @throws JSONException
+     *             if response isn't valid
+     */
+    private boolean findDocs() throws JSONException {
+        logger.trace("[IN]  findDocs");
+
+        boolean found = false;
+        if (tokener.nextClean() != '{') {
+            throw tokener.syntaxError("A JSONObject text must begin with '{'");
+        }
+
+        // Search "response" in root object and "docs" in response object
+        String key = nextKey();
+        while (!found && key != null) {
+            if (key.equals("response")) {
+                if (tokener.nextClean() != '{') {
+                    throw tokener.syntaxError("Response must be a JSONObject");
+                }
+
+                String responseKey = nextKey();
+                while (!found && responseKey != null) {
+                    if (responseKey.equals("docs")) {
+                        if (tokener.nextClean() != '[') {
+                            throw tokener.syntaxError("Docs must be a"
+                                    + " JSONArray");
+                        }
+                        found = true;
+                    } else {
+                        skipValue();
+                        responseKey = nextKey();
+                    }
+                }
+            } else {
+                skipValue();
+            }
+
+            if (!found) {
+                key = nextKey();
+            }
+        }
+
+        logger.trace("[OUT] findDocs");
+        return found;
+    }
+
+    /**
+     * Read a document of response and convert it in a {@link Record}. The
+     * opening brace of document must have been read.
+     *
+     * @return record of document
+     * @throws JSONException
+     *             if document isn't valid
+     */
+    private Record readRecord() throws JSONException {
+        logger.trace("[IN]  readRecord");
+
+        Record record = new Record();
+        String key = nextKey();
+        while (key != null) {
+            Metadata metadata = METADATA_BY_NAME.get(key);
+            if (metadata != null) {
+                Object value = tokener.nextValue();
+                if (value != JSONObject.NULL) {
+                    RequestManager.addMetadata(record, metadata, value);
+                }
+            } else {
+                skipValue();
+            }
+            key = nextKey();
+        }
+
+        logger.trace("[OUT] readRecord");
+        return record;
+    }
+
+    /**
+     * Read next key of an object and its separator. The opening brace of
+     * object or the value of previous key must have been read.
+     *
+     * @return next key or null if object has ended
+     * @throws JSONException
+     *             if object isn't valid
+     */
+    private String nextKey() throws JSONException {
+        char c = tokener.nextClean();
+        if (c == ',') {
+            c = tokener.nextClean();
+        }
+
+        if (c == '}') {
+            return null;
+        } else if (c != '"' && c != '\'') {
+            throw tokener.syntaxError("A JSONObject key must be a string");
+        }
+
+        String key = tokener.nextString(c);
+        c = tokener.nextClean();
+        if (c != ':' && c != '=') {
+            throw tokener.syntaxError("Expected a ':' after a key");
+        } else if (c == '=' && tokener.next() != '>') {
+            tokener.back();
+        }
+
+        return key;
+    }
+
+    /**
+     * Skip next value without build it
+     *
+     * @throws JSONException
+     *             if value isn't valid
+     */
+    private void skipValue() throws JSONException {
+        char c = tokener.nextClean();
+
+        if (c == '"' || c == '\'') {
+            skipString(c);
+        } else if (c == '{' || c == '[') {
+            // Skip nested objects and arrays
+            int depth = 1;
+            while (depth > 0) {
+                c = tokener.next();
+                if (c == 0) {
+                    throw tokener.syntaxError("Unterminated value");
+                } else if (c == '"' || c == '\'') {
+                    skipString(c);
+                } else if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    depth--;
+                }
+            }
+        } else {
+            // Unquoted text: numbers, true, false or null
+            while (c >= ' ' && ",:]}/\\\"[{;=#".indexOf(c) < 0) {
+                c = tokener.next();
+            }
+            tokener.back();
+        }
+    }
+
+    /**
+     * Skip a string. The opening quote must have been read.
+     *
+     * @param quote
+     *            quote character of string
+     * @throws JSONException
+     *             if string is unterminated
+     */
+    private void skipString(char quote) throws JSONException {
+        char c = tokener.next();
+        while (c != quote) {
+            if (c == 0 || c == '\n' || c == '\r') {
+                throw tokener.syntaxError("Unterminated string");
+            } else if (c == '\\') {
+                tokener.next();
+            }
+            c = tokener.next();
+        }
+    }
+}
@@ -7,6 +7,7 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
@@ -15,6 +16,19 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpStatus;
@@ -23,8 +37,10 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import es.unican.meteo.esgf.search.FacetCounts;
 import es.unican.meteo.esgf.search.Format;
 import es.unican.meteo.esgf.search.Metadata;
+import es.unican.meteo.esgf.search.Parameters;
 import es.unican.meteo.esgf.search.RESTfulSearch;
 import es.unican.meteo.esgf.search.Record;
 import es.unican.meteo.esgf.search.RecordType;
@@ -57,76 +73,118 @@ public class RequestManager {
     private static final int MAX_NUMBER_OF_RECORDS = 500;
 
     /**
-     * Converts a response ESGF search service with JSON format in a set of
-     * {@link Record}
-     *
-     * @param content
-     *            response ESGF search service with JSON format
-     * @return a set of {@link Record}
-     * @throws IOException
-     *             if exist any error in content that will be converted
+     * True if a request to an index node that doesn't answer in its latency
+     * budget is also sent to next index node.
      */
-    private static Set<Record> convertJSONResponseInRecords(String content)
-            throws IOException {
-        logger.trace("[IN]  convertJSONResponseInRecords");
-
-        // Set of records
-        Set<Record> records = new HashSet<Record>();
+    private static boolean hedgedRequests = true;
+
+    /** Executor of requests to index nodes. */
+    private static ExecutorService hedgedRequestExecutor = Executors
+            .newCachedThreadPool(new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger(0);
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "index-node-request-"
+                            + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
 
-        try {
-            logger.debug("Getting JSON object from source");
-            JSONObject json = new JSONObject(content);
+    /** Sort of results in requests of pages with a cursor. */
+    private static final String CURSOR_SORT = "id asc";
 
-            // Get response dictionary
-            JSONObject response = json.getJSONObject("response");
-
-            // Documents, jsonRecords is an array of dictionaries
-            // where each dictionary is a record
-            JSONArray jsonDatasets = response.getJSONArray("docs");
+    /**
+     * True if pages of records are requested with a cursor on id instead of
+     * offset.
+     */
+    private static boolean cursorPaging = false;
 
-            // For each record in jsonDatasets
-            for (int i = 0; i < jsonDatasets.length(); i++) {
-                // Aux
-                Record record = new Record();
+    /**
+     * Check if pages of records are requested with a cursor on id instead of
+     * offset.
+     *
+     * @return true if pages of records are requested with a cursor and false
+     *         if they are requested with offset
+     */
+    public static boolean isCursorPaging() {
+        logger.trace("[IN]  isCursorPaging");
+        logger.trace("[OUT] isCursorPaging");
+        return cursorPaging;
+    }
 
-                // Converts a JSON document to a record object
-                fillRecord(jsonDatasets.getJSONObject(i), record);
+    /**
+     * Set if pages of records are requested with a cursor on id instead of
+     * offset. With a cursor, results are sorted by id and each page is
+     * requested with the constraint "id greater than last id of previous
+     * page", so every page costs the same in index node. Deep offsets are
+     * slower in index node each page and can fail. Pages with a cursor are
+     * requested one after another
+     *
+     * @param cursorPaging
+     *            true to request pages with a cursor and false to request
+     *            them with offset
+     */
+    public static void setCursorPaging(boolean cursorPaging) {
+        logger.trace("[IN]  setCursorPaging");
+        RequestManager.cursorPaging = cursorPaging;
+        logger.trace("[OUT] setCursorPaging");
+    }
 
-                // Add record
-                records.add(record);
-            }
-        } catch (JSONException e) {
-            logger.error("json exception is thrown");
-            e.printStackTrace();
-            throw new IOException();
-        }
+    /**
+     * Check if requests to index nodes are hedged.
+     *
+     * @return true if a request to an index node that doesn't answer in its
+     *         latency budget is also sent to next index node and false if
+     *         next index node is only requested when an index node fails
+     */
+    public static boolean isHedgedRequests() {
+        logger.trace("[IN]  isHedgedRequests");
+        logger.trace("[OUT] isHedgedRequests");
+        return hedgedRequests;
+    }
 
-        logger.trace("[OUT] convertJSONResponseInRecords");
-        return records;
+    /**
+     * Set if requests to index nodes are hedged. In hedged mode, when a search
+     * is retried in other index nodes, if the preferred index node doesn't
+     * answer in its latency budget the request is also sent to next index
+     * node and the first response wins. Then a hung index node doesn't stall
+     * the search.
+     *
+     * @param hedgedRequests
+     *            true to hedge requests and false to request next index node
+     *            only when an index node fails
+     */
+    public static void setHedgedRequests(boolean hedgedRequests) {
+        logger.trace("[IN]  setHedgedRequests");
+        RequestManager.hedgedRequests = hedgedRequests;
+        logger.trace("[OUT] setHedgedRequests");
     }
 
     /**
-     * Private static method that fills a instance of a parent class
-     * {@link Record}
+     * Package-private static method that adds a metadata of a JSON document to
+     * a {@link Record}. The value is converted to the type of metadata.
      *
      * Check if id, instance_id and master_id of file records haven't a wrong id
      * (ids of files that finish with ".nc_0" or "nc_1" instead of .nc). In
      * those cases correct them and notify warning.
      *
-     * @param jsonRecord
-     *            JSON representation of a record
      * @param record
-     *            instance of {@link Record} that will be filled with info
-     *            contained in a JSONOBject
-     *
-     * @return ESGF record in a {@link Record} object
+     *            instance of {@link Record} that will be filled
+     * @param metadata
+     *            metadata of record
+     * @param value
+     *            value of metadata in JSON document: a {@link JSONArray}, a
+     *            {@link String}, a {@link Number} or a {@link Boolean}
+     * @throws JSONException
+     *             if value hasn't the expected type of metadata
      */
-    private static Record fillRecord(JSONObject jsonRecord, Record record)
+    static void addMetadata(Record record, Metadata metadata, Object value)
             throws JSONException {
-        logger.trace("[IN]  fillRecord");
+        logger.trace("[IN]  addMetadata");
 
         // Aux
-        String metaName;
         JSONArray jsonArray;
         List<String> listString;
         List<Service> listServices;
@@ -134,543 +192,626 @@ public class RequestManager {
         Calendar calendar;
         Date date;
 
-        logger.debug("Getting record metadata from json");
-        // For each metadata defined in enum Metadata
-        for (Metadata metadata : Metadata.values()) {
+        // Add metadata in new Document
+        switch (metadata) {
+            case ACCESS:
+                // access array string
+                jsonArray = getJSONArray(value);
 
-            // String of metadata
-            metaName = metadata.name().toLowerCase();
+                // clear array of strings
+                listServices = new LinkedList<Service>();
+                // For each element in json array
 
-            // If json document has this metadata
-            if (jsonRecord.has(metaName)) {
+                for (int j = 0; j < jsonArray.length(); j++) {
+                    String url = jsonArray.getString(j);
 
-                // Add metadata in new Document
-                switch (metadata) {
-                    case ACCESS:
-                        // access array string
-                        jsonArray = jsonRecord.getJSONArray(metaName);
+                    if (url != null) {
+                        String serviceUrl = url.substring(url
+                                .lastIndexOf("|") + 1);
 
-                        // clear array of strings
-                        listServices = new LinkedList<Service>();
-                        // For each element in json array
+                        listServices.add(Service.valueOf(serviceUrl
+                                .toUpperCase()));
+                    }
 
-                        for (int j = 0; j < jsonArray.length(); j++) {
-                            String url = jsonArray.getString(j);
+                }
 
-                            if (url != null) {
-                                String serviceUrl = url.substring(url
-                                        .lastIndexOf("|") + 1);
+                // Add metadata in new document
+                record.addMetadata(metadata, listServices);
+            break;
+            case CF_STANDARD_NAME:
+                // Value is array of CF Standard Name strings
+                jsonArray = getJSONArray(value);
+
+                // clear array of strings
+                listString = new LinkedList<String>();
+                // For each element in json array
+                for (int j = 0; j < jsonArray.length(); j++) {
+                    listString.add(jsonArray.getString(j));
+                }
 
-                                listServices.add(Service.valueOf(serviceUrl
-                                        .toUpperCase()));
-                            }
+                // Add metadata in new document
+                record.addMetadata(metadata, listString);
 
-                        }
+            break;
+            case CHECKSUM:
+                // Checksum is returned in an array of strings
+                jsonArray = getJSONArray(value);
 
-                        // Add metadata in new document
-                        record.addMetadata(metadata, listServices);
-                    break;
-                    case CF_STANDARD_NAME:
-                        // Value is array of CF Standard Name strings
-                        jsonArray = jsonRecord.getJSONArray(metaName);
-
-                        // clear array of strings
-                        listString = new LinkedList<String>();
-                        // For each element in json array
-                        for (int j = 0; j < jsonArray.length(); j++) {
-                            listString.add(jsonArray.getString(j));
-                        }
+                // clear array of strings
+                listString = new LinkedList<String>();
+                // For each element in json array
+                for (int j = 0; j < jsonArray.length(); j++) {
+                    listString.add(jsonArray.getString(j));
+                }
 
-                        // Add metadata in new document
-                        record.addMetadata(metadata, listString);
+                // Always this array only have one element and
+                // this element is the checksum of record
+                record.addMetadata(metadata, listString.get(0));
+            break;
+            case CHECKSUM_TYPE:
+                // Checksum type is returned in an array of strings
+                jsonArray = getJSONArray(value);
+
+                // clear array of strings
+                listString = new LinkedList<String>();
+                // For each element in json array
+                for (int j = 0; j < jsonArray.length(); j++) {
+                    listString.add(jsonArray.getString(j));
+                }
 
-                    break;
-                    case CHECKSUM:
-                        // Checksum is returned in an array of strings
-                        jsonArray = jsonRecord.getJSONArray(metaName);
+                // Always this array only have one element and
+                // this element is the type of checksum record
+                record.addMetadata(metadata, listString.get(0));
+            break;
+            case CMOR_TABLE:
+                // Value is MIP Table String
+                jsonArray = getJSONArray(value);
+
+                // clear array of strings
+                listString = new LinkedList<String>();
+                // For each element in json array
+                for (int j = 0; j < jsonArray.length(); j++) {
+                    listString.add(jsonArray.getString(j));
+                }
 
-                        // clear array of strings
-                        listString = new LinkedList<String>();
-                        // For each element in json array
-                        for (int j = 0; j < jsonArray.length(); j++) {
-                            listString.add(jsonArray.getString(j));
-                        }
+                // Add metadata in new document
+                record.addMetadata(metadata, listString);
+            break;
+            case DATASET_ID:
+                // Dataset id of file (String)
+                record.addMetadata(metadata, getString(value));
+            break;
+            case DATASET_ID_TEMPLATE_:
+                // Value is template of dataset id
+                jsonArray = getJSONArray(value);
+
+                // clear array of strings
+                listString = new LinkedList<String>();
+                // For each element in json array
+                for (int j = 0; j < jsonArray.length(); j++) {
+                    listString.add(jsonArray.getString(j));
+                }
 
-                        // Always this array only have one element and
-                        // this element is the checksum of record
-                        record.addMetadata(metadata, listString.get(0));
-                    break;
-                    case CHECKSUM_TYPE:
-                        // Checksum type is returned in an array of strings
-                        jsonArray = jsonRecord.getJSONArray(metaName);
-
-                        // clear array of strings
-                        listString = new LinkedList<String>();
-                        // For each element in json array
-                        for (int j = 0; j < jsonArray.length(); j++) {
-                            listString.add(jsonArray.getString(j));
-                        }
+                // Add metadata in new document
+                record.addMetadata(metadata, listString);
+            break;
+            case DATA_NODE:
 
-                        // Always this array only have one element and
-                        // this element is the type of checksum record
-                        record.addMetadata(metadata, listString.get(0));
-                    break;
-                    case CMOR_TABLE:
-                        // Value is MIP Table String
-                        jsonArray = jsonRecord.getJSONArray(metaName);
-
-                        // clear array of strings
-                        listString = new LinkedList<String>();
-                        // For each element in json array
-                        for (int j = 0; j < jsonArray.length(); j++) {
-                            listString.add(jsonArray.getString(j));
-                        }
+                String adressDataNode = getString(value);
 
-                        // Add metadata in new document
-                        record.addMetadata(metadata, listString);
-                    break;
-                    case DATASET_ID_TEMPLATE_:
-                        // Value is template of dataset id
-                        jsonArray = jsonRecord.getJSONArray(metaName);
-
-                        // clear array of strings
-                        listString = new LinkedList<String>();
-                        // For each element in json array
-                        for (int j = 0; j < jsonArray.length(); j++) {
-                            listString.add(jsonArray.getString(j));
-                        }
+                if (adressDataNode.length() > 7) {
+                    // if isn't complete url
+                    if (!adressDataNode.substring(0, 7).equals(
+                            "http://")) {
+                        adressDataNode = "http://" + adressDataNode;
+                    }
+                } else {
+                    adressDataNode = "http://" + adressDataNode;
+                }
 
-                        // Add metadata in new document
-                        record.addMetadata(metadata, listString);
-                    break;
-                    case DATA_NODE:
+                // Data Node string
+                record.addMetadata(metadata, adressDataNode);
+            break;
+            case DATETIME_START:
+                // Dataset simulation start
+                dateStr = getString(value);
+
+                // Converts string to calendar
+                date = parseDate(dateStr);
+                calendar = Calendar.getInstance();
+                calendar.setTime(date);
+
+                // Add metadata in new document
+                record.addMetadata(metadata, calendar);
+
+            break;
+            case DATETIME_STOP:
+                // Dataset simulation stop
+                dateStr = getString(value);
+
+                // Converts string to calendar
+                date = parseDate(dateStr);
+                calendar = Calendar.getInstance();
+                calendar.setTime(date);
+
+                // Add metadata in new document
+                record.addMetadata(metadata, calendar);
+            break;
+            case DESCRIPTION:
+                // Record (longer) description
+                jsonArray = getJSONArray(value);
+
+                // clear array of strings
+                listString = new LinkedList<String>();
+                // For each element in json array
+                for (int j = 0; j < jsonArray.length(); j++) {
+                    listString.add(jsonArray.getString(j));
+                }
 
-                        String adressDataNode = jsonRecord.getString(metaName);
+                // Add metadata in new document
+                record.addMetadata(metadata, listString);
+            break;
+            case DRS_ID:
+                // Templated string assigned to a Dataset
+                jsonArray = getJSONArray(value);
+
+                // clear array of strings
+                listString = new LinkedList<String>();
+                // For each element in json array
+                for (int j = 0; j < jsonArray.length(); j++) {
+                    listString.add(jsonArray.getString(j));
+                }
 
-                        if (adressDataNode.length() > 7) {
-                            // if isn't complete url
-                            if (!adressDataNode.substring(0, 7).equals(
-                                    "http://")) {
-                                adressDataNode = "http://" + adressDataNode;
-                            }
-                        } else {
-                            adressDataNode = "http://" + adressDataNode;
-                        }
+                // Add metadata in new document
+                record.addMetadata(metadata, listString);
+            break;
+            case EAST_DEGREES:
+                // East degrees of dataset (type double)
+                record.addMetadata(metadata, getDouble(value));
+
+            break;
+            case ENSEMBLE:
+                // ensemble of dataset
+                jsonArray = getJSONArray(value);
+
+                // clear array of strings
+                listString = new LinkedList<String>();
+                // For each element in json array
+                for (int j = 0; j < jsonArray.length(); j++) {
+                    listString.add(jsonArray.getString(j));
+                }
 
-                        // Data Node string
-                        record.addMetadata(metadata, adressDataNode);
-                    break;
-                    case DATETIME_START:
-                        // Dataset simulation start
-                        dateStr = jsonRecord.getString(metaName);
-
-                        // Converts string to calendar
-                        date = parseDate(dateStr);
-                        calendar = Calendar.getInstance();
-                        calendar.setTime(date);
-
-                        // Add metadata in new document
-                        record.addMetadata(metadata, calendar);
-
-                    break;
-                    case DATETIME_STOP:
-                        // Dataset simulation stop
-                        dateStr = jsonRecord.getString(metaName);
-
-                        // Converts string to calendar
-                        date = parseDate(dateStr);
-                        calendar = Calendar.getInstance();
-                        calendar.setTime(date);
-
-                        // Add metadata in new document
-                        record.addMetadata(metadata, calendar);
-                    break;
-                    case DESCRIPTION:
-                        // Record (longer) description
-                        jsonArray = jsonRecord.getJSONArray(metaName);
-
-                        // clear array of strings
-                        listString = new LinkedList<String>();
-                        // For each element in json array
-                        for (int j = 0; j < jsonArray.length(); j++) {
-                            listString.add(jsonArray.getString(j));
-                        }
+                // Add metadata in new document
+                record.addMetadata(metadata, listString);
+            break;
+            case EXPERIMENT:
+                // Experiment String
+                jsonArray = getJSONArray(value);
+
+                // clear array of strings
+                listString = new LinkedList<String>();
+                // For each element in json array
+                for (int j = 0; j < jsonArray.length(); j++) {
+                    listString.add(jsonArray.getString(j));
+                }
 
-                        // Add metadata in new document
-                        record.addMetadata(metadata, listString);
-                    break;
-                    case DRS_ID:
-                        // Templated string assigned to a Dataset
-                        jsonArray = jsonRecord.getJSONArray(metaName);
-
-                        // clear array of strings
-                        listString = new LinkedList<String>();
-                        // For each element in json array
-                        for (int j = 0; j < jsonArray.length(); j++) {
-                            listString.add(jsonArray.getString(j));
-                        }
+                // Add metadata in new document
+                record.addMetadata(metadata, listString);
+            break;
+            case EXPERIMENT_FAMILY:
+                // Experiment family String
+                jsonArray = getJSONArray(value);
+
+                // clear array of strings
+                listString = new LinkedList<String>();
+                // For each element in json array
+                for (int j = 0; j < jsonArray.length(); j++) {
+                    listString.add(jsonArray.getString(j));
+                }
 
-                        // Add metadata in new document
-                        record.addMetadata(metadata, listString);
-                    break;
-                    case EAST_DEGREES:
-                        // East degrees of dataset (type double)
-                        record.addMetadata(metadata,
-                                jsonRecord.getDouble(metaName));
-
-                    break;
-                    case ENSEMBLE:
-                        // ensemble of dataset
-                        jsonArray = jsonRecord.getJSONArray(metaName);
-
-                        // clear array of strings
-                        listString = new LinkedList<String>();
-                        // For each element in json array
-                        for (int j = 0; j < jsonArray.length(); j++) {
-                            listString.add(jsonArray.getString(j));
-                        }
+                // Add metadata in new document
+                record.addMetadata(metadata, listString);
+            break;
+            case FORCING:
+                // ? String
+                jsonArray = getJSONArray(value);
+
+                // clear array of strings
+                listString = new LinkedList<String>();
+                // For each element in json array
+                for (int j = 0; j < jsonArray.length(); j++) {
+                    listString.add(jsonArray.getString(j));
+                }
 
-                        // Add metadata in new document
-                        record.addMetadata(metadata, listString);
-                    break;
-                    case EXPERIMENT:
-                        // Experiment String
-                        jsonArray = jsonRecord.getJSONArray(metaName);
-
-                        // clear array of strings
-                        listString = new LinkedList<String>();
-                        // For each element in json array
-                        for (int j = 0; j < jsonArray.length(); j++) {
-                            listString.add(jsonArray.getString(j));
-                        }
+                // Add metadata in new document
+                record.addMetadata(metadata, listString);
+            break;
+            case FORMAT:
+                // format of dataset
+                jsonArray = getJSONArray(value);
+
+                // clear array of strings
+                listString = new LinkedList<String>();
+                // For each element in json array
+                for (int j = 0; j < jsonArray.length(); j++) {
+                    listString.add(jsonArray.getString(j));
+                }
 
-                        // Add metadata in new document
-                        record.addMetadata(metadata, listString);
-                    break;
-                    case EXPERIMENT_FAMILY:
-                        // Experiment family String
-                        jsonArray = jsonRecord.getJSONArray(metaName);
-
-                        // clear array of strings
-                        listString = new LinkedList<String>();
-                        // For each element in json array
-                        for (int j = 0; j < jsonArray.length(); j++) {
-                            listString.add(jsonArray.getString(j));
-                        }
+                // Add metadata in new document
+                record.addMetadata(metadata, listString);
+            break;
+            case ID:
 
-                        // Add metadata in new document
-                        record.addMetadata(metadata, listString);
-                    break;
-                    case FORCING:
-                        // ? String
-                        jsonArray = jsonRecord.getJSONArray(metaName);
-
-                        // clear array of strings
-                        listString = new LinkedList<String>();
-                        // For each element in json array
-                        for (int j = 0; j < jsonArray.length(); j++) {
-                            listString.add(jsonArray.getString(j));
-                        }
+                // Universally id String
+                record.addMetadata(metadata, getString(value));
 
-                        // Add metadata in new document
-                        record.addMetadata(metadata, listString);
-                    break;
-                    case FORMAT:
-                        // format of dataset
-                        jsonArray = jsonRecord.getJSONArray(metaName);
-
-                        // clear array of strings
-                        listString = new LinkedList<String>();
-                        // For each element in json array
-                        for (int j = 0; j < jsonArray.length(); j++) {
-                            listString.add(jsonArray.getString(j));
-                        }
+            break;
+            case INDEX_NODE:
+                String adressIndexNode = getString(value);
 
-                        // Add metadata in new document
-                        record.addMetadata(metadata, listString);
-                    break;
-                    case ID:
+                if (adressIndexNode.length() > 7) {
+                    // if isn't complete url
+                    if (!adressIndexNode.substring(0, 7).equals(
+                            "http://")) {
+                        adressIndexNode = "http://" + adressIndexNode;
+                    }
+                } else {
+                    adressIndexNode = "http://" + adressIndexNode;
+                }
 
-                        // Universally id String
-                        record.addMetadata(metadata,
-                                jsonRecord.getString(metaName));
+                // the node where the data is published String
+                record.addMetadata(metadata, adressIndexNode);
+            break;
+            case INSTITUTE:
+                // Institute that datasets belongs
+                jsonArray = getJSONArray(value);
+
+                // clear array of strings
+                listString = new LinkedList<String>();
+                // For each element in json array
+                for (int j = 0; j < jsonArray.length(); j++) {
+                    listString.add(jsonArray.getString(j));
+                }
 
-                    break;
-                    case INDEX_NODE:
-                        String adressIndexNode = jsonRecord.getString(metaName);
+                // Add metadata in new document
+                record.addMetadata(metadata, listString);
+            break;
+            case INSTANCE_ID:
+                // Id same of all replicas but different for
+                // each version. String
+                record.setInstanceID(getString(value));
+                record.addMetadata(metadata, getString(value));
+
+            break;
+            case LATEST:
+                // Indicates wether the record is the latest
+                // available version, or a previous version
+                record.addMetadata(metadata, getBoolean(value));
+            break;
+            case MASTER_ID:
+
+                // String that is identical for the master and
+                // all replicas String
+                record.addMetadata(metadata, getString(value));
+
+            break;
+            case METADATA_FORMAT:
+                // Format of metadata String
+                record.addMetadata(metadata, getString(value));
+            break;
+            case MODEL:
+                // Model of dataset String
+                jsonArray = getJSONArray(value);
+
+                // clear array of strings
+                listString = new LinkedList<String>();
+                // For each element in json array
+                for (int j = 0; j < jsonArray.length(); j++) {
+                    listString.add(jsonArray.getString(j));
+                }
 
-                        if (adressIndexNode.length() > 7) {
-                            // if isn't complete url
-                            if (!adressIndexNode.substring(0, 7).equals(
-                                    "http://")) {
-                                adressIndexNode = "http://" + adressIndexNode;
-                            }
-                        } else {
-                            adressIndexNode = "http://" + adressIndexNode;
-                        }
+                // Add metadata in new document
+                record.addMetadata(metadata, listString);
+            break;
+            case NORTH_DEGREES:
+                // North degrees of dataset (type double)
+                record.addMetadata(metadata, getDouble(value));
+            break;
+            case NUMBER_OF_FILES:
+                // number of files contained in a dataset int
+                record.addMetadata(metadata, getInt(value));
+            break;
+            case NUMBER_OF_AGGREGATIONS:
+                // number of aggregations in a dataset int
+                record.addMetadata(metadata, getInt(value));
+            break;
+            case PRODUCT:
+                // Product cmpi5 array string?
+                jsonArray = getJSONArray(value);
+
+                // clear array of strings
+                listString = new LinkedList<String>();
+                // For each element in json array
+                for (int j = 0; j < jsonArray.length(); j++) {
+                    listString.add(jsonArray.getString(j));
+                }
 
-                        // the node where the data is published String
-                        record.addMetadata(metadata, adressIndexNode);
-                    break;
-                    case INSTITUTE:
-                        // Institute that datasets belongs
-                        jsonArray = jsonRecord.getJSONArray(metaName);
-
-                        // clear array of strings
-                        listString = new LinkedList<String>();
-                        // For each element in json array
-                        for (int j = 0; j < jsonArray.length(); j++) {
-                            listString.add(jsonArray.getString(j));
-                        }
+                // Add metadata in new document
+                record.addMetadata(metadata, listString);
+            break;
+            case PROJECT:
+                // Project
+                jsonArray = getJSONArray(value);
+
+                // clear array of strings
+                listString = new LinkedList<String>();
+                // For each element in json array
+                for (int j = 0; j < jsonArray.length(); j++) {
+                    listString.add(jsonArray.getString(j));
+                }
 
-                        // Add metadata in new document
-                        record.addMetadata(metadata, listString);
-                    break;
-                    case INSTANCE_ID:
-                        // Id same of all replicas but different for
-                        // each version. String
-                        record.setInstanceID(jsonRecord.getString(metaName));
-                        record.addMetadata(metadata,
-                                jsonRecord.getString(metaName));
-
-                    break;
-                    case LATEST:
-                        // Indicates wether the record is the latest
-                        // available version, or a previous version
-                        record.addMetadata(metadata,
-                                jsonRecord.getBoolean(metaName));
-                    break;
-                    case MASTER_ID:
-
-                        // String that is identical for the master and
-                        // all replicas String
-                        record.addMetadata(metadata,
-                                jsonRecord.getString(metaName));
-
-                    break;
-                    case METADATA_FORMAT:
-                        // Format of metadata String
-                        record.addMetadata(metadata,
-                                jsonRecord.getString(metaName));
-                    break;
-                    case MODEL:
-                        // Model of dataset String
-                        jsonArray = jsonRecord.getJSONArray(metaName);
-
-                        // clear array of strings
-                        listString = new LinkedList<String>();
-                        // For each element in json array
-                        for (int j = 0; j < jsonArray.length(); j++) {
-                            listString.add(jsonArray.getString(j));
-                        }
+                // Add metadata in new document
+                record.addMetadata(metadata, listString);
+            break;
+            case REALM:
+                // Realm of dataset array of string
+                jsonArray = getJSONArray(value);
+
+                // clear array of strings
+                listString = new LinkedList<String>();
+                // For each element in json array
+                for (int j = 0; j < jsonArray.length(); j++) {
+                    listString.add(jsonArray.getString(j));
+                }
 
-                        // Add metadata in new document
-                        record.addMetadata(metadata, listString);
-                    break;
-                    case NORTH_DEGREES:
-                        // North degrees of dataset (type double)
-                        record.addMetadata(metadata,
-                                jsonRecord.getDouble(metaName));
-                    break;
-                    case NUMBER_OF_FILES:
-                        // number of files contained in a dataset int
-                        record.addMetadata(metadata,
-                                jsonRecord.getInt(metaName));
-                    break;
-                    case NUMBER_OF_AGGREGATIONS:
-                        // number of aggregations in a dataset int
-                        record.addMetadata(metadata,
-                                jsonRecord.getInt(metaName));
-                    break;
-                    case PRODUCT:
-                        // Product cmpi5 array string?
-                        jsonArray = jsonRecord.getJSONArray(metaName);
-
-                        // clear array of strings
-                        listString = new LinkedList<String>();
-                        // For each element in json array
-                        for (int j = 0; j < jsonArray.length(); j++) {
-                            listString.add(jsonArray.getString(j));
-                        }
+                // Add metadata in new document
+                record.addMetadata(metadata, listString);
+            break;
+            case REPLICA:
+                // A flag that is set to false for master
+                // records, true for replica records. boolean
+                record.addMetadata(metadata, getBoolean(value));
+            break;
+            case SIZE:
+                // bytes size of dataset. Int coverted
+                // in string with human sense (b,Gb,Tb,...)
+                long bytes = Math.abs(getLong(value));
+
+                record.addMetadata(metadata, bytes);
+
+            break;
+            case SOUTH_DEGREES:
+                // South degrees of dataset (type double)
+                record.addMetadata(metadata, getDouble(value));
+            break;
+            case SOURCE_ID:
+                // Time frequency data string
+                jsonArray = getJSONArray(value);
+
+                // clear array of strings
+                listString = new LinkedList<String>();
+                // For each element in json array
+                for (int j = 0; j < jsonArray.length(); j++) {
+                    listString.add(jsonArray.getString(j));
+                }
 
-                        // Add metadata in new document
-                        record.addMetadata(metadata, listString);
-                    break;
-                    case PROJECT:
-                        // Project
-                        jsonArray = jsonRecord.getJSONArray(metaName);
-
-                        // clear array of strings
-                        listString = new LinkedList<String>();
-                        // For each element in json array
-                        for (int j = 0; j < jsonArray.length(); j++) {
-                            listString.add(jsonArray.getString(j));
-                        }
+                // Add metadata in new document
+                record.addMetadata(metadata, listString);
+            break;
+            case TIMESTAMP:
+                // The date and time when the record was last
+                // modified. Calendar
+                dateStr = getString(value);
+
+                // Converts string to calendar
+                date = parseDate(dateStr);
+                calendar = Calendar.getInstance();
+                calendar.setTime(date);
+
+                // Add metadata in new document
+                record.addMetadata(metadata, calendar);
+            break;
+            case TIME_FREQUENCY:
+                // Time frequency data string
+                jsonArray = getJSONArray(value);
+
+                // clear array of strings
+                listString = new LinkedList<String>();
+                // For each element in json array
+                for (int j = 0; j < jsonArray.length(); j++) {
+                    listString.add(jsonArray.getString(j));
+                }
 
-                        // Add metadata in new document
-                        record.addMetadata(metadata, listString);
-                    break;
-                    case REALM:
-                        // Realm of dataset array of string
-                        jsonArray = jsonRecord.getJSONArray(metaName);
-
-                        // clear array of strings
-                        listString = new LinkedList<String>();
-                        // For each element in json array
-                        for (int j = 0; j < jsonArray.length(); j++) {
-                            listString.add(jsonArray.getString(j));
-                        }
+                // Add metadata in new document
+                record.addMetadata(metadata, listString);
+            break;
+            case TITLE:
+                // Short title for dataset. String
+                record.addMetadata(metadata, getString(value));
+            break;
+            case TYPE:
+                // Denotes the intrinsic type of the record.
+                // String
+                record.addMetadata(metadata, getString(value));
+            break;
+            case URL:
+                // Specific url to access dataset
+                jsonArray = getJSONArray(value);
+
+                // clear array of strings
+                listString = new LinkedList<String>();
+                // For each element in json array
+                for (int j = 0; j < jsonArray.length(); j++) {
+                    listString.add(jsonArray.getString(j));
+                }
 
-                        // Add metadata in new document
-                        record.addMetadata(metadata, listString);
-                    break;
-                    case REPLICA:
-                        // A flag that is set to false for master
-                        // records, true for replica records. boolean
-                        record.addMetadata(metadata,
-                                jsonRecord.getBoolean(metaName));
-                    break;
-                    case SIZE:
-                        // bytes size of dataset. Int coverted
-                        // in string with human sense (b,Gb,Tb,...)
-                        long bytes = Math.abs(jsonRecord.getLong(metaName));
-
-                        record.addMetadata(metadata, bytes);
-
-                    break;
-                    case SOUTH_DEGREES:
-                        // South degrees of dataset (type double)
-                        record.addMetadata(metadata,
-                                jsonRecord.getDouble(metaName));
-                    break;
-                    case SOURCE_ID:
-                        // Time frequency data string
-                        jsonArray = jsonRecord.getJSONArray(metaName);
-
-                        // clear array of strings
-                        listString = new LinkedList<String>();
-                        // For each element in json array
-                        for (int j = 0; j < jsonArray.length(); j++) {
-                            listString.add(jsonArray.getString(j));
-                        }
+                record.addMetadata(metadata, listString);
+            break;
+            case VARIABLE:
+                // Variables of datataset. Array of string
+                jsonArray = getJSONArray(value);
+
+                // clear array of strings
+                listString = new LinkedList<String>();
+                // For each element in json array
+                for (int j = 0; j < jsonArray.length(); j++) {
+                    listString.add(jsonArray.getString(j));
+                }
 
-                        // Add metadata in new document
-                        record.addMetadata(metadata, listString);
-                    break;
-                    case TIMESTAMP:
-                        // The date and time when the record was last
-                        // modified. Calendar
-                        dateStr = jsonRecord.getString(metaName);
-
-                        // Converts string to calendar
-                        date = parseDate(dateStr);
-                        calendar = Calendar.getInstance();
-                        calendar.setTime(date);
-
-                        // Add metadata in new document
-                        record.addMetadata(metadata, calendar);
-                    break;
-                    case TIME_FREQUENCY:
-                        // Time frequency data string
-                        jsonArray = jsonRecord.getJSONArray(metaName);
-
-                        // clear array of strings
-                        listString = new LinkedList<String>();
-                        // For each element in json array
-                        for (int j = 0; j < jsonArray.length(); j++) {
-                            listString.add(jsonArray.getString(j));
-                        }
+                // Add metadata in new document
+                record.addMetadata(metadata, listString);
+            break;
+            case VARIABLE_LONG_NAME:
+                // Variable long names of datataset. Array of
+                // string
+                jsonArray = getJSONArray(value);
+
+                // clear array of strings
+                listString = new LinkedList<String>();
+                // For each element in json array
+                for (int j = 0; j < jsonArray.length(); j++) {
+                    listString.add(jsonArray.getString(j));
+                }
 
-                        // Add metadata in new document
-                        record.addMetadata(metadata, listString);
-                    break;
-                    case TITLE:
-                        // Short title for dataset. String
-                        record.addMetadata(metadata,
-                                jsonRecord.getString(metaName));
-                    break;
-                    case TYPE:
-                        // Denotes the intrinsic type of the record.
-                        // String
-                        record.addMetadata(metadata,
-                                jsonRecord.getString(metaName));
-                    break;
-                    case URL:
-                        // Specific url to access dataset
-                        jsonArray = jsonRecord.getJSONArray(metaName);
-
-                        // clear array of strings
-                        listString = new LinkedList<String>();
-                        // For each element in json array
-                        for (int j = 0; j < jsonArray.length(); j++) {
-                            listString.add(jsonArray.getString(j));
-                        }
+                // Add metadata in new document
+                record.addMetadata(metadata, listString);
+            break;
+            case VERSION:
+                // Record version. String
+                record.addMetadata(metadata, getString(value));
+            break;
+            case WEST_DEGREES:
+                // West degrees of dataset (type double)
+                record.addMetadata(metadata, getDouble(value));
+            break;
+            case XLINK:
+                // Record version. Array of String
+
+                jsonArray = getJSONArray(value);
+
+                // clear array of strings
+                listString = new LinkedList<String>();
+                // For each element in json array
+                for (int j = 0; j < jsonArray.length(); j++) {
+                    listString.add(jsonArray.getString(j));
+                }
 
-                        record.addMetadata(metadata, listString);
-                    break;
-                    case VARIABLE:
-                        // Variables of datataset. Array of string
-                        jsonArray = jsonRecord.getJSONArray(metaName);
-
-                        // clear array of strings
-                        listString = new LinkedList<String>();
-                        // For each element in json array
-                        for (int j = 0; j < jsonArray.length(); j++) {
-                            listString.add(jsonArray.getString(j));
-                        }
+                // Add metadata in new document
+                record.addMetadata(metadata, listString);
+            break;
+            default:
+            break;
+        }
 
-                        // Add metadata in new document
-                        record.addMetadata(metadata, listString);
-                    break;
-                    case VARIABLE_LONG_NAME:
-                        // Variable long names of datataset. Array of
-                        // string
-                        jsonArray = jsonRecord.getJSONArray(metaName);
-
-                        // clear array of strings
-                        listString = new LinkedList<String>();
-                        // For each element in json array
-                        for (int j = 0; j < jsonArray.length(); j++) {
-                            listString.add(jsonArray.getString(j));
-                        }
+        logger.trace("[OUT] addMetadata");
+    }
 
-                        // Add metadata in new document
-                        record.addMetadata(metadata, listString);
-                    break;
-                    case VERSION:
-                        // Record version. String
-                        record.addMetadata(metadata,
-                                jsonRecord.getString(metaName));
-                    break;
-                    case WEST_DEGREES:
-                        // West degrees of dataset (type double)
-                        record.addMetadata(metadata,
-                                jsonRecord.getDouble(metaName));
-                    break;
-                    case XLINK:
-                        // Record version. Array of String
-
-                        jsonArray = jsonRecord.getJSONArray(metaName);
-
-                        // clear array of strings
-                        listString = new LinkedList<String>();
-                        // For each element in json array
-                        for (int j = 0; j < jsonArray.length(); j++) {
-                            listString.add(jsonArray.getString(j));
-                        }
+    /**
+     * Get a JSON value as {@link JSONArray}
+     *
+     * @param value
+     *            JSON value
+     * @return value as {@link JSONArray}
+     * @throws JSONException
+     *             if value isn't a {@link JSONArray}
+     */
+    private static JSONArray getJSONArray(Object value) throws JSONException {
+        if (value instanceof JSONArray) {
+            return (JSONArray) value;
+        }
+        throw new JSONException(value + " is not a JSONArray.");
+    }
 
-                        // Add metadata in new document
-                        record.addMetadata(metadata, listString);
-                    break;
-                    default:
-                    break;
-                }
-            }
+    /**
+     * Get a JSON value as {@link String}
+     *
+     * @param value
+     *            JSON value
+     * @return value as {@link String}
+     * @throws JSONException
+     *             if value isn't a {@link String}
+     */
+    private static String getString(Object value) throws JSONException {
+        if (value instanceof String) {
+            return (String) value;
         }
+        throw new JSONException(value + " is not a string.");
+    }
 
-        logger.debug("Record has been created");
-        logger.trace("[OUT] fillRecord");
-        return record;
+    /**
+     * Get a JSON value as double
+     *
+     * @param value
+     *            JSON value
+     * @return value as double
+     * @throws JSONException
+     *             if value isn't a number
+     */
+    private static double getDouble(Object value) throws JSONException {
+        try {
+            return value instanceof Number ? ((Number) value).doubleValue()
+                    : Double.parseDouble((String) value);
+        } catch (Exception e) {
+            throw new JSONException(value + " is not a number.");
+        }
+    }
+
+    /**
+     * Get a JSON value as int
+     *
+     * @param value
+     *            JSON value
+     * @return value as int
+     * @throws JSONException
+     *             if value isn't an int
+     */
+    private static int getInt(Object value) throws JSONException {
+        try {
+            return value instanceof Number ? ((Number) value).intValue()
+                    : Integer.parseInt((String) value);
+        } catch (Exception e) {
+            throw new JSONException(value + " is not an int.");
+        }
+    }
+
+    /**
+     * Get a JSON value as long
+     *
+     * @param value
+     *            JSON value
+     * @return value as long
+     * @throws JSONException
+     *             if value isn't a long
+     */
+    private static long getLong(Object value) throws JSONException {
+        try {
+            return value instanceof Number ? ((Number) value).longValue()
+                    : Long.parseLong((String) value);
+        } catch (Exception e) {
+            throw new JSONException(value + " is not a long.");
+        }
+    }
+
+    /**
+     * Get a JSON value as boolean
+     *
+     * @param value
+     *            JSON value
+     * @return value as boolean
+     * @throws JSONException
+     *             if value isn't a boolean
+     */
+    private static boolean getBoolean(Object value) throws JSONException {
+        if (value.equals(Boolean.FALSE)
+                || (value instanceof String && ((String) value)
+                        .equalsIgnoreCase("false"))) {
+            return false;
+        } else if (value.equals(Boolean.TRUE)
+                || (value instanceof String && ((String) value)
+                        .equalsIgnoreCase("true"))) {
+            return true;
+        }
+        throw new JSONException(value + " is not a Boolean.");
     }
 
     /**
@@ -694,11 +835,24 @@ public class RequestManager {
         String url = search.generateServiceURL().toString();
         logger.debug("The service url are generated. {}", url);
 
+        // Responses of the same search are reused while they are fresh
+        SearchResponseCache cache = SearchResponseCache.getInstance();
+        String content = cache.getContent(url);
+        if (content != null) {
+            logger.debug("Response of search {} found in cache", url);
+            logger.trace("[OUT] getContentFromSearch");
+            return content;
+        }
+
         logger.debug("Set and configure http conection");
-        // Set http client
-        HttpClient client = new HttpClient();
+        // Shared http client with pooled connections
+        HttpClient client = SearchClient.getInstance().getHttpClient();
         // Prepare http request
         GetMethod request = new GetMethod(url);
+        // Expired response in cache is revalidated by index node
+        cache.addValidators(url, request);
+        // Request can be aborted by handle of its thread
+        SearchRequestHandle.register(request);
 
         StringBuilder stringBuilder = new StringBuilder();
 
@@ -707,12 +861,18 @@ public class RequestManager {
         try {
             // Status code of request response
             int statusCode = client.executeMethod(request);
+            SearchRequestHandle.responded();
             logger.debug("Request executed");
 
             logger.debug("Putting response in buffer");
             BufferedReader rd = new BufferedReader(new InputStreamReader(
                     request.getResponseBodyAsStream()));
 
+            // If response of cache hasn't changed, it is fresh again
+            if (statusCode == HttpStatus.SC_NOT_MODIFIED) {
+                content = cache.revalidate(url);
+            }
+
             // If response is successful get the response
             if (statusCode == HttpStatus.SC_OK) {
                 // Do the string
@@ -723,7 +883,9 @@ public class RequestManager {
                     stringBuilder.append(line);
 
                 }
-            } else { // else if response isn't successful
+                content = stringBuilder.toString();
+                cache.put(url, content, request);
+            } else if (content == null) { // else if response isn't successful
                 logger.error(
                         "HTTP request isn't successful. Status code : {} in search {}",
                         statusCode, url);
@@ -732,20 +894,87 @@ public class RequestManager {
         } catch (Exception e) {
             logger.error("Exception : {} in {}", e.getStackTrace(), url);
             throw new IOException();
+        } finally {
+            // Connection is returned to pool although request fails
+            SearchRequestHandle.unregister(request);
+            request.releaseConnection();
         }
 
-        // When HttpClient instance is no longer needed,
-        // shut down the connection manager to ensure
-        // immediate deallocation of all system resources
-        // client.getConnectionManager().shutdown();
-        request.releaseConnection();
-
         logger.trace("[OUT] getContentFromSearch");
-        return stringBuilder.toString();
+        return content;
     }
 
     /**
-     * Get all instance_id of records that satisfy the constraints of search
+     * Get records from an ESGF search service request. The response is read
+     * from http stream and each document is converted in a {@link Record}
+     * while it is read, without keep all response in memory
+     *
+     * @param search
+     *            search service request
+     * @return set of records of response
+     * @throws IOException
+     *             if happens an error in http request or response isn't valid
+     * @throws HTTPStatusCodeException
+     *             if http status code isn't OK/200
+     */
+    static Set<Record> getRecordsFromResponse(RESTfulSearch search)
+            throws HTTPStatusCodeException, IOException {
+        logger.trace("[IN]  getRecordsFromResponse");
+
+        logger.debug("Generate service url");
+        String url = search.generateServiceURL().toString();
+        logger.debug("The service url are generated. {}", url);
+
+        // Shared http client with pooled connections
+        HttpClient client = SearchClient.getInstance().getHttpClient();
+        // Prepare http request
+        GetMethod request = new GetMethod(url);
+        // Request can be aborted by handle of its thread
+        SearchRequestHandle.register(request);
+
+        Set<Record> records = new HashSet<Record>();
+        JSONRecordReader reader = null;
+
+        logger.debug("Executing http request");
+        try {
+            // Status code of request response
+            int statusCode = client.executeMethod(request);
+            SearchRequestHandle.responded();
+            logger.debug("Request executed");
+
+            // If response isn't successful
+            if (statusCode != HttpStatus.SC_OK) {
+                logger.error(
+                        "HTTP request isn't successful. Status code : {} in search {}",
+                        statusCode, url);
+                throw new HTTPStatusCodeException(statusCode);
+            }
+
+            logger.debug("Reading records from response");
+            reader = new JSONRecordReader(new InputStreamReader(
+                    request.getResponseBodyAsStream(), "UTF-8"));
+            Record record = reader.next();
+            while (record != null) {
+                records.add(record);
+                record = reader.next();
+            }
+        } finally {
+            if (reader != null) {
+                reader.close();
+            }
+            SearchRequestHandle.unregister(request);
+            request.releaseConnection();
+        }
+
+        logger.trace("[OUT] getRecordsFromResponse");
+        return records;
+    }
+
+    /**
+     * Get all instance_id of records that satisfy the constraints of search.
+     * If they fit in one page, the response is read from
+     * {@link SearchResponseCache} if it is fresh. Otherwise records are
+     * streamed in several pages, which aren't cached.
      *
      * @param search
      * @return all instance_id of records that satisfy the constraints of search
@@ -776,6 +1005,42 @@ public class RequestManager {
             // convert in JSON format
             newSearch.getParameters().setFormat(Format.JSON);
 
+            // If instance ids fit in one page, content of response is cached
+            int numberOfRecords = getNumOfRecordsFromSearch(newSearch, true,
+                    true);
+            if (numberOfRecords == 0) {
+                logger.trace("[OUT] getInstanceIdOfFilesToDownload");
+                return instanceIds;
+            }
+            if (numberOfRecords <= MAX_NUMBER_OF_RECORDS) {
+                newSearch.getParameters().setLimit(numberOfRecords);
+                logger.debug("Doing the request:  {}",
+                        newSearch.generateServiceURL());
+                try {
+                    JSONObject json = new JSONObject(
+                            getContentFromSearch(newSearch));
+                    JSONArray docs = json.getJSONObject("response")
+                            .getJSONArray("docs");
+                    for (int i = 0; i < docs.length(); i++) {
+                        String instanceID = docs.getJSONObject(i).optString(
+                                "instance_id", null);
+                        if (instanceID != null) {
+                            instanceIds.add(instanceID);
+                        }
+                    }
+
+                    logger.trace("[OUT] getInstanceIdOfFilesToDownload");
+                    return instanceIds;
+                } catch (Exception e) {
+                    logger.warn(
+                            "Error reading instance ids of {}: {}. Requesting them in pages",
+                            newSearch.generateServiceURL(), e.getMessage());
+                    instanceIds.clear();
+                    newSearch.getParameters().setLimit(
+                            search.getParameters().getLimit());
+                }
+            }
+
             logger.debug("Doing the request:  {}",
                     newSearch.generateServiceURL());
             Set<Record> datasetRecords = new HashSet<Record>();
@@ -830,9 +1095,33 @@ public class RequestManager {
     public static Map<SearchCategoryFacet, List<SearchCategoryValue>> getFacetsAndValuesFromSearch(
             RESTfulSearch search) throws IOException, HTTPStatusCodeException {
         logger.trace("[IN]  getFacetsAndValuesFromSearch");
+        Map<SearchCategoryFacet, List<SearchCategoryValue>> facetMap = getFacetCountsFromSearch(
+                search).getFacetMap();
+        logger.trace("[OUT] getFacetsAndValuesFromSearch");
+        return facetMap;
+    }
+
+    /**
+     * Returns the number of records (of all replicas) and "all" facet values
+     * and its counts that exist in ESGF from a search service of ESGF. Both
+     * are obtained from the same request.
+     *
+     * @param search
+     *            search service request
+     * @return number of records and facet values of search
+     *
+     * @throws IOException
+     *             if happens an error in ESGF search service
+     * @throws HTTPStatusCodeException
+     *             if http status code isn't OK/200
+     */
+    public static FacetCounts getFacetCountsFromSearch(RESTfulSearch search)
+            throws IOException, HTTPStatusCodeException {
+        logger.trace("[IN]  getFacetCountsFromSearch");
 
-        // Initialize facet map
+        // Initialize facet map and num of records
         Map<SearchCategoryFacet, List<SearchCategoryValue>> facetMap = new HashMap<SearchCategoryFacet, List<SearchCategoryValue>>();
+        int numOfRecords = 0;
 
         logger.debug("Create new search");
         RESTfulSearch newSearch;
@@ -859,9 +1148,6 @@ public class RequestManager {
             // Get string from RESTfulSearch
             String responseContent = getContentFromSearch(newSearch);
 
-            logger.debug("Getting number of records");
-            // Initialize num of records
-            int numOfRecords = 0;
             // JSON object
             try {
 
@@ -869,6 +1155,10 @@ public class RequestManager {
                 // dictionary
                 JSONObject json = new JSONObject(responseContent);
 
+                logger.debug("Getting number of records");
+                numOfRecords = json.getJSONObject("response")
+                        .getInt("numFound");
+
                 // Fill facet tree
                 JSONObject facetCounts = json.getJSONObject("facet_counts");
                 JSONObject facetFields = facetCounts
@@ -924,8 +1214,8 @@ public class RequestManager {
             logger.warn("CloneNotSupportedException in clone search, this should not happen.");
         }
 
-        logger.trace("[OUT] getFacetsAndValuesFromSearch");
-        return facetMap;
+        logger.trace("[OUT] getFacetCountsFromSearch");
+        return new FacetCounts(numOfRecords, facetMap);
     }
 
     /**
@@ -947,61 +1237,172 @@ public class RequestManager {
         logger.trace("[IN]  getInstanceIdOfFilesToDownload");
         Set<String> instanceIds = new HashSet<String>();
 
+        RESTfulSearch newSearch = getSearchOfFilesToDownload(search);
+
+        Set<Record> fileRecords;
+        try {
+            List<String> ids = new LinkedList<String>();
+            ids.add(id);
+            fileRecords = getFileRecordsOfDatasets(newSearch, ids).get(id);
+        } catch (IOException e) {
+            logger.error("Error in getInstanceIdOfFilesToDownload. {} : \n",
+                    newSearch.generateServiceURL(), e.getStackTrace());
+            throw e;
+        } catch (HTTPStatusCodeException e) {
+            logger.error("Error in getInstanceIdOfFilesToDownload. {} : \n",
+                    newSearch.generateServiceURL(), e.getStackTrace());
+            throw e;
+        }
+
+        logger.debug("Getting all isntance_id of file records returned");
+        for (Record record : fileRecords) {
+            String instanceID = (String) record
+                    .getMetadata(Metadata.INSTANCE_ID);
+            if (instanceID != null) {
+                instanceIds.add(instanceID);
+            } else {
+                logger.warn("Instance ID null in file {} in index_node",
+                        record.getMetadata(Metadata.ID),
+                        search.getIndexNode());
+            }
+        }
+
+        logger.trace("[OUT] getInstanceIdOfFilesToDownload");
+        return instanceIds;
+    }
+
+    /**
+     * Get search of files that satisfy the constraints of a search. Returned
+     * search only requests instance_id and id of files, so it is faster. The
+     * datasets of files must be given in
+     * {@link #getFileRecordsOfDatasets(RESTfulSearch, List)}
+     *
+     * @param search
+     *            search service request
+     * @return new search of files to download
+     */
+    public static RESTfulSearch getSearchOfFilesToDownload(RESTfulSearch search) {
+        logger.trace("[IN]  getSearchOfFilesToDownload");
+
         logger.debug("Create new search");
         RESTfulSearch newSearch;
-
         try {
             newSearch = (RESTfulSearch) search.clone();
+        } catch (CloneNotSupportedException e) {
+            logger.warn("CloneNotSupportedException in clone search, this should not happen.");
+            newSearch = search;
+        }
 
-            logger.debug("Set parameters:type=file, dataset_id=id, fields=instance_id");
-            // Set parameters for search files. This files must belong to a
-            // dataset with actual id value and only must contain his
-            // instance_id When we limit the request faster
-            newSearch.getParameters().setType(RecordType.FILE); // type=file
-            newSearch.getParameters().setDatasetId(id); // dataset_id=id
-            Set<Metadata> fields = new HashSet<Metadata>(); // fields=instance_id
-            fields.add(Metadata.INSTANCE_ID);
-            fields.add(Metadata.ID);
-            newSearch.getParameters().setFields(fields);
+        logger.debug("Set parameters:type=file, fields=instance_id");
+        // Set parameters for search files. This files only must contain his
+        // instance_id When we limit the request faster
+        newSearch.getParameters().setType(RecordType.FILE); // type=file
+        Set<Metadata> fields = new HashSet<Metadata>(); // fields=instance_id
+        fields.add(Metadata.INSTANCE_ID);
+        fields.add(Metadata.ID);
+        newSearch.getParameters().setFields(fields);
 
-            // convert in JSON format
-            newSearch.getParameters().setFormat(Format.JSON);
+        // convert in JSON format
+        newSearch.getParameters().setFormat(Format.JSON);
 
-            logger.debug("Doing the request:  {}",
-                    newSearch.generateServiceURL());
-            Set<Record> fileRecords = new HashSet<Record>();
-            try {
-                fileRecords = getRecordsFromSearch(newSearch, false);
-            } catch (IOException e) {
-                logger.error(
-                        "Error in getInstanceIdOfFilesToDownload. {} : \n",
-                        newSearch.generateServiceURL(), e.getStackTrace());
-                throw e;
-            } catch (HTTPStatusCodeException e) {
-                logger.error(
-                        "Error in getInstanceIdOfFilesToDownload. {} : \n",
-                        newSearch.generateServiceURL(), e.getStackTrace());
-                throw e;
-            }
+        logger.trace("[OUT] getSearchOfFilesToDownload");
+        return newSearch;
+    }
 
-            logger.debug("Getting all isntance_id of file records returned");
-            for (Record record : fileRecords) {
-                String instanceID = (String) record
-                        .getMetadata(Metadata.INSTANCE_ID);
-                if (instanceID != null) {
-                    instanceIds.add(instanceID);
-                } else {
-                    logger.warn("Instance ID null in file {} in index_node",
-                            record.getMetadata(Metadata.ID),
-                            search.getIndexNode());
-                }
-            }
+    /**
+     * Get file records of several datasets in the same request. The search is
+     * restricted to files of the given datasets (dataset_id=id1&dataset_id=id2
+     * ... is an OR in ESGF search service), the combined response is paged as
+     * any other search and then records are grouped by their dataset id.
+     *
+     * @param search
+     *            search service request of files. It isn't modified
+     * @param datasetIds
+     *            ids of dataset replicas
+     * @return map of dataset id - file records of dataset. All given dataset
+     *         ids are in map, with an empty set if dataset hasn't files that
+     *         satisfy the search
+     * @throws IOException
+     *             if happens an error in ESGF search service
+     * @throws HTTPStatusCodeException
+     *             if http status code isn't OK/200
+     */
+    public static Map<String, Set<Record>> getFileRecordsOfDatasets(
+            RESTfulSearch search, List<String> datasetIds) throws IOException,
+            HTTPStatusCodeException {
+        logger.trace("[IN]  getFileRecordsOfDatasets");
 
-        } catch (CloneNotSupportedException e1) {
+        Map<String, Set<Record>> recordsByDataset = new HashMap<String, Set<Record>>();
+        for (String datasetId : datasetIds) {
+            recordsByDataset.put(datasetId, new HashSet<Record>());
+        }
+
+        RESTfulSearch newSearch;
+        try {
+            newSearch = (RESTfulSearch) search.clone();
+        } catch (CloneNotSupportedException e) {
             logger.warn("CloneNotSupportedException in clone search, this should not happen.");
+            newSearch = search;
+        }
+        newSearch.getParameters().setDatasetId(
+                new LinkedList<String>(datasetIds));
+
+        // dataset id of each file is needed to know its dataset
+        Set<Metadata> fields = newSearch.getParameters().getFields();
+        if (fields != null && !fields.isEmpty()
+                && !fields.contains(Metadata.DATASET_ID)) {
+            fields = new HashSet<Metadata>(fields);
+            fields.add(Metadata.DATASET_ID);
+            newSearch.getParameters().setFields(fields);
         }
 
-        return instanceIds;
+        logger.debug("Requesting files of {} datasets: {}", datasetIds.size(),
+                newSearch.generateServiceURL());
+        Set<Record> records = getRecordsFromSearch(newSearch, false);
+
+        for (Record record : records) {
+            String datasetId = (String) record.getMetadata(Metadata.DATASET_ID);
+            Set<Record> datasetRecords = recordsByDataset.get(datasetId);
+            if (datasetRecords != null) {
+                datasetRecords.add(record);
+            } else {
+                logger.warn("File {} doesn't belong to requested datasets",
+                        record.getMetadata(Metadata.ID));
+            }
+        }
+
+        logger.trace("[OUT] getFileRecordsOfDatasets");
+        return recordsByDataset;
+    }
+
+    /**
+     * Submit a request of file records of several datasets in the same
+     * request (see {@link #getFileRecordsOfDatasets(RESTfulSearch, List)}).
+     * Caller doesn't wait the response, it is notified to callback.
+     *
+     * @param search
+     *            search service request of files. It mustn't be modified later
+     * @param datasetIds
+     *            ids of dataset replicas. It mustn't be modified later
+     * @param callback
+     *            callback notified when records are received or null
+     * @return future map of dataset id - file records of dataset
+     */
+    public static Future<Map<String, Set<Record>>> submitFileRecordsOfDatasets(
+            final RESTfulSearch search, final List<String> datasetIds,
+            SearchCallback<Map<String, Set<Record>>> callback) {
+        logger.trace("[IN]  submitFileRecordsOfDatasets");
+
+        Future<Map<String, Set<Record>>> future = SearchClient.getInstance()
+                .submit(new Callable<Map<String, Set<Record>>>() {
+                    @Override
+                    public Map<String, Set<Record>> call() throws Exception {
+                        return getFileRecordsOfDatasets(search, datasetIds);
+                    }
+                }, callback);
+
+        logger.trace("[OUT] submitFileRecordsOfDatasets");
+        return future;
     }
 
     public static List<String> getESGFNodes() throws Exception {
@@ -1070,7 +1471,8 @@ public class RequestManager {
      * @param retryInAllESGFNodes
      *            <ul>
      *            <li><strong>true</strong> to retrying search request in
-     *            another index nodes of ESGF if the search request fails</li>
+     *            another index nodes of ESGF if the search request fails
+     *            or, in hedged mode, doesn't answer in its latency budget</li>
      *            <li><strong>false</strong> to only send one request to the
      *            index node that was configured in search (
      *            {@link RESTfulSearch} )</li>
@@ -1093,6 +1495,15 @@ public class RequestManager {
             throws IOException {
         logger.trace("[IN]  getNumOfRecordsFromSearch");
 
+        // index node of search is requested first, with the rest of index
+        // nodes as hedges. Throws IOException if fails in all nodes
+        if (retryInAllESGFNodes) {
+            int numOfRecords = getNumOfRecordsFromSearchInIndexNodes(search,
+                    allReplicas);
+            logger.trace("[OUT] getNumOfRecordsFromSearch");
+            return numOfRecords;
+        }
+
         logger.debug("Setting new service search. Limit=0");
 
         RESTfulSearch newSearch;
@@ -1127,22 +1538,12 @@ public class RequestManager {
             numOfRecords = response.getInt("numFound");
 
         } catch (Exception e) {
-            if (retryInAllESGFNodes) {
-                logger.warn(
-                        "Exception obtaining numberOfRecords in the search: {}.",
-                        search.generateServiceURL());
-                // try in other nodes. Throws IOException if fails in all nodes
-                numOfRecords = getNumOfRecordsFromSearchInSomeAnotherNode(
-                        search, allReplicas);
-                return numOfRecords;
-            } else {
-                logger.error(
-                        "Exception obtaining numberOfRecords in the search: {}.",
-                        search.generateServiceURL());
-                throw new IOException(
-                        "Exception obtaining numberOfRecords in the search "
-                                + search.generateServiceURL());
-            }
+            logger.error(
+                    "Exception obtaining numberOfRecords in the search: {}.",
+                    search.generateServiceURL());
+            throw new IOException(
+                    "Exception obtaining numberOfRecords in the search "
+                            + search.generateServiceURL());
         }
 
         logger.trace("[OUT] getNumOfRecordsFromSearch");
@@ -1203,81 +1604,19 @@ public class RequestManager {
             HTTPStatusCodeException {
         logger.trace("[IN]  getRecordsFromSearch");
 
-        Set<Record> records = new HashSet<Record>();
-        boolean retryRequest = false;
-        RESTfulSearch newSearch;
-
+        // index node of search is requested first, with the rest of index
+        // nodes as hedges
+        Set<Record> records;
         try {
-            newSearch = (RESTfulSearch) search.clone();
-
-            // convert in JSON format
-            newSearch.getParameters().setFormat(Format.JSON);
-
-            // Get number of recordsthat are returned by a request
-            String searchStr = newSearch.generateServiceURL().toString();
-
-            logger.debug(
-                    "Getting number of records in search {} from index {}",
-                    searchStr, search.getIndexNode());
-            int numberOfRecords = getNumOfRecordsFromSearch(newSearch, true,
-                    false);
-
-            logger.debug("Number of records: {}", numberOfRecords);
-            if (numberOfRecords == 0) {
-                if (retryIfReturnsZero) {
-                    retryRequest = true;
-                } else {
-                    logger.debug("This search haven't records. {}", searchStr);
-                    return records;
-                }
-
-            } else { // numberOfRecords>0
-                logger.debug("Generating records");
-                // Private method that get the ESGF records by consecutive
-                // requests.
-                records = getRecordsFromSearch(newSearch, numberOfRecords);
-
-                if (records.size() != numberOfRecords) {
-                    logger.warn(
-                            "Error in index node: {}. Number of records"
-                                    + " of response != to number of returned record in response"
-                                    + " of search {}", search.getIndexNode(),
-                            search.generateServiceURL());
-                    logger.warn(
-                            "Number of records= {} number of size of set of records = {}",
-                            numberOfRecords, records.size());
-                }
-            }
+            records = getRecordsFromSearchInIndexNodes(search,
+                    retryIfReturnsZero);
         } catch (IOException e) {
-            logger.warn(
-                    "Error that can not be avoided by reducing the size of the request in search {} in index {}",
-                    search.generateServiceURL(), search.getIndexNode());
-            retryRequest = true;
-
-        } catch (CloneNotSupportedException e) {
-            logger.error("CloneNotSupportedException in clone search, this should not happen.");
+            logger.error(
+                    "Error that can not be avoided by reducing the size of the request or searching in all nodes{}, \n{}",
+                    search.generateServiceURL(), e.getStackTrace());
             throw new IOException(
-                    "CloneNotSupportedException launched in getRecordsFromSearch() for search ("
-                            + search.generateServiceURL() + ")");
-        }
-
-        // If index node of search throws some Exception
-        // or if "retryIfReturnsZero"=true and index node
-        // returned 0 records
-        if (retryRequest) {
-            // try in another index nodes
-            records = new HashSet<Record>();
-            try {
-                records = getRecordsFromSearchInSomeAnotherNode(search,
-                        retryIfReturnsZero);
-            } catch (IOException e1) {
-                logger.error(
-                        "Error that can not be avoided by reducing the size of the request or searching in all nodes{}, \n{}",
-                        search.generateServiceURL(), e1.getStackTrace());
-                throw new IOException(
-                        "Error that can not be avoided by reducing the size of the request or searching in all nodes. "
-                                + e1.getMessage());
-            }
+                    "Error that can not be avoided by reducing the size of the request or searching in all nodes. "
+                            + e.getMessage());
         }
 
         logger.debug("Records have been generated successfully");
@@ -1286,6 +1625,37 @@ public class RequestManager {
         return records;
     }
 
+    /**
+     * Submit a request of the records that are returned by a search service
+     * of ESGF (see {@link #getRecordsFromSearch(RESTfulSearch, boolean)}).
+     * Caller doesn't wait the response, it is notified to callback.
+     *
+     * @param search
+     *            search service request. It mustn't be modified later
+     * @param retryIfReturnsZero
+     *            true to retrying search request in another nodes of ESGF if
+     *            the request returns 0 records
+     * @param callback
+     *            callback notified when records are received or null
+     * @return future records that are returned by ESGF
+     */
+    public static Future<Set<Record>> submitRecordsFromSearch(
+            final RESTfulSearch search, final boolean retryIfReturnsZero,
+            SearchCallback<Set<Record>> callback) {
+        logger.trace("[IN]  submitRecordsFromSearch");
+
+        Future<Set<Record>> future = SearchClient.getInstance().submit(
+                new Callable<Set<Record>>() {
+                    @Override
+                    public Set<Record> call() throws Exception {
+                        return getRecordsFromSearch(search, retryIfReturnsZero);
+                    }
+                }, callback);
+
+        logger.trace("[OUT] submitRecordsFromSearch");
+        return future;
+    }
+
     /**
      * Get records that are returned by a request from search service of ESGF.
      * Private method for get the ESGF records by consecutive requests in case
@@ -1332,12 +1702,10 @@ public class RequestManager {
 
                 // If the number of records does not exceed the maximum number
                 // of them than can be processed, the request is sent directly.
-                logger.debug("Getting content from an ESGF search service request");
+                logger.debug("Getting records from an ESGF search service request");
                 search.getParameters().setLimit(numberOfRecords);
-                // Get content of search request and converts the response in a
-                // set of Records
-                String responseContent = getContentFromSearch(search);
-                records = convertJSONResponseInRecords(responseContent);
+                // Get records from response of search request
+                records = getRecordsFromResponse(search);
             } catch (Exception e) {
 
                 // The maximum number of records that can be processed by
@@ -1365,9 +1733,11 @@ public class RequestManager {
 
     /**
      * Get records that are returned by a request from search service of ESGF.
-     * Private method that it can call itself recursively in case that necessary
-     * to be reduced the number of records requested in each ESGF request. Can
-     * be called for the private method getRecordsFromSearch(Search,
+     * Private method that requests the pages of records at the same time, up
+     * to {@link SearchClient#MAX_CONCURRENT_REQUESTS_BY_INDEX_NODE} requests
+     * in the index node of search. Each page is requested with its own copy
+     * of search and the records of pages are added to result as they arrive.
+     * Can be called for the private method getRecordsFromSearch(Search,
      * numberOfRecords).
      *
      * @param search
@@ -1382,6 +1752,7 @@ public class RequestManager {
      *             if happens an error that can not be avoided by reducing the
      *             size of the request or changing index node
      */
+    @SuppressWarnings("unchecked")
     private static Set<Record> getRecordsFromSearch(RESTfulSearch search,
             int totalNumberOfRecords, int maxNumberOfRecords)
             throws IOException {
@@ -1395,45 +1766,317 @@ public class RequestManager {
             throw new IOException();
         }
 
+        if (cursorPaging) {
+            Set<Record> totalRecords = getRecordsFromSearchWithCursor(search,
+                    totalNumberOfRecords, maxNumberOfRecords);
+            if (totalRecords != null) {
+                logger.trace(
+                        "[OUT] private getRecordsFromSearch(Search,{},{})",
+                        totalNumberOfRecords, maxNumberOfRecords);
+                return totalRecords;
+            }
+
+            // index node doesn't sort or filter by id as expected
+            logger.warn("Pages with cursor of {} don't return the records of"
+                    + " search. Requesting pages with offset",
+                    search.generateServiceURL());
+        }
+
         // Initialize set of records
-        Set<Record> records = new HashSet<Record>();
         Set<Record> totalRecords = new HashSet<Record>();
 
         logger.debug("Calculing number of requests.");
         int numberOfRequests = (int) (Math.ceil((double) totalNumberOfRecords
                 / (double) (maxNumberOfRecords)));
-        search.getParameters().setLimit(maxNumberOfRecords);
 
         logger.debug("Number of requests are: {}", numberOfRequests);
-        for (int i = 0; i < numberOfRequests; i++) {
-            logger.debug("Processing request number {} with offset: {}", i,
-                    maxNumberOfRecords * i);
-            search.getParameters().setOffset(maxNumberOfRecords * i);
+        // records of each page or its error, as they arrive
+        final BlockingQueue<Object> pageResponses = new LinkedBlockingQueue<Object>();
+        SearchCallback<Set<Record>> pageCallback = new SearchCallback<Set<Record>>() {
+            @Override
+            public void onSuccess(Set<Record> records) {
+                pageResponses.add(records);
+            }
+
+            @Override
+            public void onError(Exception e) {
+                pageResponses.add(e);
+            }
+        };
+        List<Future<Set<Record>>> pages = new LinkedList<Future<Set<Record>>>();
+
+        try {
+            for (int i = 0; i < numberOfRequests; i++) {
+                final int offset = maxNumberOfRecords * i;
+                final int numberOfPageRecords = Math.min(maxNumberOfRecords,
+                        totalNumberOfRecords - offset);
+                final int maxNumberOfPageRecords = maxNumberOfRecords;
+
+                // each page has its own search, so offset and limit of pages
+                // don't change others
+                final RESTfulSearch pageSearch;
+                try {
+                    pageSearch = (RESTfulSearch) search.clone();
+                } catch (CloneNotSupportedException e) {
+                    logger.error("CloneNotSupportedException in clone search, this should not happen.");
+                    throw new IOException(
+                            "CloneNotSupportedException launched in getRecordsFromSearch() for search ("
+                                    + search.generateServiceURL() + ")");
+                }
+
+                logger.debug("Processing request number {} with offset: {}",
+                        i, offset);
+                // pages are aborted with the request of this thread
+                pages.add(SearchClient.getInstance().submit(
+                        search.getIndexNode(), new Callable<Set<Record>>() {
+                            @Override
+                            public Set<Record> call() throws Exception {
+                                return getRecordsFromPage(pageSearch, offset,
+                                        numberOfPageRecords,
+                                        maxNumberOfPageRecords);
+                            }
+                        }, pageCallback));
+            }
+
+            // Add records of pages as they arrive
+            for (int i = 0; i < numberOfRequests; i++) {
+                Object pageResponse = pageResponses.take();
+                if (pageResponse instanceof IOException) {
+                    throw (IOException) pageResponse;
+                } else if (pageResponse instanceof Exception) {
+                    throw new IOException("Unexpeted error in the request: "
+                            + search.generateServiceURL(),
+                            (Exception) pageResponse);
+                }
+                totalRecords.addAll((Set<Record>) pageResponse);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Request " + search.generateServiceURL()
+                    + " has been interrupted", e);
+        } finally {
+            // if a page fails the other pages aren't needed
+            for (Future<Set<Record>> page : pages) {
+                page.cancel(true);
+            }
+        }
+
+        logger.trace("[OUT] private getRecordsFromSearch(Search,{},{})",
+                totalNumberOfRecords, maxNumberOfRecords);
+        return totalRecords;
+    }
+
+    /**
+     * Get records of a page of search. Private method that it can call itself
+     * recursively if a request fails. In this case the page is requested
+     * again in requests with half the value of max records, and the other
+     * pages aren't requested again.
+     *
+     * @param search
+     *            search service request of page. Its offset and limit are
+     *            changed
+     * @param offset
+     *            offset of first record of page
+     * @param numberOfRecords
+     *            number of records of page
+     * @param maxNumberOfRecords
+     *            the maximum number of records than can be processed in a
+     *            request
+     * @return set of records of page
+     * @throws IOException
+     *             if happens an error that can not be avoided by reducing the
+     *             size of the request
+     */
+    private static Set<Record> getRecordsFromPage(RESTfulSearch search,
+            int offset, int numberOfRecords, int maxNumberOfRecords)
+            throws IOException {
+        logger.trace("[IN]  getRecordsFromPage(Search,{},{})", offset,
+                maxNumberOfRecords);
+
+        // if max number of records can't be less than 1
+        if (maxNumberOfRecords < 1) {
+            logger.error("Error that can not be avoided by reducing the size of the request");
+            throw new IOException();
+        }
+
+        Set<Record> records = new HashSet<Record>();
+        int end = offset + numberOfRecords;
+        for (int requestOffset = offset; requestOffset < end; requestOffset += maxNumberOfRecords) {
+            int limit = Math.min(maxNumberOfRecords, end - requestOffset);
+            search.getParameters().setOffset(requestOffset);
+            search.getParameters().setLimit(limit);
 
             try {
-                logger.debug("Getting content from an ESGF search service request");
-                String responseContent = getContentFromSearch(search);
-                records = convertJSONResponseInRecords(responseContent);
+                logger.debug("Getting records from an ESGF search service request");
+                records.addAll(getRecordsFromResponse(search));
             } catch (Exception e) {
-                // If an error happens, it calls itself with half the value of
-                // max records
-                records = getRecordsFromSearch(search, totalNumberOfRecords,
-                        maxNumberOfRecords / 2);
+                // If an error happens, only this request is done again with
+                // half the value of max records
                 logger.warn("Unexpeted error in the request: {}",
                         search.generateServiceURL());
+                records.addAll(getRecordsFromPage(search, requestOffset,
+                        limit, maxNumberOfRecords / 2));
+            }
+        }
+
+        logger.trace("[OUT] getRecordsFromPage(Search,{},{})", offset,
+                maxNumberOfRecords);
+        return records;
+    }
+
+    /**
+     * Get records that are returned by a request from search service of ESGF
+     * requesting pages with a cursor. Results are sorted by id and each page
+     * is requested with the constraint "id greater than last id of previous
+     * page" added to query of search, instead of an offset. Pages are
+     * requested until a page returns less records than requested. If a
+     * request fails, it is requested again with half the value of max
+     * records.
+     *
+     * <p>
+     * Records are only right if index node sorts and filters by id. If a page
+     * returns a record whose id isn't greater than the cursor, or if the
+     * number of records returned isn't the number of records of search, null
+     * is returned and the caller must request the pages with offset.
+     * </p>
+     *
+     * @param search
+     *            search service request
+     * @param totalNumberOfRecords
+     *            number of records that are returned by search
+     * @param maxNumberOfRecords
+     *            the maximum number of records than can be processed in a
+     *            request
+     * @return set of records that are returned by ESGF or null if pages with
+     *         cursor don't return the records of search
+     * @throws IOException
+     *             if happens an error that can not be avoided by reducing the
+     *             size of the request
+     */
+    private static Set<Record> getRecordsFromSearchWithCursor(
+            RESTfulSearch search, int totalNumberOfRecords,
+            int maxNumberOfRecords) throws IOException {
+        logger.trace("[IN]  getRecordsFromSearchWithCursor");
+
+        RESTfulSearch cursorSearch;
+        try {
+            cursorSearch = (RESTfulSearch) search.clone();
+        } catch (CloneNotSupportedException e) {
+            logger.error("CloneNotSupportedException in clone search, this should not happen.");
+            throw new IOException(
+                    "CloneNotSupportedException launched in getRecordsFromSearch() for search ("
+                            + search.generateServiceURL() + ")");
+        }
+
+        Parameters parameters = cursorSearch.getParameters();
+        String query = parameters.getQuery();
+        parameters.setSort(CURSOR_SORT);
+        parameters.setOffset(0);
+
+        // id is needed to know the last id of each page. Fields are copied
+        // because they are shared with the search of caller
+        Set<Metadata> fields = parameters.getFields();
+        if (fields != null && !fields.isEmpty()
+                && !fields.contains(Metadata.ID)) {
+            fields = new HashSet<Metadata>(fields);
+            fields.add(Metadata.ID);
+            parameters.setFields(fields);
+        }
+
+        Set<Record> totalRecords = new HashSet<Record>();
+        String lastId = null;
+        int pageSize = maxNumberOfRecords;
+        boolean finished = false;
+        while (!finished) {
+            // if max number of records can't be less than 1
+            if (pageSize < 1) {
+                logger.error("Error that can not be avoided by reducing the size of the request");
+                throw new IOException();
+            }
+
+            parameters.setLimit(pageSize);
+            parameters.setQuery(getCursorQuery(query, lastId));
+
+            Set<Record> records;
+            try {
+                logger.debug("Getting records after id {}", lastId);
+                records = getRecordsFromResponse(cursorSearch);
+            } catch (Exception e) {
+                // If an error happens, this page is requested again with half
+                // the value of max records
+                logger.warn("Unexpeted error in the request: {}",
+                        cursorSearch.generateServiceURL());
+                pageSize = pageSize / 2;
+                continue;
+            }
+
+            // last id of page is the cursor of next page. All ids must be
+            // greater than the cursor of this page
+            String cursor = lastId;
+            for (Record record : records) {
+                String id = record.getMetadata(Metadata.ID);
+                if (id == null
+                        || (cursor != null && id.compareTo(cursor) <= 0)) {
+                    logger.trace("[OUT] getRecordsFromSearchWithCursor");
+                    return null;
+                }
+                if (lastId == null || id.compareTo(lastId) > 0) {
+                    lastId = id;
+                }
             }
 
             totalRecords.addAll(records);
+            finished = records.size() < pageSize || lastId == null;
+            pageSize = maxNumberOfRecords;
         }
 
-        logger.trace("[OUT] private getRecordsFromSearch(Search,{},{})",
-                totalNumberOfRecords, maxNumberOfRecords);
+        // if index node doesn't sort by id, pages skip records
+        if (totalRecords.size() != totalNumberOfRecords) {
+            logger.debug("Pages with cursor have returned {} records of {}",
+                    totalRecords.size(), totalNumberOfRecords);
+            logger.trace("[OUT] getRecordsFromSearchWithCursor");
+            return null;
+        }
+
+        logger.trace("[OUT] getRecordsFromSearchWithCursor");
         return totalRecords;
     }
 
+    /**
+     * Get query of a page requested with a cursor. Adds to query of search a
+     * range constraint of ids greater than last id of previous page.
+     *
+     * @param query
+     *            query of search or null
+     * @param lastId
+     *            last id of previous page or null in first page
+     * @return query of page
+     */
+    private static String getCursorQuery(String query, String lastId) {
+        logger.trace("[IN]  getCursorQuery");
+
+        if (lastId == null) {
+            logger.trace("[OUT] getCursorQuery");
+            return query;
+        }
+
+        // id between quotes, escaping quotes and backslashes
+        String cursor = "id:{\""
+                + lastId.replace("\\", "\\\\").replace("\"", "\\\"")
+                + "\" TO *]";
+
+        logger.trace("[OUT] getCursorQuery");
+        if (query == null || query.trim().length() == 0) {
+            return cursor;
+        }
+        return "(" + query + ") AND " + cursor;
+    }
+
     /**
      * Private method that get records that are returned by a request searching
-     * in all ESGF Nodes if it is necessary.
+     * in all ESGF Nodes if it is necessary. Index node of search is requested
+     * first and then the rest of index nodes from the healthiest to the least
+     * healthy (see {@link #requestInIndexNodes}).
      *
      * @param search
      *            search service request
@@ -1451,133 +2094,93 @@ public class RequestManager {
      * @param records
      *            Set of instance of {@link Record}
      * @throws IOException
-     *             if exist some error in the configuration file or fails in all
+     *             if request fails in index node of search and in all known
      *             nodes
      */
-    private static Set<Record> getRecordsFromSearchInSomeAnotherNode(
-            RESTfulSearch search, boolean retryIfReturnsZero)
+    private static Set<Record> getRecordsFromSearchInIndexNodes(
+            final RESTfulSearch search, final boolean retryIfReturnsZero)
             throws IOException {
 
-        logger.trace("[IN]  getRecordsFromSearchInSomeAnotherNode");
+        logger.trace("[IN]  getRecordsFromSearchInIndexNodes");
 
         logger.debug("Reading nodes from configuration file.");
         List<String> nodes;
         try {
             nodes = getESGFNodes();
         } catch (Exception e1) {
-            logger.error("Error in read of configure file");
-            // throws io exception
-            throw new IOException("Error in read of configure file");
+            // only index node of search is requested
+            logger.warn("Error in read of configure file");
+            nodes = new ArrayList<String>();
         }
 
-        // boolean that indicates if some index node of ESGF
-        // return zero records in response to search
-        boolean zeroResponse = false;
-
-        if (nodes != null) {
-            int numberOfNode = 0;
-            boolean cont = true;
-
-            logger.debug("Searching records in indexNode: {}",
-                    nodes.get(numberOfNode));
-            while (cont && numberOfNode < nodes.size()) {
-
-                RESTfulSearch newSearch;
-                try {
-                    newSearch = (RESTfulSearch) search.clone();
-
-                    newSearch.setIndexNode(nodes.get(numberOfNode));
-
-                    // transform local search in distrib search
-                    // because do a local search haven't sense
-                    // in this method
-                    if (!search.getParameters().isDistrib()) {
-                        newSearch.getParameters().setDistrib(true);
-                    }
-
-                    // convert in JSON format
-                    newSearch.getParameters().setFormat(Format.JSON);
+        Set<Record> records = requestInIndexNodes(nodes,
+                search.getIndexNode(), new IndexNodeRequest<Set<Record>>() {
+                    @Override
+                    Set<Record> request(String indexNode, Runnable answered)
+                            throws Exception {
+                        RESTfulSearch newSearch = (RESTfulSearch) search
+                                .clone();
+                        newSearch.setIndexNode(indexNode);
+
+                        // transform local search in distrib search in other
+                        // index nodes because do a local search of another
+                        // index node haven't sense
+                        if (!indexNode.equals(search.getIndexNode())
+                                && !search.getParameters().isDistrib()) {
+                            newSearch.getParameters().setDistrib(true);
+                        }
 
-                    try {
+                        // convert in JSON format
+                        newSearch.getParameters().setFormat(Format.JSON);
 
                         int numberOfRecords = RequestManager
                                 .getNumOfRecordsFromSearch(newSearch, true,
                                         false);
-                        Set<Record> records = getRecordsFromSearch(newSearch,
-                                numberOfRecords);
+                        answered.run();
 
-                        // return records if number of records >0
-                        // or is =0 and retryIfReturnsZero=false
-                        if (records.size() == 0) {
-                            if (!retryIfReturnsZero) {
-
-                                // success
-                                return records;
-                            } else {
-                                // indicates that in some index node of ESGF
-                                // return zero records in response to search
-                                zeroResponse = true;
-                            }
-                        } else {
-                            // success
-                            return records;
+                        if (numberOfRecords == 0) {
+                            return new HashSet<Record>();
                         }
 
-                    } catch (IOException e) {
-                        logger.warn("Error trying to download {}: {}",
-                                newSearch.generateServiceURL(),
-                                e.getStackTrace());
-                    } catch (Exception e) {
-                        logger.warn("Error trying to download {}: {}",
-                                newSearch.generateServiceURL(),
-                                e.getStackTrace());
+                        Set<Record> records = getRecordsFromSearch(newSearch,
+                                numberOfRecords);
+                        if (records.size() != numberOfRecords) {
+                            logger.warn(
+                                    "Error in index node: {}. Number of records"
+                                            + " of response ({}) != number of returned records ({})",
+                                    new Object[] { indexNode, numberOfRecords,
+                                            records.size() });
+                        }
+                        return records;
                     }
 
-                } catch (CloneNotSupportedException e1) {
-                    logger.warn("This search {} isn't cloneable: {}", search,
-                            e1.getStackTrace());
-                }
-
-                // If happens some Exception or retryIfReturnsZero=true
-                // and request return zero records the retry in other node
-                numberOfNode++;
-            }
-
-            // if loop ends because there aren't more nodes and
-            // retryIfReturnsZero==false (indicates doesn't retrying the request
-            // if the search request returns 0 records). In this case return an
-            // empty set of records
-            if (!retryIfReturnsZero) { // throws error
-                logger.error("Error in search of all ESGF nodes for {}", search);
-                // throws io exception
-                logger.trace("[OUT] getRecordsFromSearchInSomeAnotherNode");
-                throw new IOException();
-            }
+                    @Override
+                    boolean isAccepted(Set<Record> records) {
+                        // if retryIfReturnsZero=true and index node returns
+                        // zero records the request is retried in other nodes
+                        return records.size() > 0 || !retryIfReturnsZero;
+                    }
+                });
 
-            // if some index node of ESGF returned zero records in response to
-            // search
-            if (zeroResponse) {
-                // return empty set of records
-                return new HashSet<Record>();
-            } else {
-                // if zeroResponse==false means that all index nodes in ESGF
-                // throwed Exception
-                logger.error("Error in search of all ESGF nodes for {}", search);
-                // throws io exception
-                logger.trace("[OUT] getRecordsFromSearchInSomeAnotherNode");
-                throw new IOException();
-            }
-        } else {
-            logger.error("Error in read of configure file");
+        // if all index nodes of ESGF throwed Exception
+        if (records == null) {
+            logger.error("Error in search of all ESGF nodes for {}", search);
             // throws io exception
-            throw new IOException("Error in read of configure file");
+            logger.trace("[OUT] getRecordsFromSearchInIndexNodes");
+            throw new IOException();
         }
 
+        // records of an index node or an empty set of records if some index
+        // node returned zero records in response to search
+        logger.trace("[OUT] getRecordsFromSearchInIndexNodes");
+        return records;
     }
 
     /**
      * Private method that search the number of records in ESGF that satisfy the
-     * constraints defined in a {@link RESTfulSearch}
+     * constraints defined in a {@link RESTfulSearch}. Index node of search is
+     * requested first and then the rest of index nodes from the healthiest to
+     * the least healthy (see {@link #requestInIndexNodes}).
      *
      * @param search
      *            search service request
@@ -1592,58 +2195,56 @@ public class RequestManager {
      *            </ul>
      *
      * @throws IOException
-     *             if exist some error in the configuration file or if the
-     *             request fails in all known nodes of ESGF
+     *             if request fails in index node of search and in all known
+     *             nodes of ESGF
      */
-    private static int getNumOfRecordsFromSearchInSomeAnotherNode(
-            RESTfulSearch search, boolean allReplicas) throws IOException {
-        logger.trace("[IN]  getNumOfRecordsFromSearchInSomeAnotherNode");
+    private static int getNumOfRecordsFromSearchInIndexNodes(
+            final RESTfulSearch search, final boolean allReplicas)
+            throws IOException {
+        logger.trace("[IN]  getNumOfRecordsFromSearchInIndexNodes");
 
         logger.debug("Reading nodes from configuration file.");
         List<String> nodes;
         try {
             nodes = getESGFNodes();
         } catch (Exception e1) {
-            logger.error("Error in read of configure file");
-            // throws io exception
-            throw new IOException("Error in read of configure file");
+            // only index node of search is requested
+            logger.warn("Error in read of configure file");
+            nodes = new ArrayList<String>();
         }
 
-        if (nodes != null) {
-            int numberOfNode = 0;
-
-            logger.debug("Searching records in indexNode: {}",
-                    nodes.get(numberOfNode));
-            while (numberOfNode < nodes.size()) {
-
-                RESTfulSearch newSearch;
-                int numOfRecords = -1;
-                try {
-                    newSearch = (RESTfulSearch) search.clone();
-
-                    newSearch.setIndexNode(nodes.get(numberOfNode));
-                    newSearch.getParameters().setLimit(0);
-                    newSearch.getParameters().setFacets(null);
-
-                    // transform local search in distrib search
-                    // because do local serch haven't sense
-                    // in this method
-                    if (!search.getParameters().isDistrib()) {
-                        newSearch.getParameters().setDistrib(true);
-                    }
-
-                    if (!allReplicas) {
-                        newSearch.getParameters().setReplica(Replica.MASTER);
-                    }
+        Integer numOfRecords = requestInIndexNodes(nodes,
+                search.getIndexNode(), new IndexNodeRequest<Integer>() {
+                    @Override
+                    Integer request(String indexNode, Runnable answered)
+                            throws Exception {
+                        RESTfulSearch newSearch = (RESTfulSearch) search
+                                .clone();
+
+                        newSearch.setIndexNode(indexNode);
+                        newSearch.getParameters().setLimit(0);
+                        newSearch.getParameters().setFacets(null);
+
+                        // transform local search in distrib search in other
+                        // index nodes because do a local search of another
+                        // index node haven't sense
+                        if (!indexNode.equals(search.getIndexNode())
+                                && !search.getParameters().isDistrib()) {
+                            newSearch.getParameters().setDistrib(true);
+                        }
 
-                    // convert in JSON format
-                    newSearch.getParameters().setFormat(Format.JSON);
+                        if (!allReplicas) {
+                            newSearch.getParameters()
+                                    .setReplica(Replica.MASTER);
+                        }
 
-                    try {
+                        // convert in JSON format
+                        newSearch.getParameters().setFormat(Format.JSON);
 
                         logger.debug("Getting content from an ESGF search service request");
                         // Get string from RESTfulSearch
                         String responseContent = getContentFromSearch(newSearch);
+                        answered.run();
 
                         logger.debug("Getting number of records");
                         // JSON object
@@ -1654,38 +2255,232 @@ public class RequestManager {
 
                         // Number of datasets found. This corresponds with the
                         // element numFound in "response"
-                        numOfRecords = response.getInt("numFound");
-
-                        logger.trace("[OUT] getNumOfRecordsFromSearchInSomeAnotherNode");
-                        return numOfRecords;
-
-                    } catch (Exception e) {
-                        logger.warn("Error trying to download {}: {}",
-                                newSearch.generateServiceURL(),
-                                e.getStackTrace());
+                        return response.getInt("numFound");
                     }
+                });
 
-                } catch (CloneNotSupportedException e1) {
-                    logger.warn("This search {} isn't cloneable: {}", search,
-                            e1.getStackTrace());
-                }
-
-                numberOfNode++;
-            }
-
-            // if end loops because there aren't more nodes
+        // if all index nodes of ESGF throwed Exception
+        if (numOfRecords == null) {
             logger.error(
                     "Error searching number of records of a search in all ESGF nodes for {}",
                     search.generateServiceURL());
 
             // throws io exception
             throw new IOException();
+        }
 
-        } else {
+        logger.trace("[OUT] getNumOfRecordsFromSearchInIndexNodes");
+        return numOfRecords;
+    }
 
-            logger.error("Error in read of configure file");
-            // throws io exception
-            throw new IOException("Error in read of configure file");
+    /**
+     * Private method that sends a request to index nodes until one of them
+     * returns an accepted response. Index nodes are requested from the
+     * healthiest to the least healthy. If an index node fails, the request is
+     * sent to next index node.
+     *
+     * <p>
+     * In hedged mode, if an index node doesn't answer in its latency budget,
+     * the request is also sent to next index node, without cancel the first.
+     * The first accepted response wins and the http requests of the others
+     * are aborted. When an index node has answered, no more index nodes are
+     * requested while it doesn't fail.
+     * </p>
+     *
+     * <p>
+     * Latency and errors of an index node are only recorded when its response
+     * has been received over the network, not read from
+     * {@link SearchResponseCache}.
+     * </p>
+     *
+     * @param nodes
+     *            index nodes
+     * @param preferredNode
+     *            index node that is requested first, although it isn't the
+     *            healthiest, or null. It's requested also if it isn't in nodes
+     * @param request
+     *            request to send to each index node
+     * @return first accepted response, last response that wasn't accepted if
+     *         no response has been accepted, or null if all index nodes have
+     *         failed
+     * @throws IOException
+     *             if request has been interrupted
+     */
+    private static <T> T requestInIndexNodes(List<String> nodes,
+            String preferredNode, final IndexNodeRequest<T> request)
+            throws IOException {
+        logger.trace("[IN]  requestInIndexNodes");
+
+        IndexNodeSelector selector = IndexNodeSelector.getInstance();
+        List<String> sortedNodes = selector.sortIndexNodes(nodes);
+        if (preferredNode != null) {
+            sortedNodes.remove(preferredNode);
+            sortedNodes.add(0, preferredNode);
+        }
+
+        CompletionService<T> requests = new ExecutorCompletionService<T>(
+                hedgedRequestExecutor);
+        Map<Future<T>, String> activeRequests = new HashMap<Future<T>, String>();
+        // flags of active requests whose index node has answered
+        Map<Future<T>, AtomicBoolean> answers = new HashMap<Future<T>, AtomicBoolean>();
+        // http requests of each active request
+        Map<Future<T>, SearchRequestHandle> handles = new HashMap<Future<T>, SearchRequestHandle>();
+
+        T result = null;
+        boolean accepted = false;
+        int numberOfNode = 0;
+        long deadline = 0;
+
+        try {
+            while (!accepted
+                    && (numberOfNode < sortedNodes.size() || !activeRequests
+                            .isEmpty())) {
+
+                boolean answered = false;
+                for (AtomicBoolean answer : answers.values()) {
+                    answered = answered || answer.get();
+                }
+
+                // Send request to next index node if there aren't active
+                // requests or active requests haven't answered in budget
+                if (numberOfNode < sortedNodes.size()
+                        && (activeRequests.isEmpty() || (hedgedRequests
+                                && !answered && System
+                                .currentTimeMillis() >= deadline))) {
+                    final String indexNode = sortedNodes.get(numberOfNode);
+                    numberOfNode++;
+
+                    if (!activeRequests.isEmpty()) {
+                        logger.debug("Index nodes haven't answered in time."
+                                + " Requesting also to {}", indexNode);
+                    }
+                    logger.debug("Searching in indexNode: {}", indexNode);
+                    final AtomicBoolean answer = new AtomicBoolean(false);
+                    // requests of index node are aborted with the request of
+                    // this thread too
+                    final SearchRequestHandle handle = new SearchRequestHandle(
+                            SearchRequestHandle.getCurrent());
+                    Future<T> future = requests.submit(new Callable<T>() {
+                        @Override
+                        public T call() throws Exception {
+                            long requestStart = System.currentTimeMillis();
+                            SearchRequestHandle.setCurrent(handle);
+                            try {
+                                return request.request(indexNode,
+                                        new Runnable() {
+                                            @Override
+                                            public void run() {
+                                                answer.set(true);
+                                            }
+                                        });
+                            } finally {
+                                SearchRequestHandle.setCurrent(null);
+                                handle.detach();
+                                // responses of cache aren't latency of index
+                                // node
+                                long responseTime = handle.getResponseTime();
+                                if (responseTime > 0) {
+                                    IndexNodeSelector.getInstance()
+                                            .recordLatency(indexNode,
+                                                    responseTime - requestStart);
+                                }
+                            }
+                        }
+                    });
+                    activeRequests.put(future, indexNode);
+                    answers.put(future, answer);
+                    handles.put(future, handle);
+                    deadline = System.currentTimeMillis()
+                            + selector.getLatencyBudget(indexNode);
+                }
+
+                // Wait next response or the end of latency budget
+                Future<T> response;
+                if (hedgedRequests && !answered
+                        && numberOfNode < sortedNodes.size()) {
+                    response = requests.poll(
+                            Math.max(0, deadline - System.currentTimeMillis()),
+                            TimeUnit.MILLISECONDS);
+                } else {
+                    response = requests.take();
+                }
+
+                if (response != null) {
+                    String indexNode = activeRequests.remove(response);
+                    answers.remove(response);
+                    SearchRequestHandle handle = handles.remove(response);
+                    try {
+                        result = response.get();
+                        accepted = request.isAccepted(result);
+                    } catch (ExecutionException e) {
+                        logger.warn("Error trying to search in {}: {}",
+                                indexNode, e.getCause());
+                        // errors of responses of cache aren't errors of
+                        // index node
+                        if (handle.isSent()) {
+                            selector.recordError(indexNode);
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Request to index nodes has been interrupted",
+                    e);
+        } finally {
+            // loser requests are cancelled. Interrupt a thread doesn't stop
+            // a http request blocked reading its socket, so http requests are
+            // aborted. Index nodes that haven't answered are stalled
+            for (Map.Entry<Future<T>, String> activeRequest : activeRequests
+                    .entrySet()) {
+                SearchRequestHandle handle = handles.get(activeRequest
+                        .getKey());
+                handle.abort();
+                if (activeRequest.getKey().cancel(true)) {
+                    logger.debug("Request to {} cancelled",
+                            activeRequest.getValue());
+                    if (handle.isSent()
+                            && !answers.get(activeRequest.getKey()).get()) {
+                        selector.recordError(activeRequest.getValue());
+                    }
+                }
+            }
+        }
+
+        logger.trace("[OUT] requestInIndexNodes");
+        return result;
+    }
+
+    /**
+     * Request to an index node, sent by {@link #requestInIndexNodes}.
+     */
+    private abstract static class IndexNodeRequest<T> {
+
+        /**
+         * Send request to an index node
+         *
+         * @param indexNode
+         *            index node
+         * @param answered
+         *            must be run when index node has answered (i.e. the first
+         *            response of index node has been received)
+         * @return response of index node
+         * @throws Exception
+         *             if request fails
+         */
+        abstract T request(String indexNode, Runnable answered)
+                throws Exception;
+
+        /**
+         * Check if a response is accepted. If it isn't accepted, request is
+         * sent to next index node. By default all responses are accepted.
+         *
+         * @param response
+         *            response of an index node
+         * @return true if response is accepted and false otherwise
+         */
+        boolean isAccepted(T response) {
+            return true;
         }
     }
 
@@ -0,0 +1,30 @@
+package es.unican.meteo.esgf.petition;
+
+/**
+ * Callback of an asynchronous request of {@link SearchClient}. It is notified
+ * in the thread that executes the request when response has been processed or
+ * when an error has happened.
+ *
+ * @author Karem Terry
+ *
+ * @param <T>
+ *            type of result of request
+ */
+public interface SearchCallback<T> {
+
+    /**
+     * If a successful response is notified
+     *
+     * @param result
+     *            result of request
+     */
+    public void onSuccess(T result);
+
+    /**
+     * If an error in request is notified
+     *
+     * @param e
+     *            error of request
+     */
+    public void onError(Exception e);
+}
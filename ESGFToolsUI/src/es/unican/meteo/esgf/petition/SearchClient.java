@@ -0,0 +1,374 @@
+package es.unican.meteo.esgf.petition;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+
+import es.unican.meteo.esgf.search.RESTfulSearch;
+import es.unican.meteo.esgf.search.Record;
+
+/**
+ * Client of ESGF search services shared by all requests. Requests are executed
+ * with a unique {@link HttpClient} whose connections are pooled and kept alive
+ * between requests to the same index node, instead of opening a new connection
+ * in each request.
+ *
+ * <p>
+ * Requests are submitted asynchronously: a {@link Future} is returned and
+ * optionally a {@link SearchCallback} is notified, so the caller doesn't wait
+ * the response. Requests of an index node (e.g. pages of a search) are queued
+ * in the executor of their index node, which executes up to
+ * {@link #MAX_CONCURRENT_REQUESTS_BY_INDEX_NODE} requests at the same time, so
+ * a lot of outstanding requests share a few threads and connections without
+ * overload index nodes. Requests that can be sent to several index nodes are
+ * executed in a shared executor.
+ * </p>
+ *
+ * <p>
+ * Cancel a returned {@link Future} aborts the http requests in progress of
+ * its request (see {@link SearchRequestHandle}).
+ * </p>
+ *
+ * @author Karem Terry
+ *
+ */
+public class SearchClient {
+
+    /** Logger. */
+    static private org.slf4j.Logger logger = org.slf4j.LoggerFactory
+            .getLogger(SearchClient.class);
+
+    /** Maximum number of requests at the same time in an index node. */
+    public static final int MAX_CONCURRENT_REQUESTS_BY_INDEX_NODE = 4;
+
+    /**
+     * Maximum number of pooled connections to an index node. Greater than
+     * {@link #MAX_CONCURRENT_REQUESTS_BY_INDEX_NODE} because synchronous
+     * requests (counts, facets, hedged requests) don't use executors of index
+     * nodes.
+     */
+    private static final int MAX_CONNECTIONS_BY_INDEX_NODE = 8;
+
+    /** Maximum number of pooled connections. */
+    private static final int MAX_CONNECTIONS = 64;
+
+    /** Timeout to establish a connection, in ms. */
+    private static final int CONNECTION_TIMEOUT = 30000; // 30 s
+
+    /** Timeout waiting data of a connection, in ms. */
+    private static final int SOCKET_TIMEOUT = 300000; // 5 min
+
+    /** Seconds that an idle thread of an index node is kept alive. */
+    private static final long THREAD_KEEP_ALIVE = 60;
+
+    /** Singleton instance. */
+    private static SearchClient INSTANCE = null;
+
+    /** Http client with pooled connections. */
+    private HttpClient httpClient;
+
+    /** Executors of requests by index node. */
+    private Map<String, ExecutorService> indexNodeExecutors;
+
+    /** Executor of requests that can be sent to several index nodes. */
+    private ExecutorService searchExecutor;
+
+    /**
+     * Create a thread-safe singleton.
+     */
+    private static void createInstance() {
+        logger.trace("[IN]  createInstance");
+
+        logger.debug("Checking if exist an instance of SearchClient");
+        // creating a thread-safe singleton
+        if (INSTANCE == null) {
+
+            // Only the synchronized block is accessed when the instance hasn't
+            // been created.
+            synchronized (SearchClient.class) {
+                // Inside the block it must check again that the instance has
+                // not been created.
+                if (INSTANCE == null) {
+                    logger.debug("Creating new instance of SearchClient");
+                    INSTANCE = new SearchClient();
+                }
+            }
+        }
+        logger.trace("[OUT] createInstance");
+    }
+
+    /**
+     * Get singleton instance of {@link SearchClient}. This instance is the only
+     * that exists.
+     *
+     * @return the unique instance of {@link SearchClient}.
+     */
+    public static SearchClient getInstance() {
+        logger.trace("[IN]  getInstance");
+        createInstance();
+        logger.trace("[OUT] getInstance");
+        return INSTANCE;
+    }
+
+    /**
+     * Constructor. Configure pool of connections.
+     */
+    private SearchClient() {
+        logger.trace("[IN]  SearchClient");
+
+        MultiThreadedHttpConnectionManager connectionManager = new MultiThreadedHttpConnectionManager();
+        HttpConnectionManagerParams params = connectionManager.getParams();
+        params.setMaxTotalConnections(MAX_CONNECTIONS);
+        params.setDefaultMaxConnectionsPerHost(MAX_CONNECTIONS_BY_INDEX_NODE);
+        params.setConnectionTimeout(CONNECTION_TIMEOUT);
+        params.setSoTimeout(SOCKET_TIMEOUT);
+
+        this.httpClient = new HttpClient(connectionManager);
+        this.indexNodeExecutors = new HashMap<String, ExecutorService>();
+        this.searchExecutor = Executors
+                .newCachedThreadPool(new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger(0);
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "search-request-"
+                                + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+
+        logger.trace("[OUT] SearchClient");
+    }
+
+    /**
+     * Get http client shared by all requests. Connection of each request must
+     * be released to be returned to pool.
+     *
+     * @return http client with pooled connections
+     */
+    public HttpClient getHttpClient() {
+        logger.trace("[IN]  getHttpClient");
+        logger.trace("[OUT] getHttpClient");
+        return httpClient;
+    }
+
+    /**
+     * Get executor of requests of an index node. It executes up to
+     * {@link #MAX_CONCURRENT_REQUESTS_BY_INDEX_NODE} requests at the same time
+     * and queues the rest. Threads finish when they are idle. Synchronized.
+     *
+     * @param indexNode
+     *            index node
+     * @return executor of requests of index node
+     */
+    public synchronized ExecutorService getIndexNodeExecutor(
+            final String indexNode) {
+        logger.trace("[IN]  getIndexNodeExecutor");
+
+        ExecutorService executor = indexNodeExecutors.get(indexNode);
+        if (executor == null) {
+            ThreadPoolExecutor newExecutor = new ThreadPoolExecutor(
+                    MAX_CONCURRENT_REQUESTS_BY_INDEX_NODE,
+                    MAX_CONCURRENT_REQUESTS_BY_INDEX_NODE, THREAD_KEEP_ALIVE,
+                    TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger(
+                                0);
+
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "search-"
+                                    + indexNode + "-" + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            newExecutor.allowCoreThreadTimeOut(true);
+            executor = newExecutor;
+            indexNodeExecutors.put(indexNode, executor);
+        }
+
+        logger.trace("[OUT] getIndexNodeExecutor");
+        return executor;
+    }
+
+    /**
+     * Submit a request to the executor of an index node. Request mustn't wait
+     * other requests of index node.
+     *
+     * @param indexNode
+     *            index node that is requested
+     * @param request
+     *            request
+     * @param callback
+     *            callback notified when request finishes or null
+     * @return future result of request
+     */
+    public <T> Future<T> submit(String indexNode, Callable<T> request,
+            SearchCallback<T> callback) {
+        logger.trace("[IN]  submit");
+
+        FutureTask<T> task = newTask(request, callback);
+        getIndexNodeExecutor(indexNode).execute(task);
+
+        logger.trace("[OUT] submit");
+        return task;
+    }
+
+    /**
+     * Submit a request that can be sent to several index nodes, or that waits
+     * other requests (e.g. a search whose pages are requested at the same
+     * time).
+     *
+     * @param request
+     *            request
+     * @param callback
+     *            callback notified when request finishes or null
+     * @return future result of request
+     */
+    public <T> Future<T> submit(Callable<T> request, SearchCallback<T> callback) {
+        logger.trace("[IN]  submit");
+
+        FutureTask<T> task = newTask(request, callback);
+        searchExecutor.execute(task);
+
+        logger.trace("[OUT] submit");
+        return task;
+    }
+
+    /**
+     * Submit a request of the content of a search response. Response is
+     * requested in the index node of search.
+     *
+     * @param search
+     *            search service request. It mustn't be modified later
+     * @param callback
+     *            callback notified when response is received or null
+     * @return future content of response
+     */
+    public Future<String> submitContent(final RESTfulSearch search,
+            SearchCallback<String> callback) {
+        logger.trace("[IN]  submitContent");
+
+        Future<String> future = submit(search.getIndexNode(),
+                new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        return RequestManager.getContentFromSearch(search);
+                    }
+                }, callback);
+
+        logger.trace("[OUT] submitContent");
+        return future;
+    }
+
+    /**
+     * Submit a request of the records of a search response (only the page of
+     * offset and limit of search). Response is requested in the index node of
+     * search and its records are read while response is received.
+     *
+     * @param search
+     *            search service request. It mustn't be modified later
+     * @param callback
+     *            callback notified when records are received or null
+     * @return future records of response
+     */
+    public Future<Set<Record>> submitRecords(final RESTfulSearch search,
+            SearchCallback<Set<Record>> callback) {
+        logger.trace("[IN]  submitRecords");
+
+        Future<Set<Record>> future = submit(search.getIndexNode(),
+                new Callable<Set<Record>>() {
+                    @Override
+                    public Set<Record> call() throws Exception {
+                        return RequestManager.getRecordsFromResponse(search);
+                    }
+                }, callback);
+
+        logger.trace("[OUT] submitRecords");
+        return future;
+    }
+
+    /**
+     * Create task of a request. Http requests of task are registered in its
+     * own handle, which is aborted if task is cancelled. If task is submitted
+     * while other request is executed (e.g. a page of a search), its handle
+     * is aborted with the handle of that request too.
+     *
+     * @param request
+     *            request
+     * @param callback
+     *            callback notified when request finishes or null
+     * @return task of request
+     */
+    private <T> FutureTask<T> newTask(final Callable<T> request,
+            final SearchCallback<T> callback) {
+        final SearchRequestHandle handle = new SearchRequestHandle(
+                SearchRequestHandle.getCurrent());
+
+        return new FutureTask<T>(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                SearchRequestHandle previous = SearchRequestHandle
+                        .getCurrent();
+                SearchRequestHandle.setCurrent(handle);
+                try {
+                    return request.call();
+                } finally {
+                    SearchRequestHandle.setCurrent(previous);
+                }
+            }
+        }) {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                // interrupt thread doesn't stop a http request blocked
+                // reading its socket
+                boolean cancelled = super.cancel(mayInterruptIfRunning);
+                if (cancelled) {
+                    handle.abort();
+                }
+                return cancelled;
+            }
+
+            @Override
+            protected void done() {
+                handle.detach();
+                if (callback == null || isCancelled()) {
+                    return;
+                }
+
+                T result;
+                try {
+                    result = get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Exception) {
+                        callback.onError((Exception) e.getCause());
+                    } else {
+                        callback.onError(e);
+                    }
+                    return;
+                }
+                callback.onSuccess(result);
+            }
+        };
+    }
+}
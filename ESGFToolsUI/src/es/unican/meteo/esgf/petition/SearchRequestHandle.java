@@ -0,0 +1,282 @@
+package es.unican.meteo.esgf.petition;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.httpclient.methods.GetMethod;
+
+/**
+ * Http requests sent to ESGF search services on behalf of one request to an
+ * index node, including the pages of its response that are requested in other
+ * threads. Cancel a {@link java.util.concurrent.Future} doesn't stop a
+ * {@link GetMethod} that is blocked reading its socket, so requests are
+ * registered in the handle of their thread and aborted with the handle.
+ * Handles of requests that are sent by other request (e.g. pages of a search)
+ * are children of its handle, and they are aborted with it.
+ *
+ * <p>
+ * The handle also knows if some request has been sent over the network and
+ * when its first response was received, so responses read from
+ * {@link SearchResponseCache} aren't taken as latency of index node.
+ * </p>
+ *
+ * @author Karem Terry
+ *
+ */
+class SearchRequestHandle {
+
+    /** Logger. */
+    static private org.slf4j.Logger logger = org.slf4j.LoggerFactory
+            .getLogger(SearchRequestHandle.class);
+
+    /** Handle of requests of each thread. */
+    private static final ThreadLocal<SearchRequestHandle> CURRENT = new ThreadLocal<SearchRequestHandle>();
+
+    /** Handle of request that has sent this request, or null. */
+    private SearchRequestHandle parent;
+
+    /** Handles of requests sent by this request that haven't finished. */
+    private Set<SearchRequestHandle> children;
+
+    /** Requests in progress. */
+    private Set<GetMethod> requests;
+
+    /** If handle has been aborted. */
+    private boolean aborted;
+
+    /** If some request has been sent. */
+    private boolean sent;
+
+    /** Time of first response, in ms, or 0 if there isn't response. */
+    private long responseTime;
+
+    /**
+     * Constructor.
+     *
+     * @param parent
+     *            handle of request that sends this request or null. If it has
+     *            been aborted, this handle is aborted too
+     */
+    SearchRequestHandle(SearchRequestHandle parent) {
+        this.parent = parent;
+        this.children = new HashSet<SearchRequestHandle>();
+        this.requests = new HashSet<GetMethod>();
+        this.aborted = false;
+        this.sent = false;
+        this.responseTime = 0;
+
+        if (parent != null && !parent.addChild(this)) {
+            this.aborted = true;
+        }
+    }
+
+    /**
+     * Get handle of requests of current thread.
+     *
+     * @return handle of current thread or null
+     */
+    static SearchRequestHandle getCurrent() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Set handle of requests of current thread.
+     *
+     * @param handle
+     *            handle of current thread or null to remove it
+     */
+    static void setCurrent(SearchRequestHandle handle) {
+        if (handle == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(handle);
+        }
+    }
+
+    /**
+     * Register a request in handle of current thread, if there is one. Must
+     * be called before execute request.
+     *
+     * @param request
+     *            http request
+     * @throws InterruptedIOException
+     *             if handle of current thread has been aborted
+     */
+    static void register(GetMethod request) throws InterruptedIOException {
+        SearchRequestHandle handle = CURRENT.get();
+        if (handle != null) {
+            handle.add(request);
+        }
+    }
+
+    /**
+     * Notify to handle of current thread, if there is one, that a request has
+     * received its response.
+     */
+    static void responded() {
+        SearchRequestHandle handle = CURRENT.get();
+        if (handle != null) {
+            handle.setResponded();
+        }
+    }
+
+    /**
+     * Unregister a request of handle of current thread, if there is one. Must
+     * be called when request has finished.
+     *
+     * @param request
+     *            http request
+     */
+    static void unregister(GetMethod request) {
+        SearchRequestHandle handle = CURRENT.get();
+        if (handle != null) {
+            handle.remove(request);
+        }
+    }
+
+    /**
+     * Add a request in progress.
+     *
+     * @param request
+     *            http request
+     * @throws InterruptedIOException
+     *             if handle has been aborted
+     */
+    void add(GetMethod request) throws InterruptedIOException {
+        synchronized (this) {
+            if (aborted) {
+                throw new InterruptedIOException("Request has been aborted");
+            }
+            requests.add(request);
+            sent = true;
+        }
+
+        // parent isn't locked with this handle locked (see abort)
+        if (parent != null) {
+            parent.setSent();
+        }
+    }
+
+    /**
+     * Remove a request that has finished. Synchronized.
+     *
+     * @param request
+     *            http request
+     */
+    synchronized void remove(GetMethod request) {
+        requests.remove(request);
+    }
+
+    /**
+     * Save time of first response.
+     */
+    void setResponded() {
+        synchronized (this) {
+            if (responseTime == 0) {
+                responseTime = System.currentTimeMillis();
+            }
+        }
+
+        if (parent != null) {
+            parent.setResponded();
+        }
+    }
+
+    /**
+     * Remove handle from its parent. Must be called when request has finished.
+     */
+    void detach() {
+        if (parent != null) {
+            parent.removeChild(this);
+        }
+    }
+
+    /**
+     * Abort requests in progress and requests of children handles. Requests
+     * registered later fail.
+     */
+    void abort() {
+        logger.trace("[IN]  abort");
+
+        List<SearchRequestHandle> abortedChildren;
+        synchronized (this) {
+            aborted = true;
+            for (GetMethod request : requests) {
+                logger.debug("Aborting request {}", request.getPath());
+                request.abort();
+            }
+            requests.clear();
+            abortedChildren = new ArrayList<SearchRequestHandle>(children);
+            children.clear();
+        }
+
+        // children are aborted without this handle locked, because they lock
+        // their parent
+        for (SearchRequestHandle child : abortedChildren) {
+            child.abort();
+        }
+
+        logger.trace("[OUT] abort");
+    }
+
+    /**
+     * Check if some request has been sent over the network. Synchronized.
+     *
+     * @return true if some request has been sent, otherwise false
+     */
+    synchronized boolean isSent() {
+        return sent;
+    }
+
+    /**
+     * Add a child handle. Synchronized.
+     *
+     * @param child
+     *            child handle
+     * @return false if this handle has been aborted and child isn't added,
+     *         otherwise true
+     */
+    private synchronized boolean addChild(SearchRequestHandle child) {
+        if (aborted) {
+            return false;
+        }
+        children.add(child);
+        return true;
+    }
+
+    /**
+     * Remove a child handle. Synchronized.
+     *
+     * @param child
+     *            child handle
+     */
+    private synchronized void removeChild(SearchRequestHandle child) {
+        children.remove(child);
+    }
+
+    /**
+     * Save that some request has been sent.
+     */
+    private void setSent() {
+        synchronized (this) {
+            sent = true;
+        }
+
+        if (parent != null) {
+            parent.setSent();
+        }
+    }
+
+    /**
+     * Get time of first response. Synchronized.
+     *
+     * @return time of first response, in ms, or 0 if no request has received
+     *         its response
+     */
+    synchronized long getResponseTime() {
+        return responseTime;
+    }
+}
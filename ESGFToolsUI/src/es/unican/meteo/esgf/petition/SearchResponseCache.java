@@ -0,0 +1,653 @@
+package es.unican.meteo.esgf.petition;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpMethod;
+
+/**
+ * Persistent cache of responses of ESGF search service. Responses are saved by
+ * its normalized url (parameters of query string sorted), so the same search
+ * isn't requested again to index node while its response is fresh (time to
+ * live). An expired response is revalidated with the http validators of
+ * response (ETag and Last-Modified) if index node returned them.
+ *
+ * <p>
+ * Cache is bounded by its size in bytes (UTF-8). When it is full, the least
+ * recently used responses are removed. Cache is saved in file system between
+ * sessions. Cache is copied while it is locked and the copy is written in
+ * its own thread, so searches don't wait for the file system.
+ * </p>
+ *
+ * @author Karem Terry
+ *
+ */
+public class SearchResponseCache {
+
+    /** Logger. */
+    static private org.slf4j.Logger logger = org.slf4j.LoggerFactory
+            .getLogger(SearchResponseCache.class);
+
+    /** Default time in milliseconds that a response is fresh. */
+    private static final long DEFAULT_TIME_TO_LIVE = 600000; // 10 min
+
+    /** Default maximum size of cache in bytes of responses. */
+    private static final long DEFAULT_MAX_SIZE = 8388608; // 8M
+
+    /** Milliseconds between two saves of cache. */
+    private static final long SAVE_INTERVAL = 60000; // 1 min
+
+    /** File name of cache. */
+    private static final String CACHE_FILE_NAME = "search_response_cache.data";
+
+    /** Singleton instance. */
+    private static SearchResponseCache INSTANCE = null;
+
+    /** Responses by normalized url, in order of access (LRU). */
+    private LinkedHashMap<String, CachedResponse> responses;
+
+    /** Size of cache in bytes of responses. */
+    private long size;
+
+    /** Maximum size of cache in bytes of responses. */
+    private long maxSize;
+
+    /** Time in milliseconds that a response is fresh. */
+    private long timeToLive;
+
+    /** Number of requests with a fresh response in cache. */
+    private long hits;
+
+    /** Number of requests without a fresh response in cache. */
+    private long misses;
+
+    /** Number of expired responses revalidated by index node. */
+    private long revalidations;
+
+    /** Path of cache file. */
+    private String cachePath;
+
+    /** True if cache has changed since last save. */
+    private boolean changed;
+
+    /** Time of last save of cache. */
+    private long lastSave;
+
+    /** Thread that writes copies of cache in file system, in order. */
+    private ExecutorService saver;
+
+    /**
+     * Create a thread-safe singleton.
+     */
+    private static void createInstance() {
+        logger.trace("[IN]  createInstance");
+
+        logger.debug("Checking if exist an instance of SearchResponseCache");
+        // creating a thread-safe singleton
+        if (INSTANCE == null) {
+
+            // Only the synchronized block is accessed when the instance hasn't
+            // been created.
+            synchronized (SearchResponseCache.class) {
+                // Inside the block it must check again that the instance has
+                // not been created.
+                if (INSTANCE == null) {
+                    logger.debug("Creating new instance of SearchResponseCache");
+                    INSTANCE = new SearchResponseCache();
+                }
+            }
+        }
+        logger.trace("[OUT] createInstance");
+    }
+
+    /**
+     * Get singleton instance of {@link SearchResponseCache}. This instance is
+     * the only that exists.
+     *
+     * @return the unique instance of {@link SearchResponseCache}.
+     */
+    public static SearchResponseCache getInstance() {
+        logger.trace("[IN]  getInstance");
+        createInstance();
+        logger.trace("[OUT] getInstance");
+        return INSTANCE;
+    }
+
+    /**
+     * Constructor. Load cache of previous sessions.
+     */
+    private SearchResponseCache() {
+        logger.trace("[IN]  SearchResponseCache");
+
+        this.cachePath = System.getProperty("user.home") + File.separator
+                + ".esgData" + File.separator + CACHE_FILE_NAME;
+        this.maxSize = DEFAULT_MAX_SIZE;
+        this.timeToLive = DEFAULT_TIME_TO_LIVE;
+        this.responses = new LinkedHashMap<String, CachedResponse>(16, 0.75f,
+                true);
+        this.size = 0;
+        for (CachedResponse response : loadResponses().values()) {
+            response.bytes = getBytes(response.content);
+            this.responses.put(response.url, response);
+            this.size = this.size + response.bytes;
+        }
+        evict();
+        this.changed = false;
+        this.lastSave = System.currentTimeMillis();
+        this.saver = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "search-cache-saver");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        logger.trace("[OUT] SearchResponseCache");
+    }
+
+    /**
+     * Get fresh response of an url. Synchronized.
+     *
+     * @param url
+     *            url of search service request
+     * @return content of response or null if cache hasn't a fresh response of
+     *         url
+     */
+    public synchronized String getContent(String url) {
+        logger.trace("[IN]  getContent");
+
+        String content = null;
+        CachedResponse response = responses.get(normalize(url));
+        if (response != null
+                && System.currentTimeMillis() - response.timestamp < timeToLive) {
+            content = response.content;
+            hits++;
+        } else {
+            misses++;
+        }
+
+        logger.debug("Search response cache. Hits: {}, misses: {}", hits,
+                misses);
+        logger.trace("[OUT] getContent");
+        return content;
+    }
+
+    /**
+     * Add to a request of an url the http headers to revalidate the expired
+     * response of url in cache (If-None-Match and If-Modified-Since). Nothing
+     * is added if cache hasn't response of url or it hasn't validators.
+     * Synchronized.
+     *
+     * @param url
+     *            url of search service request
+     * @param request
+     *            http request that hasn't been executed
+     */
+    public synchronized void addValidators(String url, HttpMethod request) {
+        logger.trace("[IN]  addValidators");
+
+        CachedResponse response = responses.get(normalize(url));
+        if (response != null) {
+            if (response.eTag != null) {
+                request.setRequestHeader("If-None-Match", response.eTag);
+            }
+            if (response.lastModified != null) {
+                request.setRequestHeader("If-Modified-Since",
+                        response.lastModified);
+            }
+        }
+
+        logger.trace("[OUT] addValidators");
+    }
+
+    /**
+     * Get response of an url that index node has validated (http status code
+     * 304 Not Modified). Response is fresh again. Synchronized.
+     *
+     * @param url
+     *            url of search service request
+     * @return content of response or null if cache hasn't response of url
+     */
+    public synchronized String revalidate(String url) {
+        logger.trace("[IN]  revalidate");
+
+        String content = null;
+        CachedResponse response = responses.get(normalize(url));
+        if (response != null) {
+            response.timestamp = System.currentTimeMillis();
+            content = response.content;
+            revalidations++;
+            changed = true;
+            saveIfNeeded();
+        }
+
+        logger.trace("[OUT] revalidate");
+        return content;
+    }
+
+    /**
+     * Put response of an url in cache. If cache is full, the least recently
+     * used responses are removed. Synchronized.
+     *
+     * @param url
+     *            url of search service request
+     * @param content
+     *            content of response
+     * @param request
+     *            executed http request, to get http validators of response
+     */
+    public synchronized void put(String url, String content, HttpMethod request) {
+        logger.trace("[IN]  put");
+
+        // a response bigger than cache isn't saved
+        long bytes = getBytes(content);
+        if (bytes > maxSize) {
+            logger.trace("[OUT] put");
+            return;
+        }
+
+        CachedResponse response = new CachedResponse();
+        response.url = normalize(url);
+        response.content = content;
+        response.bytes = bytes;
+        response.timestamp = System.currentTimeMillis();
+        response.eTag = getHeaderValue(request, "ETag");
+        response.lastModified = getHeaderValue(request, "Last-Modified");
+
+        CachedResponse old = responses.put(response.url, response);
+        if (old != null) {
+            size = size - old.bytes;
+        }
+        size = size + bytes;
+        evict();
+
+        changed = true;
+        saveIfNeeded();
+        logger.trace("[OUT] put");
+    }
+
+    /**
+     * Remove all responses of cache. Synchronized.
+     */
+    public synchronized void clear() {
+        logger.trace("[IN]  clear");
+        responses.clear();
+        size = 0;
+        changed = true;
+        logger.trace("[OUT] clear");
+    }
+
+    /**
+     * Save cache in file system if it has changed and wait until it is
+     * written. Searches aren't blocked while cache is written.
+     */
+    public void save() {
+        logger.trace("[IN]  save");
+
+        Runnable write;
+        synchronized (this) {
+            write = copyToSave();
+        }
+
+        // written by saver thread after previous copies
+        if (write != null) {
+            try {
+                saver.submit(write).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                logger.warn("Search response cache can't be saved: {}",
+                        e.getMessage());
+            }
+        }
+
+        logger.trace("[OUT] save");
+    }
+
+    /**
+     * Get number of requests with a fresh response in cache. Synchronized.
+     *
+     * @return number of hits
+     */
+    public synchronized long getHits() {
+        logger.trace("[IN]  getHits");
+        logger.trace("[OUT] getHits");
+        return hits;
+    }
+
+    /**
+     * Get number of requests without a fresh response in cache. Synchronized.
+     *
+     * @return number of misses
+     */
+    public synchronized long getMisses() {
+        logger.trace("[IN]  getMisses");
+        logger.trace("[OUT] getMisses");
+        return misses;
+    }
+
+    /**
+     * Get number of expired responses revalidated by index node.
+     * Synchronized.
+     *
+     * @return number of revalidations
+     */
+    public synchronized long getRevalidations() {
+        logger.trace("[IN]  getRevalidations");
+        logger.trace("[OUT] getRevalidations");
+        return revalidations;
+    }
+
+    /**
+     * Get size of cache. Synchronized.
+     *
+     * @return size of cache in bytes of responses
+     */
+    public synchronized long getSize() {
+        logger.trace("[IN]  getSize");
+        logger.trace("[OUT] getSize");
+        return size;
+    }
+
+    /**
+     * Get maximum size of cache. Synchronized.
+     *
+     * @return maximum size of cache in bytes of responses
+     */
+    public synchronized long getMaxSize() {
+        logger.trace("[IN]  getMaxSize");
+        logger.trace("[OUT] getMaxSize");
+        return maxSize;
+    }
+
+    /**
+     * Set maximum size of cache. Least recently used responses are removed if
+     * cache is bigger. Synchronized.
+     *
+     * @param maxSize
+     *            maximum size of cache in bytes of responses
+     */
+    public synchronized void setMaxSize(long maxSize) {
+        logger.trace("[IN]  setMaxSize");
+        this.maxSize = maxSize;
+        evict();
+        logger.trace("[OUT] setMaxSize");
+    }
+
+    /**
+     * Get time that a response is fresh. Synchronized.
+     *
+     * @return time to live of responses in milliseconds
+     */
+    public synchronized long getTimeToLive() {
+        logger.trace("[IN]  getTimeToLive");
+        logger.trace("[OUT] getTimeToLive");
+        return timeToLive;
+    }
+
+    /**
+     * Set time that a response is fresh. Synchronized.
+     *
+     * @param timeToLive
+     *            time to live of responses in milliseconds
+     */
+    public synchronized void setTimeToLive(long timeToLive) {
+        logger.trace("[IN]  setTimeToLive");
+        this.timeToLive = timeToLive;
+        logger.trace("[OUT] setTimeToLive");
+    }
+
+    /**
+     * Normalize an url of search service. Parameters of query string are
+     * sorted, so urls of the same search are equals.
+     *
+     * @param url
+     *            url of search service request
+     * @return normalized url
+     */
+    static String normalize(String url) {
+        logger.trace("[IN]  normalize");
+
+        int queryStart = url.indexOf('?');
+        if (queryStart < 0) {
+            logger.trace("[OUT] normalize");
+            return url;
+        }
+
+        String[] parameters = url.substring(queryStart + 1).split("&");
+        Arrays.sort(parameters);
+
+        StringBuilder normalized = new StringBuilder(url.substring(0,
+                queryStart + 1));
+        for (String parameter : parameters) {
+            if (parameter.length() > 0) {
+                normalized.append(parameter).append('&');
+            }
+        }
+        // remove last "&"
+        normalized.setLength(normalized.length() - 1);
+
+        logger.trace("[OUT] normalize");
+        return normalized.toString();
+    }
+
+    /**
+     * Remove least recently used responses until cache isn't bigger than its
+     * maximum size.
+     */
+    private void evict() {
+        logger.trace("[IN]  evict");
+
+        Iterator<CachedResponse> iterator = responses.values().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            CachedResponse response = iterator.next();
+            size = size - response.bytes;
+            iterator.remove();
+            changed = true;
+        }
+
+        logger.trace("[OUT] evict");
+    }
+
+    /**
+     * Get size of content of a response in bytes (UTF-8)
+     *
+     * @param content
+     *            content of response
+     * @return size in bytes
+     */
+    private static long getBytes(String content) {
+        try {
+            return content.getBytes("UTF-8").length;
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            return content.length();
+        }
+    }
+
+    /**
+     * Get value of a response header of an executed request
+     *
+     * @param request
+     *            executed http request
+     * @param name
+     *            name of header
+     * @return value of header or null if response hasn't the header
+     */
+    private static String getHeaderValue(HttpMethod request, String name) {
+        Header header = request.getResponseHeader(name);
+        if (header == null) {
+            return null;
+        }
+        return header.getValue();
+    }
+
+    /**
+     * Load cache from file system.
+     *
+     * @return map of responses by url. Empty if cache doesn't exist or can't
+     *         be read
+     */
+    @SuppressWarnings("unchecked")
+    private Map<String, CachedResponse> loadResponses() {
+        logger.trace("[IN]  loadResponses");
+
+        Map<String, CachedResponse> loaded = new LinkedHashMap<String, CachedResponse>();
+        File file = new File(cachePath);
+
+        if (file.exists()) {
+            ObjectInputStream ois = null;
+            try {
+                ois = new ObjectInputStream(new FileInputStream(file));
+                loaded = (Map<String, CachedResponse>) ois.readObject();
+                logger.debug("{} search responses loaded", loaded.size());
+            } catch (Exception e) {
+                logger.warn("Search response cache can't be loaded: {}",
+                        e.getMessage());
+            } finally {
+                try {
+                    ois.close();
+                } catch (final Exception e) {
+                }
+            }
+        }
+
+        logger.trace("[OUT] loadResponses");
+        return loaded;
+    }
+
+    /**
+     * Save cache in file system in saver thread if save interval has elapsed.
+     * Caller must hold lock of cache.
+     */
+    private void saveIfNeeded() {
+        if (System.currentTimeMillis() - lastSave >= SAVE_INTERVAL) {
+            Runnable write = copyToSave();
+            if (write != null) {
+                saver.execute(write);
+            }
+        }
+    }
+
+    /**
+     * Copy cache to save it if it has changed. Caller must hold lock of
+     * cache.
+     *
+     * @return task that writes the copy of cache in file system or null if
+     *         cache hasn't changed
+     */
+    private Runnable copyToSave() {
+        if (!changed) {
+            return null;
+        }
+        lastSave = System.currentTimeMillis();
+        changed = false;
+
+        // responses are copied because their timestamps change
+        final LinkedHashMap<String, CachedResponse> copy = new LinkedHashMap<String, CachedResponse>();
+        for (CachedResponse response : responses.values()) {
+            copy.put(response.url, new CachedResponse(response));
+        }
+        final Object[] stats = new Object[] { copy.size(), hits, misses,
+                revalidations };
+
+        return new Runnable() {
+            @Override
+            public void run() {
+                writeResponses(copy);
+                logger.debug("Search response cache saved. Responses: {},"
+                        + " hits: {}, misses: {}, revalidations: {}", stats);
+            }
+        };
+    }
+
+    /**
+     * Write responses in cache file.
+     *
+     * @param copy
+     *            copy of responses by url
+     */
+    private void writeResponses(Map<String, CachedResponse> copy) {
+        logger.trace("[IN]  writeResponses");
+
+        ObjectOutputStream out = null;
+        try {
+            out = new ObjectOutputStream(new FileOutputStream(cachePath));
+            out.writeObject(copy);
+        } catch (IOException e) {
+            logger.warn("Search response cache can't be saved: {}",
+                    e.getMessage());
+        } finally {
+            try {
+                out.close();
+            } catch (final Exception e) {
+            }
+        }
+
+        logger.trace("[OUT] writeResponses");
+    }
+
+    /**
+     * Response of search service in cache.
+     */
+    private static class CachedResponse implements Serializable {
+
+        /** Serial version of saved responses. */
+        private static final long serialVersionUID = -8219804114858277059L;
+
+        /** Normalized url of request. */
+        private String url;
+
+        /** Content of response. */
+        private String content;
+
+        /** Time when response was received or revalidated. */
+        private long timestamp;
+
+        /** ETag header of response or null. */
+        private String eTag;
+
+        /** Last-Modified header of response or null. */
+        private String lastModified;
+
+        /** Size of content in bytes (UTF-8). Calculated when it's loaded. */
+        private transient long bytes;
+
+        /**
+         * Empty constructor
+         */
+        public CachedResponse() {
+        }
+
+        /**
+         * Copy constructor
+         *
+         * @param other
+         *            response to copy
+         */
+        public CachedResponse(CachedResponse other) {
+            this.url = other.url;
+            this.content = other.content;
+            this.timestamp = other.timestamp;
+            this.eTag = other.eTag;
+            this.lastModified = other.lastModified;
+            this.bytes = other.bytes;
+        }
+    }
+}
@@ -2,12 +2,19 @@ package es.unican.meteo.esgf.search;
 
 import java.io.File;
 import java.io.FileWriter;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.PrintWriter;
 import java.io.Serializable;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 
@@ -52,6 +59,12 @@ import org.json.JSONObject;
  */
 public class Dataset extends Record implements Serializable {
 
+    /**
+     * Serial version of datasets stored before files were indexed, to read
+     * them yet.
+     */
+    private static final long serialVersionUID = 3116855581893304937L;
+
     /** Set of File of which it is dataset composed . */
     private Set<DatasetFile> files;
 
@@ -69,7 +82,7 @@ public class Dataset extends Record implements Serializable {
      */
     public Dataset() {
         super();
-        files = new HashSet<DatasetFile>();
+        files = new IndexedFileSet();
         // Initialize observers
         observers = new LinkedList<DatasetObserver>();
     }
@@ -80,7 +93,7 @@ public class Dataset extends Record implements Serializable {
     public Dataset(String instanceID) {
         super(instanceID);
         harvestStatus = DatasetHarvestStatus.EMPTY;
-        files = new HashSet<DatasetFile>();
+        files = new IndexedFileSet();
         // Initialize observers
         observers = new LinkedList<DatasetObserver>();
     }
@@ -95,24 +108,12 @@ public class Dataset extends Record implements Serializable {
      */
     public DatasetFile getFileWithInstanceId(String instanceID) {
 
-        DatasetFile found = null;
-
-        // to compare standard representation of instanceID (without
-        // "_Number" in case of id finish with ".nc_Number")
-        String sInstanceID = standardizeESGFFileInstanceID(instanceID);
-
-        // Search in all files a file with its instace id = instanceID
-        for (DatasetFile file : files) {
-            String fileInstanceId = file.getMetadata(Metadata.INSTANCE_ID);
-            // to compare standard representation of instanceID (without
-            // "_Number" in case of id finish with ".nc_Number")
-            String sfileInstanceId = standardizeESGFFileInstanceID(fileInstanceId);
-            if (sfileInstanceId.equalsIgnoreCase(sInstanceID)) {
-                found = file;
-            }
+        if (instanceID == null || files == null) {
+            return null;
         }
 
-        return found;
+        // files are always indexed by setFiles and readObject
+        return ((IndexedFileSet) files).get(instanceID);
     }
 
     /**
@@ -124,7 +125,7 @@ public class Dataset extends Record implements Serializable {
      * @return the same instance_id if it is a valid id or a new corrected
      *         instance_id , otherwise
      */
-    private String standardizeESGFFileInstanceID(String instanceID) {
+    public static String standardizeESGFFileInstanceID(String instanceID) {
         // file instane id have this form
         //
         // project.output.model[...]_2000010106-2006010100.nc
@@ -159,7 +160,11 @@ public class Dataset extends Record implements Serializable {
      *            the files to set
      */
     public void setFiles(Set<DatasetFile> files) {
-        this.files = files;
+        if (files == null || files instanceof IndexedFileSet) {
+            this.files = files;
+        } else {
+            this.files = new IndexedFileSet(files);
+        }
     }
 
     /**
@@ -466,6 +471,260 @@ public class Dataset extends Record implements Serializable {
         this.files = dataset.getFiles();
     }
 
+    /**
+     * Read dataset of an object stream. Files of datasets stored before files
+     * were indexed are indexed.
+     * 
+     * @param in
+     *            object stream
+     * @throws IOException
+     *             if some error happens reading stream
+     * @throws ClassNotFoundException
+     *             if some class of dataset isn't found
+     */
+    private void readObject(ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+        in.defaultReadObject();
+        setFiles(files);
+    }
+
+    /**
+     * Get key of a file instance_id in index of files. Key is the standard
+     * representation of instanceID (without "_Number" in case of id finish with
+     * ".nc_Number") in lower case.
+     * 
+     * @param instanceID
+     *            instance_id of file
+     * @return key of file in index
+     */
+    private static String getFileKey(String instanceID) {
+        return standardizeESGFFileInstanceID(instanceID).toLowerCase(
+                Locale.ENGLISH);
+    }
+
+    /**
+     * Get key of a file in index of files.
+     * 
+     * @param file
+     *            dataset file
+     * @return key of file in index or null if file hasn't instance_id
+     */
+    private static String getFileKey(DatasetFile file) {
+        String instanceID = (String) file.getMetadata(Metadata.INSTANCE_ID);
+        if (instanceID == null) {
+            instanceID = file.getInstanceID();
+        }
+
+        if (instanceID == null) {
+            return null;
+        }
+
+        return getFileKey(instanceID);
+    }
+
+    /**
+     * Set of dataset files with an index of files by its standard instance_id,
+     * to get a file without search in all files. Index isn't serialized, it is
+     * rebuilt when set is read.
+     * 
+     * @author Karem Terry
+     * 
+     */
+    private static class IndexedFileSet extends AbstractSet<DatasetFile>
+            implements Serializable {
+
+        /** Serial version of stored datasets. */
+        private static final long serialVersionUID = -5397348658608774989L;
+
+        /** Dataset files. */
+        private HashSet<DatasetFile> files;
+
+        /** Files by its key ({@link Dataset#getFileKey(DatasetFile)}). */
+        private transient Map<String, DatasetFile> index;
+
+        /**
+         * Files of keys that belong to several files (i.e "file.nc_1" and
+         * "file.nc_2"), in order of addition. Only these keys are here.
+         */
+        private transient Map<String, List<DatasetFile>> duplicates;
+
+        /**
+         * Empty constructor.
+         */
+        public IndexedFileSet() {
+            files = new HashSet<DatasetFile>();
+            index = new HashMap<String, DatasetFile>();
+            duplicates = new HashMap<String, List<DatasetFile>>();
+        }
+
+        /**
+         * Constructor.
+         * 
+         * @param files
+         *            initial dataset files
+         */
+        public IndexedFileSet(Collection<DatasetFile> files) {
+            this.files = new HashSet<DatasetFile>(files);
+            buildIndex();
+        }
+
+        /**
+         * Get a file with an instance_id
+         * 
+         * @param instanceID
+         *            instance_id of file
+         * @return the file or null if not exists
+         */
+        public DatasetFile get(String instanceID) {
+            return index.get(getFileKey(instanceID));
+        }
+
+        @Override
+        public boolean add(DatasetFile file) {
+            boolean added = files.add(file);
+            if (added) {
+                addToIndex(file);
+            }
+            return added;
+        }
+
+        @Override
+        public boolean remove(Object object) {
+            boolean removed = files.remove(object);
+            if (removed) {
+                removeFromIndex((DatasetFile) object);
+            }
+            return removed;
+        }
+
+        @Override
+        public boolean contains(Object object) {
+            return files.contains(object);
+        }
+
+        @Override
+        public void clear() {
+            files.clear();
+            index.clear();
+            duplicates.clear();
+        }
+
+        @Override
+        public int size() {
+            return files.size();
+        }
+
+        @Override
+        public Iterator<DatasetFile> iterator() {
+            final Iterator<DatasetFile> iterator = files.iterator();
+            return new Iterator<DatasetFile>() {
+
+                /** Last file returned. */
+                private DatasetFile last;
+
+                @Override
+                public boolean hasNext() {
+                    return iterator.hasNext();
+                }
+
+                @Override
+                public DatasetFile next() {
+                    last = iterator.next();
+                    return last;
+                }
+
+                @Override
+                public void remove() {
+                    iterator.remove();
+                    removeFromIndex(last);
+                }
+            };
+        }
+
+        /**
+         * Build index of all files.
+         */
+        private void buildIndex() {
+            index = new HashMap<String, DatasetFile>(files.size() * 4 / 3 + 1);
+            duplicates = new HashMap<String, List<DatasetFile>>();
+            for (DatasetFile file : files) {
+                addToIndex(file);
+            }
+        }
+
+        /**
+         * Add a file to index. If other file has the same key, it is replaced
+         * in index and both are kept in duplicates.
+         * 
+         * @param file
+         *            dataset file
+         */
+        private void addToIndex(DatasetFile file) {
+            String key = getFileKey(file);
+            if (key == null) {
+                return;
+            }
+
+            DatasetFile old = index.put(key, file);
+            if (old != null && !old.equals(file)) {
+                List<DatasetFile> sameKey = duplicates.get(key);
+                if (sameKey == null) {
+                    sameKey = new ArrayList<DatasetFile>(2);
+                    sameKey.add(old);
+                    duplicates.put(key, sameKey);
+                }
+                sameKey.add(file);
+            }
+        }
+
+        /**
+         * Remove a file of index. If other file has the same key, the last
+         * added is indexed.
+         * 
+         * @param file
+         *            dataset file removed of files
+         */
+        private void removeFromIndex(DatasetFile file) {
+            String key = getFileKey(file);
+            if (key == null) {
+                return;
+            }
+
+            boolean indexed = file.equals(index.get(key));
+            List<DatasetFile> sameKey = duplicates.get(key);
+            if (sameKey == null) {
+                if (indexed) {
+                    index.remove(key);
+                }
+                return;
+            }
+
+            sameKey.remove(file);
+            if (indexed) {
+                index.put(key, sameKey.get(sameKey.size() - 1));
+            }
+            if (sameKey.size() < 2) {
+                duplicates.remove(key);
+            }
+        }
+
+        /**
+         * Read set of an object stream and rebuild its index.
+         * 
+         * @param in
+         *            object stream
+         * @throws IOException
+         *             if some error happens reading stream
+         * @throws ClassNotFoundException
+         *             if some class of files isn't found
+         */
+        private void readObject(ObjectInputStream in) throws IOException,
+                ClassNotFoundException {
+            in.defaultReadObject();
+            buildIndex();
+        }
+    }
+
     // public static void main(String args[]) {
     // System.out.println("Probando expresion regular...");
     //
@@ -226,7 +226,7 @@ public class DatasetFile extends Record implements Serializable {
             return false;
         }
 
-        Dataset other = (Dataset) obj;
+        DatasetFile other = (DatasetFile) obj;
         if (getInstanceID() == null) {
             if (other.getInstanceID() != null) {
                 return false;
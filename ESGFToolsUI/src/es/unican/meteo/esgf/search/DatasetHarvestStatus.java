@@ -5,6 +5,11 @@ import java.io.Serializable;
 /**
  * To specify harvesting status of {@link Dataset}. EMPTY, PARTIAL_HARVESTED,
  * HARVESTED and FAILED
+ * 
+ * <p>
+ * Status are stored in database by their codes in DatasetCodec: a new status
+ * must be added at the end of codes of DatasetCodec too.
+ * </p>
  */
 public enum DatasetHarvestStatus implements Serializable {
 
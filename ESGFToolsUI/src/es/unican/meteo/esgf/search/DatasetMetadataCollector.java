@@ -10,10 +10,11 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
 
 import es.unican.meteo.esgf.petition.DatasetAccessClass;
-import es.unican.meteo.esgf.petition.HTTPStatusCodeException;
 import es.unican.meteo.esgf.petition.RequestManager;
+import es.unican.meteo.esgf.petition.SearchCallback;
 
 /**
  * 
@@ -22,6 +23,13 @@ import es.unican.meteo.esgf.petition.RequestManager;
  * {@link DatasetFile}. Also, implements {@link Runnable} to download in
  * separated thread.
  * 
+ * <p>
+ * Harvest is done in stages. A stage requests asynchronously what next stage
+ * needs and ends, so the thread isn't blocked while ESGF answers. When all
+ * responses have been received, next stage is executed in the executor of
+ * collectors of search response.
+ * </p>
+ * 
  * @author Karem Terry
  * 
  */
@@ -61,6 +69,21 @@ public class DatasetMetadataCollector implements Runnable {
     /** indicate if dataset is locked for this collector */
     private boolean datasetLocked;
 
+    /**
+     * True if a dataset already harvested must be refreshed with its new
+     * replicas and files in ESGF (incremental harvest).
+     */
+    private boolean refresh;
+
+    /** Stage of harvest that is executed when collector is run. */
+    private Stage stage;
+
+    /** Responses of requests of previous stage. */
+    private Responses responses;
+
+    /** New replicas of dataset in an incremental harvest. */
+    private List<RecordReplica> newReplicas;
+
     /**
      * Map of dataset - array of fileInstanceID. Shows the files that must be
      * downloaded for each dataset
@@ -69,6 +92,7 @@ public class DatasetMetadataCollector implements Runnable {
 
     public DatasetMetadataCollector() {
         this.dataAccessClass = DatasetAccessClass.getInstance();
+        this.stage = Stage.START;
     };
 
     /**
@@ -90,14 +114,68 @@ public class DatasetMetadataCollector implements Runnable {
         this.dataAccessClass = DatasetAccessClass.getInstance();
         this.alive = true;
         this.datasetFileInstanceIDMap = datasetFileInstanceIDMap;
+        this.refresh = false;
+        this.stage = Stage.START;
 
         logger.trace("[OUT] DatasetMetadataCollector");
     }
 
+    /**
+     * Constructor
+     * 
+     * @param instanceID
+     *            of Dataset whose information will be harvested.
+     * @param searchResponse
+     * @param datasetFileInstanceIDMap
+     * @param refresh
+     *            true if dataset has been modified in ESGF since it was
+     *            harvested. Then its new replicas and files are merged into
+     *            stored dataset
+     */
+    public DatasetMetadataCollector(String instanceID,
+            SearchResponse searchResponse,
+            Map<String, Set<String>> datasetFileInstanceIDMap, boolean refresh) {
+        this(instanceID, searchResponse, datasetFileInstanceIDMap);
+        this.refresh = refresh;
+    }
+
     @Override
     public void run() {
         logger.trace("[IN]  run");
 
+        // each stage is executed when the responses requested in previous
+        // stage have been received
+        switch (stage) {
+        case START:
+            start();
+            break;
+        case REFRESH_REPLICAS:
+            refreshReplicas();
+            break;
+        case REFRESH_FILES:
+            refreshFiles();
+            break;
+        case REPLICAS:
+            harvestReplicas();
+            break;
+        case FILES:
+            harvestFiles();
+            break;
+        case INSTANCE_IDS:
+            harvestInstanceIds();
+            break;
+        }
+
+        logger.trace("[OUT] run");
+    }
+
+    /**
+     * First stage of harvest. Lock dataset, read it from file system and
+     * request what must be harvested of it.
+     */
+    private void start() {
+        logger.trace("[IN]  start");
+
         try {
             if (isAlive()) {
                 searchResponse
@@ -202,60 +280,24 @@ public class DatasetMetadataCollector implements Runnable {
             // instance_id of files that satisfy the constraints
             if (completed) {
 
+                // merge changes of dataset in ESGF. Harvest continues in
+                // REFRESH_REPLICAS stage
+                if (refresh) {
+                    submitReplicaRecords(Stage.REFRESH_REPLICAS);
+                    return; // end thread
+                }
+
                 // release dataset
                 SearchManager.getInstance().releaseDataset(instanceID);
                 datasetLocked = false;
 
                 logger.debug("Getting intance_id's of files that must be"
                         + " download.");
-                try {
-                    getInstanceIdOfFilesToDownload();
-
-                } catch (IOException e) {
-                    logger.error(
-                            "Error harvesting file instanceIDs of dataset {} with search {}",
-                            instanceID, searchResponse.getSearch()
-                                    .generateServiceURL());
-                    searchResponse
-                            .putHarvestStatusOfDatasetToFailed(instanceID);
-                    return; // end thread
-                } catch (HTTPStatusCodeException e) {
-                    logger.error(
-                            "Error harvesting file instanceIDs of dataset {} with search {}",
-                            instanceID, searchResponse.getSearch()
-                                    .generateServiceURL());
-                    searchResponse
-                            .putHarvestStatusOfDatasetToFailed(instanceID);
-                    return; // end thread
-                }
-
-                if (!isAlive()) {
-                    return; // end thread
-                } else {
-                    if (datasetFileInstanceIDMap.get(dataset.getInstanceID()) == null) {
-                        logger.error(
-                                "Error harvesting file instanceIDs of dataset {} with search {}",
-                                instanceID, searchResponse.getSearch()
-                                        .generateServiceURL());
-                        searchResponse
-                                .putHarvestStatusOfDatasetToFailed(instanceID);
-                        return; // end thread
-                    }
-                    // if dataset is completed and file instances id are
-                    // complete too
-                    searchResponse
-                            .putHarvestStatusOfDatasetToCompleted(instanceID);
-                    return; // end thread
-                }
+                submitInstanceIdOfFilesToDownload();
+                return; // end thread
             }
         }
 
-        // if collector has been paused or reset
-        if (!isAlive()) {
-            releaseDataset();
-            return; // end thread
-        }
-
         // if not found in file system do new dataset
         if (!found) {
             dataset = new Dataset(instanceID);
@@ -266,38 +308,7 @@ public class DatasetMetadataCollector implements Runnable {
 
         // if is a new dataset
         if (dataset.getHarvestStatus() == DatasetHarvestStatus.EMPTY) {
-            Set<Record> records;
-            try {
-                records = getReplicaRecords();
-            } catch (IOException e) {
-                releaseDataset();
-                searchResponse.putHarvestStatusOfDatasetToFailed(instanceID);
-                return; // end thread
-
-            } catch (HTTPStatusCodeException e) {
-
-                releaseDataset();
-                // do the same
-                // that IOException
-                searchResponse.putHarvestStatusOfDatasetToFailed(instanceID);
-                return; // end thread
-            }
-
-            // if collector has been paused or reset
-            if (!isAlive()) {
-                releaseDataset();
-                return; // end thread
-            }
-
-            // Add all dataset replicas in Dataset
-            logger.debug("Creating dataset replicas");
-            for (Record record : records) {
-
-                logger.debug("Adding dataset replica in Dataset");
-                // this method processes the records as replicas
-                addDatasetReplica(record);
-
-            }
+            submitReplicaRecords(Stage.REPLICAS);
         } else if (dataset.getHarvestStatus() == DatasetHarvestStatus.PARTIAL_HARVESTED) {
             if (searchResponse.getHarvestType() == SearchHarvestType.COMPLETE) {
                 // if replicas of a dataset partial harvested is 0
@@ -313,34 +324,7 @@ public class DatasetMetadataCollector implements Runnable {
                     return; // end thread
                 }
 
-                Set<Record> records;
-                try {
-                    records = getReplicaRecords();
-                } catch (IOException e) {
-
-                    releaseDataset();
-                    searchResponse
-                            .putHarvestStatusOfDatasetToFailed(instanceID);
-                    return; // end thread
-
-                } catch (HTTPStatusCodeException e) {
-
-                    releaseDataset();
-                    searchResponse
-                            .putHarvestStatusOfDatasetToFailed(instanceID);
-                    return; // end thread
-                }
-
-                // if collector has been paused or reset
-                if (!isAlive()) {
-                    releaseDataset();
-                    return; // end thread
-                }
-
-                // Get metadata of records
-                for (Record record : records) {
-                    getDatasetMetadataOfRecords(record);
-                }
+                submitReplicaRecords(Stage.REPLICAS);
             } else {
                 // if dataset partial-harvested reaches this point in a PARTIAL
                 // search harvest then it is an error
@@ -365,97 +349,103 @@ public class DatasetMetadataCollector implements Runnable {
             return; // end thread
         }
 
+        logger.trace("[OUT] start");
+    }
+
+    /**
+     * Stage of harvest that adds the replicas of dataset and requests their
+     * files.
+     */
+    private void harvestReplicas() {
+        logger.trace("[IN]  harvestReplicas");
+
         // if collector has been paused or reset
         if (!isAlive()) {
             releaseDataset();
             return; // end thread
         }
 
-        // XXX files
-        // Harvesting files
+        Set<Record> records;
+        try {
+            records = getReplicaRecords();
+        } catch (IOException e) {
+            releaseDataset();
+            searchResponse.putHarvestStatusOfDatasetToFailed(instanceID);
+            return; // end thread
+        }
 
         // if is a new dataset
         if (dataset.getHarvestStatus() == DatasetHarvestStatus.EMPTY) {
-            Set<Record> fileRecords = new HashSet<Record>();
-
-            // get files for each replica
-            for (RecordReplica replica : dataset.getReplicas()) {
-                // try to get files of replica
-                try {
-                    fileRecords = getFileRecords(replica.getId(),
-                            replica.getIndexNode());
+            // Add all dataset replicas in Dataset
+            logger.debug("Creating dataset replicas");
+            for (Record record : records) {
 
-                    for (Record record : fileRecords) {
+                logger.debug("Adding dataset replica in Dataset");
+                // this method processes the records as replicas
+                addDatasetReplica(record);
 
-                        // Add new file replica into a file with same
-                        // instance_id. And add file if isn't exist a
-                        // file with this record instance_id
-                        addFileAndFileReplica(record);
+            }
+        } else {
+            // Get metadata of records
+            for (Record record : records) {
+                getDatasetMetadataOfRecords(record);
+            }
+        }
 
-                        // if collector has been paused or reset
-                        if (!isAlive()) {
-                            releaseDataset();
-                            return; // end thread
-                        }
-                    }
+        // if collector has been paused or reset
+        if (!isAlive()) {
+            releaseDataset();
+            return; // end thread
+        }
 
-                } catch (IOException e) {
-                    releaseDataset();
-                    searchResponse
-                            .putHarvestStatusOfDatasetToFailed(instanceID);
+        // XXX files
+        // Harvesting files of all replicas. Harvest continues in FILES stage
+        submitFileRecords(dataset.getReplicas(), Stage.FILES);
 
-                    return; // end thread
+        logger.trace("[OUT] harvestReplicas");
+    }
 
-                } catch (HTTPStatusCodeException e) {
-                    releaseDataset();
-                    searchResponse
-                            .putHarvestStatusOfDatasetToFailed(instanceID);
-                    return; // end thread
-                }
-            }
+    /**
+     * Stage of harvest that adds the files of replicas of dataset, saves
+     * dataset and requests instance_id of files that must be downloaded.
+     */
+    private void harvestFiles() {
+        logger.trace("[IN]  harvestFiles");
 
-        } else if (dataset.getHarvestStatus() == DatasetHarvestStatus.PARTIAL_HARVESTED) {
-            Set<Record> fileRecords = new HashSet<Record>();
+        // if collector has been paused or reset
+        if (!isAlive()) {
+            releaseDataset();
+            return; // end thread
+        }
 
-            // get files for each replica
-            for (RecordReplica replica : dataset.getReplicas()) {
-                // try to get files of replica
-                try {
-                    fileRecords = getFileRecords(replica.getId(),
-                            replica.getIndexNode());
+        if (responses.getError() != null) {
+            releaseDataset();
+            searchResponse.putHarvestStatusOfDatasetToFailed(instanceID);
+            return; // end thread
+        }
 
-                    for (Record record : fileRecords) {
+        boolean newDataset = dataset.getHarvestStatus() == DatasetHarvestStatus.EMPTY;
 
-                        // Add new file replica into a file with same
-                        // instance_id. And add file if isn't exist a
-                        // file with this record instance_id
-                        getFileMetadataOfRecords(record);
+        // get files for each replica
+        for (RecordReplica replica : dataset.getReplicas()) {
+            for (Record record : responses.getRecords(replica.getId())) {
 
-                        // if collector has been paused or reset
-                        if (!isAlive()) {
-                            releaseDataset();
-                            return; // end thread
-                        }
-                    }
-                } catch (IOException e) {
-                    releaseDataset();
-                    searchResponse
-                            .putHarvestStatusOfDatasetToFailed(instanceID);
-                    return; // end thread
+                if (newDataset) {
+                    // Add new file replica into a file with same
+                    // instance_id. And add file if isn't exist a
+                    // file with this record instance_id
+                    addFileAndFileReplica(record);
+                } else {
+                    getFileMetadataOfRecords(record);
+                }
 
-                } catch (HTTPStatusCodeException e) {
+                // if collector has been paused or reset
+                if (!isAlive()) {
                     releaseDataset();
-                    searchResponse
-                            .putHarvestStatusOfDatasetToFailed(instanceID);
                     return; // end thread
                 }
             }
         }
-        // if collector has been paused or reset
-        if (!isAlive()) {
-            releaseDataset();
-            return; // end thread
-        }
 
         // XXX aggregations
         // Harvesting aggregations
@@ -499,7 +489,6 @@ public class DatasetMetadataCollector implements Runnable {
 
         // if collector has been paused or reset
         if (!isAlive()) {
-            releaseDataset();
             return; // end thread
         }
 
@@ -507,24 +496,59 @@ public class DatasetMetadataCollector implements Runnable {
         // Harvesting Instance_ids of files
 
         logger.debug("Getting intance_id's of files that must be download.");
-        try {
-            getInstanceIdOfFilesToDownload();
-        } catch (IOException e) {
+        submitInstanceIdOfFilesToDownload();
 
-            releaseDataset();
-            searchResponse.putHarvestStatusOfDatasetToFailed(instanceID);
+        logger.trace("[OUT] harvestFiles");
+    }
+
+    /**
+     * Last stage of harvest. Saves instance_id of files that must be
+     * downloaded. Dataset isn't locked in this stage.
+     */
+    private void harvestInstanceIds() {
+        logger.trace("[IN]  harvestInstanceIds");
+
+        // if collector has been paused or reset
+        if (!isAlive()) {
             return; // end thread
-        } catch (HTTPStatusCodeException e) {
+        }
 
-            releaseDataset();
+        if (responses.getError() != null) {
+            logger.error(
+                    "Error harvesting file instanceIDs of dataset {} with search {}",
+                    instanceID, searchResponse.getSearch()
+                            .generateServiceURL());
             searchResponse.putHarvestStatusOfDatasetToFailed(instanceID);
             return; // end thread
         }
 
-        // if collector has been paused or reset
-        if (!isAlive()) {
-            releaseDataset();
-            return; // end thread
+        for (RecordReplica replica : dataset.getReplicas()) {
+
+            // Get all instance_id of files that satisfy the
+            // constraints of search
+            Set<String> instanceIds = new HashSet<String>();
+            for (Record record : responses.getRecords(replica.getId())) {
+                String fileInstanceID = (String) record
+                        .getMetadata(Metadata.INSTANCE_ID);
+                if (fileInstanceID != null) {
+                    instanceIds.add(fileInstanceID);
+                }
+            }
+
+            Set<String> value = datasetFileInstanceIDMap.get(dataset
+                    .getInstanceID());
+
+            if (value != null) {
+                for (String instanceID : instanceIds) {
+                    value.add(standardizeESGFFileInstanceID(instanceID));
+                }
+            } else {
+                value = new HashSet<String>();
+                for (String instanceID : instanceIds) {
+                    value.add(standardizeESGFFileInstanceID(instanceID));
+                }
+                datasetFileInstanceIDMap.put(dataset.getInstanceID(), value);
+            }
         }
 
         if (datasetFileInstanceIDMap.get(dataset.getInstanceID()) == null) {
@@ -532,7 +556,6 @@ public class DatasetMetadataCollector implements Runnable {
                     "Error (null value) harvesting instance_ids of files of dataset {}"
                             + "with search {}", instanceID, searchResponse
                             .getSearch().generateServiceURL());
-            releaseDataset();
             searchResponse.putHarvestStatusOfDatasetToFailed(instanceID);
             return; // end thread
         }
@@ -540,85 +563,162 @@ public class DatasetMetadataCollector implements Runnable {
         if (isAlive()) {
             // harvest finished
             searchResponse.putHarvestStatusOfDatasetToCompleted(instanceID);
-            logger.trace("[OUT] run");
-            return; // end thread
-        } else {
-            releaseDataset();
-            logger.trace("[OUT] run");
-            return; // end thread
         }
 
+        logger.trace("[OUT] harvestInstanceIds");
     }
 
     /**
-     * Do a search in all dataset replicas because the metadata info isn't the
-     * same in all replicas. That's why some files couldn't be returned by the
-     * request. This is the same reason why must be save the instance_id of file
-     * and not the id. Because all replicas of this file are valid.
-     * 
-     * @throws IOException
-     * @throws HTTPStatusCodeException
+     * Request instance_id of files that must be downloaded. Do a search in all
+     * dataset replicas because the metadata info isn't the same in all
+     * replicas. That's why some files couldn't be returned by the request.
+     * This is the same reason why must be save the instance_id of file and not
+     * the id. Because all replicas of this file are valid. Harvest continues
+     * in INSTANCE_IDS stage.
      */
-    private void getInstanceIdOfFilesToDownload() throws IOException,
-            HTTPStatusCodeException {
+    private void submitInstanceIdOfFilesToDownload() {
+        logger.trace("[IN]  submitInstanceIdOfFilesToDownload");
 
         if (dataset.getReplicas() == null || dataset.getReplicas().size() == 0) {
             logger.error("Error trying to get file instance_id of dataset {}"
                     + "Number of replicas = 0 ", instanceID);
-            throw new IOException();
+            searchResponse.putHarvestStatusOfDatasetToFailed(instanceID);
+            return;
         }
 
+        // Instance_id of files of all replicas are requested in batches
+        RESTfulSearch filesSearch = RequestManager
+                .getSearchOfFilesToDownload(searchResponse.getSearch());
+        List<String> replicaIds = new LinkedList<String>();
         for (RecordReplica replica : dataset.getReplicas()) {
+            replicaIds.add(replica.getId());
+        }
 
-            // Get all instance_id of files that satisfy the
-            // constraints of search
-            String id = replica.getId();
-            Set<String> instanceIds;
-            try {
-                instanceIds = RequestManager.getInstanceIDOfFilesToDownload(
-                        searchResponse.getSearch(), id);
-            } catch (IOException e) {
-                logger.error(
-                        "Error trying to get file instance_id of replica {}.",
-                        id);
-                throw e;
-            } catch (HTTPStatusCodeException e) {
-                logger.error(
-                        "Error trying to get file instance_id of replica {}.",
-                        id);
-                throw e;
-            }
+        // responses can be received before all replicas are submitted
+        Responses instanceIds = new Responses(Stage.INSTANCE_IDS,
+                replicaIds.size());
+        for (String id : replicaIds) {
+            FileRecordBatcher.getInstance().submit(filesSearch, id,
+                    instanceIds.callback(id));
+        }
 
-            Set<String> value = datasetFileInstanceIDMap.get(dataset
-                    .getInstanceID());
+        logger.trace("[OUT] submitInstanceIdOfFilesToDownload");
+    }
 
-            if (value != null) {
-                for (String instanceID : instanceIds) {
-                    value.add(standardizeESGFFileInstanceID(instanceID));
-                }
+    /**
+     * Stage of incremental harvest that merges into dataset the changes in
+     * ESGF since it was harvested: new replicas of dataset and metadata that
+     * dataset hasn't. Then files of new replicas are requested.
+     */
+    private void refreshReplicas() {
+        logger.trace("[IN]  refreshReplicas");
+
+        // if collector has been paused or reset
+        if (!isAlive()) {
+            releaseDataset();
+            return; // end thread
+        }
+
+        Set<Record> records;
+        try {
+            records = getReplicaRecords();
+        } catch (IOException e) {
+            releaseDataset();
+            searchResponse.putHarvestStatusOfDatasetToFailed(instanceID);
+            return; // end thread
+        }
+
+        Set<String> replicaIds = new HashSet<String>();
+        for (RecordReplica replica : dataset.getReplicas()) {
+            replicaIds.add(replica.getId());
+        }
+
+        // new dataset replicas
+        newReplicas = new LinkedList<RecordReplica>();
+        for (Record record : records) {
+            String id = record.getMetadata(Metadata.ID);
+            if (replicaIds.contains(id)) {
+                getDatasetMetadataOfRecords(record);
             } else {
-                value = new HashSet<String>();
-                for (String instanceID : instanceIds) {
-                    value.add(standardizeESGFFileInstanceID(instanceID));
-                }
-                datasetFileInstanceIDMap.put(dataset.getInstanceID(), value);
+                logger.debug("New replica {} of dataset {}", id, instanceID);
+                addDatasetReplica(record);
+                newReplicas.add(dataset.getReplicas().get(
+                        dataset.getReplicas().size() - 1));
             }
         }
 
+        // files of new replicas. Harvest continues in REFRESH_FILES stage
+        submitFileRecords(newReplicas, Stage.REFRESH_FILES);
+
+        logger.trace("[OUT] refreshReplicas");
     }
 
     /**
-     * Get replica records of Dataset
-     * 
-     * @return a set of records that are replicas of a dataset
-     * @throws IOException
-     * @throws HTTPStatusCodeException
+     * Stage of incremental harvest that merges into dataset the files of its
+     * new replicas. Then dataset and the files that have changed are saved and
+     * instance_id of files that must be downloaded are requested.
      */
-    private Set<Record> getReplicaRecords() throws IOException,
-            HTTPStatusCodeException {
+    private void refreshFiles() {
+        logger.trace("[IN]  refreshFiles");
+
+        // if collector has been paused or reset
+        if (!isAlive()) {
+            releaseDataset();
+            return; // end thread
+        }
+
+        if (responses.getError() != null) {
+            releaseDataset();
+            searchResponse.putHarvestStatusOfDatasetToFailed(instanceID);
+            return; // end thread
+        }
+
+        // files with new replicas
+        Set<DatasetFile> changedFiles = new HashSet<DatasetFile>();
+        for (RecordReplica replica : newReplicas) {
+            for (Record record : responses.getRecords(replica.getId())) {
+                changedFiles.add(addFileAndFileReplica(record));
+            }
+        }
+
+        if (searchResponse.getHarvestType() == SearchHarvestType.COMPLETE) {
+            removeMetadataOfReplicas(dataset);
+            for (DatasetFile file : changedFiles) {
+                removeMetadataOfReplicas(file);
+            }
+        }
+
+        // only files that have changed are written
+        try {
+            dataAccessClass.putFiles(dataset, changedFiles);
+        } catch (IOException e) {
+            logger.error("Error saving dataset in BD");
+            releaseDataset();
+            searchResponse.putHarvestStatusOfDatasetToFailed(instanceID);
+            return; // end thread
+        }
+
+        // release dataset
+        releaseDataset();
+
+        logger.debug("Getting intance_id's of files that must be download.");
+        submitInstanceIdOfFilesToDownload();
+
+        logger.trace("[OUT] refreshFiles");
+    }
+
+    /**
+     * Request replica records of Dataset. Harvest continues in next stage when
+     * they are received.
+     *
+     * @param next
+     *            next stage of harvest
+     */
+    private void submitReplicaRecords(Stage next) {
+        logger.trace("[IN]  submitReplicaRecords");
+
         // Create new restful search object with current index
         // node
-        Set<Record> records = null;
         // List<String> nodes = RequestManager.getESGFNodes();
         // String randIndexNode = nodes.get((int) (Math.random() * nodes
         // .size()));
@@ -653,40 +753,48 @@ public class DatasetMetadataCollector implements Runnable {
             search.getParameters().setFields(fields);
         }
 
-        try {
-            // get datasets replicas like records. Retry in all nodes if
-            // return zero records
-            records = RequestManager.getRecordsFromSearch(search, true);
-        } catch (IOException e) {
-            logger.error(
-                    "Can not be access the replicas in any node of {} dataset from request {}",
-                    instanceID, search);
-            throw e;
-
-        } catch (HTTPStatusCodeException e) { // do the same
-            // that
-            // IOException
-            // XXX mentira ver RequestManager
-            // getNumOfRecordsOfSearch
+        // get datasets replicas like records. Retry in all nodes if
+        // return zero records
+        RequestManager.submitRecordsFromSearch(search, true, new Responses(
+                next, 1).callback(instanceID));
+
+        logger.trace("[OUT] submitReplicaRecords");
+    }
+
+    /**
+     * Get replica records of Dataset requested in
+     * {@link #submitReplicaRecords(Stage)}
+     *
+     * @return a set of records that are replicas of a dataset
+     * @throws IOException
+     *             if request has failed or it hasn't returned replicas
+     */
+    private Set<Record> getReplicaRecords() throws IOException {
+        logger.trace("[IN]  getReplicaRecords");
+
+        if (responses.getError() != null) {
             logger.error(
-                    "Can not be access the replicas in any node of {} dataset from request {}",
-                    instanceID, search);
-            throw e;
+                    "Can not be access the replicas in any node of {} dataset: {}",
+                    instanceID, responses.getError().getMessage());
+            throw new IOException(
+                    "Can not be access the replicas in any node of "
+                            + instanceID + " dataset", responses.getError());
         }
 
+        Set<Record> records = responses.getRecords(instanceID);
+
         // auxrecord can't be 0
         if (records.size() == 0) {
-            releaseDataset();
             logger.error(
                     "Error in getting replicas of this dataset: {} in ESGF",
                     dataset.getInstanceID());
             throw new IOException(
                     "Can not be access the replicas in any node of "
-                            + instanceID + " dataset from request "
-                            + search.generateServiceURL()
-                            + ". Number of replicas must not be 0");
+                            + instanceID
+                            + " dataset. Number of replicas must not be 0");
         }
 
+        logger.trace("[OUT] getReplicaRecords");
         return records;
     }
 
@@ -697,8 +805,9 @@ public class DatasetMetadataCollector implements Runnable {
      * 
      * @param record
      *            record of type File
+     * @return file of record
      */
-    private void addFileAndFileReplica(Record record) {
+    private DatasetFile addFileAndFileReplica(Record record) {
         logger.trace("[IN]  addFileAndFileReplica");
 
         logger.debug("Checking if exist a file with record instance_id and checking for search new file metadata");
@@ -747,6 +856,7 @@ public class DatasetMetadataCollector implements Runnable {
         searchNewFileServices(datasetFileReplica, file);
 
         logger.trace("[OUT] addFileAndFileReplica");
+        return file;
     }
 
     /**
@@ -897,26 +1007,27 @@ public class DatasetMetadataCollector implements Runnable {
     }
 
     /**
-     * Get file records of a dataset replica in ESGF
-     * 
-     * @param id
-     *            of dataset replica in ESGF
-     * @param indexNode
-     *            where dataset replica are located
-     * 
-     * @return a set of records that are files of a dataset replica
-     * @throws IOException
-     * @throws HTTPStatusCodeException
+     * Submit requests of file records of all dataset replicas in ESGF to
+     * {@link FileRecordBatcher}, so files of several replicas and datasets of
+     * the same index node are requested together. Harvest continues in next
+     * stage when files of all replicas are received.
+     *
+     * @param replicas
+     *            dataset replicas
+     * @param next
+     *            next stage of harvest
      */
-    private Set<Record> getFileRecords(String id, String indexNode)
-            throws IOException, HTTPStatusCodeException {
-        logger.trace("[IN]  getRecordFiles");
+    private void submitFileRecords(List<RecordReplica> replicas, Stage next) {
+        logger.trace("[IN]  submitFileRecords");
 
-        RESTfulSearch search = new RESTfulSearch(indexNode);
+        Map<String, RESTfulSearch> replicaSearches = new HashMap<String, RESTfulSearch>();
+        for (RecordReplica replica : replicas) {
+            String indexNode = replica.getIndexNode();
+            RESTfulSearch search = new RESTfulSearch(indexNode);
 
-        try {
             // Search files of each Dataset replica
-            logger.debug("Configuring search for search files");
+            logger.debug("Configuring search for search files of {} replica",
+                    replica.getId());
 
             // Set index node
             // Remove all parameters because must be download all
@@ -928,22 +1039,16 @@ public class DatasetMetadataCollector implements Runnable {
             // Set type to Dataset
             search.getParameters().setType(RecordType.FILE);
 
-            logger.debug("Configuring search for search files of {} replica",
-                    id);
-
-            // Set search to files of this dataset replica
-            // and do a local search
+            // Set search to files of index node of dataset replica and do a
+            // local search. Dataset id is set in batch
             search.getParameters().setDistrib(false);
             search.setIndexNode(indexNode);
-            search.getParameters().setDatasetId(id);
 
-            // Configuring fields
-            // if (searchResponse.getHarvestType() == SearchHarvestType.PARTIAL)
-            // {
+            // Configuring fields. In a partial (lean) harvest only metadata
+            // needed to download files and to build file replicas
             Set<Metadata> fields = new HashSet<Metadata>();
             fields.add(Metadata.ID);
             fields.add(Metadata.INSTANCE_ID);
-            fields.add(Metadata.MASTER_ID);
             fields.add(Metadata.INDEX_NODE);
             fields.add(Metadata.DATA_NODE);
             fields.add(Metadata.CHECKSUM_TYPE);
@@ -951,32 +1056,27 @@ public class DatasetMetadataCollector implements Runnable {
             fields.add(Metadata.REPLICA);
             fields.add(Metadata.URL);
             fields.add(Metadata.SIZE);
-            fields.add(Metadata.TITLE);
-            fields.add(Metadata.VERSION);
+            if (searchResponse.getHarvestType() == SearchHarvestType.COMPLETE) {
+                fields.add(Metadata.MASTER_ID);
+                fields.add(Metadata.TITLE);
+                fields.add(Metadata.VERSION);
+            }
             search.getParameters().setFields(fields);
-            // }
-
-            // get files like records because will be
-            // processed later
-            Set<Record> records = RequestManager.getRecordsFromSearch(search,
-                    false);
 
-            logger.trace("[OUT] getRecordFiles");
-            return records;
-        } catch (IOException e) {
-            logger.error(
-                    "Can not be access the files in any node of {} dataset from request {}",
-                    id, search);
-            logger.trace("[OUT] getRecordFiles");
-            throw e;
+            replicaSearches.put(replica.getId(), search);
+        }
 
-        } catch (HTTPStatusCodeException e) {
-            logger.error(
-                    "Can not be access the files in any node of {} dataset from request {}",
-                    id, search);
-            logger.trace("[OUT] getRecordFiles");
-            throw e;
+        // responses can be received before all replicas are submitted, so
+        // replicas mustn't be read after
+        Responses replicaFiles = new Responses(next, replicaSearches.size());
+        for (Map.Entry<String, RESTfulSearch> replicaSearch : replicaSearches
+                .entrySet()) {
+            FileRecordBatcher.getInstance().submit(replicaSearch.getValue(),
+                    replicaSearch.getKey(),
+                    replicaFiles.callback(replicaSearch.getKey()));
         }
+
+        logger.trace("[OUT] submitFileRecords");
     }
 
     /**
@@ -1155,6 +1255,31 @@ public class DatasetMetadataCollector implements Runnable {
         logger.trace("[OUT] setAlive");
     }
 
+    /**
+     * Continue harvest in next stage of responses, in the executor of
+     * collectors
+     * 
+     * @param responses
+     *            responses of requests of previous stage
+     */
+    private void continueHarvest(Responses responses) {
+        logger.trace("[IN]  continueHarvest");
+
+        this.responses = responses;
+        this.stage = responses.next;
+        try {
+            searchResponse.getExecutor().execute(this);
+        } catch (RejectedExecutionException e) {
+            // executor has been shut down
+            logger.warn("Harvest of dataset {} can't continue", instanceID);
+            if (datasetLocked) {
+                releaseDataset();
+            }
+        }
+
+        logger.trace("[OUT] continueHarvest");
+    }
+
     private void releaseDataset() {
         // release dataset
         if (datasetLocked) {
@@ -1181,4 +1306,133 @@ public class DatasetMetadataCollector implements Runnable {
         logger.trace("[OUT] getInstanceID");
         return instanceID;
     }
+
+    /**
+     * Stages of harvest.
+     */
+    private enum Stage {
+        /** Lock and read dataset and request what must be harvested. */
+        START,
+        /** Merge new replicas of a dataset already harvested. */
+        REFRESH_REPLICAS,
+        /** Merge files of new replicas of a dataset already harvested. */
+        REFRESH_FILES,
+        /** Add replicas of dataset. */
+        REPLICAS,
+        /** Add files of replicas of dataset and save dataset. */
+        FILES,
+        /** Save instance_id of files that must be downloaded. */
+        INSTANCE_IDS
+    }
+
+    /**
+     * Records requested in a stage by id (of dataset or dataset replica).
+     * When all requests have been answered, harvest continues in next stage.
+     */
+    private class Responses {
+
+        /** Next stage of harvest. */
+        private Stage next;
+
+        /** Number of requests that haven't been answered. */
+        private int pending;
+
+        /** Records of each answered request by id. */
+        private Map<String, Set<Record>> records;
+
+        /** First error of requests or null. */
+        private Exception error;
+
+        /**
+         * Constructor. If there aren't requests, harvest continues at once.
+         * 
+         * @param next
+         *            next stage of harvest
+         * @param pending
+         *            number of requests
+         */
+        private Responses(Stage next, int pending) {
+            this.next = next;
+            this.pending = pending;
+            this.records = new HashMap<String, Set<Record>>();
+            this.error = null;
+
+            if (pending == 0) {
+                continueHarvest(this);
+            }
+        }
+
+        /**
+         * Get callback of a request
+         * 
+         * @param id
+         *            id of records of request
+         * @return callback that saves response of request
+         */
+        private SearchCallback<Set<Record>> callback(final String id) {
+            return new SearchCallback<Set<Record>>() {
+                @Override
+                public void onSuccess(Set<Record> result) {
+                    answer(id, result, null);
+                }
+
+                @Override
+                public void onError(Exception e) {
+                    answer(id, null, e);
+                }
+            };
+        }
+
+        /**
+         * Save response of a request
+         * 
+         * @param id
+         *            id of records of request
+         * @param result
+         *            records or null if request has failed
+         * @param e
+         *            error of request or null
+         */
+        private void answer(String id, Set<Record> result, Exception e) {
+            boolean last;
+            synchronized (this) {
+                if (result != null) {
+                    records.put(id, result);
+                }
+                if (e != null && error == null) {
+                    error = e;
+                }
+                pending--;
+                last = pending == 0;
+            }
+
+            if (last) {
+                continueHarvest(this);
+            }
+        }
+
+        /**
+         * Get records of a request. Synchronized.
+         * 
+         * @param id
+         *            id of records of request
+         * @return records of request, empty if it hasn't returned records
+         */
+        private synchronized Set<Record> getRecords(String id) {
+            Set<Record> result = records.get(id);
+            if (result == null) {
+                result = new HashSet<Record>();
+            }
+            return result;
+        }
+
+        /**
+         * Get first error of requests. Synchronized.
+         * 
+         * @return error or null if all requests have been successful
+         */
+        private synchronized Exception getError() {
+            return error;
+        }
+    }
 }
@@ -0,0 +1,75 @@
+package es.unican.meteo.esgf.search;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Number of records and facet values with its counts of a search, obtained
+ * from the same response of ESGF search service.
+ *
+ * @author Karem Terry
+ *
+ */
+public class FacetCounts {
+
+    /** Number of records of search. */
+    private int numberOfRecords;
+
+    /** Facet values and its counts. */
+    private Map<SearchCategoryFacet, List<SearchCategoryValue>> facetMap;
+
+    /**
+     * Constructor
+     *
+     * @param numberOfRecords
+     *            number of records of search
+     * @param facetMap
+     *            facet values and its counts
+     */
+    public FacetCounts(int numberOfRecords,
+            Map<SearchCategoryFacet, List<SearchCategoryValue>> facetMap) {
+        this.numberOfRecords = numberOfRecords;
+        this.facetMap = facetMap;
+    }
+
+    /**
+     * Get number of records of search
+     *
+     * @return number of records
+     */
+    public int getNumberOfRecords() {
+        return numberOfRecords;
+    }
+
+    /**
+     * Get facet values and its counts
+     *
+     * @return a {@link Map} where the key is a {@link SearchCategoryFacet} and
+     *         the value is a {@link List} of {@link SearchCategoryValue}
+     */
+    public Map<SearchCategoryFacet, List<SearchCategoryValue>> getFacetMap() {
+        return facetMap;
+    }
+
+    /**
+     * Get a copy of facet values and its counts that can be modified without
+     * modify these facet counts
+     *
+     * @return a new {@link Map} with new {@link SearchCategoryValue}
+     */
+    public Map<SearchCategoryFacet, List<SearchCategoryValue>> copyFacetMap() {
+        Map<SearchCategoryFacet, List<SearchCategoryValue>> copy = new HashMap<SearchCategoryFacet, List<SearchCategoryValue>>();
+        for (Map.Entry<SearchCategoryFacet, List<SearchCategoryValue>> entry : facetMap
+                .entrySet()) {
+            List<SearchCategoryValue> values = new ArrayList<SearchCategoryValue>();
+            for (SearchCategoryValue value : entry.getValue()) {
+                values.add(new SearchCategoryValue(value.getValue(), value
+                        .getCount(), value.isSelected()));
+            }
+            copy.put(entry.getKey(), values);
+        }
+        return copy;
+    }
+}
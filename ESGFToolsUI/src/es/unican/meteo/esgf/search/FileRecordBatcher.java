@@ -0,0 +1,269 @@
+package es.unican.meteo.esgf.search;
+
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import es.unican.meteo.esgf.petition.RequestManager;
+import es.unican.meteo.esgf.petition.SearchCallback;
+
+/**
+ * Batched stage of dataset metadata collectors that requests files of
+ * datasets. Instead of a request of files for each dataset replica, the
+ * requests of files of several datasets with the same search (same index
+ * node, constraints and fields) are grouped in only one request with several
+ * dataset ids. Records of response are returned to the dataset that they
+ * belong.
+ *
+ * <p>
+ * A batch is requested when it has {@link #MAX_BATCH_SIZE} datasets or
+ * {@link #BATCH_DELAY} ms after its first dataset, so concurrent collectors
+ * share requests. Batches are requested asynchronously: file records of each
+ * dataset are notified to its {@link SearchCallback}, so collectors don't
+ * wait the response.
+ * </p>
+ *
+ * @author Karem Terry
+ *
+ */
+public class FileRecordBatcher {
+
+    /** Logger. */
+    static private org.slf4j.Logger logger = org.slf4j.LoggerFactory
+            .getLogger(FileRecordBatcher.class);
+
+    /**
+     * Maximum number of datasets in a request. Limits the length of url of
+     * request.
+     */
+    private static final int MAX_BATCH_SIZE = 20;
+
+    /** Milliseconds that a batch waits for more datasets. */
+    private static final long BATCH_DELAY = 100;
+
+    /** Singleton instance. */
+    private static FileRecordBatcher INSTANCE = null;
+
+    /** Batches that aren't requested yet, by url of their search. */
+    private Map<String, Batch> pendingBatches;
+
+    /** Executor that sends batches when their delay has elapsed. */
+    private ScheduledExecutorService batchExecutor;
+
+    /**
+     * Create a thread-safe singleton.
+     */
+    private static void createInstance() {
+        logger.trace("[IN]  createInstance");
+
+        logger.debug("Checking if exist an instance of FileRecordBatcher");
+        // creating a thread-safe singleton
+        if (INSTANCE == null) {
+
+            // Only the synchronized block is accessed when the instance hasn't
+            // been created.
+            synchronized (FileRecordBatcher.class) {
+                // Inside the block it must check again that the instance has
+                // not been created.
+                if (INSTANCE == null) {
+                    logger.debug("Creating new instance of FileRecordBatcher");
+                    INSTANCE = new FileRecordBatcher();
+                }
+            }
+        }
+        logger.trace("[OUT] createInstance");
+    }
+
+    /**
+     * Get singleton instance of {@link FileRecordBatcher}. This instance is
+     * the only that exists.
+     *
+     * @return the unique instance of {@link FileRecordBatcher}.
+     */
+    public static FileRecordBatcher getInstance() {
+        logger.trace("[IN]  getInstance");
+        createInstance();
+        logger.trace("[OUT] getInstance");
+        return INSTANCE;
+    }
+
+    /**
+     * Constructor
+     */
+    private FileRecordBatcher() {
+        logger.trace("[IN]  FileRecordBatcher");
+
+        this.pendingBatches = new HashMap<String, Batch>();
+        // batches are only sent in this thread, responses are received in
+        // threads of search client
+        this.batchExecutor = new ScheduledThreadPoolExecutor(1,
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable,
+                                "file-record-batch");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+
+        logger.trace("[OUT] FileRecordBatcher");
+    }
+
+    /**
+     * Add a dataset to the batch of its search. Synchronized.
+     *
+     * @param search
+     *            search of files without dataset id. It mustn't be modified
+     *            later
+     * @param datasetId
+     *            id of dataset replica
+     * @param callback
+     *            callback notified with file records of dataset that satisfy
+     *            the search, or with the error of request
+     */
+    public synchronized void submit(RESTfulSearch search, String datasetId,
+            SearchCallback<Set<Record>> callback) {
+        logger.trace("[IN]  submit");
+
+        final String key = search.generateServiceURL().toString();
+        Batch batch = pendingBatches.get(key);
+        if (batch == null) {
+            batch = new Batch(search);
+            pendingBatches.put(key, batch);
+
+            final Batch newBatch = batch;
+            batchExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flush(key, newBatch);
+                }
+            }, BATCH_DELAY, TimeUnit.MILLISECONDS);
+        }
+
+        batch.add(datasetId, callback);
+
+        // full batch is requested without wait
+        if (batch.size() >= MAX_BATCH_SIZE) {
+            pendingBatches.remove(key);
+            batchExecutor.execute(batch);
+        }
+
+        logger.trace("[OUT] submit");
+    }
+
+    /**
+     * Request a batch if it hasn't been requested yet
+     *
+     * @param key
+     *            url of search of batch
+     * @param batch
+     *            batch
+     */
+    private void flush(String key, Batch batch) {
+        logger.trace("[IN]  flush");
+
+        synchronized (this) {
+            if (pendingBatches.get(key) == batch) {
+                pendingBatches.remove(key);
+            }
+        }
+        batch.run();
+
+        logger.trace("[OUT] flush");
+    }
+
+    /**
+     * Datasets whose files are requested in the same request.
+     */
+    private static class Batch implements Runnable,
+            SearchCallback<Map<String, Set<Record>>> {
+
+        /** Search of files without dataset id. */
+        private RESTfulSearch search;
+
+        /** Ids of datasets of batch. */
+        private List<String> datasetIds;
+
+        /** Dataset id and callback of each dataset added to batch. */
+        private List<Map.Entry<String, SearchCallback<Set<Record>>>> callbacks;
+
+        /** True if batch has been requested. */
+        private AtomicBoolean requested;
+
+        /**
+         * Constructor
+         *
+         * @param search
+         *            search of files without dataset id
+         */
+        private Batch(RESTfulSearch search) {
+            this.search = search;
+            this.datasetIds = new LinkedList<String>();
+            this.callbacks = new LinkedList<Map.Entry<String, SearchCallback<Set<Record>>>>();
+            this.requested = new AtomicBoolean(false);
+        }
+
+        /**
+         * Add a dataset to batch. Must be called before batch is requested
+         *
+         * @param datasetId
+         *            id of dataset replica
+         * @param callback
+         *            callback notified with file records of dataset
+         */
+        private void add(String datasetId, SearchCallback<Set<Record>> callback) {
+            if (!datasetIds.contains(datasetId)) {
+                datasetIds.add(datasetId);
+            }
+            callbacks.add(new AbstractMap.SimpleEntry<String, SearchCallback<Set<Record>>>(
+                    datasetId, callback));
+        }
+
+        /**
+         * Get number of datasets of batch
+         *
+         * @return number of datasets
+         */
+        private int size() {
+            return datasetIds.size();
+        }
+
+        @Override
+        public void run() {
+            if (requested.getAndSet(true)) {
+                return;
+            }
+
+            logger.debug("Requesting files of {} datasets in a batch",
+                    datasetIds.size());
+            RequestManager.submitFileRecordsOfDatasets(search, datasetIds,
+                    this);
+        }
+
+        @Override
+        public void onSuccess(Map<String, Set<Record>> recordsByDataset) {
+            for (Map.Entry<String, SearchCallback<Set<Record>>> callback : callbacks) {
+                callback.getValue().onSuccess(
+                        recordsByDataset.get(callback.getKey()));
+            }
+        }
+
+        @Override
+        public void onError(Exception e) {
+            logger.warn("Error requesting files of {} datasets: {}",
+                    datasetIds.size(), e.getMessage());
+            for (Map.Entry<String, SearchCallback<Set<Record>>> callback : callbacks) {
+                callback.getValue().onError(e);
+            }
+        }
+    }
+}
@@ -100,6 +100,11 @@ import java.io.Serializable;
   <td><p> File </p></td>
 </tr>
 </tbody></table>
+ *
+ * <p>
+ * Metadata are stored in database by their codes in DatasetCodec: a new
+ * metadata must be added at the end of codes of DatasetCodec too.
+ * </p>
  *
  * @author Karem Terry
  *
@@ -0,0 +1,199 @@
+package es.unican.meteo.esgf.search;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import es.unican.meteo.esgf.petition.DatasetAccessClass;
+import es.unican.meteo.esgf.petition.HTTPStatusCodeException;
+import es.unican.meteo.esgf.petition.RequestManager;
+
+/**
+ * Loads the full metadata of a {@link Dataset} harvested in a lean (PARTIAL)
+ * harvest. A lean harvest only stores metadata needed to download files, so
+ * the rest of metadata of dataset and of its files is requested to ESGF only
+ * when it is shown. File records are requested in pages of the same search,
+ * in the index node of each replica. Once all files are loaded, dataset is
+ * saved as HARVESTED and metadata isn't requested again.
+ *
+ * @author Karem Terry
+ *
+ */
+public class MetadataHydrator {
+
+    /** Logger. */
+    static private org.slf4j.Logger logger = org.slf4j.LoggerFactory
+            .getLogger(MetadataHydrator.class);
+
+    /**
+     * Load full metadata of a dataset if it has been harvested in a lean
+     * harvest. Metadata that dataset and files already have isn't replaced.
+     * Metadata of files is requested in all replicas of dataset. If some file
+     * isn't found in any replica, dataset is kept PARTIAL_HARVESTED so it is
+     * requested again later. Requests are done without lock of dataset;
+     * metadata is added synchronized in dataset.
+     *
+     * @param dataset
+     *            harvested dataset
+     * @throws IOException
+     *             if happens an error in ESGF search service or saving dataset
+     * @throws HTTPStatusCodeException
+     *             if http status code isn't OK/200
+     */
+    public static void hydrate(Dataset dataset) throws IOException,
+            HTTPStatusCodeException {
+        logger.trace("[IN]  hydrate");
+
+        // ids of dataset replicas by index node
+        Map<String, List<String>> replicasByIndexNode = new HashMap<String, List<String>>();
+        synchronized (dataset) {
+            if (dataset.getHarvestStatus() != DatasetHarvestStatus.PARTIAL_HARVESTED
+                    || dataset.getReplicas().size() == 0) {
+                logger.trace("[OUT] hydrate");
+                return;
+            }
+
+            for (RecordReplica replica : dataset.getReplicas()) {
+                List<String> datasetIds = replicasByIndexNode.get(replica
+                        .getIndexNode());
+                if (datasetIds == null) {
+                    datasetIds = new LinkedList<String>();
+                    replicasByIndexNode.put(replica.getIndexNode(), datasetIds);
+                }
+                datasetIds.add(replica.getId());
+            }
+        }
+
+        logger.debug("Loading full metadata of dataset {}",
+                dataset.getInstanceID());
+
+        // metadata of dataset
+        RESTfulSearch search = new RESTfulSearch(SearchManager.getInstance()
+                .getCurrentIndexNode());
+        search.getParameters().setFormat(Format.JSON);
+        search.getParameters().setType(RecordType.DATASET);
+        search.getParameters().setDistrib(true);
+        List<String> instanceId = new LinkedList<String>();
+        instanceId.add(dataset.getInstanceID());
+        search.getParameters().setInstanceId(instanceId);
+
+        Set<Record> datasetRecords = RequestManager.getRecordsFromSearch(
+                search, true);
+
+        // metadata of files of all replicas, requested in index node of each
+        // replica. If an index node fails, files of rest of replicas are
+        // loaded yet
+        List<Record> fileRecords = new LinkedList<Record>();
+        Exception error = null;
+        for (Map.Entry<String, List<String>> entry : replicasByIndexNode
+                .entrySet()) {
+            RESTfulSearch filesSearch = new RESTfulSearch(entry.getKey());
+            filesSearch.getParameters().setFormat(Format.JSON);
+            filesSearch.getParameters().setType(RecordType.FILE);
+            filesSearch.getParameters().setDistrib(false);
+
+            try {
+                for (Set<Record> records : RequestManager
+                        .getFileRecordsOfDatasets(filesSearch, entry.getValue())
+                        .values()) {
+                    fileRecords.addAll(records);
+                }
+            } catch (IOException e) {
+                logger.warn("Files of dataset {} can't be loaded from {}: {}",
+                        new Object[] { dataset.getInstanceID(), entry.getKey(),
+                                e.getMessage() });
+                error = e;
+            } catch (HTTPStatusCodeException e) {
+                logger.warn("Files of dataset {} can't be loaded from {}: {}",
+                        new Object[] { dataset.getInstanceID(), entry.getKey(),
+                                e.getMessage() });
+                error = e;
+            }
+        }
+
+        synchronized (dataset) {
+            if (dataset.getHarvestStatus() != DatasetHarvestStatus.PARTIAL_HARVESTED) {
+                logger.trace("[OUT] hydrate");
+                return;
+            }
+
+            for (Record record : datasetRecords) {
+                addMissingMetadata(dataset, record);
+            }
+
+            Set<DatasetFile> hydratedFiles = new HashSet<DatasetFile>();
+            for (Record record : fileRecords) {
+                DatasetFile file = dataset.getFileWithInstanceId((String) record
+                        .getMetadata(Metadata.INSTANCE_ID));
+                if (file != null) {
+                    addMissingMetadata(file, record);
+                    hydratedFiles.add(file);
+                }
+            }
+
+            // Only if all files has been found, dataset is complete
+            if (hydratedFiles.size() == dataset.getFiles().size()) {
+                dataset.setHarvestStatus(DatasetHarvestStatus.HARVESTED);
+            } else {
+                logger.debug(
+                        "{} of {} files of dataset {} haven't been loaded",
+                        new Object[] {
+                                dataset.getFiles().size()
+                                        - hydratedFiles.size(),
+                                dataset.getFiles().size(),
+                                dataset.getInstanceID() });
+            }
+            // only hydrated files are written
+            DatasetAccessClass.getInstance().putFiles(dataset, hydratedFiles);
+        }
+
+        if (fileRecords.isEmpty() && error != null) {
+            if (error instanceof IOException) {
+                throw (IOException) error;
+            }
+            throw (HTTPStatusCodeException) error;
+        }
+
+        logger.trace("[OUT] hydrate");
+    }
+
+    /**
+     * Add metadata of a record that another record hasn't. Metadata that
+     * belongs to replicas (data node, index node, replica, id, url, access and
+     * dataset_id) isn't added
+     *
+     * @param record
+     *            record whose metadata will be loaded
+     * @param source
+     *            record of ESGF search service
+     */
+    private static void addMissingMetadata(Record record, Record source) {
+        logger.trace("[IN]  addMissingMetadata");
+
+        for (Map.Entry<Metadata, Object> entry : source.getRecordMetadata()
+                .entrySet()) {
+            Metadata metadata = entry.getKey();
+            switch (metadata) {
+                case DATA_NODE:
+                case INDEX_NODE:
+                case REPLICA:
+                case ID:
+                case URL:
+                case ACCESS:
+                case DATASET_ID:
+                break;
+                default:
+                    if (!record.contains(metadata)) {
+                        record.addMetadata(metadata, entry.getValue());
+                    }
+                break;
+            }
+        }
+
+        logger.trace("[OUT] addMissingMetadata");
+    }
+}
@@ -162,6 +162,9 @@ public enum Parameter {
     /** List of shards to be queried (index nodes). */
     SHARDS("Shards"),
 
+    /** Sort of results (field and order). */
+    SORT("Sort"),
+
     /** XLink. */
     XLINK("Xlink");
 
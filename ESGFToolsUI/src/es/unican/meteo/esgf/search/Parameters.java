@@ -14,6 +14,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TimeZone;
 
 import es.unican.meteo.esgf.download.ChecksumType;
 
@@ -138,6 +139,12 @@ public class Parameters implements Serializable, Cloneable {
     static private org.slf4j.Logger logger = org.slf4j.LoggerFactory
             .getLogger(Parameters.class);
 
+    /**
+     * Serial version of parameters saved by previous versions, to read them
+     * yet.
+     */
+    private static final long serialVersionUID = 7583845390849403153L;
+
     /**
      * Map of parameters - value. Key Map is a {@link Parameter} and value is an
      * {@link Object}. This allows flexibility to be able to add values ​​of
@@ -305,12 +312,13 @@ public class Parameters implements Serializable, Cloneable {
     }
 
     /**
-     * Get the data_id configured for search. Only files and aggregations. If is
-     * configured for another records the search will returns 0 records.
+     * Get the dataset ids configured for search. Only files and aggregations.
+     * If is configured for another records the search will returns 0 records.
      *
-     * @return the dataset id that all searched records must have.
+     * @return the dataset ids of searched records. Searched records belong to
+     *         one of them.
      */
-    public String getDatasetId() {
+    public List<String> getDatasetId() {
         logger.trace("[IN]  getDatasetId");
         logger.trace("[OUT] getDatasetId");
         return getParameter(Parameter.DATASET_ID);
@@ -624,6 +632,18 @@ public class Parameters implements Serializable, Cloneable {
         return getParameter(Parameter.SHARDS);
     }
 
+    /**
+     * Get sort of results.
+     *
+     * @return field and order of sort separated by a space (i.e "id asc") or
+     *         null if results aren't sorted
+     */
+    public String getSort() {
+        logger.trace("[IN]  getSort");
+        logger.trace("[OUT] getSort");
+        return getParameter(Parameter.SORT);
+    }
+
     /**
      * Get start of temporal query.
      *
@@ -844,14 +864,15 @@ public class Parameters implements Serializable, Cloneable {
     /**
      * Set the data node configured for search. Only files and aggregations. If
      * is configured for another records the search will returns 0 records.
-     * Searched files must have the given dataset id.
+     * Searched files must have one of the given dataset ids, so files of
+     * several datasets can be searched in the same request.
      *
-     * @param datasetId
-     *            the dataset id to search by dataset id
+     * @param datasetIdList
+     *            the dataset ids to search by dataset id
      */
-    public void setDatasetId(String datasetId) {
+    public void setDatasetId(List<String> datasetIdList) {
         logger.trace("[IN]  setDatasetId");
-        setParameter(Parameter.DATASET_ID, datasetId);
+        setParameter(Parameter.DATASET_ID, datasetIdList);
         logger.trace("[OUT] setDatasetId");
     }
 
@@ -1200,6 +1221,20 @@ public class Parameters implements Serializable, Cloneable {
         logger.trace("[OUT] setShards");
     }
 
+    /**
+     * Set sort of results. A sort on a unique field allows to request pages of
+     * results with range constraints of this field instead of offset
+     *
+     * @param sort
+     *            field and order of sort separated by a space (i.e "id asc")
+     *            or null if results aren't sorted
+     */
+    public void setSort(String sort) {
+        logger.trace("[IN]  setSort");
+        setParameter(Parameter.SORT, sort);
+        logger.trace("[OUT] setSort");
+    }
+
     /**
      * Set start of temporal query.
      *
@@ -1342,6 +1377,8 @@ public class Parameters implements Serializable, Cloneable {
             String queryString = "";
             SimpleDateFormat dateFormat = new SimpleDateFormat(
                     "yyyy-MM-dd'T'HH:mm:ss'Z'");
+            // dates of ESGF are UTC
+            dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
 
             logger.debug("Parameters \"keywords\" to encode query string");
 
@@ -1367,6 +1404,13 @@ public class Parameters implements Serializable, Cloneable {
                         + URLEncoder.encode(shards, ENCODE_FORMAT) + "&";
             }
 
+            // sort
+            String sort = getSort();
+            if (sort != null) {
+                queryString = queryString + "sort="
+                        + URLEncoder.encode(sort, ENCODE_FORMAT) + "&";
+            }
+
             // offset
             int offset = getOffset();
             if (offset > 0) {
@@ -1541,10 +1585,14 @@ public class Parameters implements Serializable, Cloneable {
             }
 
             // dataset_id
-            String dataset_id = getDatasetId();
-            if (dataset_id != null) {
-                queryString = queryString + "dataset_id="
-                        + URLEncoder.encode(dataset_id, ENCODE_FORMAT) + "&";
+            List<String> dataset_ids = getDatasetId();
+            if (dataset_ids != null) {
+
+                for (String dataset_id : dataset_ids) {
+                    queryString = queryString + "dataset_id="
+                            + URLEncoder.encode(dataset_id, ENCODE_FORMAT)
+                            + "&";
+                }
             }
 
             // tracking_id
@@ -1923,6 +1971,7 @@ public class Parameters implements Serializable, Cloneable {
             if (parameters.containsKey(param)) {
 
                 if (param != Parameter.LIMIT && param != Parameter.OFFSET
+                        && param != Parameter.SORT
                         && param != Parameter.DISTRIB
                         && param != Parameter.FIELDS
                         && param != Parameter.FACETS && param != Parameter.TYPE
@@ -8,11 +8,23 @@ import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import es.unican.meteo.esgf.download.Download;
 import es.unican.meteo.esgf.download.DownloadObserver;
@@ -171,6 +183,18 @@ public class SearchManager implements Serializable, DownloadObserver {
     private static final long serialVersionUID = 1619426841271071460L;
     private static final String SEARCH_RESPONSES_FILE_NAME = "search_responses.data";
 
+    /** Number of values of next facet whose counts are pre-fetched. */
+    private static final int PREFETCH_VALUES = 3;
+
+    /** Number of threads that pre-fetch facet counts. */
+    private static final int PREFETCH_THREADS = 2;
+
+    /** Maximum number of searches whose facet counts are kept in cache. */
+    private static final int MAX_CACHED_FACET_COUNTS = 32;
+
+    /** Time that facet counts in cache are valid, in ms. */
+    private static final long FACET_COUNTS_TIME_TO_LIVE = 300000; // 5 min
+
     /** Logger. */
     static private org.slf4j.Logger logger = org.slf4j.LoggerFactory
             .getLogger(SearchManager.class);
@@ -196,6 +220,18 @@ public class SearchManager implements Serializable, DownloadObserver {
     /** Executor that schedules and executes metadata collectors in threads. */
     private ExecutorService collectorsExecutor;
 
+    /**
+     * Facet counts of searches by url of search, requested or pre-fetched.
+     * Least recently used first.
+     */
+    private LinkedHashMap<String, CachedFacetCounts> facetCountsCache;
+
+    /** Urls of searches pre-fetched in last update of configuration. */
+    private List<String> prefetchedSearches;
+
+    /** Executor of pre-fetch of facet counts. */
+    private ExecutorService prefetchExecutor;
+
     /**
      * Locked datasets that are being harvested in a search response
      */
@@ -278,6 +314,23 @@ public class SearchManager implements Serializable, DownloadObserver {
 
         this.dataAccessClass = DatasetAccessClass.getInstance();
 
+        this.facetCountsCache = new LinkedHashMap<String, CachedFacetCounts>(
+                16, 0.75f, true);
+        this.prefetchedSearches = new LinkedList<String>();
+        this.prefetchExecutor = Executors.newFixedThreadPool(PREFETCH_THREADS,
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger(0);
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable,
+                                "facet-counts-prefetch-"
+                                        + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+
         logger.trace("[OUT] SearchManager");
     }
 
@@ -1708,7 +1761,10 @@ public class SearchManager implements Serializable, DownloadObserver {
     }
 
     /**
-     * Send RESTful petition to server and set new request configuration
+     * Send RESTful petition to server and set new request configuration.
+     * Number of records and facet values are obtained from the same request,
+     * or from cache if they have been pre-fetched. Then, facet counts of the
+     * most likely next refinements are pre-fetched in background.
      *
      * @throws IOException
      *             if happens an error in ESGF search service
@@ -1719,19 +1775,209 @@ public class SearchManager implements Serializable, DownloadObserver {
     HTTPStatusCodeException {
         logger.trace("[IN]  updateConfiguration");
 
-        logger.debug("Getting number of records from current search");
-        numberOfRecords = RequestManager.getNumOfRecordsFromSearch(search,
-                true, false);
-
-        logger.debug("Getting facet values and its counts that exist in ESGF from current search");
-        facetMap = RequestManager.getFacetsAndValuesFromSearch(search);
+        logger.debug("Getting number of records and facet values and its counts that exist in ESGF from current search");
+        FacetCounts facetCounts = getFacetCounts(search);
+        numberOfRecords = facetCounts.getNumberOfRecords();
+        facetMap = facetCounts.copyFacetMap();
 
         logger.debug("Updating facet values to set the values selected by user");
         updateSelectedValuesInFacetMap(facetMap);
 
+        logger.debug("Pre-fetching facet counts of next refinements");
+        prefetchRefinements(facetCounts.getFacetMap());
+
         logger.trace("[OUT] updateConfiguration");
     }
 
+    /**
+     * Get number of records and facet counts of a search from cache or from
+     * ESGF search service if they aren't in cache. If facet counts are being
+     * pre-fetched, it waits them.
+     *
+     * @param search
+     *            search service request
+     * @return number of records and facet counts of search
+     * @throws IOException
+     *             if happens an error in ESGF search service
+     * @throws HTTPStatusCodeException
+     *             if http status code isn't OK/200
+     */
+    private FacetCounts getFacetCounts(final RESTfulSearch search)
+            throws IOException, HTTPStatusCodeException {
+        logger.trace("[IN]  getFacetCounts");
+
+        String url = search.generateServiceURL().toString();
+        Future<FacetCounts> future = null;
+        synchronized (facetCountsCache) {
+            CachedFacetCounts cached = facetCountsCache.get(url);
+            if (cached != null && !cached.isExpired()) {
+                future = cached.future;
+            }
+        }
+
+        try {
+            if (future != null) {
+                logger.debug("Facet counts of search {} found in cache", url);
+                try {
+                    FacetCounts facetCounts = future.get();
+                    logger.trace("[OUT] getFacetCounts");
+                    return facetCounts;
+                } catch (ExecutionException e) {
+                    logger.debug("Pre-fetch of {} has failed. Requesting again",
+                            url);
+                } catch (CancellationException e) {
+                    logger.debug("Pre-fetch of {} has been cancelled", url);
+                }
+            }
+
+            FutureTask<FacetCounts> request = new FutureTask<FacetCounts>(
+                    new Callable<FacetCounts>() {
+                        @Override
+                        public FacetCounts call() throws Exception {
+                            return RequestManager
+                                    .getFacetCountsFromSearch(search);
+                        }
+                    });
+            request.run();
+            FacetCounts facetCounts = request.get();
+            putFacetCounts(url, new CachedFacetCounts(request));
+
+            logger.trace("[OUT] getFacetCounts");
+            return facetCounts;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Wait of facet counts has been interrupted",
+                    e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof HTTPStatusCodeException) {
+                throw (HTTPStatusCodeException) e.getCause();
+            }
+            throw new IOException("Error requesting facet counts",
+                    e.getCause());
+        }
+    }
+
+    /**
+     * Pre-fetch in background the facet counts of the most likely next
+     * refinements of current search: the {@link #PREFETCH_VALUES} values with
+     * more records of the next facet. Next facet is the facet not configured
+     * in search with less values (and at least two), because coarse facets
+     * (project, experiment...) are usually selected first. Pre-fetches of
+     * previous configuration that haven't started are cancelled.
+     *
+     * @param facetMap
+     *            facet values and its counts of current search
+     */
+    private void prefetchRefinements(
+            Map<SearchCategoryFacet, List<SearchCategoryValue>> facetMap) {
+        logger.trace("[IN]  prefetchRefinements");
+
+        synchronized (facetCountsCache) {
+            // cancel pre-fetches of previous configuration
+            for (String url : prefetchedSearches) {
+                CachedFacetCounts cached = facetCountsCache.get(url);
+                if (cached != null && !cached.future.isDone()) {
+                    cached.future.cancel(false);
+                    facetCountsCache.remove(url);
+                }
+            }
+            prefetchedSearches.clear();
+        }
+
+        // next facet
+        SearchCategoryFacet nextFacet = null;
+        for (SearchCategoryFacet facet : SearchCategoryFacet.values()) {
+            List<SearchCategoryValue> values = facetMap.get(facet);
+            if (search.getParameters().isConfigured(
+                    Parameter.valueOf(facet.name()))
+                    || values == null || values.size() < 2) {
+                continue;
+            }
+            if (nextFacet == null
+                    || values.size() < facetMap.get(nextFacet).size()) {
+                nextFacet = facet;
+            }
+        }
+
+        if (nextFacet == null) {
+            logger.trace("[OUT] prefetchRefinements");
+            return;
+        }
+
+        // values with more records first
+        List<SearchCategoryValue> values = new ArrayList<SearchCategoryValue>(
+                facetMap.get(nextFacet));
+        Collections.sort(values, new Comparator<SearchCategoryValue>() {
+            @Override
+            public int compare(SearchCategoryValue value1,
+                    SearchCategoryValue value2) {
+                return value2.getCount() - value1.getCount();
+            }
+        });
+
+        for (SearchCategoryValue value : values.subList(0,
+                Math.min(PREFETCH_VALUES, values.size()))) {
+            try {
+                final RESTfulSearch refinement = (RESTfulSearch) search.clone();
+                List<String> refinementValues = new LinkedList<String>();
+                refinementValues.add(value.getValue());
+                refinement.getParameters().setParameter(
+                        Parameter.valueOf(nextFacet.name()), refinementValues);
+
+                String url = refinement.generateServiceURL().toString();
+                synchronized (facetCountsCache) {
+                    CachedFacetCounts cached = facetCountsCache.get(url);
+                    if (cached == null || cached.isExpired()) {
+                        logger.debug("Pre-fetching facet counts of {}", url);
+                        FutureTask<FacetCounts> future = new FutureTask<FacetCounts>(
+                                new Callable<FacetCounts>() {
+                                    @Override
+                                    public FacetCounts call() throws Exception {
+                                        return RequestManager
+                                                .getFacetCountsFromSearch(refinement);
+                                    }
+                                });
+                        putFacetCounts(url, new CachedFacetCounts(future));
+                        prefetchedSearches.add(url);
+                        prefetchExecutor.execute(future);
+                    }
+                }
+            } catch (CloneNotSupportedException e) {
+                logger.warn("CloneNotSupportedException in clone search, this should not happen.");
+            }
+        }
+
+        logger.trace("[OUT] prefetchRefinements");
+    }
+
+    /**
+     * Put facet counts of a search in cache and remove least recently used
+     * facet counts if cache is full
+     *
+     * @param url
+     *            url of search
+     * @param cached
+     *            facet counts of search
+     */
+    private void putFacetCounts(String url, CachedFacetCounts cached) {
+        logger.trace("[IN]  putFacetCounts");
+
+        synchronized (facetCountsCache) {
+            facetCountsCache.put(url, cached);
+            Iterator<CachedFacetCounts> iterator = facetCountsCache.values()
+                    .iterator();
+            while (facetCountsCache.size() > MAX_CACHED_FACET_COUNTS
+                    && iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+            }
+        }
+
+        logger.trace("[OUT] putFacetCounts");
+    }
+
     // TODO
     // Maybe can change maps with parameters List<ParameterValue>
     /**
@@ -1878,4 +2124,35 @@ public class SearchManager implements Serializable, DownloadObserver {
 
     }
 
+    /**
+     * Facet counts of a search in cache. They can be still being requested.
+     */
+    private static class CachedFacetCounts {
+
+        /** Future facet counts. */
+        private Future<FacetCounts> future;
+
+        /** Time when facet counts were requested. */
+        private long time;
+
+        /**
+         * Constructor
+         *
+         * @param future
+         *            future facet counts
+         */
+        private CachedFacetCounts(Future<FacetCounts> future) {
+            this.future = future;
+            this.time = System.currentTimeMillis();
+        }
+
+        /**
+         * Check if facet counts are too old to be used
+         *
+         * @return true if facet counts have expired
+         */
+        private boolean isExpired() {
+            return System.currentTimeMillis() - time > FACET_COUNTS_TIME_TO_LIVE;
+        }
+    }
 }
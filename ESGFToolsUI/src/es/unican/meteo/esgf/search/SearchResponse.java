@@ -6,6 +6,7 @@ import java.io.ObjectInputStream;
 import java.io.OutputStreamWriter;
 import java.io.Serializable;
 import java.io.Writer;
+import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
@@ -52,6 +53,12 @@ import es.unican.meteo.esgf.petition.RequestManager;
  */
 public class SearchResponse implements Download, Serializable {
 
+    /**
+     * Serial version of search responses saved by previous versions, to read
+     * them yet.
+     */
+    private static final long serialVersionUID = -50900948701842628L;
+
     /**
      * Private class runnable, that obtains first set of datasets. If exists an
      * error, the object responseDatasets is null
@@ -72,6 +79,12 @@ public class SearchResponse implements Download, Serializable {
                 HarvestStatus previousHarvestStatus = getHarvestStatus();
                 setHarvestStatus(HarvestStatus.HARVESTING);
 
+                if (incrementalHarvest) {
+                    harvestModifiedDatasets();
+                    logger.trace("[OUT] run");
+                    return;
+                }
+
                 logger.debug("Getting instance_id of datasets that satisfy the"
                         + " constraints from", search.generateServiceURL());
                 Set<String> datasetInstanceIDs = RequestManager
@@ -176,6 +189,19 @@ public class SearchResponse implements Download, Serializable {
     static private org.slf4j.Logger logger = org.slf4j.LoggerFactory
             .getLogger(SearchResponse.class);
 
+    /**
+     * Milliseconds before last harvest that are harvested again in an
+     * incremental harvest. Covers differences between local clock and clock of
+     * index nodes.
+     */
+    private static final long INCREMENTAL_HARVEST_MARGIN = 3600000; // 1 h
+
+    /**
+     * True if harvests are lean: only metadata needed to download files is
+     * harvested and the rest is loaded when it is shown.
+     */
+    private static boolean leanHarvest = false;
+
     /** List of dataset metadata collector. */
     private transient List<DatasetMetadataCollector> collectors;
 
@@ -219,6 +245,15 @@ public class SearchResponse implements Download, Serializable {
     /** Harvesting start date. */
     private Date harvestingStart;
 
+    /**
+     * Start date of last harvest that has finished without errors. Records
+     * modified after it are harvested in an incremental harvest.
+     */
+    private Date lastHarvest;
+
+    /** True if current harvest is incremental. */
+    private transient boolean incrementalHarvest;
+
     /** Name of search response. */
     private String name;
 
@@ -557,6 +592,34 @@ public class SearchResponse implements Download, Serializable {
         return datasetHarvestingStatus.get(instanceID);
     }
 
+    /**
+     * Check if harvests are lean. A lean harvest is a PARTIAL harvest: only
+     * metadata needed to download files (instance_id, size, checksum,
+     * checksum_type and url of files) is requested to ESGF, so responses and
+     * stored datasets are smaller. The full metadata of a dataset is loaded by
+     * {@link MetadataHydrator} when it is shown.
+     *
+     * @return true if harvests are lean and false if they are complete
+     */
+    public static boolean isLeanHarvest() {
+        logger.trace("[IN]  isLeanHarvest");
+        logger.trace("[OUT] isLeanHarvest");
+        return leanHarvest;
+    }
+
+    /**
+     * Set if harvests are lean (PARTIAL) or complete
+     *
+     * @param leanHarvest
+     *            true to harvest only metadata needed to download files and
+     *            false to harvest all metadata
+     */
+    public static void setLeanHarvest(boolean leanHarvest) {
+        logger.trace("[IN]  setLeanHarvest");
+        SearchResponse.leanHarvest = leanHarvest;
+        logger.trace("[OUT] setLeanHarvest");
+    }
+
     /**
      * Get type of harvesting configurated in search response.
      *
@@ -750,6 +813,7 @@ public class SearchResponse implements Download, Serializable {
                 setHarvestStatus(HarvestStatus.COMPLETED);
                 setHarvestingFinish(new Date());
                 checkIfExistsAFailedDataset();
+                saveLastHarvest();
                 notifyDownloadCompletedObservers();
                 this.collectors = new LinkedList<DatasetMetadataCollector>();
             }
@@ -783,6 +847,18 @@ public class SearchResponse implements Download, Serializable {
 
     }
 
+    /**
+     * Save start of current harvest as last harvest if it has finished without
+     * errors
+     */
+    private void saveLastHarvest() {
+        logger.trace("[IN]  saveLastHarvest");
+        if (!existsErrors && harvestingStart != null) {
+            this.lastHarvest = harvestingStart;
+        }
+        logger.trace("[OUT] saveLastHarvest");
+    }
+
     /**
      * Put the harvesting status that are related to specific dataset and the
      * search to FAILED
@@ -808,6 +884,7 @@ public class SearchResponse implements Download, Serializable {
             setHarvestStatus(HarvestStatus.COMPLETED);
             setHarvestingFinish(new Date());
             checkIfExistsAFailedDataset();
+            saveLastHarvest();
             notifyDownloadCompletedObservers();
             this.collectors = new LinkedList<DatasetMetadataCollector>();
         }
@@ -892,6 +969,7 @@ public class SearchResponse implements Download, Serializable {
 
         this.harvestingStart = null;
         this.harvestingFinish = null;
+        this.lastHarvest = null;
         this.observers = new LinkedList<DownloadObserver>();
         this.existsErrors = false;
 
@@ -1021,6 +1099,17 @@ public class SearchResponse implements Download, Serializable {
         logger.trace("[OUT] setDatasetTotalCount");
     }
 
+    /**
+     * Get executor that schedules and executes metadata collectors in threads.
+     *
+     * @return executor of metadata collectors
+     */
+    public ExecutorService getExecutor() {
+        logger.trace("[IN]  getExecutor");
+        logger.trace("[OUT] getExecutor");
+        return collectorsExecutor;
+    }
+
     /**
      * Set executor that schedules and executes metadata collectors in threads.
      *
@@ -1201,6 +1290,7 @@ public class SearchResponse implements Download, Serializable {
         }
 
         setHarvestType(SearchHarvestType.COMPLETE);
+        incrementalHarvest = false;
         download();
 
         logger.trace("[OUT] startCompleteHarvesting");
@@ -1236,11 +1326,145 @@ public class SearchResponse implements Download, Serializable {
         }
 
         setHarvestType(SearchHarvestType.PARTIAL);
+        incrementalHarvest = false;
         download();
 
         logger.trace("[OUT] startPartialHarvesting");
     }
 
+    /**
+     * Starts an incremental harvesting of search. Only datasets whose records
+     * have been modified in ESGF since the last harvest without errors are
+     * harvested: new datasets (new versions) are added and new replicas and
+     * files of datasets already harvested are merged into stored datasets. If
+     * search hasn't been harvested without errors yet, a full harvest (or a
+     * lean harvest, see {@link #isLeanHarvest()}) is started.
+     *
+     * @throws IllegalStateException
+     *             if exists a current process of harvest
+     */
+    public void startIncrementalHarvesting() throws IllegalStateException {
+        logger.trace("[IN]  startIncrementalHarvesting");
+
+        logger.debug("Check if exists a harvesting in process of {}", getName());
+        if (harvestStatus == HarvestStatus.HARVESTING) {
+            logger.error("Exists a harvesting in process of {}", getName());
+            throw new IllegalStateException(
+                    "Exists a harvesting in process of " + getName());
+        }
+
+        if (lastHarvest == null || harvestType == null) {
+            logger.debug("Search {} hasn't been harvested without errors",
+                    getName());
+            if (isLeanHarvest()) {
+                startPartialHarvesting();
+            } else {
+                startCompleteHarvesting();
+            }
+            logger.trace("[OUT] startIncrementalHarvesting");
+            return;
+        }
+
+        incrementalHarvest = true;
+        download();
+
+        logger.trace("[OUT] startIncrementalHarvesting");
+    }
+
+    /**
+     * Get start date of last harvest that has finished without errors
+     *
+     * @return start date of last harvest or null if search hasn't been
+     *         harvested without errors
+     */
+    public Date getLastHarvest() {
+        logger.trace("[IN]  getLastHarvest");
+        logger.trace("[OUT] getLastHarvest");
+        return lastHarvest;
+    }
+
+    /**
+     * Harvest datasets whose records have been modified since last harvest.
+     * Called by harvesting initiator thread in an incremental harvest.
+     *
+     * @throws IOException
+     *             if modified datasets can't be requested
+     * @throws HTTPStatusCodeException
+     *             if http status code isn't OK/200
+     */
+    private void harvestModifiedDatasets() throws IOException,
+            HTTPStatusCodeException {
+        logger.trace("[IN]  harvestModifiedDatasets");
+
+        RESTfulSearch modifiedSearch;
+        try {
+            modifiedSearch = (RESTfulSearch) search.clone();
+        } catch (CloneNotSupportedException e) {
+            logger.warn("CloneNotSupportedException in clone search, this should not happen.");
+            modifiedSearch = search;
+        }
+
+        // from = last harvest, unless search already has a later from
+        Calendar from = Calendar.getInstance();
+        from.setTimeInMillis(lastHarvest.getTime()
+                - INCREMENTAL_HARVEST_MARGIN);
+        Calendar searchFrom = modifiedSearch.getParameters().getFrom();
+        if (searchFrom == null || searchFrom.before(from)) {
+            modifiedSearch.getParameters().setFrom(from);
+        }
+
+        logger.debug("Getting instance_id of datasets modified since {}",
+                from.getTime());
+        Set<String> modifiedInstanceIDs = RequestManager
+                .getDatasetInstanceIDsFromSearch(modifiedSearch);
+
+        if (getHarvestStatus() == HarvestStatus.PAUSED) {
+            logger.debug("Search response {} has been paused", getName());
+            logger.trace("[OUT] harvestModifiedDatasets");
+            return;
+        }
+
+        logger.debug("{} datasets of search {} have been modified",
+                modifiedInstanceIDs.size(), getName());
+        synchronized (this) {
+            for (String instanceID : modifiedInstanceIDs) {
+                boolean refresh = false;
+                if (!contains(instanceID)) {
+                    addDatasetToHarvest(instanceID);
+                } else {
+                    HarvestStatus status = getHarvestStatus(instanceID);
+                    if (status == HarvestStatus.COMPLETED
+                            || status == HarvestStatus.FAILED) {
+                        decrementProcessedDataset();
+                    }
+                    datasetHarvestingStatus.put(instanceID,
+                            HarvestStatus.CREATED);
+                    refresh = status == HarvestStatus.COMPLETED;
+                }
+
+                logger.debug("Adding dataset {} collector in thread pool",
+                        instanceID);
+                DatasetMetadataCollector collector = new DatasetMetadataCollector(
+                        instanceID, this, datasetFileInstanceIDMap, refresh);
+                collectors.add(collector);
+                collectorsExecutor.execute(collector);
+            }
+
+            setDatasetTotalCount(datasetHarvestingStatus.size());
+
+            // if nothing has been modified harvest has finished
+            if (processedDatasets == datasetTotalCount) {
+                setHarvestStatus(HarvestStatus.COMPLETED);
+                setHarvestingFinish(new Date());
+                checkIfExistsAFailedDataset();
+                saveLastHarvest();
+                notifyDownloadCompletedObservers();
+            }
+        }
+
+        logger.trace("[OUT] harvestModifiedDatasets");
+    }
+
     /**
      * Check if exists some error in the search at dataset level. Only have
      * sense in search responses with a completed harvesting.
@@ -5,6 +5,11 @@ import java.io.Serializable;
 /***
  * Lists the services offered by ESGF for access to data.
  * 
+ * <p>
+ * Services are stored in database by their codes in DatasetCodec: a new
+ * service must be added at the end of codes of DatasetCodec too.
+ * </p>
+ * 
  * @author Karem Terry
  * 
  */
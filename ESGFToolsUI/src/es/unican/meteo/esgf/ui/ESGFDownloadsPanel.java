@@ -16,13 +16,19 @@ import java.util.Observable;
 import java.util.Observer;
 
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
+import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JProgressBar;
 import javax.swing.JScrollPane;
+import javax.swing.JSpinner;
 import javax.swing.JTable;
 import javax.swing.JTextField;
 import javax.swing.JToolBar;
+import javax.swing.SpinnerNumberModel;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 import javax.swing.event.TreeModelEvent;
 import javax.swing.event.TreeModelListener;
 import javax.swing.table.TableCellRenderer;
@@ -63,6 +69,15 @@ public class ESGFDownloadsPanel extends JPanel implements Observer {
      */
     private static final long serialVersionUID = -6544810788283927158L;
 
+    /** Preference of download of segments from several replicas. */
+    private static final String MULTI_SOURCE_DOWNLOAD_PREF = "multiSourceDownload";
+
+    /** Preference of number of segments of a segmented download. */
+    private static final String SEGMENTS_PER_FILE_PREF = "segmentsPerFile";
+
+    /** Maximum number of segments per file that can be configured. */
+    private static final int MAX_SEGMENTS_PER_FILE = 16;
+
     /** Preferences of configuration. */
     private final PreferencesExt prefs;
 
@@ -149,6 +164,65 @@ public class ESGFDownloadsPanel extends JPanel implements Observer {
         toolBar.add(pauseAllDownloads);
         toolBar.addSeparator();
         toolBar.add(removeAllDownloads);
+        toolBar.addSeparator();
+
+        // Segments of big files are downloaded from several replicas at the
+        // same time. Only applies to new downloads
+        FileDownloadStatus.setMultiSourceDownload(prefs.getBoolean(
+                MULTI_SOURCE_DOWNLOAD_PREF, false));
+        final JCheckBox multiSourceDownload = new JCheckBox(
+                "Multi-source download",
+                FileDownloadStatus.isMultiSourceDownload());
+        multiSourceDownload
+                .setToolTipText("Download segments of big files from several"
+                        + " replicas at the same time");
+        multiSourceDownload.addActionListener(new ActionListener() {
+
+            @Override
+            public void actionPerformed(ActionEvent arg0) {
+                logger.trace("[IN]  actionPerformed");
+                FileDownloadStatus.setMultiSourceDownload(multiSourceDownload
+                        .isSelected());
+                ESGFDownloadsPanel.this.prefs.putBoolean(
+                        MULTI_SOURCE_DOWNLOAD_PREF,
+                        multiSourceDownload.isSelected());
+                logger.trace("[OUT] actionPerformed");
+            }
+        });
+
+        toolBar.add(multiSourceDownload);
+        toolBar.addSeparator();
+
+        // Big files are downloaded in several segments at the same time.
+        // Connections of segments are counted in the limit of each data node
+        int segmentsPerFile = prefs.getInt(SEGMENTS_PER_FILE_PREF,
+                FileDownloadStatus.getSegmentsPerFile());
+        if (segmentsPerFile < 1 || segmentsPerFile > MAX_SEGMENTS_PER_FILE) {
+            segmentsPerFile = FileDownloadStatus.getSegmentsPerFile();
+        }
+        FileDownloadStatus.setSegmentsPerFile(segmentsPerFile);
+        final JSpinner segmentsSpinner = new JSpinner(new SpinnerNumberModel(
+                segmentsPerFile, 1, MAX_SEGMENTS_PER_FILE, 1));
+        // spinner would be stretched to fill tool bar
+        segmentsSpinner.setMaximumSize(segmentsSpinner.getPreferredSize());
+        segmentsSpinner
+                .setToolTipText("Simultaneous connections of each big file."
+                        + " 1 downloads files with only one connection");
+        segmentsSpinner.addChangeListener(new ChangeListener() {
+
+            @Override
+            public void stateChanged(ChangeEvent arg0) {
+                logger.trace("[IN]  stateChanged");
+                int segments = (Integer) segmentsSpinner.getValue();
+                FileDownloadStatus.setSegmentsPerFile(segments);
+                ESGFDownloadsPanel.this.prefs.putInt(SEGMENTS_PER_FILE_PREF,
+                        segments);
+                logger.trace("[OUT] stateChanged");
+            }
+        });
+
+        toolBar.add(new JLabel("Segments per file: "));
+        toolBar.add(segmentsSpinner);
         // --Center panel--------------------------------------------------
         // Tree table of downloads-----------------------------------------
 
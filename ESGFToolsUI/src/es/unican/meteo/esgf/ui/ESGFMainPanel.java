@@ -44,9 +44,12 @@ import javax.swing.event.ChangeListener;
 import ucar.util.prefs.PreferencesExt;
 import es.unican.meteo.esgf.download.DatasetDownloadStatus;
 import es.unican.meteo.esgf.download.DownloadManager;
+import es.unican.meteo.esgf.download.ReplicaSelector;
 import es.unican.meteo.esgf.petition.CredentialsManager;
 import es.unican.meteo.esgf.petition.DatasetAccessClass;
 import es.unican.meteo.esgf.petition.HTTPStatusCodeException;
+import es.unican.meteo.esgf.petition.IndexNodeSelector;
+import es.unican.meteo.esgf.petition.SearchResponseCache;
 import es.unican.meteo.esgf.search.HarvestStatus;
 import es.unican.meteo.esgf.search.SearchManager;
 import es.unican.meteo.esgf.search.SearchResponse;
@@ -671,21 +674,11 @@ public class ESGFMainPanel extends JPanel {
         // put all active downloads to pause
         downloadManager.pauseActiveDownloads();
 
-        // Serialize dataset downloads objects in file
-        ObjectOutputStream out;
-        try {
-            File file = new File(datasetDownloadsPath);
-            out = new ObjectOutputStream(new FileOutputStream(file));
-            out.writeObject(downloadManager.getDatasetDownloads());
-            out.close();
-
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        // Save dataset downloads with a checkpoint of downloads journal
+        downloadManager.saveDatasetDownloads();
 
         // Serialize file instance IDs in file
+        ObjectOutputStream out;
         try {
             File file = new File(fileInstanceIDsPath);
             out = new ObjectOutputStream(new FileOutputStream(file));
@@ -698,6 +691,13 @@ public class ESGFMainPanel extends JPanel {
             e.printStackTrace();
         }
 
+        // Save cache of search responses
+        SearchResponseCache.getInstance().save();
+
+        // Save health of data nodes and index nodes
+        ReplicaSelector.getInstance().save();
+        IndexNodeSelector.getInstance().save();
+
         // Save in preferences
         // Configure nodes if not configured
         if (prefs.getObject("nodes") == null) {
@@ -25,6 +25,7 @@ import java.util.concurrent.TimeUnit;
 
 import javax.swing.BorderFactory;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JEditorPane;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
@@ -42,6 +43,7 @@ import ucar.util.prefs.PreferencesExt;
 import es.unican.meteo.esgf.download.Download;
 import es.unican.meteo.esgf.download.DownloadManager;
 import es.unican.meteo.esgf.download.DownloadObserver;
+import es.unican.meteo.esgf.petition.RequestManager;
 import es.unican.meteo.esgf.search.Dataset;
 import es.unican.meteo.esgf.search.DatasetFile;
 import es.unican.meteo.esgf.search.HarvestStatus;
@@ -59,6 +61,10 @@ DownloadObserver {
     private static final String SEARCH_RESPONSES_FILE_NAME = "search_responses.data";
 
     private static final String ENCODE_FORMAT = "UTF-8";
+    /** Preference of lean harvest of new harvests. */
+    private static final String LEAN_HARVEST_PREF = "leanHarvest";
+    /** Preference of request of pages of records with a cursor. */
+    private static final String CURSOR_PAGING_PREF = "cursorPaging";
     /**
      * Logger
      */
@@ -126,6 +132,52 @@ DownloadObserver {
 
         harvToolBar.add(doNewSearch);
 
+        // Lean harvest only harvests metadata needed to download. Rest of
+        // metadata is loaded when a dataset is explored
+        SearchResponse.setLeanHarvest(prefs.getBoolean(LEAN_HARVEST_PREF,
+                false));
+        final JCheckBox leanHarvest = new JCheckBox("Lean harvest",
+                SearchResponse.isLeanHarvest());
+        leanHarvest
+                .setToolTipText("Harvest only metadata needed to download files."
+                        + " Rest of metadata is loaded when a dataset is explored");
+        leanHarvest.addActionListener(new ActionListener() {
+
+            @Override
+            public void actionPerformed(ActionEvent arg0) {
+                logger.trace("[IN]  actionPerformed");
+                SearchResponse.setLeanHarvest(leanHarvest.isSelected());
+                ESGFMetadataHarvestingPanel.this.prefs.putBoolean(
+                        LEAN_HARVEST_PREF, leanHarvest.isSelected());
+                logger.trace("[OUT] actionPerformed");
+            }
+        });
+
+        harvToolBar.add(leanHarvest);
+
+        // Pages of records are requested with a cursor on id instead of
+        // offset. Falls back to offset if index node doesn't sort by id
+        RequestManager.setCursorPaging(prefs.getBoolean(CURSOR_PAGING_PREF,
+                false));
+        final JCheckBox cursorPaging = new JCheckBox("Cursor paging",
+                RequestManager.isCursorPaging());
+        cursorPaging
+                .setToolTipText("Request pages of big searches after the last"
+                        + " id of previous page instead of with offset");
+        cursorPaging.addActionListener(new ActionListener() {
+
+            @Override
+            public void actionPerformed(ActionEvent arg0) {
+                logger.trace("[IN]  actionPerformed");
+                RequestManager.setCursorPaging(cursorPaging.isSelected());
+                ESGFMetadataHarvestingPanel.this.prefs.putBoolean(
+                        CURSOR_PAGING_PREF, cursorPaging.isSelected());
+                logger.trace("[OUT] actionPerformed");
+            }
+        });
+
+        harvToolBar.add(cursorPaging);
+
         // ---------------------------------------------------------------------
         // Box of search responses of saved searches
         // ---------------------------------------------------------------------
@@ -288,7 +340,14 @@ DownloadObserver {
                         SearchResponse searchResponse = ESGFMetadataHarvestingPanel.this.searchManager
                                 .getSearchResponses().get(index);
                         updateUI();
-                        searchResponse.startCompleteHarvesting();
+                        // a harvested search is refreshed with changes
+                        if (searchResponse.getHarvestStatus() == HarvestStatus.COMPLETED) {
+                            searchResponse.startIncrementalHarvesting();
+                        } else if (SearchResponse.isLeanHarvest()) {
+                            searchResponse.startPartialHarvesting();
+                        } else {
+                            searchResponse.startCompleteHarvesting();
+                        }
                         searchResponse
                         .registerObserver(ESGFMetadataHarvestingPanel.this);
                         update();
@@ -565,6 +565,7 @@ public class ESGFSearchPanel extends JPanel {
             if (parameter != Parameter.QUERY && parameter != Parameter.LATEST
                     && parameter != Parameter.REPLICA
                     && parameter != Parameter.SHARDS
+                    && parameter != Parameter.SORT
                     && parameter != Parameter.LIMIT
                     && parameter != Parameter.OFFSET
                     && parameter != Parameter.FIELDS
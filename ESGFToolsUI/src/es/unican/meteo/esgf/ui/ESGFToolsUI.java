@@ -95,6 +95,8 @@ import javax.swing.event.MenuListener;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.support.ClassPathXmlApplicationContext;
 
+import es.unican.meteo.esgf.download.DataNodeConnectionManager;
+
 import thredds.featurecollection.FeatureCollectionConfig;
 import thredds.inventory.MController;
 import thredds.inventory.bdb.MetadataManager;
@@ -6637,6 +6639,9 @@ public class ESGFToolsUI extends JPanel {
 
     public static void main(String args[]) {
 
+        // before any http connection, so that JVM keep-alive cache uses it
+        DataNodeConnectionManager.configureConnections();
+
         // get a splash screen up right away
         final SplashScreen splash = new SplashScreen();
 
@@ -1,6 +1,7 @@
 package es.unican.meteo.esgf.ui;
 
 import java.awt.BorderLayout;
+import java.awt.Cursor;
 import java.awt.Dimension;
 import java.awt.FlowLayout;
 import java.awt.Font;
@@ -30,15 +31,18 @@ import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTextField;
 import javax.swing.JToolBar;
+import javax.swing.SwingWorker;
 import javax.swing.text.html.HTMLDocument;
 import javax.xml.stream.XMLStreamException;
 
 import ucar.util.prefs.PreferencesExt;
 import es.unican.meteo.esgf.download.DownloadManager;
+import es.unican.meteo.esgf.petition.HTTPStatusCodeException;
 import es.unican.meteo.esgf.search.Dataset;
 import es.unican.meteo.esgf.search.DatasetFile;
 import es.unican.meteo.esgf.search.HarvestStatus;
 import es.unican.meteo.esgf.search.Metadata;
+import es.unican.meteo.esgf.search.MetadataHydrator;
 import es.unican.meteo.esgf.search.MetalinkGenerator;
 import es.unican.meteo.esgf.search.SearchResponse;
 
@@ -487,9 +491,13 @@ public class SearchResponseExplorerDialog extends JFrame {
 
                         @Override
                         public void actionPerformed(ActionEvent e) {
-                            datasetJsonViewDialog = new DatasetJsonViewDialog(
-                                    dataset, parent);
-
+                            hydrate(dataset, new Runnable() {
+                                @Override
+                                public void run() {
+                                    datasetJsonViewDialog = new DatasetJsonViewDialog(
+                                            dataset, parent);
+                                }
+                            });
                         }
                     });
 
@@ -504,8 +512,14 @@ public class SearchResponseExplorerDialog extends JFrame {
 
                         @Override
                         public void actionPerformed(ActionEvent e) {
-                            metadataDialog = new MetadataDialog(dataset, parent);
-                            metadataDialog.setVisible(true);
+                            hydrate(dataset, new Runnable() {
+                                @Override
+                                public void run() {
+                                    metadataDialog = new MetadataDialog(
+                                            dataset, parent);
+                                    metadataDialog.setVisible(true);
+                                }
+                            });
                         }
                     });
 
@@ -615,6 +629,45 @@ public class SearchResponseExplorerDialog extends JFrame {
         }
     }
 
+    /**
+     * Load full metadata of a dataset harvested in a lean harvest before it is
+     * shown. Metadata is loaded in background and then dataset is shown in
+     * event dispatch thread. If metadata can't be loaded, the harvested
+     * metadata is shown.
+     *
+     * @param dataset
+     *            dataset that will be shown
+     * @param show
+     *            shows dataset when metadata has been loaded
+     */
+    private void hydrate(final Dataset dataset, final Runnable show) {
+        setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+
+        new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() throws Exception {
+                try {
+                    MetadataHydrator.hydrate(dataset);
+                } catch (IOException e) {
+                    logger.warn(
+                            "Full metadata of dataset {} can't be loaded: {}",
+                            dataset.getInstanceID(), e.getMessage());
+                } catch (HTTPStatusCodeException e) {
+                    logger.warn(
+                            "Full metadata of dataset {} can't be loaded: {}",
+                            dataset.getInstanceID(), e.getMessage());
+                }
+                return null;
+            }
+
+            @Override
+            protected void done() {
+                setCursor(Cursor.getDefaultCursor());
+                show.run();
+            }
+        }.execute();
+    }
+
     /** Reset page count in page label, and next and previous buttons. */
     private void resetPageCount() {
         // set current page to 1